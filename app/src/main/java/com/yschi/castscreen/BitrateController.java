@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+/**
+ * Closed-loop encoder bitrate control driven by what the socket achieves.
+ *
+ * Every interval the controller looks at the bytes written, the time frames
+ * waited in the send queue and whether frames were dropped. A growing queue
+ * means the link is slower than the encoder, so the bitrate is cut below the
+ * throughput that actually got through, far enough to also drain the backlog
+ * within a couple of seconds. While a backlog is draining the bitrate is
+ * held. A queue that stays empty means there is headroom, so the bitrate is
+ * raised step by step. The result is always kept within the configured
+ * bounds.
+ */
+public class BitrateController {
+    public interface Listener {
+        /**
+         * Called on the thread reporting frames when the target bitrate changes.
+         */
+        void onBitrateChanged(int bitrate);
+    }
+
+    static final long INTERVAL_US = 500000;
+    // average time in the send queue above which the link is considered congested
+    static final long CONGESTED_QUEUE_DELAY_US = 80000;
+    // average time in the send queue below which the link is considered to have headroom
+    static final long IDLE_QUEUE_DELAY_US = 20000;
+    private static final float DECREASE_FACTOR = 0.85f;
+    // time within which a decrease should drain the current backlog
+    private static final long BACKLOG_DRAIN_US = 2000000;
+    private static final float INCREASE_FACTOR = 1.08f;
+    private static final int IDLE_INTERVALS_BEFORE_INCREASE = 2;
+
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private final Listener mListener;
+    private int mBitrate;
+    private long mIntervalStartUs = -1;
+    private long mIntervalBytes;
+    private long mIntervalQueueDelaySumUs;
+    private int mIntervalFrames;
+    private int mLastDroppedFrames;
+    private int mIdleIntervals;
+    private long mLastAverageQueueDelayUs;
+
+    public BitrateController(int initialBitrate, int minBitrate, int maxBitrate, Listener listener) {
+        if (minBitrate > maxBitrate) {
+            throw new IllegalArgumentException("min bitrate " + minBitrate + " > max bitrate " + maxBitrate);
+        }
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+        mListener = listener;
+        mBitrate = clamp(initialBitrate);
+    }
+
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * Reports a frame written to the socket. Must always be called from the same thread.
+     *
+     * @param bytes         size of the frame
+     * @param queueDelayUs  time the frame waited in the send queue before being written
+     * @param nowUs         current time in microseconds
+     * @param droppedFrames total number of frames dropped by the sender so far
+     */
+    public void onFrameSent(int bytes, long queueDelayUs, long nowUs, int droppedFrames) {
+        if (mIntervalStartUs < 0) {
+            mIntervalStartUs = nowUs;
+            mLastDroppedFrames = droppedFrames;
+        }
+        mIntervalBytes += bytes;
+        mIntervalQueueDelaySumUs += queueDelayUs;
+        mIntervalFrames++;
+        long elapsedUs = nowUs - mIntervalStartUs;
+        if (elapsedUs >= INTERVAL_US) {
+            evaluate(elapsedUs, droppedFrames);
+            mIntervalStartUs = nowUs;
+            mIntervalBytes = 0;
+            mIntervalQueueDelaySumUs = 0;
+            mIntervalFrames = 0;
+        }
+    }
+
+    private void evaluate(long elapsedUs, int droppedFrames) {
+        boolean dropped = droppedFrames != mLastDroppedFrames;
+        mLastDroppedFrames = droppedFrames;
+        long throughput = mIntervalBytes * 8 * 1000000 / elapsedUs;
+        long averageQueueDelayUs = mIntervalQueueDelaySumUs / mIntervalFrames;
+        boolean draining = averageQueueDelayUs < mLastAverageQueueDelayUs;
+        mLastAverageQueueDelayUs = averageQueueDelayUs;
+        int target = mBitrate;
+        if (dropped || averageQueueDelayUs > CONGESTED_QUEUE_DELAY_US) {
+            mIdleIntervals = 0;
+            // go below what actually got through, by enough to also drain the backlog in time
+            double drainFactor = DECREASE_FACTOR - (double) averageQueueDelayUs / BACKLOG_DRAIN_US;
+            long desired = Math.max((long) (throughput * drainFactor), mBitrate / 2);
+            if (desired >= mBitrate || (draining && !dropped)) {
+                // the last decrease is already taking effect
+                return;
+            }
+            target = (int) desired;
+        } else if (averageQueueDelayUs < IDLE_QUEUE_DELAY_US) {
+            mIdleIntervals++;
+            if (mIdleIntervals >= IDLE_INTERVALS_BEFORE_INCREASE) {
+                target = (int) (mBitrate * INCREASE_FACTOR);
+            }
+        } else {
+            mIdleIntervals = 0;
+        }
+        target = clamp(target);
+        if (target != mBitrate) {
+            mBitrate = target;
+            if (mListener != null) {
+                mListener.onBitrateChanged(target);
+            }
+        }
+    }
+
+    private int clamp(int bitrate) {
+        return Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+    }
+}
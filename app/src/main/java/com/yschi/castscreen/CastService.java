@@ -31,24 +31,46 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 public class CastService extends Service {
     private final String TAG = "CastService";
@@ -58,29 +80,8 @@ public class CastService extends Service {
     private ArrayList<Messenger> mClients = new ArrayList<Messenger>();
     private IntentFilter mBroadcastIntentFilter;
 
-    private static final String HTTP_MESSAGE_TEMPLATE = "POST /api/v1/h264 HTTP/1.1\r\n" +
-                                                        "Connection: close\r\n" +
-                                                        "X-WIDTH: %1$d\r\n" +
-                                                        "X-HEIGHT: %2$d\r\n" +
-                                                        "\r\n";
-
-    // 1280x720@25
-    private static final byte[] H264_PREDEFINED_HEADER_1280x720 = {
-            (byte)0x21, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
-            (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x01,
-            (byte)0x67, (byte)0x42, (byte)0x80, (byte)0x20, (byte)0xda, (byte)0x01, (byte)0x40, (byte)0x16,
-            (byte)0xe8, (byte)0x06, (byte)0xd0, (byte)0xa1, (byte)0x35, (byte)0x00, (byte)0x00, (byte)0x00,
-            (byte)0x01, (byte)0x68, (byte)0xce, (byte)0x06, (byte)0xe2, (byte)0x32, (byte)0x24, (byte)0x00,
-            (byte)0x00, (byte)0x7a, (byte)0x83, (byte)0x3d, (byte)0xae, (byte)0x37, (byte)0x00, (byte)0x00};
-
-    // 800x480@25
-    private static final byte[] H264_PREDEFINED_HEADER_800x480 = {
-            (byte)0x21, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
-            (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x01,
-            (byte)0x67, (byte)0x42, (byte)0x80, (byte)0x20, (byte)0xda, (byte)0x03, (byte)0x20, (byte)0xf6,
-            (byte)0x80, (byte)0x6d, (byte)0x0a, (byte)0x13, (byte)0x50, (byte)0x00, (byte)0x00, (byte)0x00,
-            (byte)0x01, (byte)0x68, (byte)0xce, (byte)0x06, (byte)0xe2, (byte)0x32, (byte)0x24, (byte)0x00,
-            (byte)0x00, (byte)0x7a, (byte)0x83, (byte)0x3d, (byte)0xae, (byte)0x37, (byte)0x00, (byte)0x00};
+    // IPv4 and UDP headers
+    private static final int IP_UDP_HEADER_SIZE = 28;
 
     private MediaProjectionManager mMediaProjectionManager;
     private String mReceiverIp;
@@ -91,22 +92,82 @@ public class CastService extends Service {
     private int mSelectedHeight;
     private int mSelectedDpi;
     private int mSelectedBitrate;
-    //private boolean mMuxerStarted = false;
+    private int mFrameRate;
+    // as given by the intent, the next cast starts from them again after a reconfiguration
+    private int mRequestedWidth;
+    private int mRequestedHeight;
+    private int mRequestedFrameRate;
+    private boolean mQualityScaling;
+    // only set while casting with adaptive bitrate and quality scaling, fed on the stats thread
+    private volatile QualityController mQualityController;
+    private boolean mIdleDetection;
+    private boolean mEncoderTuning;
+    private int mBitrateMode;
+    // only set while casting with idle detection, used on the encoder thread
+    private volatile IdleDetector mIdleDetector;
+    private boolean mAdaptiveBitrate;
+    private int mMinBitrate;
+    private int mMaxBitrate;
+    private int mDrainMode;
+    private int mSendQueueSize;
+    private int mMaxLatencyMs;
+    private int mTransport;
+    private int mRtpPort;
+    private int mRtpMtu;
+    private int mFecGroupSize;
+    private int mFecInterleave;
+    private boolean mRecord;
+    private boolean mLatencyProbe;
+    private int mLatencyProbePort;
+    // framing version the receiver of client mode understands
+    private int mFraming;
     private MediaProjection mMediaProjection;
     private VirtualDisplay mVirtualDisplay;
     private Surface mInputSurface;
-    //private MediaMuxer mMuxer;
     private MediaCodec mVideoEncoder;
     private MediaCodec.BufferInfo mVideoBufferInfo;
-    //private int mTrackIndex = -1;
-    private ServerSocket mServerSocket;
-    private Socket mSocket;
-    private OutputStream mSocketOutputStream;
-    private IvfWriter mIvfWriter;
-    private Handler mDrainHandler = new Handler();
+    private ViewerServer mViewerServer;
+    // replaced as a whole under mViewersLock, so the encoder thread can iterate it without locking
+    private volatile Viewer[] mViewers = new Viewer[0];
+    private final Object mViewersLock = new Object();
+    // latest key frame and what followed it, replayed to viewers joining mid-stream
+    private final GopCache mGopCache = new GopCache(Common.GOP_CACHE_MAX_FRAMES);
+    // SPS and PPS of the running H.264 or HEVC encoder, guarded by mViewersLock
+    private ParameterSets mParameterSets;
+    // writes the encoded frames to a local file from its own thread, null when not recording
+    private volatile FrameSender mRecorder;
+    private Closeable mRecordingWriter;
+    // presentation time of the first recorded frame, only touched on the encoder thread
+    private long mRecordingStartUs;
+    private volatile BitrateController mBitrateController;
+    private volatile int mTargetBitrate;
+    private HandlerThread mEncoderThread;
+    private Handler mEncoderHandler;
+    private final PipelineStats mStats = new PipelineStats(System.nanoTime() / 1000);
+    // only touched on the stats thread
+    private final PipelineStats.Snapshot mStatsSnapshot = new PipelineStats.Snapshot();
+    private final StringBuilder mStatsLine = new StringBuilder();
+    private Writer mStatsLog;
+    private HandlerThread mStatsThread;
+    private Handler mStatsHandler;
+    // redials a lost receiver in client mode
+    private HandlerThread mReconnectThread;
+    private Handler mReconnectHandler;
+    private volatile boolean mReconnecting;
+    private final ReconnectBackoff mReconnectBackoff = new ReconnectBackoff(Common.RECONNECT_INITIAL_DELAY_MS,
+            Common.RECONNECT_MAX_DELAY_MS, Common.RECONNECT_GIVE_UP_MS, new Random());
     private Runnable mStartEncodingRunnable = new Runnable() {
         @Override
         public void run() {
+            if (mVideoEncoder != null) {
+                // already casting to other viewers, the new one starts from the cached key frame
+                // unless there is none to replay
+                Handler encoderHandler = mEncoderHandler;
+                if (encoderHandler != null && !mGopCache.hasKeyFrame()) {
+                    encoderHandler.post(mRequestSyncFrameRunnable);
+                }
+                return;
+            }
             if (!startScreenCapture()) {
                 Log.e(TAG, "Failed to start capturing screen");
             }
@@ -118,6 +179,254 @@ public class CastService extends Service {
             drainEncoder();
         }
     };
+    private Runnable mRequestSyncFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            requestSyncFrame();
+        }
+    };
+    private Runnable mUpdateBitrateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            setEncoderBitrate(mTargetBitrate);
+        }
+    };
+    private Runnable mStopCaptureRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopScreenCapture();
+        }
+    };
+    private Runnable mConnectionLostRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mReceiverIp != null && mReceiverIp.length() > 0 && mVirtualDisplay != null) {
+                Log.d(TAG, "Lost receiver, reconnecting");
+                startReconnect();
+            } else {
+                stopScreenCapture();
+            }
+        }
+    };
+    private Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+    private Runnable mReconfigureRunnable = new Runnable() {
+        @Override
+        public void run() {
+            QualityController qualityController = mQualityController;
+            if (qualityController != null) {
+                QualityController.Level level = qualityController.getLevel();
+                reconfigure(level.width, level.height, level.frameRate);
+            }
+        }
+    };
+    private QualityController.Listener mQualityListener = new QualityController.Listener() {
+        @Override
+        public void onLevelChanged(QualityController.Level level) {
+            Log.d(TAG, "Quality level: " + level);
+            mHandler.post(mReconfigureRunnable);
+        }
+    };
+    private Runnable mStopRecordingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopRecordingToFile();
+        }
+    };
+    private Runnable mReportStatsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reportStats();
+            Handler statsHandler = mStatsHandler;
+            if (statsHandler != null) {
+                statsHandler.postDelayed(this, Common.STATS_INTERVAL_MS);
+            }
+        }
+    };
+
+    private FrameSender.Listener mFrameSenderListener = new FrameSender.Listener() {
+        @Override
+        public void onFrameSent(FrameSender sender, EncodedFrame frame) {
+            long nowUs = System.nanoTime() / 1000;
+            mStats.onFrameSent(frame, nowUs, sender.getQueueDepth());
+            LatencyProbe probe = findLatencyProbe(sender);
+            long networkDelayUs = 0;
+            if (probe != null) {
+                networkDelayUs = probe.getQueueingDelayUs(nowUs);
+                try {
+                    probe.onFrameSent(frame, nowUs);
+                } catch (IOException e) {
+                    // a lost probe only costs one sample
+                }
+            }
+            BitrateController bitrateController = mBitrateController;
+            // with several viewers one slow link must not lower the quality for everyone
+            if (bitrateController != null && mViewers.length == 1) {
+                // the socket buffers and the network hold frames the send queue no longer sees
+                bitrateController.onFrameSent(frame.size, frame.sentTimeUs - frame.queuedTimeUs + networkDelayUs,
+                        nowUs, sender.getDroppedFrames());
+            }
+        }
+
+        @Override
+        public void onSendError(FrameSender sender, IOException e) {
+            Log.d(TAG, "Failed to write data to socket, e: " + e);
+            if (removeViewer(sender) == 0) {
+                Log.d(TAG, "No viewer left");
+                mHandler.post(mConnectionLostRunnable);
+            }
+        }
+
+        @Override
+        public void onSyncFrameRequested(FrameSender sender) {
+            Handler encoderHandler = mEncoderHandler;
+            if (encoderHandler != null) {
+                encoderHandler.post(mRequestSyncFrameRunnable);
+            }
+        }
+
+        @Override
+        public void onFrameDropped(FrameSender sender) {
+            mStats.onFrameDropped();
+        }
+    };
+
+    private LatencyProbe.Listener mLatencyProbeListener = new LatencyProbe.Listener() {
+        @Override
+        public void onEcho(LatencyProbe probe, long rttUs, long oneWayDelayUs, long jitterUs) {
+            mStats.onLatencyEcho(rttUs, oneWayDelayUs, jitterUs);
+        }
+    };
+
+    private FrameSender.Listener mRecorderListener = new FrameSender.Listener() {
+        @Override
+        public void onFrameSent(FrameSender sender, EncodedFrame frame) {
+        }
+
+        @Override
+        public void onSendError(FrameSender sender, IOException e) {
+            Log.e(TAG, "Failed to write recording, e: " + e);
+            mHandler.post(mStopRecordingRunnable);
+        }
+
+        @Override
+        public void onSyncFrameRequested(FrameSender sender) {
+            Handler encoderHandler = mEncoderHandler;
+            if (encoderHandler != null) {
+                encoderHandler.post(mRequestSyncFrameRunnable);
+            }
+        }
+
+        @Override
+        public void onFrameDropped(FrameSender sender) {
+        }
+    };
+
+    /**
+     * One connected receiver with its own send queue and sender thread.
+     */
+    private static class Viewer {
+        final Socket socket;
+        final FrameWriter writer;
+        final FrameSender sender;
+        // null unless latency probes are enabled
+        final LatencyProbe probe;
+
+        Viewer(Socket socket, FrameWriter writer, FrameSender sender, LatencyProbe probe) {
+            this.socket = socket;
+            this.writer = writer;
+            this.sender = sender;
+            this.probe = probe;
+        }
+
+        void close() {
+            sender.stop();
+            if (probe != null) {
+                probe.close();
+            }
+            try {
+                if (writer instanceof Closeable) {
+                    ((Closeable) writer).close();
+                }
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private ViewerServer.Listener mViewerServerListener = new ViewerServer.Listener() {
+        @Override
+        public byte[] onHandshake(SocketChannel channel, int framing) {
+            Log.d(TAG, "Mirror request from " + channel.socket().getInetAddress() + ", framing: " + framing);
+            return createStreamHeader(negotiateFraming(framing));
+        }
+
+        @Override
+        public void onViewerReady(SocketChannel channel, int framing) {
+            Socket socket = channel.socket();
+            try {
+                FrameWriter frameWriter = createFrameWriter(socket, negotiateFraming(framing));
+                if (frameWriter == null) {
+                    socket.close();
+                    return;
+                }
+                addViewer(socket, frameWriter);
+                mHandler.post(mStartEncodingRunnable);
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    socket.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+        }
+    };
+
+    private BitrateController.Listener mBitrateListener = new BitrateController.Listener() {
+        @Override
+        public void onBitrateChanged(int bitrate) {
+            mTargetBitrate = bitrate;
+            Handler encoderHandler = mEncoderHandler;
+            if (encoderHandler != null) {
+                encoderHandler.post(mUpdateBitrateRunnable);
+            }
+        }
+    };
+
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // input comes from the surface, nothing to queue here
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            try {
+                sendEncodedBuffer(codec, index, info);
+            } catch (IllegalStateException e) {
+                // encoder was stopped while this buffer was in flight
+                Log.d(TAG, "Drop output buffer of stopped encoder");
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error, stop casting", e);
+            mHandler.post(mStopCaptureRunnable);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            Log.d(TAG, "Encoder output format changed: " + format);
+            updateParameterSets(format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+        }
+    }
 
     private class ServiceHandlerCallback implements Handler.Callback {
         @Override
@@ -132,6 +441,13 @@ public class CastService extends Service {
                     mClients.remove(msg.replyTo);
                     break;
                 }
+                case Common.MSG_RECONFIGURE: {
+                    Bundle data = msg.getData();
+                    reconfigure(data.getInt(Common.EXTRA_SCREEN_WIDTH, mSelectedWidth),
+                            data.getInt(Common.EXTRA_SCREEN_HEIGHT, mSelectedHeight),
+                            data.getInt(Common.EXTRA_VIDEO_FPS, mFrameRate));
+                    break;
+                }
                 case Common.MSG_STOP_CAST: {
                     stopScreenCapture();
                     closeSocket(true);
@@ -196,10 +512,39 @@ public class CastService extends Service {
         mSelectedHeight = intent.getIntExtra(Common.EXTRA_SCREEN_HEIGHT, Common.DEFAULT_SCREEN_HEIGHT);
         mSelectedDpi = intent.getIntExtra(Common.EXTRA_SCREEN_DPI, Common.DEFAULT_SCREEN_DPI);
         mSelectedBitrate = intent.getIntExtra(Common.EXTRA_VIDEO_BITRATE, Common.DEFAULT_VIDEO_BITRATE);
+        mFrameRate = intent.getIntExtra(Common.EXTRA_VIDEO_FPS, Common.DEFAULT_VIDEO_FPS);
+        mQualityScaling = intent.getBooleanExtra(Common.EXTRA_QUALITY_SCALING, Common.DEFAULT_QUALITY_SCALING);
+        mRequestedWidth = mSelectedWidth;
+        mRequestedHeight = mSelectedHeight;
+        mRequestedFrameRate = mFrameRate;
+        mIdleDetection = intent.getBooleanExtra(Common.EXTRA_IDLE_DETECTION, Common.DEFAULT_IDLE_DETECTION);
+        mEncoderTuning = intent.getBooleanExtra(Common.EXTRA_ENCODER_TUNING, Common.DEFAULT_ENCODER_TUNING);
+        mBitrateMode = intent.getIntExtra(Common.EXTRA_BITRATE_MODE, Common.DEFAULT_BITRATE_MODE);
+        mAdaptiveBitrate = intent.getBooleanExtra(Common.EXTRA_ADAPTIVE_BITRATE, Common.DEFAULT_ADAPTIVE_BITRATE);
+        mMinBitrate = Math.min(intent.getIntExtra(Common.EXTRA_MIN_VIDEO_BITRATE, Common.DEFAULT_MIN_VIDEO_BITRATE),
+                mSelectedBitrate);
+        mMaxBitrate = Math.max(intent.getIntExtra(Common.EXTRA_MAX_VIDEO_BITRATE, mSelectedBitrate), mMinBitrate);
         mSelectedFormat = intent.getStringExtra(Common.EXTRA_VIDEO_FORMAT);
+        mDrainMode = intent.getIntExtra(Common.EXTRA_DRAIN_MODE, Common.DEFAULT_DRAIN_MODE);
+        mSendQueueSize = intent.getIntExtra(Common.EXTRA_SEND_QUEUE_SIZE, Common.DEFAULT_SEND_QUEUE_SIZE);
+        mMaxLatencyMs = intent.getIntExtra(Common.EXTRA_MAX_LATENCY_MS, Common.DEFAULT_MAX_LATENCY_MS);
+        mTransport = intent.getIntExtra(Common.EXTRA_TRANSPORT, Common.DEFAULT_TRANSPORT);
+        mRtpPort = intent.getIntExtra(Common.EXTRA_RTP_PORT, Common.DEFAULT_RTP_PORT);
+        mRtpMtu = intent.getIntExtra(Common.EXTRA_RTP_MTU, Common.DEFAULT_RTP_MTU);
+        mFecGroupSize = intent.getIntExtra(Common.EXTRA_FEC_GROUP_SIZE, Common.DEFAULT_FEC_GROUP_SIZE);
+        mFecInterleave = intent.getIntExtra(Common.EXTRA_FEC_INTERLEAVE, Common.DEFAULT_FEC_INTERLEAVE);
+        mRecord = intent.getBooleanExtra(Common.EXTRA_RECORD, Common.DEFAULT_RECORD);
+        mLatencyProbe = intent.getBooleanExtra(Common.EXTRA_LATENCY_PROBE, Common.DEFAULT_LATENCY_PROBE);
+        mLatencyProbePort = intent.getIntExtra(Common.EXTRA_LATENCY_PROBE_PORT, Common.DEFAULT_LATENCY_PROBE_PORT);
+        mFraming = intent.getIntExtra(Common.EXTRA_FRAMING, Common.DEFAULT_FRAMING);
+        if (mDrainMode == Common.DRAIN_MODE_CALLBACK && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            // MediaCodec.setCallback(callback, handler) is only available from M
+            mDrainMode = Common.DRAIN_MODE_POLLING;
+        }
         if (mSelectedFormat == null) {
             mSelectedFormat = Common.DEFAULT_VIDEO_MIME_TYPE;
         }
+        mSelectedFormat = chooseFormat(mSelectedFormat);
         if (mReceiverIp.length() <= 0) {
             Log.d(TAG, "Start with listen mode");
             if (!createServerSocket()) {
@@ -250,148 +595,472 @@ public class CastService extends Service {
         if (mResultCode != 0 && mResultData != null) {
             setUpMediaProjection();
             startRecording();
+            if (mAdaptiveBitrate && mQualityScaling) {
+                mQualityController = new QualityController(mSelectedWidth, mSelectedHeight, mFrameRate,
+                        Common.QUALITY_HOLD_MS, mQualityListener);
+            }
+            if (mIdleDetection) {
+                mIdleDetector = createIdleDetector();
+            }
+            startStats();
             showNotification();
             return true;
         }
         return false;
     }
 
+    private IdleDetector createIdleDetector() {
+        return new IdleDetector(Common.IDLE_MAX_FRAME_BYTES, Common.IDLE_AFTER_MS * 1000,
+                Common.IDLE_KEEPALIVE_MS * 1000);
+    }
+
     private void setUpMediaProjection() {
         mMediaProjection = mMediaProjectionManager.getMediaProjection(mResultCode, mResultData);
     }
 
     private void startRecording() {
         Log.d(TAG, "startRecording");
+        if (mRecord) {
+            // before the encoder starts, the file needs its codec config buffer
+            startRecordingToFile();
+        }
         prepareVideoEncoder();
 
-        //try {
-        //    mMuxer = new MediaMuxer("/sdcard/video.mp4", MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        //} catch (IOException ioe) {
-        //    throw new RuntimeException("MediaMuxer creation failed", ioe);
-        //}
-
         // Start the video input.
         mVirtualDisplay = mMediaProjection.createVirtualDisplay("Recording Display", mSelectedWidth,
                 mSelectedHeight, mSelectedDpi, 0 /* flags */, mInputSurface,
                 null /* callback */, null /* handler */);
 
         // Start the encoders
-        drainEncoder();
+        if (mDrainMode == Common.DRAIN_MODE_POLLING && mEncoderHandler != null) {
+            mEncoderHandler.post(mDrainEncoderRunnable);
+        }
     }
 
     private void prepareVideoEncoder() {
         mVideoBufferInfo = new MediaCodec.BufferInfo();
+        // Output buffers are drained on a dedicated thread, never on the main looper
+        mEncoderThread = new HandlerThread("EncoderThread", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mEncoderThread.start();
+        mEncoderHandler = new Handler(mEncoderThread.getLooper());
+        try {
+            startVideoEncoder();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to initial encoder, e: " + e);
+            releaseEncoders();
+        }
+    }
+
+    /**
+     * Creates and starts an encoder for the selected size and frame rate, with a new input surface.
+     */
+    private void startVideoEncoder() throws IOException {
+        int frameRate = mFrameRate;
+        // a restarted encoder continues at the bitrate the controller settled on
+        int bitrate = mBitrateController != null ? mTargetBitrate : mSelectedBitrate;
+
+        // Create a MediaCodec encoder and configure it. Get a Surface we can use for recording into.
+        mVideoEncoder = MediaCodec.createEncoderByType(mSelectedFormat);
+        String name = mVideoEncoder.getCodecInfo().getName();
+        EncoderProfile profile = mEncoderTuning ? createEncoderProfile(mVideoEncoder.getCodecInfo(), frameRate) : null;
+        try {
+            configureVideoEncoder(createVideoFormat(frameRate, bitrate, profile));
+            if (profile != null) {
+                Log.d(TAG, "Encoder " + name + " accepted tuning, " + profile);
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            if (profile == null) {
+                throw e;
+            }
+            // some encoders claim options they then refuse, they still get the plain format
+            Log.w(TAG, "Encoder " + name + " rejected tuning, " + profile + ", e: " + e);
+            mVideoEncoder.release();
+            mVideoEncoder = MediaCodec.createEncoderByType(mSelectedFormat);
+            configureVideoEncoder(createVideoFormat(frameRate, bitrate, null));
+        }
+        mInputSurface = mVideoEncoder.createInputSurface();
+        mVideoEncoder.start();
+    }
+
+    private MediaFormat createVideoFormat(int frameRate, int bitrate, EncoderProfile profile) {
         MediaFormat format = MediaFormat.createVideoFormat(mSelectedFormat, mSelectedWidth, mSelectedHeight);
-        int frameRate = Common.DEFAULT_VIDEO_FPS;
 
         // Set some required properties. The media codec may fail if these aren't defined.
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, mSelectedBitrate);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
         format.setInteger(MediaFormat.KEY_CAPTURE_RATE, frameRate);
         format.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 1000000 / frameRate);
         format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1); // 1 seconds between I-frames
+        if (profile == null) {
+            return format;
+        }
+        for (Map.Entry<String, Integer> setting : profile.getSettings().entrySet()) {
+            format.setInteger(setting.getKey(), setting.getValue());
+        }
+        if (profile.has(EncoderProfile.KEY_INTRA_REFRESH_PERIOD)) {
+            // the rolling refresh takes over from periodic key frames, which spike the link
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, Common.INTRA_REFRESH_I_FRAME_INTERVAL);
+        }
+        return format;
+    }
 
-        // Create a MediaCodec encoder and configure it. Get a Surface we can use for recording into.
+    private void configureVideoEncoder(MediaFormat format) {
+        if (mDrainMode == Common.DRAIN_MODE_CALLBACK) {
+            // Output buffers are delivered as soon as the codec produces them
+            mVideoEncoder.setCallback(new EncoderCallback(), mEncoderHandler);
+        }
+        mVideoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    /**
+     * Probes the encoder for the options of {@link EncoderProfile} that suit screen content.
+     */
+    private EncoderProfile createEncoderProfile(MediaCodecInfo info, int frameRate) {
+        EncoderProfile profile = new EncoderProfile();
+        MediaCodecInfo.CodecCapabilities capabilities;
         try {
-            mVideoEncoder = MediaCodec.createEncoderByType(mSelectedFormat);
-            mVideoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-            mInputSurface = mVideoEncoder.createInputSurface();
-            mVideoEncoder.start();
+            capabilities = info.getCapabilitiesForType(mSelectedFormat);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "No capabilities of " + info.getName() + " for " + mSelectedFormat);
+            return null;
+        }
+        MediaCodecInfo.EncoderCapabilities encoderCapabilities = capabilities.getEncoderCapabilities();
+        int bitrateMode = mBitrateMode;
+        if (encoderCapabilities != null && !encoderCapabilities.isBitrateModeSupported(bitrateMode)
+                && encoderCapabilities.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)) {
+            bitrateMode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        }
+        profile.offer(EncoderProfile.KEY_BITRATE_MODE, bitrateMode,
+                encoderCapabilities != null && encoderCapabilities.isBitrateModeSupported(bitrateMode));
+        // 0 is realtime
+        profile.offer(EncoderProfile.KEY_PRIORITY, 0, Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+        // each input frame comes out before the next one goes in, available from Android 11
+        profile.offer(EncoderProfile.KEY_LATENCY, 1, Build.VERSION.SDK_INT >= 30);
+        profile.offer(EncoderProfile.KEY_INTRA_REFRESH_PERIOD,
+                EncoderProfile.intraRefreshPeriod(frameRate, Common.INTRA_REFRESH_MS),
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                        && capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh));
+        int[] preference = null;
+        if (mSelectedFormat.equals(MediaFormat.MIMETYPE_VIDEO_AVC)) {
+            preference = new int[] {MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+                    MediaCodecInfo.CodecProfileLevel.AVCProfileMain,
+                    MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline};
+        } else if (mSelectedFormat.equals(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
+            preference = new int[] {MediaCodecInfo.CodecProfileLevel.HEVCProfileMain};
+        }
+        if (preference != null) {
+            MediaCodecInfo.CodecProfileLevel[] profileLevels = capabilities.profileLevels;
+            int[] profiles = new int[profileLevels.length];
+            int[] levels = new int[profileLevels.length];
+            for (int i = 0; i < profileLevels.length; i++) {
+                profiles[i] = profileLevels[i].profile;
+                levels[i] = profileLevels[i].level;
+            }
+            int best = EncoderProfile.pickProfile(profiles, levels, preference);
+            // the profile is only honored together with a level, which needs Android 6
+            boolean supported = best >= 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+            profile.offer(EncoderProfile.KEY_PROFILE, supported ? profiles[best] : 0, supported);
+            profile.offer(EncoderProfile.KEY_LEVEL, supported ? levels[best] : 0, supported);
+        }
+        return profile;
+    }
+
+    /**
+     * Switches size and frame rate of a running cast without dropping the viewers.
+     *
+     * The encoder is replaced and the virtual display resized onto the new
+     * encoder's surface. The new encoder starts with a key frame and, for
+     * H.264 and HEVC, new parameter sets, which is all the receivers need to
+     * pick up the new size in-band. Viewers joining later get a stream header
+     * with the new size. A recording is continued in a new file, since its
+     * header describes a single size. The change lasts until casting stops.
+     * Runs on the main thread.
+     */
+    private void reconfigure(int width, int height, int frameRate) {
+        if (mVideoEncoder == null || mVirtualDisplay == null || frameRate <= 0) {
+            return;
+        }
+        if (width == mSelectedWidth && height == mSelectedHeight && frameRate == mFrameRate) {
+            return;
+        }
+        Log.d(TAG, "Reconfigure to " + width + "x" + height + "@" + frameRate);
+        if (mEncoderHandler != null) {
+            mEncoderHandler.removeCallbacks(mDrainEncoderRunnable);
+        }
+        mVirtualDisplay.setSurface(null);
+        MediaCodec oldEncoder = mVideoEncoder;
+        Surface oldSurface = mInputSurface;
+        mVideoEncoder = null;
+        oldEncoder.stop();
+        oldEncoder.release();
+        oldSurface.release();
+        mGopCache.clear();
+        synchronized (mViewersLock) {
+            mParameterSets = null;
+        }
+        if (mIdleDetector != null) {
+            // the first key frame of the new encoder has to reach the viewers
+            mIdleDetector = createIdleDetector();
+        }
+        mSelectedWidth = width;
+        mSelectedHeight = height;
+        mFrameRate = frameRate;
+        boolean recording = mRecorder != null;
+        if (recording) {
+            stopRecordingToFile();
+            startRecordingToFile();
+        }
+        try {
+            startVideoEncoder();
         } catch (IOException e) {
-            Log.e(TAG, "Failed to initial encoder, e: " + e);
-            releaseEncoders();
+            Log.e(TAG, "Failed to restart encoder, e: " + e);
+            stopScreenCapture();
+            return;
+        }
+        mVirtualDisplay.resize(width, height, mSelectedDpi);
+        mVirtualDisplay.setSurface(mInputSurface);
+        if (mDrainMode == Common.DRAIN_MODE_POLLING && mEncoderHandler != null) {
+            mEncoderHandler.post(mDrainEncoderRunnable);
         }
     }
 
-    private boolean drainEncoder() {
-        mDrainHandler.removeCallbacks(mDrainEncoderRunnable);
-        while (true) {
-            int bufferIndex = mVideoEncoder.dequeueOutputBuffer(mVideoBufferInfo, 0);
-
-            if (bufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // nothing available yet
-                break;
-            } else if (bufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                //if (mTrackIndex >= 0) {
-                //    throw new RuntimeException("format changed twice");
-                //}
-                //mTrackIndex = mMuxer.addTrack(mVideoEncoder.getOutputFormat());
-                //if (!mMuxerStarted && mTrackIndex >= 0) {
-                //    mMuxer.start();
-                //    mMuxerStarted = true;
-                //}
-            } else if (bufferIndex < 0) {
-                // not sure what's going on, ignore it
-            } else {
-                ByteBuffer encodedData = mVideoEncoder.getOutputBuffer(bufferIndex);
-                if (encodedData == null) {
-                    throw new RuntimeException("couldn't fetch buffer at index " + bufferIndex);
-                }
-                // Fixes playability issues on certain h264 decoders including omxh264dec on raspberry pi
-                // See http://stackoverflow.com/a/26684736/4683709 for explanation
-                //if ((mVideoBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                //    mVideoBufferInfo.size = 0;
-                //}
-
-                //Log.d(TAG, "Video buffer offset: " + mVideoBufferInfo.offset + ", size: " + mVideoBufferInfo.size);
-                if (mVideoBufferInfo.size != 0) {
-                    encodedData.position(mVideoBufferInfo.offset);
-                    encodedData.limit(mVideoBufferInfo.offset + mVideoBufferInfo.size);
-                    if (mSocketOutputStream != null) {
-                        try {
-                            byte[] b = new byte[encodedData.remaining()];
-                            encodedData.get(b);
-                            if (mIvfWriter != null) {
-                                mIvfWriter.writeFrame(b, mVideoBufferInfo.presentationTimeUs);
-                            } else {
-                                mSocketOutputStream.write(b);
-                            }
-                        } catch (IOException e) {
-                            Log.d(TAG, "Failed to write data to socket, stop casting");
-                            e.printStackTrace();
-                            stopScreenCapture();
-                            return false;
-                        }
-                    }
-                    /*
-                    if (mMuxerStarted) {
-                        encodedData.position(mVideoBufferInfo.offset);
-                        encodedData.limit(mVideoBufferInfo.offset + mVideoBufferInfo.size);
-                        try {
-                            if (mSocketOutputStream != null) {
-                                byte[] b = new byte[encodedData.remaining()];
-                                encodedData.get(b);
-                                mSocketOutputStream.write(b);
-                            }
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        mMuxer.writeSampleData(mTrackIndex, encodedData, mVideoBufferInfo);
-                    } else {
-                        // muxer not started
+    private void drainEncoder() {
+        MediaCodec encoder = mVideoEncoder;
+        MediaCodec.BufferInfo bufferInfo = mVideoBufferInfo;
+        if (encoder == null || bufferInfo == null) {
+            return;
+        }
+        try {
+            while (true) {
+                int bufferIndex = encoder.dequeueOutputBuffer(bufferInfo, 0);
+
+                if (bufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    // nothing available yet
+                    break;
+                } else if (bufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // should happen before receiving buffers, and should only happen once
+                    MediaFormat format = encoder.getOutputFormat();
+                    Log.d(TAG, "Encoder output format changed: " + format);
+                    updateParameterSets(format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+                } else if (bufferIndex < 0) {
+                    // not sure what's going on, ignore it
+                } else {
+                    sendEncodedBuffer(encoder, bufferIndex, bufferInfo);
+
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
                     }
-                    */
                 }
+            }
+        } catch (IllegalStateException e) {
+            // encoder was stopped from the main thread
+            Log.d(TAG, "Stop draining stopped encoder");
+            return;
+        }
+
+        Handler encoderHandler = mEncoderHandler;
+        if (encoderHandler != null) {
+            encoderHandler.postDelayed(mDrainEncoderRunnable, Common.DRAIN_POLLING_INTERVAL_MS);
+        }
+    }
 
-                mVideoEncoder.releaseOutputBuffer(bufferIndex, false);
+    private boolean usesParameterSets() {
+        return VideoFormats.usesParameterSets(mSelectedFormat);
+    }
 
-                if ((mVideoBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    break;
+    /**
+     * Checks the requested format against the encoders of the device, see {@link VideoFormats#choose}.
+     */
+    private String chooseFormat(String requested) {
+        Set<String> hardware = new HashSet<String>();
+        Set<String> software = new HashSet<String>();
+        try {
+            Utils.getEncoderFormats(mSelectedWidth, mSelectedHeight, hardware, software);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to list encoders, keep " + requested + ", e: " + e);
+            return VideoFormats.isKnown(requested) ? requested : Common.DEFAULT_VIDEO_MIME_TYPE;
+        }
+        if (mTransport == Common.TRANSPORT_RTP) {
+            // there are only RTP payload formats for these
+            List<String> rtpFormats = Arrays.asList(VideoFormats.AVC, VideoFormats.VP8);
+            hardware.retainAll(rtpFormats);
+            software.retainAll(rtpFormats);
+        }
+        String format = VideoFormats.choose(requested, hardware, software);
+        Log.d(TAG, "Hardware encoders: " + hardware + ", software encoders: " + software
+                + ", requested: " + requested + ", using: " + format);
+        return format;
+    }
+
+    /**
+     * Takes the SPS and PPS for the stream header of new viewers from the codec specific data.
+     */
+    private void updateParameterSets(ByteBuffer... csd) {
+        if (!usesParameterSets()) {
+            return;
+        }
+        ParameterSets parameterSets;
+        try {
+            parameterSets = ParameterSets.parse(mSelectedFormat.equals(MediaFormat.MIMETYPE_VIDEO_HEVC), csd);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Failed to parse codec specific data: " + e.getMessage());
+            return;
+        }
+        if (parameterSets == null) {
+            return;
+        }
+        Log.d(TAG, "Encoder parameter sets, size: " + parameterSets.getWidth() + "x" + parameterSets.getHeight()
+                + ", profile: " + parameterSets.getProfile() + ", level: " + parameterSets.getLevel());
+        if (parameterSets.getWidth() != mSelectedWidth || parameterSets.getHeight() != mSelectedHeight) {
+            Log.w(TAG, "Encoder size differs from selected " + mSelectedWidth + "x" + mSelectedHeight);
+        }
+        synchronized (mViewersLock) {
+            mParameterSets = parameterSets;
+        }
+    }
+
+    /**
+     * Hands one encoded output buffer to the frame sender of every viewer and gives it back to the codec.
+     *
+     * Called on the encoder thread in both drain modes. The frame is copied into the send
+     * queue, so the codec buffer is released without waiting for the network.
+     */
+    private void sendEncodedBuffer(MediaCodec codec, int bufferIndex, MediaCodec.BufferInfo bufferInfo) {
+        ByteBuffer encodedData = codec.getOutputBuffer(bufferIndex);
+        if (encodedData == null) {
+            throw new RuntimeException("couldn't fetch buffer at index " + bufferIndex);
+        }
+        // Fixes playability issues on certain h264 decoders including omxh264dec on raspberry pi
+        // See http://stackoverflow.com/a/26684736/4683709 for explanation
+        //if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+        //    bufferInfo.size = 0;
+        //}
+
+        //Log.d(TAG, "Video buffer offset: " + bufferInfo.offset + ", size: " + bufferInfo.size);
+        if (bufferInfo.size != 0) {
+            encodedData.limit(bufferInfo.offset + bufferInfo.size);
+            encodedData.position(bufferInfo.offset);
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                updateParameterSets(encodedData);
+            } else {
+                mStats.onFrameEncoded(bufferInfo.size, (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            }
+            if (!skipIdleFrame(bufferInfo)) {
+                sendToViewers(encodedData, bufferInfo);
+            }
+            FrameSender recorder = mRecorder;
+            if (recorder != null) {
+                // the recording starts at zero, codec config buffers carry no time of their own
+                if (mRecordingStartUs < 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    mRecordingStartUs = bufferInfo.presentationTimeUs;
                 }
+                encodedData.position(bufferInfo.offset);
+                recorder.offer(encodedData, Math.max(bufferInfo.presentationTimeUs - mRecordingStartUs, 0),
+                        bufferInfo.flags);
             }
         }
 
-        mDrainHandler.postDelayed(mDrainEncoderRunnable, 10);
-        return true;
+        codec.releaseOutputBuffer(bufferIndex, false);
+    }
+
+    /**
+     * Decides whether a frame of a static screen stays off the stream. The recording still
+     * gets every frame. Runs on the encoder thread.
+     */
+    private boolean skipIdleFrame(MediaCodec.BufferInfo bufferInfo) {
+        IdleDetector idleDetector = mIdleDetector;
+        if (idleDetector == null) {
+            return false;
+        }
+        boolean wasIdle = idleDetector.isIdle();
+        int action = idleDetector.onFrame(bufferInfo.size, bufferInfo.flags, bufferInfo.presentationTimeUs);
+        if (idleDetector.isIdle() != wasIdle) {
+            Log.d(TAG, wasIdle ? "Screen changed, resume streaming" : "Screen idle, thin out stream");
+        }
+        if (action == IdleDetector.SKIP) {
+            mStats.onFrameSkipped();
+            // the cached frames no longer lead up to the next one sent, viewers joining now ask for a sync frame
+            mGopCache.clear();
+            return true;
+        }
+        if (action == IdleDetector.SEND_AND_REQUEST_SYNC_FRAME) {
+            // frames skipped while idle are missing as references, a key frame cleans up after them
+            requestSyncFrame();
+        }
+        return false;
+    }
+
+    /**
+     * Puts a frame into the GOP cache and the send queue of every viewer. Runs on the encoder thread.
+     */
+    private void sendToViewers(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        Viewer[] viewers;
+        // a joining viewer either finds this frame in the cache or in its queue, never both
+        synchronized (mViewersLock) {
+            if (mReceiverIp.length() <= 0) {
+                mGopCache.add(encodedData, bufferInfo.presentationTimeUs, bufferInfo.flags);
+            }
+            viewers = mViewers;
+        }
+        // one encoder feeds every viewer, each gets its own copy in its own queue
+        for (int i = 0; i < viewers.length; i++) {
+            encodedData.position(bufferInfo.offset);
+            viewers[i].sender.offer(encodedData, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+    }
+
+    /**
+     * Asks the encoder to emit a key frame as soon as possible. Runs on the encoder thread.
+     */
+    private void requestSyncFrame() {
+        MediaCodec encoder = mVideoEncoder;
+        if (encoder == null) {
+            return;
+        }
+        IdleDetector idleDetector = mIdleDetector;
+        if (idleDetector != null) {
+            idleDetector.onSyncFrameRequested();
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.d(TAG, "Failed to request sync frame from stopped encoder");
+        }
+    }
+
+    /**
+     * Retunes the running encoder to a new bitrate. Runs on the encoder thread.
+     */
+    private void setEncoderBitrate(int bitrate) {
+        MediaCodec encoder = mVideoEncoder;
+        if (encoder == null) {
+            return;
+        }
+        Log.d(TAG, "Set encoder bitrate: " + bitrate);
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.d(TAG, "Failed to set bitrate of stopped encoder");
+        }
     }
 
     private void stopScreenCapture() {
         dismissNotification();
+        stopReconnect();
+        mQualityController = null;
+        mIdleDetector = null;
+        stopStats();
         releaseEncoders();
         closeSocket();
+        mSelectedWidth = mRequestedWidth;
+        mSelectedHeight = mRequestedHeight;
+        mFrameRate = mRequestedFrameRate;
         if (mVirtualDisplay == null) {
             return;
         }
@@ -400,22 +1069,24 @@ public class CastService extends Service {
     }
 
     private void releaseEncoders() {
-        mDrainHandler.removeCallbacks(mDrainEncoderRunnable);
-        /*
-        if (mMuxer != null) {
-            if (mMuxerStarted) {
-                mMuxer.stop();
-            }
-            mMuxer.release();
-            mMuxer = null;
-            mMuxerStarted = false;
+        if (mEncoderHandler != null) {
+            mEncoderHandler.removeCallbacks(mDrainEncoderRunnable);
         }
-        */
         if (mVideoEncoder != null) {
             mVideoEncoder.stop();
             mVideoEncoder.release();
             mVideoEncoder = null;
         }
+        if (mEncoderThread != null) {
+            mEncoderThread.quitSafely();
+            mEncoderThread = null;
+            mEncoderHandler = null;
+        }
+        stopRecordingToFile();
+        mGopCache.clear();
+        synchronized (mViewersLock) {
+            mParameterSets = null;
+        }
         if (mInputSurface != null) {
             mInputSurface.release();
             mInputSurface = null;
@@ -424,143 +1095,239 @@ public class CastService extends Service {
             mMediaProjection.stop();
             mMediaProjection = null;
         }
-        if (mIvfWriter != null) {
-            mIvfWriter = null;
-        }
         //mResultCode = 0;
         //mResultData = null;
         mVideoBufferInfo = null;
-        //mTrackIndex = -1;
     }
 
-    private boolean createServerSocket() {
-        Thread th = new Thread(new Runnable() {
+    /**
+     * Starts publishing pipeline stats every STATS_INTERVAL_MS from a thread of their own.
+     */
+    private void startStats() {
+        if (mStatsThread != null) {
+            return;
+        }
+        mStatsThread = new HandlerThread("StatsThread", Process.THREAD_PRIORITY_BACKGROUND);
+        mStatsThread.start();
+        mStatsHandler = new Handler(mStatsThread.getLooper());
+        final File directory = getExternalFilesDir(null);
+        mStatsHandler.post(new Runnable() {
             @Override
             public void run() {
-                try {
-                    mServerSocket = new ServerSocket(Common.VIEWER_PORT);
-                    while (!Thread.currentThread().isInterrupted() && !mServerSocket.isClosed()) {
-                        mSocket = mServerSocket.accept();
-                        CommunicationThread commThread = new CommunicationThread(mSocket);
-                        new Thread(commThread).start();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to create server socket or server socket error");
-                    e.printStackTrace();
-                }
+                openStatsLog(directory);
+                // the first interval starts now
+                mStats.snapshot(mStatsSnapshot, System.nanoTime() / 1000);
             }
         });
-        th.start();
-        return true;
+        mStatsHandler.postDelayed(mReportStatsRunnable, Common.STATS_INTERVAL_MS);
     }
 
-    class CommunicationThread implements Runnable {
-        private Socket mClientSocket;
+    private void stopStats() {
+        if (mStatsThread == null) {
+            return;
+        }
+        mStatsHandler.removeCallbacks(mReportStatsRunnable);
+        mStatsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeStatsLog();
+            }
+        });
+        mStatsThread.quitSafely();
+        mStatsThread = null;
+        mStatsHandler = null;
+        // tells clients casting has stopped
+        publishStats(new Bundle());
+    }
 
-        public CommunicationThread(Socket clientSocket) {
-            mClientSocket = clientSocket;
+    private void openStatsLog(File directory) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            mStatsLog = new BufferedWriter(new FileWriter(new File(directory, Common.STATS_LOG_FILE), true));
+            mStatsLog.write("# " + new Date() + ", " + mSelectedFormat + " " + mSelectedWidth + "x" + mSelectedHeight
+                    + ", " + (mDrainMode == Common.DRAIN_MODE_CALLBACK ? "callback" : "polling") + " drain\n");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open stats log, e: " + e);
+            mStatsLog = null;
         }
+    }
 
-        public void run() {
-            while (!Thread.currentThread().isInterrupted()) {
+    private void closeStatsLog() {
+        if (mStatsLog == null) {
+            return;
+        }
+        try {
+            mStatsLog.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mStatsLog = null;
+    }
+
+    /**
+     * Ends the current stats interval, logs it and hands it to the clients. Runs on the stats thread.
+     */
+    private void reportStats() {
+        QualityController qualityController = mQualityController;
+        if (qualityController != null && mBitrateController != null) {
+            qualityController.onBitrateChanged(mTargetBitrate, SystemClock.elapsedRealtime());
+        }
+        PipelineStats.Snapshot snapshot = mStatsSnapshot;
+        mStats.snapshot(snapshot, System.nanoTime() / 1000);
+        mStatsLine.setLength(0);
+        snapshot.appendTo(mStatsLine);
+        String summary = mStatsLine.toString();
+        Log.d(TAG, "Stats: " + summary);
+        if (mStatsLog != null) {
+            try {
+                mStatsLog.write(System.currentTimeMillis() + " " + summary + "\n");
+                mStatsLog.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write stats log, e: " + e);
+                closeStatsLog();
+            }
+        }
+        final Bundle data = new Bundle();
+        data.putString(Common.STATS_KEY_SUMMARY, summary);
+        data.putInt(Common.STATS_KEY_FPS, snapshot.getFramesPerSecond());
+        data.putLong(Common.STATS_KEY_BITRATE, snapshot.getBitsPerSecond());
+        data.putLong(Common.STATS_KEY_LATENCY_P50_US, snapshot.latencyUs.getValueAtPercentile(50));
+        data.putLong(Common.STATS_KEY_LATENCY_P99_US, snapshot.latencyUs.getValueAtPercentile(99));
+        data.putLong(Common.STATS_KEY_DROPPED, snapshot.framesDropped);
+        if (snapshot.rttUs.getCount() > 0) {
+            data.putLong(Common.STATS_KEY_RTT_P50_US, snapshot.rttUs.getValueAtPercentile(50));
+            data.putLong(Common.STATS_KEY_ONE_WAY_DELAY_P50_US, snapshot.oneWayDelayUs.getValueAtPercentile(50));
+            data.putLong(Common.STATS_KEY_JITTER_US, snapshot.maxJitterUs);
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                publishStats(data);
+            }
+        });
+    }
+
+    /**
+     * Sends stats to every bound client, dropping clients that are gone. Runs on the main thread.
+     */
+    private void publishStats(Bundle data) {
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            Message msg = Message.obtain(null, Common.MSG_STATS);
+            msg.setData(data);
+            try {
+                mClients.get(i).send(msg);
+            } catch (RemoteException e) {
+                mClients.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Tees the encoded frames into a file in the app's movies directory.
+     *
+     * The file is written by a frame sender of its own, so a slow disk drops
+     * recorded frames instead of stalling the live stream.
+     */
+    private void startRecordingToFile() {
+        boolean avc = mSelectedFormat.equals(MediaFormat.MIMETYPE_VIDEO_AVC);
+        if (!avc && !VideoFormats.usesIvf(mSelectedFormat)) {
+            Log.w(TAG, "Recording is not supported for: " + mSelectedFormat);
+            return;
+        }
+        File directory = getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        if (directory == null) {
+            Log.e(TAG, "No storage to record to");
+            return;
+        }
+        // with the size, a recording continued after a reconfiguration never overwrites its first part
+        String name = "CastScreen_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date())
+                + "_" + mSelectedWidth + "x" + mSelectedHeight + (avc ? ".mp4" : ".ivf");
+        File file = new File(directory, name);
+        FileChannel channel = null;
+        try {
+            channel = new FileOutputStream(file).getChannel();
+            FrameWriter writer;
+            if (avc) {
+                writer = new FragmentedMp4Writer(channel, mSelectedWidth, mSelectedHeight, mFrameRate);
+            } else {
+                IvfWriter ivfWriter = new IvfWriter(channel, mSelectedWidth, mSelectedHeight,
+                        VideoFormats.ivfFourcc(mSelectedFormat));
+                ivfWriter.writeHeader();
+                writer = new ChannelFrameWriter(channel, ivfWriter);
+            }
+            FrameSender recorder = new FrameSender("FrameRecorder", writer, Common.RECORDING_QUEUE_SIZE,
+                    mRecorderListener);
+            // a full queue drops frames up to the next key frame, the encoder never waits for the disk
+            recorder.setDropPolicy(new LatencyDropPolicy(Long.MAX_VALUE, avc));
+            recorder.start();
+            mRecordingWriter = (Closeable) writer;
+            mRecordingStartUs = -1;
+            mRecorder = recorder;
+            Log.d(TAG, "Recording to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start recording, e: " + e);
+            if (channel != null) {
                 try {
-                    BufferedReader input = new BufferedReader(new InputStreamReader(mClientSocket.getInputStream()));
-                    String data = input.readLine();
-                    Log.d(TAG, "Got data from socket: " + data);
-                    if (data == null || !data.equalsIgnoreCase("mirror")) {
-                        mClientSocket.close();
-                        return;
-                    }
-                    mSocketOutputStream = mClientSocket.getOutputStream();
-                    OutputStreamWriter osw = new OutputStreamWriter(mSocketOutputStream);
-                    osw.write(String.format(HTTP_MESSAGE_TEMPLATE, mSelectedWidth, mSelectedHeight));
-                    osw.flush();
-                    mSocketOutputStream.flush();
-                    if (mSelectedFormat.equals(MediaFormat.MIMETYPE_VIDEO_AVC)) {
-                        if (mSelectedWidth == 1280 && mSelectedHeight == 720) {
-                            mSocketOutputStream.write(H264_PREDEFINED_HEADER_1280x720);
-                        } else if (mSelectedWidth == 800 && mSelectedHeight == 480) {
-                            mSocketOutputStream.write(H264_PREDEFINED_HEADER_800x480);
-                        } else {
-                            Log.e(TAG, "Unknown width: " + mSelectedWidth + ", height: " + mSelectedHeight);
-                            mSocketOutputStream.close();
-                            mClientSocket.close();
-                            mClientSocket = null;
-                            mSocketOutputStream = null;
-                        }
-                    } else if (mSelectedFormat.equals(MediaFormat.MIMETYPE_VIDEO_VP8)) {
-                        mIvfWriter = new IvfWriter(mSocketOutputStream, mSelectedWidth, mSelectedHeight);
-                        mIvfWriter.writeHeader();
-                    } else {
-                        Log.e(TAG, "Unknown format: " + mSelectedFormat);
-                        mSocketOutputStream.close();
-                        mClientSocket.close();
-                        mClientSocket = null;
-                        mSocketOutputStream = null;
-                    }
-                    if (mSocketOutputStream != null) {
-                        mHandler.post(mStartEncodingRunnable);
-                    }
-                    return;
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    channel.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
                 }
-                mClientSocket = null;
-                mSocketOutputStream = null;
             }
         }
     }
 
-    private boolean createSocket() {
-        Thread th = new Thread(new Runnable() {
+    /**
+     * Lets the recorder write what is still queued and finalizes the file, off the main thread.
+     */
+    private void stopRecordingToFile() {
+        final FrameSender recorder = mRecorder;
+        final Closeable writer = mRecordingWriter;
+        mRecorder = null;
+        mRecordingWriter = null;
+        if (recorder == null) {
+            return;
+        }
+        new Thread(new Runnable() {
             @Override
             public void run() {
+                recorder.finish(Common.RECORDING_FINISH_TIMEOUT_MS);
                 try {
-                    InetAddress serverAddr = InetAddress.getByName(mReceiverIp);
-                    mSocket = new Socket(serverAddr, Common.VIEWER_PORT);
-                    mSocketOutputStream = mSocket.getOutputStream();
-                    OutputStreamWriter osw = new OutputStreamWriter(mSocketOutputStream);
-                    osw.write(String.format(HTTP_MESSAGE_TEMPLATE, mSelectedWidth, mSelectedHeight));
-                    osw.flush();
-                    mSocketOutputStream.flush();
-                    if (mSelectedFormat.equals(MediaFormat.MIMETYPE_VIDEO_AVC)) {
-                        if (mSelectedWidth == 1280 && mSelectedHeight == 720) {
-                            mSocketOutputStream.write(H264_PREDEFINED_HEADER_1280x720);
-                        } else if (mSelectedWidth == 800 && mSelectedHeight == 480) {
-                            mSocketOutputStream.write(H264_PREDEFINED_HEADER_800x480);
-                        } else {
-                            Log.e(TAG, "Unknown width: " + mSelectedWidth + ", height: " + mSelectedHeight);
-                            mSocketOutputStream.close();
-                            mSocket.close();
-                            mSocket = null;
-                            mSocketOutputStream = null;
-                        }
-                    } else if (mSelectedFormat.equals(MediaFormat.MIMETYPE_VIDEO_VP8)) {
-                        mIvfWriter = new IvfWriter(mSocketOutputStream, mSelectedWidth, mSelectedHeight);
-                        mIvfWriter.writeHeader();
-                    } else {
-                        Log.e(TAG, "Unknown format: " + mSelectedFormat);
-                        mSocketOutputStream.close();
-                        mSocket.close();
-                        mSocket = null;
-                        mSocketOutputStream = null;
-                    }
-                    return;
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
+                    writer.close();
+                    Log.d(TAG, "Recording finished");
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.e(TAG, "Failed to finish recording, e: " + e);
                 }
-                mSocket = null;
-                mSocketOutputStream = null;
+            }
+        }, "RecordingFinisher").start();
+    }
+
+    private boolean createServerSocket() {
+        mViewerServer = new ViewerServer(new InetSocketAddress(Common.VIEWER_PORT), Common.HANDSHAKE_TIMEOUT_MS,
+                mViewerServerListener);
+        try {
+            mViewerServer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to create server socket, e: " + e);
+            mViewerServer.close();
+            mViewerServer = null;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean createSocket() {
+        Thread th = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connectToReceiver(0, false);
             }
         });
         th.start();
         try {
             th.join();
-            if (mSocket != null && mSocketOutputStream != null) {
+            if (mViewers.length > 0) {
                 return true;
             }
         } catch (InterruptedException e) {
@@ -569,29 +1336,375 @@ public class CastService extends Service {
         return false;
     }
 
+    /**
+     * Dials the receiver of client mode and adds it as a viewer. Blocks until done.
+     *
+     * @param timeoutMs longest wait for the connection, 0 to wait as long as the system does
+     * @param resume    whether the stream is already running, so the viewer has to start at a key frame
+     * @return whether the receiver was added
+     */
+    private boolean connectToReceiver(int timeoutMs, boolean resume) {
+        Socket socket = null;
+        try {
+            InetAddress serverAddr = InetAddress.getByName(mReceiverIp);
+            socket = SocketChannel.open().socket();
+            socket.connect(new InetSocketAddress(serverAddr, Common.VIEWER_PORT), timeoutMs);
+            FrameWriter frameWriter = writeStreamHeader(socket);
+            if (frameWriter != null && (!resume || mReconnecting)) {
+                addViewer(socket, frameWriter, resume);
+                return true;
+            }
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            if (resume) {
+                Log.d(TAG, "Failed to reconnect to receiver, e: " + e);
+            } else {
+                e.printStackTrace();
+            }
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts redialing the receiver of client mode while capture and encoder keep running.
+     * Runs on the main thread.
+     */
+    private void startReconnect() {
+        if (mReconnectThread == null) {
+            mReconnectThread = new HandlerThread("ReconnectThread");
+            mReconnectThread.start();
+            mReconnectHandler = new Handler(mReconnectThread.getLooper());
+        }
+        mReconnecting = true;
+        mReconnectBackoff.reset(SystemClock.elapsedRealtime());
+        mReconnectHandler.post(mReconnectRunnable);
+    }
+
+    /**
+     * One attempt to get the receiver back. Runs on the reconnect thread.
+     */
+    private void reconnect() {
+        if (!mReconnecting) {
+            return;
+        }
+        if (connectToReceiver(Common.RECONNECT_CONNECT_TIMEOUT_MS, true)) {
+            Log.d(TAG, "Reconnected to receiver");
+            mReconnecting = false;
+            Handler encoderHandler = mEncoderHandler;
+            if (encoderHandler != null) {
+                // the receiver can only start decoding at a key frame
+                encoderHandler.post(mRequestSyncFrameRunnable);
+            }
+            return;
+        }
+        long delayMs = mReconnectBackoff.nextDelayMs(SystemClock.elapsedRealtime());
+        Handler reconnectHandler = mReconnectHandler;
+        if (delayMs < 0 || reconnectHandler == null) {
+            Log.d(TAG, "Receiver did not come back, stop casting");
+            mHandler.post(mStopCaptureRunnable);
+            return;
+        }
+        reconnectHandler.postDelayed(mReconnectRunnable, delayMs);
+    }
+
+    private void stopReconnect() {
+        mReconnecting = false;
+        if (mReconnectThread == null) {
+            return;
+        }
+        mReconnectHandler.removeCallbacks(mReconnectRunnable);
+        mReconnectThread.quitSafely();
+        mReconnectThread = null;
+        mReconnectHandler = null;
+    }
+
+    /**
+     * Writes the HTTP preamble and the format specific stream header to a new receiver.
+     *
+     * @return the writer to use for the frames of this receiver, or null if the
+     *         selected format or size cannot be streamed
+     */
+    private FrameWriter writeStreamHeader(Socket socket) throws IOException {
+        int framing = negotiateFraming(mFraming);
+        byte[] header = createStreamHeader(framing);
+        if (header == null) {
+            return null;
+        }
+        OutputStream outputStream = socket.getOutputStream();
+        outputStream.write(header);
+        outputStream.flush();
+        return createFrameWriter(socket, framing);
+    }
+
+    /**
+     * The framing version to use with a receiver. Only H.264 and HEVC over TCP are framed,
+     * VP8 has IVF and RTP has its own packet headers.
+     *
+     * @param requested highest framing version the receiver understands
+     */
+    private int negotiateFraming(int requested) {
+        if (mTransport == Common.TRANSPORT_RTP || !usesParameterSets()) {
+            return 0;
+        }
+        return FramedWriter.negotiate(requested);
+    }
+
+    /**
+     * The HTTP preamble followed by the IVF file header for VP8 over TCP.
+     *
+     * @param framing framing version agreed with the receiver, 0 for none
+     * @return the header, or null if the selected format cannot be streamed
+     */
+    private byte[] createStreamHeader(int framing) {
+        String probeHeaders = mLatencyProbe ? StreamHeader.latencyProbeHeaders(mLatencyProbePort) : "";
+        if (mTransport == Common.TRANSPORT_RTP) {
+            String encodingName = VideoFormats.rtpEncodingName(mSelectedFormat);
+            if (encodingName == null) {
+                Log.e(TAG, "No RTP payload format for: " + mSelectedFormat);
+                return null;
+            }
+            // one dynamic payload type for either codec, the encoding name tells them apart
+            String rtpHeaders = StreamHeader.rtpHeaders(mRtpPort, Common.RTP_PAYLOAD_TYPE, encodingName,
+                    usesFec() ? Common.RTP_FEC_PAYLOAD_TYPE : -1);
+            return StreamHeader.build(mSelectedWidth, mSelectedHeight, rtpHeaders + probeHeaders).getBytes();
+        }
+        String framingHeaders = framing > 0 ? StreamHeader.framingHeaders(framing) : "";
+        byte[] preamble = StreamHeader.build(mSelectedWidth, mSelectedHeight, probeHeaders + framingHeaders).getBytes();
+        if (usesParameterSets()) {
+            // the SPS and PPS of the encoder are the first frame the sender writes, see addViewer
+            return preamble;
+        } else if (VideoFormats.usesIvf(mSelectedFormat)) {
+            byte[] ivfHeader = IvfWriter.makeIvfHeader(0, mSelectedWidth, mSelectedHeight, 1, 1000000,
+                    VideoFormats.ivfFourcc(mSelectedFormat));
+            byte[] header = Arrays.copyOf(preamble, preamble.length + ivfHeader.length);
+            System.arraycopy(ivfHeader, 0, header, preamble.length, ivfHeader.length);
+            return header;
+        }
+        Log.e(TAG, "Unknown format: " + mSelectedFormat);
+        return null;
+    }
+
+    private boolean usesFec() {
+        return mFecGroupSize > 0 && mFecInterleave > 0;
+    }
+
+    /**
+     * Creates the writer for the frames of a receiver that already got the stream header.
+     *
+     * @param framing framing version announced in the stream header, 0 for none
+     * @return the writer, or null if the selected format cannot be streamed
+     */
+    private FrameWriter createFrameWriter(Socket socket, int framing) throws IOException {
+        if (mTransport == Common.TRANSPORT_RTP) {
+            // the video goes to the same host over UDP, the TCP connection stays open to tell when it leaves
+            RtpPacketizer packetizer;
+            boolean fec = usesFec();
+            // parity packets are larger than the media packets they protect, both must fit the MTU
+            int maxPacketSize = mRtpMtu - IP_UDP_HEADER_SIZE - (fec ? FecEncoder.OVERHEAD : 0);
+            if (mSelectedFormat.equals(MediaFormat.MIMETYPE_VIDEO_AVC)) {
+                packetizer = new H264RtpPacketizer(maxPacketSize, Common.RTP_PAYLOAD_TYPE);
+            } else if (mSelectedFormat.equals(MediaFormat.MIMETYPE_VIDEO_VP8)) {
+                packetizer = new Vp8RtpPacketizer(maxPacketSize, Common.RTP_PAYLOAD_TYPE);
+            } else {
+                return null;
+            }
+            RtpFrameWriter rtpFrameWriter = new RtpFrameWriter(socket.getInetAddress(), mRtpPort, packetizer);
+            if (fec) {
+                rtpFrameWriter.enableFec(mFecGroupSize, mFecInterleave, Common.RTP_FEC_PAYLOAD_TYPE);
+            }
+            return rtpFrameWriter;
+        }
+        // frames are written whole as soon as they are ready, there is nothing to gain from Nagle
+        socket.setTcpNoDelay(true);
+        SocketChannel channel = socket.getChannel();
+        if (usesParameterSets() && framing > 0) {
+            if (channel != null) {
+                return new FramedWriter(channel);
+            }
+            return new FramedWriter(socket.getOutputStream());
+        } else if (usesParameterSets()) {
+            if (channel != null) {
+                return new ChannelFrameWriter(channel, null);
+            }
+            return new StreamFrameWriter(socket.getOutputStream(), null);
+        } else if (VideoFormats.usesIvf(mSelectedFormat)) {
+            // the IVF file header went out with the stream header
+            String fourcc = VideoFormats.ivfFourcc(mSelectedFormat);
+            if (channel != null) {
+                return new ChannelFrameWriter(channel, new IvfWriter(channel, mSelectedWidth, mSelectedHeight, fourcc));
+            }
+            OutputStream outputStream = socket.getOutputStream();
+            return new StreamFrameWriter(outputStream,
+                    new IvfWriter(outputStream, mSelectedWidth, mSelectedHeight, fourcc));
+        }
+        return null;
+    }
+
+    private FrameDropPolicy createDropPolicy() {
+        boolean avc = MediaFormat.MIMETYPE_VIDEO_AVC.equals(mSelectedFormat);
+        if (mMaxLatencyMs > 0) {
+            return new LatencyDropPolicy(mMaxLatencyMs * 1000L, avc);
+        }
+        if (mReceiverIp.length() <= 0) {
+            // viewers share the encoder, a full queue of one of them must never block it
+            return new LatencyDropPolicy(Long.MAX_VALUE, avc);
+        }
+        return null;
+    }
+
+    private void addViewer(Socket socket, FrameWriter frameWriter) {
+        addViewer(socket, frameWriter, false);
+    }
+
+    /**
+     * @param resume whether the receiver reconnected to a running stream, it then skips to the next key frame
+     */
+    private void addViewer(Socket socket, FrameWriter frameWriter, boolean resume) {
+        FrameSender sender = new FrameSender("FrameSender-" + socket.getInetAddress().getHostAddress(),
+                frameWriter, mSendQueueSize, mFrameSenderListener);
+        Viewer viewer = new Viewer(socket, frameWriter, sender, createLatencyProbe(socket));
+        synchronized (mViewersLock) {
+            if (mAdaptiveBitrate && mViewers.length == 0) {
+                mBitrateController = new BitrateController(mSelectedBitrate, mMinBitrate, mMaxBitrate, mBitrateListener);
+                // an encoder still running from a previous session starts over from the selected bitrate too
+                mBitrateListener.onBitrateChanged(mSelectedBitrate);
+            }
+            // without a cached key frame to replay, e.g. with intra refresh or after an idle skip,
+            // the frames before the next one reference pictures this viewer never got
+            sender.setDropPolicy(createViewerDropPolicy(resume || !mGopCache.hasKeyFrame()));
+            sender.setInitialFrames(getInitialFrames());
+            Viewer[] viewers = Arrays.copyOf(mViewers, mViewers.length + 1);
+            viewers[viewers.length - 1] = viewer;
+            sender.start();
+            mViewers = viewers;
+        }
+        Log.d(TAG, "Add viewer " + socket.getInetAddress() + ", viewers: " + mViewers.length);
+    }
+
+    /**
+     * Opens the probe socket towards the port announced to the viewer.
+     *
+     * @return the started probe, or null if probes are disabled or the socket cannot be opened
+     */
+    private LatencyProbe createLatencyProbe(Socket socket) {
+        if (!mLatencyProbe) {
+            return null;
+        }
+        try {
+            DatagramSocket probeSocket = new DatagramSocket();
+            probeSocket.connect(socket.getInetAddress(), mLatencyProbePort);
+            LatencyProbe probe = new LatencyProbe(probeSocket, Common.LATENCY_PROBE_INTERVAL_MS * 1000L,
+                    mLatencyProbeListener);
+            probe.start();
+            return probe;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open latency probe socket, e: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Called on sender threads for every frame, so it does not allocate.
+     */
+    private LatencyProbe findLatencyProbe(FrameSender sender) {
+        for (Viewer viewer : mViewers) {
+            if (viewer.sender == sender) {
+                return viewer.probe;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param startAtKeyFrame whether the viewer drops everything up to the next key frame
+     */
+    private FrameDropPolicy createViewerDropPolicy(boolean startAtKeyFrame) {
+        FrameDropPolicy dropPolicy = createDropPolicy();
+        if (!startAtKeyFrame) {
+            return dropPolicy;
+        }
+        boolean avc = MediaFormat.MIMETYPE_VIDEO_AVC.equals(mSelectedFormat);
+        LatencyDropPolicy keyFramePolicy = dropPolicy instanceof LatencyDropPolicy
+                ? (LatencyDropPolicy) dropPolicy : new LatencyDropPolicy(Long.MAX_VALUE, avc);
+        keyFramePolicy.startAtKeyFrame();
+        return keyFramePolicy;
+    }
+
+    /**
+     * Frames a viewer joining now needs before the live ones: the parameter sets of a
+     * running encoder and the group of pictures since its latest key frame.
+     * A viewer that joins before the encoder starts gets the parameter sets live instead.
+     * Called with mViewersLock held.
+     */
+    private EncodedFrame[] getInitialFrames() {
+        EncodedFrame[] gop = mGopCache.snapshot();
+        if (mParameterSets == null) {
+            return gop;
+        }
+        EncodedFrame[] frames = new EncodedFrame[gop.length + 1];
+        byte[] header = mParameterSets.toAnnexB();
+        frames[0] = new EncodedFrame(header.length);
+        frames[0].set(ByteBuffer.wrap(header), 0, EncodedFrame.FLAG_CODEC_CONFIG);
+        System.arraycopy(gop, 0, frames, 1, gop.length);
+        return frames;
+    }
+
+    /**
+     * Disconnects the viewer fed by the given sender.
+     *
+     * @return the number of viewers left
+     */
+    private int removeViewer(FrameSender sender) {
+        Viewer removed = null;
+        int remaining;
+        synchronized (mViewersLock) {
+            Viewer[] viewers = mViewers;
+            for (int i = 0; i < viewers.length; i++) {
+                if (viewers[i].sender == sender) {
+                    removed = viewers[i];
+                    Viewer[] remainingViewers = new Viewer[viewers.length - 1];
+                    System.arraycopy(viewers, 0, remainingViewers, 0, i);
+                    System.arraycopy(viewers, i + 1, remainingViewers, i, viewers.length - i - 1);
+                    mViewers = remainingViewers;
+                    break;
+                }
+            }
+            remaining = mViewers.length;
+        }
+        if (removed != null) {
+            Log.d(TAG, "Remove viewer " + removed.socket.getInetAddress() + ", viewers: " + remaining);
+            removed.close();
+        }
+        return remaining;
+    }
+
     private void closeSocket() {
         closeSocket(false);
     }
 
     private void closeSocket(boolean closeServerSocket) {
-        if (mSocket != null) {
-            try {
-                mSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        Viewer[] viewers;
+        synchronized (mViewersLock) {
+            viewers = mViewers;
+            mViewers = new Viewer[0];
+            mBitrateController = null;
+        }
+        for (Viewer viewer : viewers) {
+            viewer.close();
         }
         if (closeServerSocket) {
-            if (mServerSocket != null) {
-                try {
-                    mServerSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            if (mViewerServer != null) {
+                mViewerServer.close();
             }
-            mServerSocket = null;
+            mViewerServer = null;
         }
-        mSocket = null;
-        mSocketOutputStream = null;
     }
 }
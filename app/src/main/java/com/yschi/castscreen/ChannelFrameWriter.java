@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Writes frames to a channel, either as raw elementary stream or wrapped in IVF.
+ *
+ * With IVF, each frame header and its payload go out in one gathering write.
+ */
+public class ChannelFrameWriter implements FrameWriter, Closeable {
+    private final GatheringByteChannel mChannel;
+    private final IvfWriter mIvfWriter;
+
+    /**
+     * @param channel   channel to write to
+     * @param ivfWriter IVF writer on top of the same channel, or null to write frames as is
+     */
+    public ChannelFrameWriter(GatheringByteChannel channel, IvfWriter ivfWriter) {
+        mChannel = channel;
+        mIvfWriter = ivfWriter;
+    }
+
+    @Override
+    public void writeFrame(EncodedFrame frame) throws IOException {
+        ByteBuffer buffer = frame.asBuffer();
+        if (mIvfWriter != null) {
+            mIvfWriter.writeFrame(buffer, frame.presentationTimeUs);
+        } else {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Closes the channel, through the IVF writer if there is one so it can finalize its header.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mIvfWriter != null) {
+            mIvfWriter.close();
+        } else {
+            mChannel.close();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.yschi.castscreen;
 
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 
 /**
@@ -23,21 +24,111 @@ import android.media.MediaFormat;
  */
 public class Common {
     public static final int VIEWER_PORT = 53515;
+    // Time a viewer has from connecting until its stream header is out in server mode
+    public static final long HANDSHAKE_TIMEOUT_MS = 5000;
 
     public static final int DISCOVER_PORT = 53515;
     public static final String DISCOVER_MESSAGE = "hello";
+    public static final long DISCOVER_INTERVAL_MS = 2000;
+    // Receivers missing this many rounds of answers are taken off the list
+    public static final long DISCOVER_TTL_MS = 3 * DISCOVER_INTERVAL_MS + 500;
 
     public static final int DEFAULT_SCREEN_WIDTH = 1280;
     public static final int DEFAULT_SCREEN_HEIGHT = 720;
     public static final int DEFAULT_SCREEN_DPI = 320;
     public static final int DEFAULT_VIDEO_BITRATE = 6144000;
+    public static final int DEFAULT_MIN_VIDEO_BITRATE = 512000;
+    public static final boolean DEFAULT_ADAPTIVE_BITRATE = true;
     public static final int DEFAULT_VIDEO_FPS = 25;
+    // Lower resolution and frame rate when adaptive bitrate runs out of bits, see QualityController
+    public static final boolean DEFAULT_QUALITY_SCALING = false;
+    // Shortest time between two quality changes, each one restarts the encoder
+    public static final long QUALITY_HOLD_MS = 5000;
+    // Leave repeated frames of a static screen out of the stream, see IdleDetector
+    public static final boolean DEFAULT_IDLE_DETECTION = false;
+    // Frames up to this size carry no visible change
+    public static final int IDLE_MAX_FRAME_BYTES = 512;
+    public static final long IDLE_AFTER_MS = 2000;
+    // Key frame interval while idle, so a receiver that lost a frame still recovers
+    public static final long IDLE_KEEPALIVE_MS = 5000;
     public static final String DEFAULT_VIDEO_MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    // Encoder options for screen content where the encoder supports them, see EncoderProfile
+    public static final boolean DEFAULT_ENCODER_TUNING = true;
+    public static final int DEFAULT_BITRATE_MODE = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+    // A rolling intra refresh covers the whole picture in this time
+    public static final long INTRA_REFRESH_MS = 1000;
+    // Seconds between key frames with intra refresh, joining viewers and drops still request one right away
+    public static final int INTRA_REFRESH_I_FRAME_INTERVAL = 10;
+
+    // Encoder drain modes
+    public static final int DRAIN_MODE_CALLBACK = 0;
+    public static final int DRAIN_MODE_POLLING = 1;
+    public static final int DEFAULT_DRAIN_MODE = DRAIN_MODE_CALLBACK;
+    public static final int DRAIN_POLLING_INTERVAL_MS = 10;
+
+    // Longest group of pictures kept for viewers joining mid-stream
+    public static final int GOP_CACHE_MAX_FRAMES = 90;
+    // Number of encoded frames buffered between the encoder and the socket
+    public static final int DEFAULT_SEND_QUEUE_SIZE = 8;
+    // Frames waiting longer than this for the socket are dropped, 0 disables dropping
+    public static final int DEFAULT_MAX_LATENCY_MS = 200;
+
+    // Video transports, the TCP connection always carries the handshake
+    public static final int TRANSPORT_TCP = 0;
+    public static final int TRANSPORT_RTP = 1;
+    public static final int DEFAULT_TRANSPORT = TRANSPORT_TCP;
+    public static final int DEFAULT_RTP_PORT = 53517;
+    // Path MTU for RTP packets, IP and UDP headers included
+    public static final int DEFAULT_RTP_MTU = 1500;
+    public static final int RTP_PAYLOAD_TYPE = 96;
+    // XOR parity for RTP: one parity packet per group of media packets, bursts up to interleave are rebuilt
+    public static final int DEFAULT_FEC_GROUP_SIZE = 10;
+    public static final int DEFAULT_FEC_INTERLEAVE = 2;
+    public static final int RTP_FEC_PAYLOAD_TYPE = 97;
+
+    // Round trip probes over UDP beside the stream, echoed by receivers that understand X-LATENCY-PROBE-PORT
+    public static final boolean DEFAULT_LATENCY_PROBE = false;
+    public static final int DEFAULT_LATENCY_PROBE_PORT = 53518;
+    public static final int LATENCY_PROBE_INTERVAL_MS = 100;
+
+    // Framing version the client mode receiver advertised, 0 for a plain elementary stream
+    public static final int DEFAULT_FRAMING = 0;
+
+    // Client mode redials a lost receiver with exponential backoff while the encoder keeps running
+    public static final long RECONNECT_INITIAL_DELAY_MS = 50;
+    public static final long RECONNECT_MAX_DELAY_MS = 2000;
+    public static final long RECONNECT_GIVE_UP_MS = 30000;
+    public static final int RECONNECT_CONNECT_TIMEOUT_MS = 1000;
+
+    // Pipeline stats are published to bound clients and appended to this file at this interval
+    public static final int STATS_INTERVAL_MS = 1000;
+    public static final String STATS_LOG_FILE = "stats.log";
+
+    // Local recording of the cast, H.264 as fragmented MP4 and VP8 as IVF
+    public static final boolean DEFAULT_RECORD = false;
+    // Frames buffered between the encoder and the file, disk stalls beyond this drop frames
+    public static final int RECORDING_QUEUE_SIZE = 50;
+    // Longest wait for queued frames to reach the file when casting stops
+    public static final int RECORDING_FINISH_TIMEOUT_MS = 2000;
 
     // Activity to service
     public static final int MSG_REGISTER_CLIENT = 200;
     public static final int MSG_UNREGISTER_CLIENT = 201;
     public static final int MSG_STOP_CAST = 301;
+    // data holds EXTRA_SCREEN_WIDTH, EXTRA_SCREEN_HEIGHT and EXTRA_VIDEO_FPS, missing ones stay as they are
+    public static final int MSG_RECONFIGURE = 302;
+
+    // Service to activity, the data holds the STATS_KEY_ values or nothing once casting stopped
+    public static final int MSG_STATS = 400;
+    public static final String STATS_KEY_SUMMARY = "summary";
+    public static final String STATS_KEY_FPS = "fps";
+    public static final String STATS_KEY_BITRATE = "bitrate";
+    public static final String STATS_KEY_LATENCY_P50_US = "latency_p50_us";
+    public static final String STATS_KEY_LATENCY_P99_US = "latency_p99_us";
+    public static final String STATS_KEY_DROPPED = "dropped";
+    public static final String STATS_KEY_RTT_P50_US = "rtt_p50_us";
+    public static final String STATS_KEY_ONE_WAY_DELAY_P50_US = "one_way_delay_p50_us";
+    public static final String STATS_KEY_JITTER_US = "jitter_us";
 
     public static final String EXTRA_RESULT_CODE = "result_code";
     public static final String EXTRA_RESULT_DATA = "result_data";
@@ -48,6 +139,26 @@ public class Common {
     public static final String EXTRA_SCREEN_DPI = "screen_dpi";
     public static final String EXTRA_VIDEO_FORMAT = "video_format";
     public static final String EXTRA_VIDEO_BITRATE = "video_bitrate";
+    public static final String EXTRA_VIDEO_FPS = "video_fps";
+    public static final String EXTRA_QUALITY_SCALING = "quality_scaling";
+    public static final String EXTRA_IDLE_DETECTION = "idle_detection";
+    public static final String EXTRA_ENCODER_TUNING = "encoder_tuning";
+    public static final String EXTRA_BITRATE_MODE = "bitrate_mode";
+    public static final String EXTRA_ADAPTIVE_BITRATE = "adaptive_bitrate";
+    public static final String EXTRA_MIN_VIDEO_BITRATE = "min_video_bitrate";
+    public static final String EXTRA_MAX_VIDEO_BITRATE = "max_video_bitrate";
+    public static final String EXTRA_DRAIN_MODE = "drain_mode";
+    public static final String EXTRA_SEND_QUEUE_SIZE = "send_queue_size";
+    public static final String EXTRA_MAX_LATENCY_MS = "max_latency_ms";
+    public static final String EXTRA_TRANSPORT = "transport";
+    public static final String EXTRA_RTP_PORT = "rtp_port";
+    public static final String EXTRA_RTP_MTU = "rtp_mtu";
+    public static final String EXTRA_FEC_GROUP_SIZE = "fec_group_size";
+    public static final String EXTRA_FEC_INTERLEAVE = "fec_interleave";
+    public static final String EXTRA_RECORD = "record";
+    public static final String EXTRA_LATENCY_PROBE = "latency_probe";
+    public static final String EXTRA_LATENCY_PROBE_PORT = "latency_probe_port";
+    public static final String EXTRA_FRAMING = "framing";
 
     public static final String ACTION_STOP_CAST = "com.yschi.castscreen.ACTION_STOP_CAST";
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable holder for one encoded frame copied out of a codec output buffer.
+ *
+ * The backing array only grows, so once it has seen the largest frame of a
+ * session copying further frames does not allocate.
+ */
+public class EncodedFrame {
+    // same values as MediaCodec.BUFFER_FLAG_KEY_FRAME and BUFFER_FLAG_CODEC_CONFIG
+    public static final int FLAG_KEY_FRAME = 1;
+    public static final int FLAG_CODEC_CONFIG = 2;
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    public byte[] data;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+    // when the frame entered the send queue, on the System.nanoTime() clock
+    public long queuedTimeUs;
+    // when the sender started writing the frame, on the System.nanoTime() clock
+    public long sentTimeUs;
+    // view of data handed out by asBuffer(), rewrapped only when data grows
+    private ByteBuffer mBuffer;
+
+    public EncodedFrame() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public EncodedFrame(int capacity) {
+        data = new byte[capacity];
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer into this frame.
+     *
+     * @param buffer             encoded data, consumed from position to limit
+     * @param presentationTimeUs presentation timestamp of the frame
+     * @param flags              MediaCodec buffer flags of the frame
+     */
+    public void set(ByteBuffer buffer, long presentationTimeUs, int flags) {
+        int length = buffer.remaining();
+        ensureCapacity(length);
+        buffer.get(data, 0, length);
+        this.size = length;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+
+    /**
+     * Returns the frame data as a buffer positioned at 0 with the frame size as limit.
+     *
+     * The buffer is owned by this frame and reused by later calls.
+     */
+    public ByteBuffer asBuffer() {
+        if (mBuffer == null || mBuffer.array() != data) {
+            mBuffer = ByteBuffer.wrap(data);
+        }
+        mBuffer.limit(size);
+        mBuffer.position(0);
+        return mBuffer;
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isCodecConfig() {
+        return (flags & FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (data.length < capacity) {
+            // grow with some headroom so a slowly increasing frame size does not reallocate every frame
+            data = new byte[Math.max(capacity, data.length + (data.length >> 1))];
+        }
+    }
+}
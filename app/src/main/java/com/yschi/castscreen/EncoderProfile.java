@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encoder options for screen content on top of the basic video format.
+ *
+ * Each option is offered together with whether the encoder claims to
+ * support it. Supported ones end up in {@link #getSettings()} to be set on
+ * the MediaFormat, the others are only kept for the log.
+ */
+public class EncoderProfile {
+    // same strings as the MediaFormat keys, KEY_LATENCY is newer than the compile SDK
+    public static final String KEY_BITRATE_MODE = "bitrate-mode";
+    public static final String KEY_LATENCY = "latency";
+    public static final String KEY_PRIORITY = "priority";
+    public static final String KEY_INTRA_REFRESH_PERIOD = "intra-refresh-period";
+    public static final String KEY_PROFILE = "profile";
+    public static final String KEY_LEVEL = "level";
+
+    private final Map<String, Integer> mSettings = new LinkedHashMap<String, Integer>();
+    private final List<String> mUnsupported = new ArrayList<String>();
+
+    /**
+     * @param key       MediaFormat key
+     * @param value     value to set
+     * @param supported whether the encoder supports it, unsupported options are left out
+     * @return this profile
+     */
+    public EncoderProfile offer(String key, int value, boolean supported) {
+        if (supported) {
+            mSettings.put(key, value);
+        } else {
+            mUnsupported.add(key);
+        }
+        return this;
+    }
+
+    /**
+     * The options to set, in the order they were offered.
+     */
+    public Map<String, Integer> getSettings() {
+        return mSettings;
+    }
+
+    public List<String> getUnsupported() {
+        return mUnsupported;
+    }
+
+    public boolean has(String key) {
+        return mSettings.containsKey(key);
+    }
+
+    @Override
+    public String toString() {
+        return "applied " + mSettings + ", unsupported " + mUnsupported;
+    }
+
+    /**
+     * Number of frames over which a rolling intra refresh covers the whole picture.
+     *
+     * @param frameRate frames per second
+     * @param refreshMs time a full refresh should take
+     */
+    public static int intraRefreshPeriod(int frameRate, long refreshMs) {
+        return (int) Math.max(1, frameRate * refreshMs / 1000);
+    }
+
+    /**
+     * Picks the most preferred profile the encoder supports, at the highest level it supports it.
+     *
+     * @param profiles   profiles of the encoder's profile and level pairs
+     * @param levels     levels of the same pairs
+     * @param preference profiles to look for, best first
+     * @return index of the chosen pair, or -1 if none of the preferred profiles is supported
+     */
+    public static int pickProfile(int[] profiles, int[] levels, int[] preference) {
+        for (int profile : preference) {
+            int best = -1;
+            for (int i = 0; i < profiles.length; i++) {
+                if (profiles[i] == profile && (best < 0 || levels[i] > levels[best])) {
+                    best = i;
+                }
+            }
+            if (best >= 0) {
+                return best;
+            }
+        }
+        return -1;
+    }
+}
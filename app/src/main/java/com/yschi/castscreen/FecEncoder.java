@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Adds XOR parity packets to an RTP packet stream.
+ *
+ * Media packets are grouped in blocks of groupSize * interleave packets.
+ * Within a block, every interleave-th packet belongs to the same column and
+ * each column gets one parity packet, so any single loss per column, and
+ * therefore any burst of up to interleave consecutive losses, can be rebuilt
+ * by the receiver without a round trip. The overhead is one parity packet
+ * per groupSize media packets. A block is also closed at the end of every
+ * frame, so protection never waits for the next frame; this costs more
+ * parity on small frames.
+ *
+ * Parity packets are RTP packets with their own payload type, sequence
+ * numbers and SSRC, as RFC 5109 asks for FEC sent in the media's session,
+ * and the timestamp of the packets they protect, followed by this header:
+ * <pre>
+ *  0                   1                   2                   3
+ *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |     first sequence number     |     count     |    stride     |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |        length recovery        |  XOR of the protected packets |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+                               |
+ * </pre>
+ * The packets at first + i * stride, for i below count, are protected.
+ * Length recovery is the XOR of their lengths. The protected packets are
+ * XORed in full, RTP header included, zero padded to the longest one.
+ */
+public class FecEncoder implements RtpPacketizer.PacketSink {
+    public static final int HEADER_SIZE = 6;
+    // bytes a parity packet adds on top of the longest media packet it protects
+    public static final int OVERHEAD = RtpPacketizer.HEADER_SIZE + HEADER_SIZE;
+
+    private final int mGroupSize;
+    private final int mInterleave;
+    private final int mPayloadType;
+    private final RtpPacketizer.PacketSink mSink;
+    private final byte[][] mParity;
+    private final int[] mCount;
+    private final int[] mLengthRecovery;
+    private final int[] mMaxLength;
+    private int mBlockStart;
+    private int mBlockPackets;
+    private int mSequenceNumber;
+    private int mSsrc;
+    private long mMediaPackets;
+    private long mParityPackets;
+
+    /**
+     * @param groupSize          media packets per parity packet
+     * @param interleave         columns per block, the longest burst that can be rebuilt
+     * @param maxMediaPacketSize largest media packet that will be protected
+     * @param payloadType        RTP payload type of the parity packets
+     * @param sink               receives media and parity packets
+     */
+    public FecEncoder(int groupSize, int interleave, int maxMediaPacketSize, int payloadType,
+                      RtpPacketizer.PacketSink sink) {
+        if (groupSize <= 0 || groupSize > 255 || interleave <= 0 || interleave > 255) {
+            throw new IllegalArgumentException("Invalid FEC group size " + groupSize + " or interleave " + interleave);
+        }
+        mGroupSize = groupSize;
+        mInterleave = interleave;
+        mPayloadType = payloadType;
+        mSink = sink;
+        mParity = new byte[interleave][OVERHEAD + maxMediaPacketSize];
+        mCount = new int[interleave];
+        mLengthRecovery = new int[interleave];
+        mMaxLength = new int[interleave];
+        Random random = new Random();
+        mSequenceNumber = random.nextInt() & 0xffff;
+        mSsrc = random.nextInt();
+    }
+
+    @Override
+    public void onPacket(byte[] packet, int length) throws IOException {
+        if (length > mParity[0].length - OVERHEAD) {
+            throw new IllegalArgumentException("Packet larger than " + (mParity[0].length - OVERHEAD) + ": " + length);
+        }
+        if (mBlockPackets == 0) {
+            mBlockStart = ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+        }
+        int column = mBlockPackets % mInterleave;
+        byte[] parity = mParity[column];
+        for (int i = 0; i < length; i++) {
+            parity[OVERHEAD + i] ^= packet[i];
+        }
+        if (mCount[column] == 0) {
+            // timestamp of the protected stream
+            System.arraycopy(packet, 4, parity, 4, 4);
+            if (ssrc(packet) == mSsrc) {
+                // the two streams must stay apart
+                mSsrc = ~mSsrc;
+            }
+        }
+        mCount[column]++;
+        mLengthRecovery[column] ^= length;
+        mMaxLength[column] = Math.max(mMaxLength[column], length);
+        mBlockPackets++;
+        mMediaPackets++;
+        boolean endOfFrame = (packet[1] & 0x80) != 0;
+        // the sink may reuse the packet buffer once it returns, so the parity is updated first
+        mSink.onPacket(packet, length);
+        if (endOfFrame || mBlockPackets == mGroupSize * mInterleave) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the parity of the current block, even if it is not full.
+     */
+    public void flush() throws IOException {
+        for (int column = 0; column < mInterleave; column++) {
+            if (mCount[column] == 0) {
+                continue;
+            }
+            byte[] parity = mParity[column];
+            int first = (mBlockStart + column) & 0xffff;
+            parity[0] = (byte) 0x80;
+            parity[1] = (byte) mPayloadType;
+            parity[2] = (byte) (mSequenceNumber >> 8);
+            parity[3] = (byte) mSequenceNumber;
+            parity[8] = (byte) (mSsrc >> 24);
+            parity[9] = (byte) (mSsrc >> 16);
+            parity[10] = (byte) (mSsrc >> 8);
+            parity[11] = (byte) mSsrc;
+            parity[12] = (byte) (first >> 8);
+            parity[13] = (byte) first;
+            parity[14] = (byte) mCount[column];
+            parity[15] = (byte) mInterleave;
+            parity[16] = (byte) (mLengthRecovery[column] >> 8);
+            parity[17] = (byte) mLengthRecovery[column];
+            mSequenceNumber = (mSequenceNumber + 1) & 0xffff;
+            mSink.onPacket(parity, OVERHEAD + mMaxLength[column]);
+            mParityPackets++;
+            Arrays.fill(parity, OVERHEAD, OVERHEAD + mMaxLength[column], (byte) 0);
+            mCount[column] = 0;
+            mLengthRecovery[column] = 0;
+            mMaxLength[column] = 0;
+        }
+        mBlockPackets = 0;
+    }
+
+    private static int ssrc(byte[] packet) {
+        return ((packet[8] & 0xff) << 24) | ((packet[9] & 0xff) << 16) | ((packet[10] & 0xff) << 8)
+                | (packet[11] & 0xff);
+    }
+
+    public long getMediaPackets() {
+        return mMediaPackets;
+    }
+
+    public long getParityPackets() {
+        return mParityPackets;
+    }
+}
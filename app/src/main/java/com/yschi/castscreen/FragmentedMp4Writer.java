@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes an H.264 stream to a fragmented MP4 file (ISO/IEC 14496-12).
+ *
+ * The file starts with an init segment (ftyp and moov with an empty sample
+ * table), followed by one movie fragment per frame, so everything written so
+ * far stays playable if recording stops abruptly. Closing the writer appends
+ * a movie fragment random access box indexing the key frames, which lets
+ * players seek without scanning the whole file.
+ *
+ * Frames are taken in Annex B form as the encoder produces them and written
+ * with 4 byte NAL unit lengths. Frames before the first key frame are skipped.
+ */
+public class FragmentedMp4Writer implements FrameWriter, Closeable {
+    private static final int TIMESCALE = 90000;
+    private static final int TRACK_ID = 1;
+    // moof with mfhd, traf, tfhd, tfdt and a trun of one sample, plus the mdat header
+    private static final int FRAGMENT_HEADER_SIZE = 108;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    // box types written for every frame
+    private static final int MOOF = fourcc("moof");
+    private static final int MFHD = fourcc("mfhd");
+    private static final int TRAF = fourcc("traf");
+    private static final int TFHD = fourcc("tfhd");
+    private static final int TFDT = fourcc("tfdt");
+    private static final int TRUN = fourcc("trun");
+    private static final int MDAT = fourcc("mdat");
+
+    private final FileChannel mChannel;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mDefaultSampleDuration;
+    private ParameterSets mParameterSets = new ParameterSets(false);
+    private boolean mStarted;
+    private long mPosition;
+    private int mSequenceNumber;
+    private long mFirstTimeUs;
+    private long mLastTimeUs;
+    private int mLastDuration;
+    private final ByteBuffer mFragmentHeader = ByteBuffer.allocate(FRAGMENT_HEADER_SIZE);
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+    // the frame with start codes replaced by lengths, grown to the largest frame
+    private byte[] mSample = new byte[64 * 1024];
+    private ByteBuffer mSampleBuffer = ByteBuffer.wrap(mSample);
+    // decode time and moof offset of every key frame, for the tfra box
+    private long[] mKeyFrameTimes = new long[64];
+    private long[] mKeyFrameOffsets = new long[64];
+    private int mKeyFrameCount;
+
+    /**
+     * @param channel   file to write, positioned at its start
+     * @param width     width for the track header if the SPS cannot tell
+     * @param height    height for the track header if the SPS cannot tell
+     * @param frameRate nominal frame rate, used for the duration of the last frame
+     */
+    public FragmentedMp4Writer(FileChannel channel, int width, int height, int frameRate) {
+        mChannel = channel;
+        mWidth = width;
+        mHeight = height;
+        mDefaultSampleDuration = TIMESCALE / frameRate;
+        mLastDuration = mDefaultSampleDuration;
+        mGather[0] = mFragmentHeader;
+    }
+
+    @Override
+    public void writeFrame(EncodedFrame frame) throws IOException {
+        if (frame.isCodecConfig()) {
+            mParameterSets.add(frame.asBuffer());
+            return;
+        }
+        if (!mStarted) {
+            if (!frame.isKeyFrame()) {
+                return;
+            }
+            // some encoders only send the parameter sets in band
+            mParameterSets.add(frame.asBuffer());
+            if (!mParameterSets.isComplete()) {
+                throw new IOException("No SPS and PPS before the first key frame");
+            }
+            writeInitSegment();
+            mFirstTimeUs = frame.presentationTimeUs;
+            mLastTimeUs = frame.presentationTimeUs;
+            mStarted = true;
+        }
+        int sampleSize = toLengthPrefixed(frame.data, frame.size);
+        long decodeTime = (frame.presentationTimeUs - mFirstTimeUs) * TIMESCALE / 1000000;
+        if (frame.presentationTimeUs > mLastTimeUs) {
+            // the real duration is only known at the next frame, assume the frame rate holds
+            mLastDuration = (int) ((frame.presentationTimeUs - mLastTimeUs) * TIMESCALE / 1000000);
+        }
+        mLastTimeUs = frame.presentationTimeUs;
+        if (frame.isKeyFrame()) {
+            addKeyFrame(decodeTime, mPosition);
+        }
+        layFragmentHeader(sampleSize, decodeTime, mLastDuration, frame.isKeyFrame());
+        mSampleBuffer.limit(sampleSize);
+        mSampleBuffer.position(0);
+        mGather[1] = mSampleBuffer;
+        long remaining = FRAGMENT_HEADER_SIZE + sampleSize;
+        while (remaining > 0) {
+            remaining -= mChannel.write(mGather);
+        }
+        mPosition += FRAGMENT_HEADER_SIZE + sampleSize;
+    }
+
+    /**
+     * Appends the key frame index and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mStarted) {
+                writeFully(makeRandomAccessBox());
+            }
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private void addKeyFrame(long decodeTime, long offset) {
+        if (mKeyFrameCount == mKeyFrameTimes.length) {
+            mKeyFrameTimes = Arrays.copyOf(mKeyFrameTimes, mKeyFrameCount * 2);
+            mKeyFrameOffsets = Arrays.copyOf(mKeyFrameOffsets, mKeyFrameCount * 2);
+        }
+        mKeyFrameTimes[mKeyFrameCount] = decodeTime;
+        mKeyFrameOffsets[mKeyFrameCount] = offset;
+        mKeyFrameCount++;
+    }
+
+    /**
+     * Copies an Annex B frame into mSample with each start code replaced by the NAL unit length.
+     *
+     * @return size of the converted frame
+     */
+    private int toLengthPrefixed(byte[] data, int size) {
+        int length = 0;
+        int start = -1;
+        int i = 0;
+        while (i + 2 < size) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                if (start >= 0) {
+                    length = appendNalUnit(length, data, start, trimTrailingZeros(data, start, i));
+                }
+                i += 3;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        if (start >= 0) {
+            length = appendNalUnit(length, data, start, size);
+        } else {
+            // no start code, the frame is a single NAL unit already
+            length = appendNalUnit(length, data, 0, size);
+        }
+        return length;
+    }
+
+    private static int trimTrailingZeros(byte[] data, int start, int end) {
+        while (end > start && data[end - 1] == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private int appendNalUnit(int length, byte[] data, int start, int end) {
+        int nalSize = end - start;
+        if (nalSize <= 0) {
+            return length;
+        }
+        if (mSample.length < length + 4 + nalSize) {
+            mSample = Arrays.copyOf(mSample, Math.max(length + 4 + nalSize, mSample.length + (mSample.length >> 1)));
+            mSampleBuffer = ByteBuffer.wrap(mSample);
+        }
+        mSample[length] = (byte) (nalSize >>> 24);
+        mSample[length + 1] = (byte) (nalSize >>> 16);
+        mSample[length + 2] = (byte) (nalSize >>> 8);
+        mSample[length + 3] = (byte) nalSize;
+        System.arraycopy(data, start, mSample, length + 4, nalSize);
+        return length + 4 + nalSize;
+    }
+
+    private void layFragmentHeader(int sampleSize, long decodeTime, int duration, boolean keyFrame) {
+        ByteBuffer b = mFragmentHeader;
+        b.clear();
+        b.putInt(100).putInt(MOOF);
+        b.putInt(16).putInt(MFHD).putInt(0).putInt(++mSequenceNumber);
+        b.putInt(76).putInt(TRAF);
+        // default-base-is-moof: data offsets count from the start of the moof
+        b.putInt(16).putInt(TFHD).putInt(0x020000).putInt(TRACK_ID);
+        b.putInt(20).putInt(TFDT).putInt(0x01000000).putLong(decodeTime);
+        // data-offset, sample-duration, sample-size and sample-flags present
+        b.putInt(32).putInt(TRUN).putInt(0x000701).putInt(1).putInt(FRAGMENT_HEADER_SIZE);
+        b.putInt(duration).putInt(sampleSize).putInt(keyFrame ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        b.putInt(8 + sampleSize).putInt(MDAT);
+        b.flip();
+    }
+
+    private void writeInitSegment() throws IOException {
+        byte[] avcC = mParameterSets.toAvcDecoderConfigurationRecord();
+        int width = mParameterSets.getWidth() > 0 ? mParameterSets.getWidth() : mWidth;
+        int height = mParameterSets.getHeight() > 0 ? mParameterSets.getHeight() : mHeight;
+        ByteBuffer b = ByteBuffer.allocate(1024 + avcC.length);
+
+        int ftyp = startBox(b, "ftyp");
+        b.putInt(fourcc("isom")).putInt(0x200);
+        b.putInt(fourcc("isom")).putInt(fourcc("iso5")).putInt(fourcc("avc1")).putInt(fourcc("mp41"));
+        endBox(b, ftyp);
+
+        int moov = startBox(b, "moov");
+        int mvhd = startFullBox(b, "mvhd", 0, 0);
+        b.putInt(0).putInt(0).putInt(1000).putInt(0);  // times, timescale, duration
+        b.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putInt(0).putInt(0);
+        putMatrix(b);
+        b.put(new byte[24]);  // pre_defined
+        b.putInt(TRACK_ID + 1);  // next_track_ID
+        endBox(b, mvhd);
+
+        int trak = startBox(b, "trak");
+        // track enabled, in movie and in preview
+        int tkhd = startFullBox(b, "tkhd", 0, 7);
+        b.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0);  // times, track_ID, reserved, duration
+        b.putInt(0).putInt(0).putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        putMatrix(b);
+        b.putInt(width << 16).putInt(height << 16);
+        endBox(b, tkhd);
+
+        int mdia = startBox(b, "mdia");
+        int mdhd = startFullBox(b, "mdhd", 0, 0);
+        // times, timescale, duration, language "und"
+        b.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0).putShort((short) 0x55c4).putShort((short) 0);
+        endBox(b, mdhd);
+        int hdlr = startFullBox(b, "hdlr", 0, 0);
+        b.putInt(0).putInt(fourcc("vide")).putInt(0).putInt(0).putInt(0);
+        putString(b, "VideoHandler");
+        endBox(b, hdlr);
+
+        int minf = startBox(b, "minf");
+        int vmhd = startFullBox(b, "vmhd", 0, 1);
+        b.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        endBox(b, vmhd);
+        int dinf = startBox(b, "dinf");
+        int dref = startFullBox(b, "dref", 0, 0);
+        b.putInt(1);
+        // media data is in this file
+        int url = startFullBox(b, "url ", 0, 1);
+        endBox(b, url);
+        endBox(b, dref);
+        endBox(b, dinf);
+
+        int stbl = startBox(b, "stbl");
+        int stsd = startFullBox(b, "stsd", 0, 0);
+        b.putInt(1);
+        int avc1 = startBox(b, "avc1");
+        b.putInt(0).putShort((short) 0).putShort((short) 1);  // reserved, data_reference_index
+        b.put(new byte[16]);  // pre_defined, reserved
+        b.putShort((short) width).putShort((short) height);
+        b.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1);  // 72 dpi, frame_count
+        b.put(new byte[32]);  // compressorname
+        b.putShort((short) 0x0018).putShort((short) -1);  // depth, pre_defined
+        int avcc = startBox(b, "avcC");
+        b.put(avcC);
+        endBox(b, avcc);
+        endBox(b, avc1);
+        endBox(b, stsd);
+        // the samples are all in the fragments
+        int stts = startFullBox(b, "stts", 0, 0);
+        b.putInt(0);
+        endBox(b, stts);
+        int stsc = startFullBox(b, "stsc", 0, 0);
+        b.putInt(0);
+        endBox(b, stsc);
+        int stsz = startFullBox(b, "stsz", 0, 0);
+        b.putInt(0).putInt(0);
+        endBox(b, stsz);
+        int stco = startFullBox(b, "stco", 0, 0);
+        b.putInt(0);
+        endBox(b, stco);
+        endBox(b, stbl);
+        endBox(b, minf);
+        endBox(b, mdia);
+        endBox(b, trak);
+
+        int mvex = startBox(b, "mvex");
+        int trex = startFullBox(b, "trex", 0, 0);
+        b.putInt(TRACK_ID).putInt(1).putInt(mDefaultSampleDuration).putInt(0).putInt(SAMPLE_FLAGS_NON_SYNC);
+        endBox(b, trex);
+        endBox(b, mvex);
+        endBox(b, moov);
+
+        b.flip();
+        mPosition += b.remaining();
+        writeFully(b);
+    }
+
+    private ByteBuffer makeRandomAccessBox() {
+        ByteBuffer b = ByteBuffer.allocate(8 + 24 + mKeyFrameCount * 19 + 16);
+        int mfra = startBox(b, "mfra");
+        int tfra = startFullBox(b, "tfra", 1, 0);
+        // traf, trun and sample numbers are stored in one byte each
+        b.putInt(TRACK_ID).putInt(0).putInt(mKeyFrameCount);
+        for (int i = 0; i < mKeyFrameCount; i++) {
+            b.putLong(mKeyFrameTimes[i]).putLong(mKeyFrameOffsets[i]).put((byte) 1).put((byte) 1).put((byte) 1);
+        }
+        endBox(b, tfra);
+        int mfro = startFullBox(b, "mfro", 0, 0);
+        b.putInt(b.capacity());
+        endBox(b, mfro);
+        endBox(b, mfra);
+        b.flip();
+        return b;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private static int startBox(ByteBuffer b, String type) {
+        int start = b.position();
+        b.putInt(0).putInt(fourcc(type));
+        return start;
+    }
+
+    private static int startFullBox(ByteBuffer b, String type, int version, int flags) {
+        int start = startBox(b, type);
+        b.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        b.putInt(0x00010000).putInt(0).putInt(0);
+        b.putInt(0).putInt(0x00010000).putInt(0);
+        b.putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    private static void putString(ByteBuffer b, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            b.put((byte) value.charAt(i));
+        }
+        b.put((byte) 0);
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides which frames are discarded between the encoder and the socket.
+ *
+ * A policy is consulted twice per frame: on the encoder thread before the
+ * frame is copied into the send queue, and on the sender thread right
+ * before it is written. Each side only touches its own state.
+ */
+public interface FrameDropPolicy {
+    int KEEP = 0;
+    int DROP = 1;
+    /**
+     * Drop the frame; the stream can only continue from a new key frame, so ask the encoder for one.
+     */
+    int DROP_AND_REQUEST_SYNC_FRAME = 2;
+
+    /**
+     * Called on the encoder thread before a frame enters the send queue.
+     *
+     * @param data          encoded data from position to limit, must not be modified
+     * @param flags         MediaCodec buffer flags of the frame
+     * @param queueDepth    frames currently waiting in the send queue
+     * @param queueCapacity size of the send queue
+     * @return {@link #KEEP}, {@link #DROP} or {@link #DROP_AND_REQUEST_SYNC_FRAME}
+     */
+    int onEnqueue(ByteBuffer data, int flags, int queueDepth, int queueCapacity);
+
+    /**
+     * Called on the sender thread before a queued frame is written.
+     *
+     * @param frame the frame about to be written
+     * @param nowUs current time on the System.nanoTime() clock, in microseconds
+     * @return {@link #KEEP}, {@link #DROP} or {@link #DROP_AND_REQUEST_SYNC_FRAME}
+     */
+    int onDequeue(EncodedFrame frame, long nowUs);
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring of encoded frames.
+ *
+ * Slots are preallocated {@link EncodedFrame}s that are filled in place, so
+ * passing frames from the encoder thread to the sender thread does not
+ * allocate. The producer claims a slot, fills it and publishes it; the
+ * consumer takes the oldest published slot and releases it when done.
+ * Only one thread may produce and only one thread may consume.
+ */
+public class FrameQueue {
+    // upper bound for a single park, so a missed wakeup only costs this much
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final EncodedFrame[] mSlots;
+    private final int mCapacity;
+    // next slot to be consumed, only advanced by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // next slot to be produced, only advanced by the producer
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile Thread mWaitingProducer;
+    private volatile Thread mWaitingConsumer;
+    private volatile boolean mClosed;
+    private volatile int mHighWaterMark;
+
+    public FrameQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mSlots = new EncodedFrame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new EncodedFrame();
+        }
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Number of frames published but not yet released by the consumer.
+     */
+    public int depth() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * Largest depth seen since the queue was created.
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Claims the next free slot without waiting.
+     *
+     * @return the slot to fill, or null if the queue is full or closed
+     */
+    public EncodedFrame tryClaim() {
+        if (mClosed) {
+            return null;
+        }
+        long tail = mTail.get();
+        if (tail - mHead.get() >= mCapacity) {
+            return null;
+        }
+        return mSlots[(int) (tail % mCapacity)];
+    }
+
+    /**
+     * Claims the next free slot, waiting for the consumer to free one if the queue is full.
+     *
+     * @return the slot to fill, or null if the queue was closed while waiting
+     */
+    public EncodedFrame claim() {
+        EncodedFrame slot = tryClaim();
+        if (slot != null || mClosed) {
+            return slot;
+        }
+        mWaitingProducer = Thread.currentThread();
+        try {
+            while ((slot = tryClaim()) == null && !mClosed) {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+        } finally {
+            mWaitingProducer = null;
+        }
+        return slot;
+    }
+
+    /**
+     * Makes the slot returned by the last claim visible to the consumer.
+     */
+    public void publish() {
+        long tail = mTail.get() + 1;
+        mTail.lazySet(tail);
+        int depth = (int) (tail - mHead.get());
+        if (depth > mHighWaterMark) {
+            mHighWaterMark = depth;
+        }
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Returns the oldest published frame without waiting.
+     *
+     * @return the frame, or null if the queue is empty
+     */
+    public EncodedFrame peek() {
+        long head = mHead.get();
+        if (head >= mTail.get()) {
+            return null;
+        }
+        return mSlots[(int) (head % mCapacity)];
+    }
+
+    /**
+     * Returns the oldest published frame, waiting for one to be published.
+     *
+     * @return the frame, or null if the queue was closed
+     */
+    public EncodedFrame take() throws InterruptedException {
+        EncodedFrame frame = peek();
+        if (frame != null) {
+            return frame;
+        }
+        mWaitingConsumer = Thread.currentThread();
+        try {
+            while ((frame = peek()) == null && !mClosed) {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            mWaitingConsumer = null;
+        }
+        return frame;
+    }
+
+    /**
+     * Gives the frame returned by the last peek or take back to the producer.
+     */
+    public void release() {
+        mHead.lazySet(mHead.get() + 1);
+        Thread producer = mWaitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * Wakes up both sides and makes further claims fail.
+     */
+    public void close() {
+        mClosed = true;
+        Thread producer = mWaitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
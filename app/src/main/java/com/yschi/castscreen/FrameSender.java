@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends encoded frames to one receiver from a dedicated thread.
+ *
+ * The encoder thread hands frames over through {@link #offer}, which copies
+ * them into a bounded {@link FrameQueue}, so a slow link never holds on to
+ * codec buffers. Without a {@link FrameDropPolicy} the encoder thread waits
+ * for the sender to catch up when the queue is full; with one, the policy
+ * decides which frames to discard instead.
+ */
+public class FrameSender implements Runnable {
+    public interface Listener {
+        /**
+         * Called on the sender thread after a frame was written.
+         */
+        void onFrameSent(FrameSender sender, EncodedFrame frame);
+
+        /**
+         * Called on the sender thread when writing failed. The sender has stopped.
+         */
+        void onSendError(FrameSender sender, IOException e);
+
+        /**
+         * Called on the encoder or sender thread when frames were dropped and the
+         * stream needs a new key frame to continue.
+         */
+        void onSyncFrameRequested(FrameSender sender);
+
+        /**
+         * Called on the encoder or sender thread for every frame the drop policy discarded.
+         */
+        void onFrameDropped(FrameSender sender);
+    }
+
+    private final FrameQueue mQueue;
+    private final FrameWriter mWriter;
+    private final Listener mListener;
+    private volatile FrameDropPolicy mDropPolicy;
+    private final AtomicInteger mDroppedFrames = new AtomicInteger();
+    private final String mName;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private EncodedFrame[] mInitialFrames;
+
+    public FrameSender(String name, FrameWriter writer, int queueSize, Listener listener) {
+        mName = name;
+        mWriter = writer;
+        mListener = listener;
+        mQueue = new FrameQueue(queueSize);
+    }
+
+    /**
+     * Sets frames to write before anything offered, e.g. to let a receiver joining
+     * mid-stream start at the latest key frame. Must be called before {@link #start}.
+     */
+    public void setInitialFrames(EncodedFrame[] frames) {
+        mInitialFrames = frames;
+    }
+
+    public void start() {
+        mRunning = true;
+        mThread = new Thread(this, mName);
+        mThread.start();
+    }
+
+    /**
+     * Stops the sender thread. Frames still in the queue are discarded.
+     */
+    public void stop() {
+        mRunning = false;
+        mQueue.close();
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Stops taking frames and lets the sender thread write the ones still queued.
+     * Whatever is left after the timeout is discarded as with {@link #stop}.
+     */
+    public void finish(long timeoutMs) {
+        mQueue.close();
+        Thread thread = mThread;
+        if (thread != null) {
+            try {
+                thread.join(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        stop();
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public int getQueueDepth() {
+        return mQueue.depth();
+    }
+
+    public int getQueueHighWaterMark() {
+        return mQueue.getHighWaterMark();
+    }
+
+    public int getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * @param dropPolicy policy deciding which frames to discard, or null to never drop
+     */
+    public void setDropPolicy(FrameDropPolicy dropPolicy) {
+        mDropPolicy = dropPolicy;
+    }
+
+    /**
+     * Copies an encoded frame into the send queue. Called on the encoder thread only.
+     *
+     * @param data               encoded data, consumed from position to limit
+     * @param presentationTimeUs presentation timestamp of the frame
+     * @param flags              MediaCodec buffer flags of the frame
+     * @return false if the sender has stopped
+     */
+    public boolean offer(ByteBuffer data, long presentationTimeUs, int flags) {
+        FrameDropPolicy dropPolicy = mDropPolicy;
+        if (dropPolicy != null) {
+            int action = dropPolicy.onEnqueue(data, flags, mQueue.depth(), mQueue.capacity());
+            if (action != FrameDropPolicy.KEEP) {
+                onFrameDropped(action);
+                return mRunning;
+            }
+        }
+        EncodedFrame slot = mQueue.claim();
+        if (slot == null) {
+            return false;
+        }
+        slot.set(data, presentationTimeUs, flags);
+        slot.queuedTimeUs = System.nanoTime() / 1000;
+        mQueue.publish();
+        return true;
+    }
+
+    private void onFrameDropped(int action) {
+        mDroppedFrames.incrementAndGet();
+        if (mListener == null) {
+            return;
+        }
+        mListener.onFrameDropped(this);
+        if (action == FrameDropPolicy.DROP_AND_REQUEST_SYNC_FRAME) {
+            mListener.onSyncFrameRequested(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (mInitialFrames != null) {
+                // written as they are, they are not live frames to drop or measure
+                for (EncodedFrame frame : mInitialFrames) {
+                    mWriter.writeFrame(frame);
+                }
+                mInitialFrames = null;
+            }
+            while (mRunning) {
+                EncodedFrame frame = mQueue.take();
+                if (frame == null) {
+                    break;
+                }
+                frame.sentTimeUs = System.nanoTime() / 1000;
+                FrameDropPolicy dropPolicy = mDropPolicy;
+                if (dropPolicy != null) {
+                    int action = dropPolicy.onDequeue(frame, frame.sentTimeUs);
+                    if (action != FrameDropPolicy.KEEP) {
+                        mQueue.release();
+                        onFrameDropped(action);
+                        continue;
+                    }
+                }
+                mWriter.writeFrame(frame);
+                if (mListener != null) {
+                    mListener.onFrameSent(this, frame);
+                }
+                mQueue.release();
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            boolean running = mRunning;
+            mRunning = false;
+            mQueue.close();
+            if (running && mListener != null) {
+                mListener.onSendError(this, e);
+            }
+        }
+    }
+}
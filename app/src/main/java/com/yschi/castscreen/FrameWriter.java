@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.io.IOException;
+
+/**
+ * Destination of encoded frames taken off a {@link FrameQueue}.
+ */
+public interface FrameWriter {
+    /**
+     * Writes one encoded frame. Called on the sender thread only.
+     *
+     * @param frame encoded frame, only valid for the duration of the call
+     */
+    void writeFrame(EncodedFrame frame) throws IOException;
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Writes frames with a small header in front of each one.
+ *
+ * Used for H.264 to receivers that asked for it in the handshake, see
+ * {@link StreamHeader#framingHeaders}. With the header a receiver knows where
+ * a frame ends without scanning for start codes, can skip or drop whole
+ * frames, and gets the timing of the sender. All fields are big endian:
+ *
+ * <pre>
+ *  0  payload length, 4 bytes
+ *  4  sequence number, 4 bytes, counts every frame sent to this receiver
+ *  8  presentation time in microseconds, 8 bytes
+ * 16  flags, 1 byte: 1 key frame, 2 codec config
+ * 17  reserved, 3 bytes of zero
+ * </pre>
+ *
+ * On a channel, header and payload go out in one gathering write.
+ */
+public class FramedWriter implements FrameWriter, Closeable {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+    private static final int FLAGS_MASK = EncodedFrame.FLAG_KEY_FRAME | EncodedFrame.FLAG_CODEC_CONFIG;
+
+    private final GatheringByteChannel mChannel;
+    private final OutputStream mOutputStream;
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.wrap(mHeader);
+    // header and payload of the frame being written, reused for every gathering write
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+    private int mSequence;
+
+    public FramedWriter(GatheringByteChannel channel) {
+        mChannel = channel;
+        mOutputStream = null;
+        mGather[0] = mHeaderBuffer;
+    }
+
+    public FramedWriter(OutputStream outputStream) {
+        mChannel = null;
+        mOutputStream = outputStream;
+    }
+
+    /**
+     * The framing version to use with a receiver.
+     *
+     * @param requested highest version the receiver understands, 0 if it did not ask for framing
+     * @return the version both sides understand, 0 for a plain stream
+     */
+    public static int negotiate(int requested) {
+        return Math.max(0, Math.min(requested, VERSION));
+    }
+
+    private static void putFrameHeader(ByteBuffer buffer, int length, int sequence, long presentationTimeUs,
+                                       int flags) {
+        buffer.putInt(length).putInt(sequence).putLong(presentationTimeUs).put((byte) (flags & FLAGS_MASK));
+        buffer.put((byte) 0).put((byte) 0).put((byte) 0);
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    @Override
+    public void writeFrame(EncodedFrame frame) throws IOException {
+        mHeaderBuffer.clear();
+        putFrameHeader(mHeaderBuffer, frame.size, mSequence, frame.presentationTimeUs, frame.flags);
+        mHeaderBuffer.flip();
+        if (mChannel != null) {
+            mGather[1] = frame.asBuffer();
+            try {
+                long remaining = HEADER_SIZE + frame.size;
+                while (remaining > 0) {
+                    remaining -= mChannel.write(mGather);
+                }
+            } finally {
+                mGather[1] = null;
+            }
+        } else {
+            mOutputStream.write(mHeader);
+            mOutputStream.write(frame.data, 0, frame.size);
+        }
+        mSequence++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+        } else {
+            mOutputStream.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Keeps the frames since the latest key frame, so a receiver joining
+ * mid-stream can start decoding right away instead of waiting for the next
+ * key frame. Codec config buffers are not kept, see {@link ParameterSets}.
+ *
+ * Cached frames are copied into reused buffers, so adding a frame only
+ * allocates until the cache has seen its largest group of pictures.
+ */
+public class GopCache {
+    private static final int INITIAL_FRAME_CAPACITY = 16 * 1024;
+
+    private final int mMaxFrames;
+    private final ArrayList<EncodedFrame> mFrames = new ArrayList<>();
+    // number of valid entries in mFrames, the first one is a key frame
+    private int mFrameCount;
+
+    /**
+     * @param maxFrames longest group of pictures to keep, longer ones are not cached
+     */
+    public GopCache(int maxFrames) {
+        mMaxFrames = maxFrames;
+    }
+
+    /**
+     * Records one encoded frame. The position of the buffer is left unchanged.
+     *
+     * @param data               encoded data from position to limit
+     * @param presentationTimeUs presentation timestamp of the frame
+     * @param flags              MediaCodec buffer flags of the frame
+     */
+    public synchronized void add(ByteBuffer data, long presentationTimeUs, int flags) {
+        if ((flags & EncodedFrame.FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        int position = data.position();
+        if ((flags & EncodedFrame.FLAG_KEY_FRAME) != 0) {
+            mFrameCount = 0;
+            append(data, presentationTimeUs, flags);
+        } else if (mFrameCount > 0) {
+            if (mFrameCount < mMaxFrames) {
+                append(data, presentationTimeUs, flags);
+            } else {
+                // too long to replay, wait for the next key frame
+                mFrameCount = 0;
+            }
+        }
+        data.position(position);
+    }
+
+    private void append(ByteBuffer data, long presentationTimeUs, int flags) {
+        if (mFrameCount == mFrames.size()) {
+            mFrames.add(new EncodedFrame(INITIAL_FRAME_CAPACITY));
+        }
+        mFrames.get(mFrameCount++).set(data, presentationTimeUs, flags);
+    }
+
+    public synchronized boolean hasKeyFrame() {
+        return mFrameCount > 0;
+    }
+
+    /**
+     * Copies the cached frames.
+     *
+     * @return the frames since the latest key frame, possibly none
+     */
+    public synchronized EncodedFrame[] snapshot() {
+        EncodedFrame[] frames = new EncodedFrame[mFrameCount];
+        for (int i = 0; i < mFrameCount; i++) {
+            frames[i] = copyOf(mFrames.get(i));
+        }
+        return frames;
+    }
+
+    private static EncodedFrame copyOf(EncodedFrame frame) {
+        EncodedFrame copy = new EncodedFrame(frame.size);
+        System.arraycopy(frame.data, 0, copy.data, 0, frame.size);
+        copy.size = frame.size;
+        copy.presentationTimeUs = frame.presentationTimeUs;
+        copy.flags = frame.flags;
+        return copy;
+    }
+
+    /**
+     * Forgets everything, e.g. when the encoder is restarted. The buffers are kept for reuse.
+     */
+    public synchronized void clear() {
+        mFrameCount = 0;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * RTP payload format for H.264 (RFC 6184), non-interleaved mode.
+ *
+ * Each NAL unit of an Annex B frame goes in a single NAL unit packet when it
+ * fits and is split into FU-A fragments otherwise. The marker bit is set on
+ * the last packet of every access unit.
+ */
+public class H264RtpPacketizer extends RtpPacketizer {
+    private static final int NAL_TYPE_FU_A = 28;
+    private static final int FU_START = 0x80;
+    private static final int FU_END = 0x40;
+
+    public H264RtpPacketizer(int maxPacketSize, int payloadType) {
+        super(maxPacketSize, payloadType);
+    }
+
+    H264RtpPacketizer(int maxPacketSize, int payloadType, Random random) {
+        super(maxPacketSize, payloadType, random);
+    }
+
+    @Override
+    public void packetize(byte[] data, int offset, int length, long presentationTimeUs, int flags,
+                          PacketSink sink) throws IOException {
+        int end = offset + length;
+        // parameter sets belong to the access unit that follows them
+        boolean endsAccessUnit = (flags & EncodedFrame.FLAG_CODEC_CONFIG) == 0;
+        int nalStart = findNalStart(data, offset, end);
+        if (nalStart < 0) {
+            // no start code, the whole frame is one NAL unit
+            sendNalUnit(data, offset, end, endsAccessUnit, presentationTimeUs, sink);
+            return;
+        }
+        while (nalStart >= 0) {
+            int next = findNalStart(data, nalStart, end);
+            int nalEnd = next < 0 ? end : next - 3;
+            // a 4 byte start code leaves a zero byte at the end of the previous unit
+            while (next >= 0 && nalEnd > nalStart && data[nalEnd - 1] == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                sendNalUnit(data, nalStart, nalEnd, endsAccessUnit && next < 0, presentationTimeUs, sink);
+            }
+            nalStart = next;
+        }
+    }
+
+    /**
+     * @return the index after the next 3 byte start code at or after from, or -1
+     */
+    private static int findNalStart(byte[] data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private void sendNalUnit(byte[] data, int start, int end, boolean last, long presentationTimeUs,
+                             PacketSink sink) throws IOException {
+        int length = end - start;
+        int maxPayload = maxPayloadSize();
+        if (length <= maxPayload) {
+            System.arraycopy(data, start, mPacket, HEADER_SIZE, length);
+            send(length, last, presentationTimeUs, sink);
+            return;
+        }
+        int nalHeader = data[start] & 0xff;
+        int indicator = (nalHeader & 0xe0) | NAL_TYPE_FU_A;
+        int type = nalHeader & 0x1f;
+        int position = start + 1;
+        int fragmentSize = maxPayload - 2;
+        boolean first = true;
+        while (position < end) {
+            int size = Math.min(fragmentSize, end - position);
+            boolean lastFragment = position + size == end;
+            mPacket[HEADER_SIZE] = (byte) indicator;
+            mPacket[HEADER_SIZE + 1] = (byte) ((first ? FU_START : 0) | (lastFragment ? FU_END : 0) | type);
+            System.arraycopy(data, position, mPacket, HEADER_SIZE + 2, size);
+            send(size + 2, last && lastFragment, presentationTimeUs, sink);
+            position += size;
+            first = false;
+        }
+    }
+}
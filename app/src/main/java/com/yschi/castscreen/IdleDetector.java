@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+/**
+ * Thins out the stream while the screen does not change.
+ *
+ * With a surface input the encoder repeats the previous frame at the full
+ * frame rate, so a static screen still produces a steady stream of tiny
+ * frames plus a key frame every interval. Once frames have stayed tiny for
+ * a while the content is considered idle: tiny frames are skipped and key
+ * frames only pass as a periodic keepalive or when one was requested. The
+ * skipped frames repeat a picture the receiver already shows, so it stays
+ * correct. The first frame that is not tiny ends the idle period; it is
+ * sent right away and a sync frame is requested so the stream is clean
+ * again at the next frame.
+ */
+public class IdleDetector {
+    public static final int SEND = 0;
+    public static final int SKIP = 1;
+    /**
+     * Send the frame, and ask the encoder for a key frame to resynchronize the receivers.
+     */
+    public static final int SEND_AND_REQUEST_SYNC_FRAME = 2;
+
+    private final int mMaxIdleFrameBytes;
+    private final long mIdleAfterUs;
+    private final long mKeepaliveIntervalUs;
+    private boolean mIdle;
+    // start of the current run of tiny frames, or -1 if the last frame was not tiny
+    private long mQuietSinceUs = -1;
+    private long mLastKeepaliveUs;
+    private boolean mSyncFrameRequested;
+    private long mSkippedFrames;
+
+    /**
+     * @param maxIdleFrameBytes   largest frame that counts as unchanged content
+     * @param idleAfterUs         time frames must stay tiny before the content counts as idle
+     * @param keepaliveIntervalUs time between key frames sent while idle
+     */
+    public IdleDetector(int maxIdleFrameBytes, long idleAfterUs, long keepaliveIntervalUs) {
+        mMaxIdleFrameBytes = maxIdleFrameBytes;
+        mIdleAfterUs = idleAfterUs;
+        mKeepaliveIntervalUs = keepaliveIntervalUs;
+    }
+
+    public boolean isIdle() {
+        return mIdle;
+    }
+
+    public long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * Lets the next key frame through, e.g. for a receiver that just connected.
+     * Called on the encoder thread.
+     */
+    public void onSyncFrameRequested() {
+        mSyncFrameRequested = true;
+    }
+
+    /**
+     * Decides about one encoded frame. Called on the encoder thread.
+     *
+     * @param size               encoded size of the frame
+     * @param flags              MediaCodec buffer flags of the frame
+     * @param presentationTimeUs presentation timestamp of the frame
+     * @return {@link #SEND}, {@link #SKIP} or {@link #SEND_AND_REQUEST_SYNC_FRAME}
+     */
+    public int onFrame(int size, int flags, long presentationTimeUs) {
+        if ((flags & EncodedFrame.FLAG_CODEC_CONFIG) != 0) {
+            return SEND;
+        }
+        boolean keyFrame = (flags & EncodedFrame.FLAG_KEY_FRAME) != 0;
+        if (keyFrame) {
+            // key frames are large by nature and say nothing about whether the content changed
+            if (!mIdle || mSyncFrameRequested
+                    || presentationTimeUs - mLastKeepaliveUs >= mKeepaliveIntervalUs) {
+                mSyncFrameRequested = false;
+                mLastKeepaliveUs = presentationTimeUs;
+                return SEND;
+            }
+            mSkippedFrames++;
+            return SKIP;
+        }
+        if (size > mMaxIdleFrameBytes) {
+            mQuietSinceUs = -1;
+            if (mIdle) {
+                mIdle = false;
+                return SEND_AND_REQUEST_SYNC_FRAME;
+            }
+            return SEND;
+        }
+        if (mIdle) {
+            mSkippedFrames++;
+            return SKIP;
+        }
+        if (mQuietSinceUs < 0) {
+            mQuietSinceUs = presentationTimeUs;
+        } else if (presentationTimeUs - mQuietSinceUs >= mIdleAfterUs) {
+            mIdle = true;
+            mLastKeepaliveUs = presentationTimeUs;
+        }
+        return SEND;
+    }
+}
@@ -19,23 +19,42 @@ package com.yschi.castscreen;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 
 /**
  * Writes an IVF file.
  *
- * IVF format is a simple container format for VP8 encoded frames defined at
+ * IVF format is a simple container format for VP8 and VP9 encoded frames defined at
  * http://wiki.multimedia.cx/index.php?title=IVF.
+ *
+ * Created on a {@link GatheringByteChannel}, each frame header and its
+ * payload go out in a single gathering write instead of two stream writes.
  */
 
 public class IvfWriter {
+    public static final String FOURCC_VP8 = "VP80";
+    public static final String FOURCC_VP9 = "VP90";
     private static final byte HEADER_END = 32;
+    private static final int FRAME_COUNT_OFFSET = 24;
     //private RandomAccessFile mOutputFile;
     private OutputStream mOutputStream;
+    private GatheringByteChannel mChannel;
     private int mWidth;
     private int mHeight;
     private int mScale;
     private int mRate;
+    private String mFourcc = FOURCC_VP8;
     private int mFrameCount;
+    private final byte[] mFrameHeader = new byte[12];
+    private final ByteBuffer mFrameHeaderBuffer = ByteBuffer.wrap(mFrameHeader).order(ByteOrder.LITTLE_ENDIAN);
+    // header and payload of the frame being written, reused for every gathering write
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+    // frame data of the last writeFrame(byte[]) call on a channel, rewrapped only when the array changes
+    private ByteBuffer mWrappedFrame;
+    private byte[] mCopyBuffer;
 
     /**
      * Initializes the IVF file writer.
@@ -77,20 +96,81 @@ public class IvfWriter {
         this(outputStream, width, height, 1, 1000000);
     }
 
+    /**
+     * Initializes the IVF writer with a microsecond timebase for the given codec.
+     *
+     * @param outputStream stream to write to
+     * @param width        frame width
+     * @param height       frame height
+     * @param fourcc       codec of the frames, {@link #FOURCC_VP8} or {@link #FOURCC_VP9}
+     */
+    public IvfWriter(OutputStream outputStream, int width, int height, String fourcc) throws IOException {
+        this(outputStream, width, height, 1, 1000000);
+        mFourcc = fourcc;
+    }
+
+    /**
+     * Initializes the IVF writer on a channel with a microsecond timebase.
+     *
+     * @param channel    channel to write to, e.g. a blocking SocketChannel or a FileChannel
+     * @param width      frame width
+     * @param height     frame height
+     */
+    public IvfWriter(GatheringByteChannel channel, int width, int height) {
+        this(channel, width, height, FOURCC_VP8);
+    }
+
+    /**
+     * Initializes the IVF writer on a channel with a microsecond timebase.
+     *
+     * @param channel    channel to write to, e.g. a blocking SocketChannel or a FileChannel
+     * @param width      frame width
+     * @param height     frame height
+     * @param fourcc     codec of the frames, {@link #FOURCC_VP8} or {@link #FOURCC_VP9}
+     */
+    public IvfWriter(GatheringByteChannel channel, int width, int height, String fourcc) {
+        mChannel = channel;
+        mWidth = width;
+        mHeight = height;
+        mScale = 1;
+        mRate = 1000000;
+        mFourcc = fourcc;
+        mFrameCount = 0;
+        mGather[0] = mFrameHeaderBuffer;
+    }
+
     /**
      * Finalizes the IVF header and closes the file.
+     *
+     * On a file channel the frame count in the header is patched in place,
+     * streams keep the count of zero written by {@link #writeHeader}.
      */
-    public void close() throws IOException{
-        // Write header now
-        //mOutputFile.seek(0);
-        //mOutputFile.write(makeIvfHeader(mFrameCount, mWidth, mHeight, mScale, mRate));
-        //mOutputFile.close();
-        mOutputStream.close();
+    public void close() throws IOException {
+        if (mChannel != null) {
+            try {
+                if (mChannel instanceof FileChannel) {
+                    ByteBuffer frameCount = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                    frameCount.putInt(0, mFrameCount);
+                    while (frameCount.hasRemaining()) {
+                        ((FileChannel) mChannel).write(frameCount, FRAME_COUNT_OFFSET + frameCount.position());
+                    }
+                }
+            } finally {
+                mChannel.close();
+            }
+        } else {
+            mOutputStream.close();
+        }
     }
 
 
     public void writeHeader() throws IOException {
-        mOutputStream.write(makeIvfHeader(mFrameCount, mWidth, mHeight, mScale, mRate));
+        byte[] header = makeIvfHeader(mFrameCount, mWidth, mHeight, mScale, mRate, mFourcc);
+        if (mChannel != null) {
+            writeFully(ByteBuffer.wrap(header));
+        } else {
+            mOutputStream.write(header);
+        }
     }
 
     /**
@@ -100,11 +180,84 @@ public class IvfWriter {
      * @param timeStamp timestamp of the frame (in accordance to specified timebase)
      */
     public void writeFrame(byte[] frame, long timeStamp) throws IOException {
-        mOutputStream.write(makeIvfFrameHeader(frame.length, timeStamp));
-        mOutputStream.write(frame);
+        writeFrame(frame, 0, frame.length, timeStamp);
+    }
+
+    /**
+     * Writes a single encoded VP8 frame stored in part of an array.
+     *
+     * The frame header buffer is reused, so this does not allocate.
+     *
+     * @param frame     array holding the encoded frame data
+     * @param offset    start of the frame in the array
+     * @param length    frame size
+     * @param timeStamp timestamp of the frame (in accordance to specified timebase)
+     */
+    public void writeFrame(byte[] frame, int offset, int length, long timeStamp) throws IOException {
+        if (mChannel != null) {
+            if (mWrappedFrame == null || mWrappedFrame.array() != frame) {
+                mWrappedFrame = ByteBuffer.wrap(frame);
+            }
+            mWrappedFrame.limit(offset + length);
+            mWrappedFrame.position(offset);
+            writeFrame(mWrappedFrame, timeStamp);
+            return;
+        }
+        layIvfFrameHeader(mFrameHeader, length, timeStamp);
+        mOutputStream.write(mFrameHeader);
+        mOutputStream.write(frame, offset, length);
+        mFrameCount++;
+    }
+
+    /**
+     * Writes a single encoded VP8 frame held in a buffer, e.g. a codec output buffer.
+     *
+     * On a channel, header and frame go out in one gathering write. Neither
+     * mode allocates once the writer has seen its first frame.
+     *
+     * @param frame     encoded frame data, consumed from position to limit
+     * @param timeStamp timestamp of the frame (in accordance to specified timebase)
+     */
+    public void writeFrame(ByteBuffer frame, long timeStamp) throws IOException {
+        int length = frame.remaining();
+        if (mChannel != null) {
+            mFrameHeaderBuffer.clear();
+            mFrameHeaderBuffer.putInt(length).putLong(timeStamp).flip();
+            mGather[1] = frame;
+            try {
+                long remaining = mFrameHeaderBuffer.remaining() + length;
+                while (remaining > 0) {
+                    remaining -= mChannel.write(mGather);
+                }
+            } finally {
+                mGather[1] = null;
+            }
+        } else if (frame.hasArray()) {
+            layIvfFrameHeader(mFrameHeader, length, timeStamp);
+            mOutputStream.write(mFrameHeader);
+            mOutputStream.write(frame.array(), frame.arrayOffset() + frame.position(), length);
+            frame.position(frame.limit());
+        } else {
+            layIvfFrameHeader(mFrameHeader, length, timeStamp);
+            mOutputStream.write(mFrameHeader);
+            if (mCopyBuffer == null) {
+                mCopyBuffer = new byte[16 * 1024];
+            }
+            while (frame.hasRemaining()) {
+                int chunk = Math.min(frame.remaining(), mCopyBuffer.length);
+                frame.get(mCopyBuffer, 0, chunk);
+                mOutputStream.write(mCopyBuffer, 0, chunk);
+            }
+        }
         mFrameCount++;
     }
 
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
     /**
      * Makes a 32 byte file header for IVF format.
      *
@@ -117,6 +270,16 @@ public class IvfWriter {
      * @param rate       timebase rate (or denominator of the timebase fraction)
      */
     public static byte[] makeIvfHeader(int frameCount, int width, int height, int scale, int rate){
+        return makeIvfHeader(frameCount, width, height, scale, rate, FOURCC_VP8);
+    }
+
+    /**
+     * Makes a 32 byte file header for IVF format for the given codec.
+     *
+     * @param fourcc     codec of the frames, {@link #FOURCC_VP8} or {@link #FOURCC_VP9}
+     * @see #makeIvfHeader(int, int, int, int, int)
+     */
+    public static byte[] makeIvfHeader(int frameCount, int width, int height, int scale, int rate, String fourcc){
         byte[] ivfHeader = new byte[32];
         ivfHeader[0] = 'D';
         ivfHeader[1] = 'K';
@@ -124,10 +287,9 @@ public class IvfWriter {
         ivfHeader[3] = 'F';
         lay16Bits(ivfHeader, 4, 0);  // version
         lay16Bits(ivfHeader, 6, 32);  // header size
-        ivfHeader[8] = 'V';  // fourcc
-        ivfHeader[9] = 'P';
-        ivfHeader[10] = '8';
-        ivfHeader[11] = '0';
+        for (int i = 0; i < 4; i++) {
+            ivfHeader[8 + i] = (byte) fourcc.charAt(i);  // fourcc
+        }
         lay16Bits(ivfHeader, 12, width);
         lay16Bits(ivfHeader, 14, height);
         lay32Bits(ivfHeader, 16, rate);  // scale/rate
@@ -138,16 +300,15 @@ public class IvfWriter {
     }
 
     /**
-     * Makes a 12 byte header for an encoded frame.
+     * Lays a 12 byte header for an encoded frame into the given array.
      *
-     * @param size      frame size
-     * @param timestamp presentation timestamp of the frame
+     * @param frameHeader array of at least 12 bytes to be modified
+     * @param size        frame size
+     * @param timestamp   presentation timestamp of the frame
      */
-    private static byte[] makeIvfFrameHeader(int size, long timestamp){
-        byte[] frameHeader = new byte[12];
+    private static void layIvfFrameHeader(byte[] frameHeader, int size, long timestamp){
         lay32Bits(frameHeader, 0, size);
         lay64bits(frameHeader, 4, timestamp);
-        return frameHeader;
     }
 
 
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps glass-to-glass latency bounded when the link cannot keep up.
+ *
+ * When the send queue is half full, H.264 frames nobody references
+ * (nal_ref_idc 0) are discarded first since that does not break decoding.
+ * When the queue is full, or a frame has been waiting in the queue longer
+ * than the latency budget by the time it would be sent, everything up to the
+ * next key frame is discarded and a sync frame is requested from the encoder.
+ * Time spent inside the encoder is not counted, dropping cannot shorten it.
+ * Codec config buffers are never dropped.
+ */
+public class LatencyDropPolicy implements FrameDropPolicy {
+    private final long mMaxLatencyUs;
+    private final boolean mAvc;
+    // only touched on the encoder thread
+    private boolean mSkipUntilKeyFrameOnEnqueue;
+    // only touched on the sender thread
+    private boolean mSkipUntilKeyFrameOnDequeue;
+
+    /**
+     * @param maxLatencyUs longest time a frame may wait for the socket before frames get dropped
+     * @param avc          whether frames are H.264, enabling non-reference frame detection
+     */
+    public LatencyDropPolicy(long maxLatencyUs, boolean avc) {
+        mMaxLatencyUs = maxLatencyUs;
+        mAvc = avc;
+    }
+
+    /**
+     * Drops everything up to the next key frame, e.g. for a receiver that reconnected
+     * mid-stream. Must be called before the policy is used.
+     */
+    public void startAtKeyFrame() {
+        mSkipUntilKeyFrameOnEnqueue = true;
+    }
+
+    @Override
+    public int onEnqueue(ByteBuffer data, int flags, int queueDepth, int queueCapacity) {
+        if ((flags & EncodedFrame.FLAG_CODEC_CONFIG) != 0) {
+            return KEEP;
+        }
+        boolean keyFrame = (flags & EncodedFrame.FLAG_KEY_FRAME) != 0;
+        if (mSkipUntilKeyFrameOnEnqueue) {
+            if (!keyFrame) {
+                return DROP;
+            }
+            mSkipUntilKeyFrameOnEnqueue = false;
+        }
+        if (queueDepth >= queueCapacity) {
+            if (!keyFrame && mAvc && isNonReferenceAvcFrame(data)) {
+                return DROP;
+            }
+            mSkipUntilKeyFrameOnEnqueue = true;
+            return DROP_AND_REQUEST_SYNC_FRAME;
+        }
+        if (queueDepth >= queueCapacity / 2 && !keyFrame && mAvc && isNonReferenceAvcFrame(data)) {
+            return DROP;
+        }
+        return KEEP;
+    }
+
+    @Override
+    public int onDequeue(EncodedFrame frame, long nowUs) {
+        if (frame.isCodecConfig()) {
+            return KEEP;
+        }
+        if (mSkipUntilKeyFrameOnDequeue) {
+            if (!frame.isKeyFrame()) {
+                return DROP;
+            }
+            mSkipUntilKeyFrameOnDequeue = false;
+        }
+        if (!frame.isKeyFrame() && nowUs - frame.queuedTimeUs > mMaxLatencyUs) {
+            mSkipUntilKeyFrameOnDequeue = true;
+            return DROP_AND_REQUEST_SYNC_FRAME;
+        }
+        return KEEP;
+    }
+
+    /**
+     * Checks whether the first slice of an Annex-B H.264 access unit has nal_ref_idc 0.
+     */
+    static boolean isNonReferenceAvcFrame(ByteBuffer data) {
+        int limit = data.limit();
+        int zeros = 0;
+        for (int i = data.position(); i < limit; i++) {
+            byte b = data.get(i);
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            if (b == 1 && zeros >= 2 && i + 1 < limit) {
+                int header = data.get(i + 1) & 0xff;
+                int type = header & 0x1f;
+                if (type >= 1 && type <= 5) {
+                    // first slice decides for the whole picture
+                    return (header & 0x60) == 0;
+                }
+            }
+            zeros = 0;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the network path to one receiver with UDP probes sent beside the stream.
+ *
+ * After a frame was written the sender sends a probe carrying a sequence
+ * number, its send time and the frame's presentation time, at most once per
+ * interval. The receiver echoes it back with its own arrival and send times
+ * appended, so the round trip excludes the time the receiver held the probe.
+ * Both sides use monotonic clocks with unrelated origins and rates: the
+ * one-way delay is estimated as half the smallest round trip plus how much
+ * longer the latest round trip took than the fastest one, which only uses
+ * the sender's clock, and jitter follows RFC 3550.
+ *
+ * All times are in microseconds. Probes travel over UDP, so with the TCP
+ * transport they do not wait behind the video in the socket buffers; the
+ * sender already measures its own queue.
+ */
+public class LatencyProbe implements Runnable, Closeable {
+    public interface Listener {
+        /**
+         * Called on the probe thread for every echo.
+         */
+        void onEcho(LatencyProbe probe, long rttUs, long oneWayDelayUs, long jitterUs);
+    }
+
+    // "CSPR" and "CSEC", big-endian like the rest of the packets
+    public static final int PROBE_MAGIC = 0x43535052;
+    public static final int ECHO_MAGIC = 0x43534543;
+    // magic, sequence number, send time, presentation time
+    public static final int PROBE_SIZE = 24;
+    // the probe followed by the receiver's arrival and send times
+    public static final int ECHO_SIZE = PROBE_SIZE + 16;
+
+    // send times of the latest probes, to tell how long unanswered ones are out
+    private static final int HISTORY = 16;
+
+    private final DatagramSocket mSocket;
+    private final long mIntervalUs;
+    private final Listener mListener;
+    private final ByteBuffer mProbe = ByteBuffer.allocate(PROBE_SIZE);
+    private final DatagramPacket mProbePacket;
+    private final long[] mSendTimesUs = new long[HISTORY];
+    private Thread mThread;
+    private long mLastProbeUs;
+    // sequence number of the latest probe sent, written on the sender thread only
+    private volatile int mSentSeq = -1;
+
+    // written on the probe thread only
+    private volatile int mEchoedSeq = -1;
+    private volatile long mEchoCount;
+    private volatile long mRttUs;
+    private volatile long mSmoothedRttUs;
+    private volatile long mMinRttUs = Long.MAX_VALUE;
+    private volatile long mQueueingDelayUs;
+    private volatile long mJitterUs;
+    private long mLastTransitUs;
+
+    /**
+     * @param socket     socket connected to the receiver's probe port
+     * @param intervalUs smallest time between two probes
+     * @param listener   told about every echo, or null
+     */
+    public LatencyProbe(DatagramSocket socket, long intervalUs, Listener listener) {
+        mSocket = socket;
+        mIntervalUs = intervalUs;
+        mListener = listener;
+        mProbePacket = new DatagramPacket(mProbe.array(), PROBE_SIZE);
+    }
+
+    /**
+     * Starts the thread receiving the echoes.
+     */
+    public void start() {
+        mThread = new Thread(this, "LatencyProbe");
+        mThread.start();
+    }
+
+    /**
+     * Stops the echo thread and closes the socket.
+     */
+    @Override
+    public void close() {
+        mSocket.close();
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Sends a probe for the frame unless the previous one is too recent. Called on the sender thread.
+     *
+     * @param frame the frame just written
+     * @param nowUs end of the write on the System.nanoTime() clock
+     */
+    public void onFrameSent(EncodedFrame frame, long nowUs) throws IOException {
+        if (mSentSeq >= 0 && nowUs - mLastProbeUs < mIntervalUs) {
+            return;
+        }
+        mLastProbeUs = nowUs;
+        int seq = mSentSeq + 1;
+        writeProbe(mProbe, seq, nowUs, frame.presentationTimeUs);
+        mSendTimesUs[seq % HISTORY] = nowUs;
+        mSentSeq = seq;
+        mSocket.send(mProbePacket);
+    }
+
+    static void writeProbe(ByteBuffer out, int seq, long sendTimeUs, long presentationTimeUs) {
+        out.clear();
+        out.putInt(PROBE_MAGIC);
+        out.putInt(seq);
+        out.putLong(sendTimeUs);
+        out.putLong(presentationTimeUs);
+        out.flip();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[ECHO_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        ByteBuffer echo = ByteBuffer.wrap(buffer);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                packet.setLength(buffer.length);
+                try {
+                    mSocket.receive(packet);
+                } catch (PortUnreachableException e) {
+                    // nothing listens on the probe port (yet), keep waiting for echoes
+                    continue;
+                }
+                if (packet.getLength() != ECHO_SIZE) {
+                    continue;
+                }
+                echo.clear();
+                onEcho(echo, System.nanoTime() / 1000);
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Updates the estimates from one echo.
+     *
+     * @param echo  the echo, positioned at its start
+     * @param nowUs arrival time of the echo on the System.nanoTime() clock
+     * @return false if the packet is not an echo
+     */
+    boolean onEcho(ByteBuffer echo, long nowUs) {
+        if (echo.getInt() != ECHO_MAGIC) {
+            return false;
+        }
+        int seq = echo.getInt();
+        long sendTimeUs = echo.getLong();
+        echo.getLong();
+        long arrivalTimeUs = echo.getLong();
+        long echoTimeUs = echo.getLong();
+
+        long rttUs = Math.max(0, nowUs - sendTimeUs - (echoTimeUs - arrivalTimeUs));
+        // includes the offset between the two clocks, which cancels out in differences
+        long transitUs = arrivalTimeUs - sendTimeUs;
+        if (mEchoCount > 0) {
+            long d = Math.abs(transitUs - mLastTransitUs);
+            mJitterUs += (d - mJitterUs) / 16;
+        }
+        mLastTransitUs = transitUs;
+        mMinRttUs = Math.min(mMinRttUs, rttUs);
+        mSmoothedRttUs = mEchoCount == 0 ? rttUs : mSmoothedRttUs + (rttUs - mSmoothedRttUs) / 8;
+        mRttUs = rttUs;
+        // one-way transits drift apart with the clock rates, round trips are on the sender's clock only
+        mQueueingDelayUs = rttUs - mMinRttUs;
+        if (seq - mEchoedSeq > 0) {
+            mEchoedSeq = seq;
+        }
+        mEchoCount++;
+        if (mListener != null) {
+            mListener.onEcho(this, rttUs, getOneWayDelayUs(), mJitterUs);
+        }
+        return true;
+    }
+
+    public long getEchoCount() {
+        return mEchoCount;
+    }
+
+    /**
+     * Round trip of the latest echo, or 0 before the first one.
+     */
+    public long getRttUs() {
+        return mRttUs;
+    }
+
+    /**
+     * Round trip averaged with a gain of 1/8 like TCP's SRTT.
+     */
+    public long getSmoothedRttUs() {
+        return mSmoothedRttUs;
+    }
+
+    public long getMinRttUs() {
+        return mEchoCount == 0 ? 0 : mMinRttUs;
+    }
+
+    /**
+     * How much longer the latest probe's round trip took than the fastest one.
+     */
+    public long getQueueingDelayUs() {
+        return mQueueingDelayUs;
+    }
+
+    /**
+     * Queueing delay that also counts probes still waiting for their echo, so a
+     * path that stopped answering reads as increasingly congested instead of idle.
+     *
+     * @param nowUs current time on the System.nanoTime() clock
+     */
+    public long getQueueingDelayUs(long nowUs) {
+        int sent = mSentSeq;
+        int oldest = Math.max(mEchoedSeq + 1, sent - HISTORY + 1);
+        if (mEchoCount == 0 || sent - oldest < 0) {
+            return mQueueingDelayUs;
+        }
+        long outstandingUs = nowUs - mSendTimesUs[oldest % HISTORY] - mMinRttUs;
+        return Math.max(mQueueingDelayUs, outstandingUs);
+    }
+
+    /**
+     * Estimated sender to receiver delay of the latest probe.
+     */
+    public long getOneWayDelayUs() {
+        return getMinRttUs() / 2 + mQueueingDelayUs;
+    }
+
+    public long getJitterUs() {
+        return mJitterUs;
+    }
+}
@@ -23,13 +23,13 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.media.MediaFormat;
 import android.media.projection.MediaProjectionManager;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -47,12 +47,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class MainActivity extends Activity {
@@ -64,15 +61,20 @@ public class MainActivity extends Activity {
     private static final String PREF_KEY_RECEIVER = "receiver";
     private static final String PREF_KEY_RESOLUTION = "resolution";
     private static final String PREF_KEY_BITRATE = "bitrate";
+    private static final String PREF_KEY_FRAMING = "framing";
 
     private static final String[] FORMAT_OPTIONS = {
             MediaFormat.MIMETYPE_VIDEO_AVC,
-            MediaFormat.MIMETYPE_VIDEO_VP8
+            MediaFormat.MIMETYPE_VIDEO_VP8,
+            MediaFormat.MIMETYPE_VIDEO_HEVC,
+            MediaFormat.MIMETYPE_VIDEO_VP9,
+            VideoFormats.AUTO
     };
 
     private static final int[][] RESOLUTION_OPTIONS = {
             {1280, 720, 320},
-            {800, 480, 160}
+            {800, 480, 160},
+            {0, 0, 0} // native resolution of the device, see getNativeResolution()
     };
 
     private static final int[] BITRATE_OPTIONS = {
@@ -92,21 +94,29 @@ public class MainActivity extends Activity {
     private Messenger mMessenger = new Messenger(mHandler);
     private Messenger mServiceMessenger = null;
     private TextView mReceiverTextView;
+    private TextView mStatsTextView;
     private ListView mDiscoverListView;
     private ArrayAdapter<String> mDiscoverAdapter;
-    private HashMap<String, String> mDiscoverdMap;
     private String mSelectedFormat = FORMAT_OPTIONS[0];
     private int mSelectedWidth = RESOLUTION_OPTIONS[0][0];
     private int mSelectedHeight = RESOLUTION_OPTIONS[0][1];
     private int mSelectedDpi = RESOLUTION_OPTIONS[0][2];
     private int mSelectedBitrate = BITRATE_OPTIONS[0];
     private String mReceiverIp = "";
-    private DiscoveryTask mDiscoveryTask;
+    // framing version of the selected receiver, 0 for receivers entered by hand
+    private int mFraming = Common.DEFAULT_FRAMING;
+    private ReceiverDiscovery mDiscovery;
+    // framing version each discovered receiver advertised, filled on the discovery thread
+    private final ConcurrentHashMap<String, Integer> mReceiverFraming = new ConcurrentHashMap<>();
     private int mResultCode;
     private Intent mResultData;
 
     private class HandlerCallback implements Handler.Callback {
         public boolean handleMessage(Message msg) {
+            if (msg.what == Common.MSG_STATS) {
+                updateStats(msg.getData());
+                return true;
+            }
             Log.d(TAG, "Handler got event, what: " + msg.what);
             return false;
         }
@@ -149,29 +159,37 @@ public class MainActivity extends Activity {
         mContext = this;
         mMediaProjectionManager = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
 
-        mDiscoverdMap = new HashMap<>();
+        mDiscovery = new ReceiverDiscovery(Common.DISCOVER_PORT, Common.DISCOVER_MESSAGE,
+                Common.DISCOVER_INTERVAL_MS, Common.DISCOVER_TTL_MS, mDiscoveryListener);
         mDiscoverListView = (ListView) findViewById(R.id.discover_listview);
         mDiscoverAdapter = new ArrayAdapter<>(this,
                 android.R.layout.simple_list_item_1);
-        mDiscoverAdapter.addAll(mDiscoverdMap.keySet());
         mDiscoverListView.setAdapter(mDiscoverAdapter);
         mDiscoverListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
                 String name = mDiscoverAdapter.getItem(i);
-                String ip = mDiscoverdMap.get(name);
-                Log.d(TAG, "Select receiver name: " + name + ", ip: " + ip);
+                String ip = name.equals(mContext.getString(R.string.server_mode))
+                        ? "" : mDiscovery.getCache().getIp(name);
+                if (ip == null) {
+                    // expired since the list was drawn
+                    return;
+                }
+                Integer framing = mReceiverFraming.get(name);
+                Log.d(TAG, "Select receiver name: " + name + ", ip: " + ip + ", framing: " + framing);
                 mReceiverIp = ip;
+                mFraming = framing != null ? framing : Common.DEFAULT_FRAMING;
                 updateReceiverStatus();
                 mContext.getSharedPreferences(PREF_COMMON, 0).edit().putString(PREF_KEY_RECEIVER, mReceiverIp).commit();
+                mContext.getSharedPreferences(PREF_COMMON, 0).edit().putInt(PREF_KEY_FRAMING, mFraming).commit();
             }
         });
 
         // add server mode option
         mDiscoverAdapter.add(mContext.getString(R.string.server_mode));
-        mDiscoverdMap.put(mContext.getString(R.string.server_mode), "");
 
         mReceiverTextView = (TextView) findViewById(R.id.receiver_textview);
+        mStatsTextView = (TextView) findViewById(R.id.stats_textview);
         final EditText ipEditText = (EditText) findViewById(R.id.ip_edittext);
         final Button selectButton = (Button) findViewById(R.id.select_button);
         selectButton.setOnClickListener(new View.OnClickListener() {
@@ -179,10 +197,12 @@ public class MainActivity extends Activity {
             public void onClick(View view) {
                 if (ipEditText.getText().length() > 0) {
                     mReceiverIp = ipEditText.getText().toString();
+                    mFraming = Common.DEFAULT_FRAMING;
                     Log.d(TAG, "Using ip: " + mReceiverIp);
                     updateReceiverStatus();
                     mContext.getSharedPreferences(PREF_COMMON, 0).edit().putString(PREF_KEY_INPUT_RECEIVER, mReceiverIp).commit();
                     mContext.getSharedPreferences(PREF_COMMON, 0).edit().putString(PREF_KEY_RECEIVER, mReceiverIp).commit();
+                    mContext.getSharedPreferences(PREF_COMMON, 0).edit().putInt(PREF_KEY_FRAMING, mFraming).commit();
                 }
             }
         });
@@ -253,6 +273,7 @@ public class MainActivity extends Activity {
         bitrateSpinner.setSelection(mContext.getSharedPreferences(PREF_COMMON, 0).getInt(PREF_KEY_BITRATE, 0));
 
         mReceiverIp = mContext.getSharedPreferences(PREF_COMMON, 0).getString(PREF_KEY_RECEIVER, "");
+        mFraming = mContext.getSharedPreferences(PREF_COMMON, 0).getInt(PREF_KEY_FRAMING, Common.DEFAULT_FRAMING);
         updateReceiverStatus();
         startService();
     }
@@ -261,15 +282,19 @@ public class MainActivity extends Activity {
     public void onResume() {
         super.onResume();
 
-        // start discovery task
-        mDiscoveryTask = new DiscoveryTask();
-        mDiscoveryTask.execute();
+        // start discovery
+        try {
+            mDiscovery.start();
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to create socket for discovery");
+            e.printStackTrace();
+        }
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        mDiscoveryTask.cancel(true);
+        mDiscovery.close();
     }
     @Override
     protected void onDestroy() {
@@ -350,6 +375,19 @@ public class MainActivity extends Activity {
         }
     }
 
+    private void updateStats(Bundle stats) {
+        if (stats.isEmpty()) {
+            mStatsTextView.setText(R.string.stats_idle);
+            return;
+        }
+        mStatsTextView.setText(String.format(mContext.getString(R.string.stats),
+                stats.getInt(Common.STATS_KEY_FPS),
+                stats.getLong(Common.STATS_KEY_BITRATE) / 1000,
+                stats.getLong(Common.STATS_KEY_LATENCY_P50_US) / 1000,
+                stats.getLong(Common.STATS_KEY_LATENCY_P99_US) / 1000,
+                stats.getLong(Common.STATS_KEY_DROPPED)));
+    }
+
     private void startCaptureScreen() {
         if (mResultCode != 0 && mResultData != null) {
             startService();
@@ -385,10 +423,15 @@ public class MainActivity extends Activity {
             intent.putExtra(Common.EXTRA_RESULT_DATA, mResultData);
             intent.putExtra(Common.EXTRA_RECEIVER_IP, mReceiverIp);
             intent.putExtra(Common.EXTRA_VIDEO_FORMAT, mSelectedFormat);
-            intent.putExtra(Common.EXTRA_SCREEN_WIDTH, mSelectedWidth);
-            intent.putExtra(Common.EXTRA_SCREEN_HEIGHT, mSelectedHeight);
-            intent.putExtra(Common.EXTRA_SCREEN_DPI, mSelectedDpi);
+            int[] resolution = {mSelectedWidth, mSelectedHeight, mSelectedDpi};
+            if (mSelectedWidth == 0) {
+                resolution = getNativeResolution();
+            }
+            intent.putExtra(Common.EXTRA_SCREEN_WIDTH, resolution[0]);
+            intent.putExtra(Common.EXTRA_SCREEN_HEIGHT, resolution[1]);
+            intent.putExtra(Common.EXTRA_SCREEN_DPI, resolution[2]);
             intent.putExtra(Common.EXTRA_VIDEO_BITRATE, mSelectedBitrate);
+            intent.putExtra(Common.EXTRA_FRAMING, mFraming);
             Log.d(TAG, "===== start service =====");
             startService(intent);
             bindService(intent, mServiceConnection, Context.BIND_AUTO_CREATE);
@@ -399,6 +442,18 @@ public class MainActivity extends Activity {
         }
     }
 
+    /**
+     * Returns the size and density of the display in landscape, rounded down to even
+     * sizes as required by most encoders.
+     */
+    private int[] getNativeResolution() {
+        DisplayMetrics metrics = new DisplayMetrics();
+        getWindowManager().getDefaultDisplay().getRealMetrics(metrics);
+        int width = Math.max(metrics.widthPixels, metrics.heightPixels) & ~1;
+        int height = Math.min(metrics.widthPixels, metrics.heightPixels) & ~1;
+        return new int[] {width, height, metrics.densityDpi};
+    }
+
     private void doUnbindService() {
         if (mServiceMessenger != null) {
             try {
@@ -413,60 +468,47 @@ public class MainActivity extends Activity {
         }
     }
 
-    private class DiscoveryTask extends AsyncTask<Void, Void, Void> {
+    private ReceiverDiscovery.Listener mDiscoveryListener = new ReceiverDiscovery.Listener() {
         @Override
-        protected Void doInBackground(Void... voids) {
+        public InetAddress getBroadcastAddress() throws IOException {
+            return Utils.getBroadcastAddress(mContext);
+        }
+
+        @Override
+        public String parseResponse(byte[] data, int length) {
+            if (length <= 9) {
+                return null;
+            }
+            String respMsg = new String(data, 0, length);
+            Log.d(TAG, "Discover response message: " + respMsg);
             try {
-                DatagramSocket discoverUdpSocket = new DatagramSocket();
-                Log.d(TAG, "Bind local port: " + discoverUdpSocket.getLocalPort());
-                discoverUdpSocket.setSoTimeout(3000);
-                byte[] buf = new byte[1024];
-                while (true) {
-                    if (!Utils.sendBroadcastMessage(mContext, discoverUdpSocket, Common.DISCOVER_PORT, Common.DISCOVER_MESSAGE)) {
-                        Log.w(TAG, "Failed to send discovery message");
-                    }
-                    Arrays.fill(buf, (byte)0);
-                    DatagramPacket receivePacket = new DatagramPacket(buf, buf.length);
-                    try {
-                        discoverUdpSocket.receive(receivePacket);
-                        String ip = receivePacket.getAddress().getHostAddress();
-                        Log.d(TAG, "Receive discover response from " + ip + ", length: " + receivePacket.getLength());
-                        if (receivePacket.getLength() > 9) {
-                            String respMsg = new String(receivePacket.getData());
-                            Log.d(TAG, "Discover response message: " + respMsg);
-                            try {
-                                JSONObject json = new JSONObject(respMsg);
-                                String name = json.getString("name");
-                                //String id = json.getString("id");
-                                String width = json.getString("width");
-                                String height = json.getString("height");
-                                mDiscoverdMap.put(name, ip);
-                                mHandler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        mDiscoverAdapter.clear();
-                                        mDiscoverAdapter.addAll(mDiscoverdMap.keySet());
-                                    }
-                                });
-                                Log.d(TAG, "Got receiver name: " + name + ", ip: " + ip + ", width: " + width + ", height: " + height);
-                            } catch (JSONException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    } catch (SocketTimeoutException e) {
-                    }
-
-                    Thread.sleep(3000);
-                }
-            } catch (SocketException e) {
-                Log.d(TAG, "Failed to create socket for discovery");
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (InterruptedException e) {
+                JSONObject json = new JSONObject(respMsg);
+                String name = json.getString("name");
+                //String id = json.getString("id");
+                String width = json.getString("width");
+                String height = json.getString("height");
+                // receivers older than the framed protocol do not send it
+                int framing = json.optInt("framing", Common.DEFAULT_FRAMING);
+                Log.d(TAG, "Got receiver name: " + name + ", width: " + width + ", height: " + height
+                        + ", framing: " + framing);
+                mReceiverFraming.put(name, framing);
+                return name;
+            } catch (JSONException e) {
                 e.printStackTrace();
+                return null;
             }
-            return null;
         }
-    }
+
+        @Override
+        public void onReceiversChanged(final List<String> names) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mDiscoverAdapter.clear();
+                    mDiscoverAdapter.add(mContext.getString(R.string.server_mode));
+                    mDiscoverAdapter.addAll(names);
+                }
+            });
+        }
+    };
 }
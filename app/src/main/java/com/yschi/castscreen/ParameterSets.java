@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H.264 or HEVC parameter sets (VPS, SPS and PPS) taken from the codec
+ * specific data of an encoder.
+ *
+ * The NAL units are kept as they are and written back in Annex B form, so
+ * the stream header always matches what the encoder actually produces. The
+ * first SPS is parsed for the coded size, profile and level.
+ */
+public class ParameterSets {
+    private static final byte[] START_CODE = {0x00, 0x00, 0x00, 0x01};
+
+    // H.264 nal_unit_type
+    private static final int AVC_NAL_SPS = 7;
+    private static final int AVC_NAL_PPS = 8;
+    // HEVC nal_unit_type
+    private static final int HEVC_NAL_VPS = 32;
+    private static final int HEVC_NAL_SPS = 33;
+    private static final int HEVC_NAL_PPS = 34;
+
+    private final boolean mHevc;
+    private final List<byte[]> mVps = new ArrayList<>();
+    private final List<byte[]> mSps = new ArrayList<>();
+    private final List<byte[]> mPps = new ArrayList<>();
+    private int mWidth;
+    private int mHeight;
+    private int mProfile;
+    private int mLevel;
+
+    /**
+     * @param hevc true for HEVC, false for H.264
+     */
+    public ParameterSets(boolean hevc) {
+        mHevc = hevc;
+    }
+
+    /**
+     * Parses parameter sets out of codec specific data.
+     *
+     * @param hevc true for HEVC, false for H.264
+     * @param csd  Annex B buffers, e.g. a BUFFER_FLAG_CODEC_CONFIG buffer or csd-0 and csd-1
+     * @return the parameter sets, or null if there is no usable SPS
+     */
+    public static ParameterSets parse(boolean hevc, ByteBuffer... csd) {
+        ParameterSets parameterSets = new ParameterSets(hevc);
+        for (ByteBuffer buffer : csd) {
+            if (buffer != null) {
+                parameterSets.add(buffer);
+            }
+        }
+        return parameterSets.isComplete() ? parameterSets : null;
+    }
+
+    /**
+     * Adds the parameter sets found in an Annex B buffer. Other NAL units are ignored.
+     * The position of the buffer is left unchanged.
+     *
+     * @throws IllegalArgumentException if an SPS cannot be parsed
+     */
+    public void add(ByteBuffer buffer) {
+        int start = -1;
+        int limit = buffer.limit();
+        int i = buffer.position();
+        while (i + 2 < limit) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                if (start >= 0) {
+                    // a 4 byte start code leaves a zero byte at the end of the previous unit
+                    addNalUnit(buffer, start, trimTrailingZeros(buffer, start, i));
+                }
+                i += 3;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        if (start >= 0) {
+            addNalUnit(buffer, start, limit);
+        }
+    }
+
+    private static int trimTrailingZeros(ByteBuffer buffer, int start, int end) {
+        while (end > start && buffer.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private void addNalUnit(ByteBuffer buffer, int start, int end) {
+        if (end <= start) {
+            return;
+        }
+        byte[] nal = new byte[end - start];
+        for (int i = 0; i < nal.length; i++) {
+            nal[i] = buffer.get(start + i);
+        }
+        if (mHevc) {
+            int type = (nal[0] >> 1) & 0x3f;
+            if (type == HEVC_NAL_VPS) {
+                mVps.add(nal);
+            } else if (type == HEVC_NAL_SPS) {
+                if (mSps.isEmpty()) {
+                    parseHevcSps(nal);
+                }
+                mSps.add(nal);
+            } else if (type == HEVC_NAL_PPS) {
+                mPps.add(nal);
+            }
+        } else {
+            int type = nal[0] & 0x1f;
+            if (type == AVC_NAL_SPS) {
+                if (mSps.isEmpty()) {
+                    parseAvcSps(nal);
+                }
+                mSps.add(nal);
+            } else if (type == AVC_NAL_PPS) {
+                mPps.add(nal);
+            }
+        }
+    }
+
+    public boolean isHevc() {
+        return mHevc;
+    }
+
+    /**
+     * @return true if there is everything a decoder needs to start
+     */
+    public boolean isComplete() {
+        return !mSps.isEmpty() && !mPps.isEmpty() && (!mHevc || !mVps.isEmpty());
+    }
+
+    /**
+     * Displayed width from the first SPS, after cropping.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Displayed height from the first SPS, after cropping.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * profile_idc of H.264 or general_profile_idc of HEVC.
+     */
+    public int getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * level_idc of H.264 or general_level_idc of HEVC.
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Serializes the parameter sets with start codes, VPS first, then SPS, then PPS.
+     */
+    public byte[] toAnnexB() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeAll(output, mVps);
+        writeAll(output, mSps);
+        writeAll(output, mPps);
+        return output.toByteArray();
+    }
+
+    /**
+     * Serializes H.264 parameter sets as an AVCDecoderConfigurationRecord (ISO/IEC 14496-15),
+     * the payload of an avcC box, with 4 byte NAL unit lengths.
+     */
+    public byte[] toAvcDecoderConfigurationRecord() {
+        if (mHevc || mSps.isEmpty()) {
+            throw new IllegalStateException("No H.264 SPS");
+        }
+        byte[] sps = mSps.get(0);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(1);  // configurationVersion
+        output.write(sps[1]);  // AVCProfileIndication
+        output.write(sps[2]);  // profile_compatibility
+        output.write(sps[3]);  // AVCLevelIndication
+        output.write(0xfc | 3);  // lengthSizeMinusOne
+        output.write(0xe0 | mSps.size());
+        writeAllWithLength(output, mSps);
+        output.write(mPps.size());
+        writeAllWithLength(output, mPps);
+        return output.toByteArray();
+    }
+
+    private static void writeAllWithLength(ByteArrayOutputStream output, List<byte[]> nalUnits) {
+        for (byte[] nal : nalUnits) {
+            output.write(nal.length >> 8);
+            output.write(nal.length);
+            output.write(nal, 0, nal.length);
+        }
+    }
+
+    private static void writeAll(ByteArrayOutputStream output, List<byte[]> nalUnits) {
+        for (byte[] nal : nalUnits) {
+            output.write(START_CODE, 0, START_CODE.length);
+            output.write(nal, 0, nal.length);
+        }
+    }
+
+    private void parseAvcSps(byte[] nal) {
+        BitReader reader = new BitReader(nal, 1);
+        mProfile = reader.readBits(8);
+        reader.skipBits(8); // constraint_set flags
+        mLevel = reader.readBits(8);
+        reader.readUe(); // seq_parameter_set_id
+        int chromaFormatIdc = 1;
+        boolean separateColourPlane = false;
+        if (mProfile == 100 || mProfile == 110 || mProfile == 122 || mProfile == 244 || mProfile == 44
+                || mProfile == 83 || mProfile == 86 || mProfile == 118 || mProfile == 128
+                || mProfile == 138 || mProfile == 139 || mProfile == 134 || mProfile == 135) {
+            chromaFormatIdc = reader.readUe();
+            if (chromaFormatIdc == 3) {
+                separateColourPlane = reader.readBit();
+            }
+            reader.readUe(); // bit_depth_luma_minus8
+            reader.readUe(); // bit_depth_chroma_minus8
+            reader.skipBits(1); // qpprime_y_zero_transform_bypass_flag
+            if (reader.readBit()) { // seq_scaling_matrix_present_flag
+                int count = chromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < count; i++) {
+                    if (reader.readBit()) {
+                        skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        reader.readUe(); // log2_max_frame_num_minus4
+        int picOrderCntType = reader.readUe();
+        if (picOrderCntType == 0) {
+            reader.readUe(); // log2_max_pic_order_cnt_lsb_minus4
+        } else if (picOrderCntType == 1) {
+            reader.skipBits(1); // delta_pic_order_always_zero_flag
+            reader.readSe(); // offset_for_non_ref_pic
+            reader.readSe(); // offset_for_top_to_bottom_field
+            int count = reader.readUe();
+            for (int i = 0; i < count; i++) {
+                reader.readSe(); // offset_for_ref_frame
+            }
+        }
+        reader.readUe(); // max_num_ref_frames
+        reader.skipBits(1); // gaps_in_frame_num_value_allowed_flag
+        int widthInMbs = reader.readUe() + 1;
+        int heightInMapUnits = reader.readUe() + 1;
+        boolean frameMbsOnly = reader.readBit();
+        if (!frameMbsOnly) {
+            reader.skipBits(1); // mb_adaptive_frame_field_flag
+        }
+        reader.skipBits(1); // direct_8x8_inference_flag
+        int frameHeightFactor = frameMbsOnly ? 1 : 2;
+        mWidth = widthInMbs * 16;
+        mHeight = frameHeightFactor * heightInMapUnits * 16;
+        if (reader.readBit()) { // frame_cropping_flag
+            int cropUnitX = 1;
+            int cropUnitY = frameHeightFactor;
+            if (chromaFormatIdc != 0 && !separateColourPlane) {
+                cropUnitX = chromaFormatIdc == 3 ? 1 : 2;
+                cropUnitY *= chromaFormatIdc == 1 ? 2 : 1;
+            }
+            mWidth -= cropUnitX * (reader.readUe() + reader.readUe());
+            mHeight -= cropUnitY * (reader.readUe() + reader.readUe());
+        }
+    }
+
+    private static void skipScalingList(BitReader reader, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int i = 0; i < size && nextScale != 0; i++) {
+            int deltaScale = reader.readSe();
+            nextScale = (lastScale + deltaScale + 256) % 256;
+            if (nextScale != 0) {
+                lastScale = nextScale;
+            }
+        }
+    }
+
+    private void parseHevcSps(byte[] nal) {
+        BitReader reader = new BitReader(nal, 2);
+        reader.skipBits(4); // sps_video_parameter_set_id
+        int maxSubLayersMinus1 = reader.readBits(3);
+        reader.skipBits(1); // sps_temporal_id_nesting_flag
+        // profile_tier_level
+        reader.skipBits(3); // general_profile_space, general_tier_flag
+        mProfile = reader.readBits(5);
+        reader.skipBits(32); // general_profile_compatibility_flags
+        reader.skipBits(48); // general constraint flags
+        mLevel = reader.readBits(8);
+        boolean[] subLayerProfilePresent = new boolean[maxSubLayersMinus1];
+        boolean[] subLayerLevelPresent = new boolean[maxSubLayersMinus1];
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            subLayerProfilePresent[i] = reader.readBit();
+            subLayerLevelPresent[i] = reader.readBit();
+        }
+        if (maxSubLayersMinus1 > 0) {
+            reader.skipBits(2 * (8 - maxSubLayersMinus1)); // reserved_zero_2bits
+        }
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            if (subLayerProfilePresent[i]) {
+                reader.skipBits(88);
+            }
+            if (subLayerLevelPresent[i]) {
+                reader.skipBits(8);
+            }
+        }
+        reader.readUe(); // sps_seq_parameter_set_id
+        int chromaFormatIdc = reader.readUe();
+        boolean separateColourPlane = false;
+        if (chromaFormatIdc == 3) {
+            separateColourPlane = reader.readBit();
+        }
+        mWidth = reader.readUe();
+        mHeight = reader.readUe();
+        if (reader.readBit()) { // conformance_window_flag
+            int subWidth = 1;
+            int subHeight = 1;
+            if (!separateColourPlane && (chromaFormatIdc == 1 || chromaFormatIdc == 2)) {
+                subWidth = 2;
+                subHeight = chromaFormatIdc == 1 ? 2 : 1;
+            }
+            mWidth -= subWidth * (reader.readUe() + reader.readUe());
+            mHeight -= subHeight * (reader.readUe() + reader.readUe());
+        }
+    }
+
+    /**
+     * Reads the RBSP of a NAL unit, skipping emulation prevention bytes.
+     */
+    private static class BitReader {
+        private final byte[] mData;
+        private int mByteOffset;
+        private int mBitOffset;
+        private int mZeroCount;
+        private int mCurrentByte;
+
+        BitReader(byte[] data, int headerSize) {
+            mData = data;
+            mByteOffset = headerSize;
+            loadByte();
+        }
+
+        private void loadByte() {
+            if (mByteOffset >= mData.length) {
+                throw new IllegalArgumentException("Parameter set is truncated");
+            }
+            int value = mData[mByteOffset] & 0xff;
+            if (mZeroCount >= 2 && value == 3) {
+                // emulation_prevention_three_byte
+                mZeroCount = 0;
+                mByteOffset++;
+                loadByte();
+                return;
+            }
+            mZeroCount = value == 0 ? mZeroCount + 1 : 0;
+            mCurrentByte = value;
+        }
+
+        boolean readBit() {
+            if (mByteOffset >= mData.length) {
+                throw new IllegalArgumentException("Parameter set is truncated");
+            }
+            boolean bit = ((mCurrentByte >> (7 - mBitOffset)) & 1) != 0;
+            if (++mBitOffset == 8) {
+                mBitOffset = 0;
+                mByteOffset++;
+                if (mByteOffset < mData.length) {
+                    loadByte();
+                }
+            }
+            return bit;
+        }
+
+        int readBits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+
+        void skipBits(int count) {
+            for (int i = 0; i < count; i++) {
+                readBit();
+            }
+        }
+
+        int readUe() {
+            int leadingZeros = 0;
+            while (!readBit()) {
+                if (++leadingZeros > 31) {
+                    throw new IllegalArgumentException("Invalid exp-Golomb code");
+                }
+            }
+            return (int) ((1L << leadingZeros) - 1 + readBits(leadingZeros));
+        }
+
+        int readSe() {
+            int value = readUe();
+            return (value & 1) != 0 ? (value + 1) / 2 : -(value / 2);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.util.Locale;
+
+/**
+ * Per-frame counters of the path from the encoder to the viewers' sockets.
+ *
+ * The encoder and sender threads record into it without allocating. A
+ * reporting thread periodically takes a {@link Snapshot}, which also starts
+ * a new interval. With several viewers, sent frames of all of them are
+ * counted together.
+ */
+public class PipelineStats {
+    /**
+     * Counters of one interval, reused from one snapshot to the next.
+     */
+    public static class Snapshot {
+        public long intervalUs;
+        public long framesEncoded;
+        public long keyFrames;
+        public long framesSent;
+        public long bytesSent;
+        public long framesDropped;
+        // left out of the stream by the IdleDetector, still counted as encoded
+        public long framesSkipped;
+        public int maxQueueDepth;
+        // capture time to the end of the socket write
+        public final Histogram latencyUs = new Histogram();
+        // time a frame waited in the send queue
+        public final Histogram queueDelayUs = new Histogram();
+        // time a frame took to write
+        public final Histogram sendDurationUs = new Histogram();
+        public final Histogram keyFrameBytes = new Histogram();
+        // all encoded frames, the peak to average ratio shows how bursty the encoder is
+        public final Histogram frameBytes = new Histogram();
+        // from the latency probes, empty without them
+        public final Histogram rttUs = new Histogram();
+        public final Histogram oneWayDelayUs = new Histogram();
+        public long maxJitterUs;
+
+        public int getFramesPerSecond() {
+            return intervalUs <= 0 ? 0 : (int) (framesSent * 1000000 / intervalUs);
+        }
+
+        public long getBitsPerSecond() {
+            return intervalUs <= 0 ? 0 : bytesSent * 8 * 1000000 / intervalUs;
+        }
+
+        /**
+         * One line summary for logs, times in milliseconds.
+         */
+        public void appendTo(StringBuilder builder) {
+            builder.append(String.format(Locale.US,
+                    "fps %d, kbps %d, encoded %d, sent %d, dropped %d, queue max %d, "
+                            + "latency p50/p99/max %.1f/%.1f/%.1f, queue p50/p99 %.1f/%.1f, "
+                            + "send p50/p99 %.1f/%.1f, key frames %d avg %d B max %d B, frames avg %d B max %d B",
+                    getFramesPerSecond(), getBitsPerSecond() / 1000, framesEncoded, framesSent, framesDropped,
+                    maxQueueDepth,
+                    latencyUs.getValueAtPercentile(50) / 1000f, latencyUs.getValueAtPercentile(99) / 1000f,
+                    latencyUs.getMax() / 1000f,
+                    queueDelayUs.getValueAtPercentile(50) / 1000f, queueDelayUs.getValueAtPercentile(99) / 1000f,
+                    sendDurationUs.getValueAtPercentile(50) / 1000f, sendDurationUs.getValueAtPercentile(99) / 1000f,
+                    keyFrames, keyFrameBytes.getMean(), keyFrameBytes.getMax(), frameBytes.getMean(),
+                    frameBytes.getMax()));
+            if (rttUs.getCount() > 0) {
+                builder.append(String.format(Locale.US, ", rtt p50/p99 %.1f/%.1f, one-way p50 %.1f, jitter %.1f",
+                        rttUs.getValueAtPercentile(50) / 1000f, rttUs.getValueAtPercentile(99) / 1000f,
+                        oneWayDelayUs.getValueAtPercentile(50) / 1000f, maxJitterUs / 1000f));
+            }
+            if (framesSkipped > 0) {
+                builder.append(", idle skipped ").append(framesSkipped);
+            }
+        }
+    }
+
+    private final Snapshot mCurrent = new Snapshot();
+    private long mIntervalStartUs;
+
+    /**
+     * @param nowUs start of the first interval on the System.nanoTime() clock
+     */
+    public PipelineStats(long nowUs) {
+        mIntervalStartUs = nowUs;
+    }
+
+    /**
+     * Called on the encoder thread for every encoded frame, codec config excluded.
+     */
+    public synchronized void onFrameEncoded(int size, boolean keyFrame) {
+        mCurrent.framesEncoded++;
+        mCurrent.frameBytes.record(size);
+        if (keyFrame) {
+            mCurrent.keyFrames++;
+            mCurrent.keyFrameBytes.record(size);
+        }
+    }
+
+    /**
+     * Called on a sender thread once a frame has been written.
+     *
+     * @param frame      the frame, with its queued and sent times set
+     * @param nowUs      end of the write on the System.nanoTime() clock
+     * @param queueDepth frames still waiting behind it
+     */
+    public synchronized void onFrameSent(EncodedFrame frame, long nowUs, int queueDepth) {
+        mCurrent.framesSent++;
+        mCurrent.bytesSent += frame.size;
+        if (!frame.isCodecConfig()) {
+            mCurrent.latencyUs.record(nowUs - frame.presentationTimeUs);
+        }
+        mCurrent.queueDelayUs.record(frame.sentTimeUs - frame.queuedTimeUs);
+        mCurrent.sendDurationUs.record(nowUs - frame.sentTimeUs);
+        if (queueDepth > mCurrent.maxQueueDepth) {
+            mCurrent.maxQueueDepth = queueDepth;
+        }
+    }
+
+    public synchronized void onFrameDropped() {
+        mCurrent.framesDropped++;
+    }
+
+    /**
+     * Called on the encoder thread for every frame the {@link IdleDetector} kept off the stream.
+     */
+    public synchronized void onFrameSkipped() {
+        mCurrent.framesSkipped++;
+    }
+
+    /**
+     * Called on a probe thread for every echo of a {@link LatencyProbe}.
+     */
+    public synchronized void onLatencyEcho(long rttUs, long oneWayDelayUs, long jitterUs) {
+        mCurrent.rttUs.record(rttUs);
+        mCurrent.oneWayDelayUs.record(oneWayDelayUs);
+        if (jitterUs > mCurrent.maxJitterUs) {
+            mCurrent.maxJitterUs = jitterUs;
+        }
+    }
+
+    /**
+     * Copies the current interval into out and starts a new one.
+     *
+     * @param nowUs end of the interval on the System.nanoTime() clock
+     */
+    public synchronized void snapshot(Snapshot out, long nowUs) {
+        Snapshot current = mCurrent;
+        out.intervalUs = nowUs - mIntervalStartUs;
+        out.framesEncoded = current.framesEncoded;
+        out.keyFrames = current.keyFrames;
+        out.framesSent = current.framesSent;
+        out.bytesSent = current.bytesSent;
+        out.framesDropped = current.framesDropped;
+        out.framesSkipped = current.framesSkipped;
+        out.maxQueueDepth = current.maxQueueDepth;
+        current.latencyUs.copyTo(out.latencyUs);
+        current.queueDelayUs.copyTo(out.queueDelayUs);
+        current.sendDurationUs.copyTo(out.sendDurationUs);
+        current.keyFrameBytes.copyTo(out.keyFrameBytes);
+        current.frameBytes.copyTo(out.frameBytes);
+        current.rttUs.copyTo(out.rttUs);
+        current.oneWayDelayUs.copyTo(out.oneWayDelayUs);
+        out.maxJitterUs = current.maxJitterUs;
+
+        current.framesEncoded = 0;
+        current.keyFrames = 0;
+        current.framesSent = 0;
+        current.bytesSent = 0;
+        current.framesDropped = 0;
+        current.framesSkipped = 0;
+        current.maxQueueDepth = 0;
+        current.latencyUs.reset();
+        current.queueDelayUs.reset();
+        current.sendDurationUs.reset();
+        current.keyFrameBytes.reset();
+        current.frameBytes.reset();
+        current.rttUs.reset();
+        current.oneWayDelayUs.reset();
+        current.maxJitterUs = 0;
+        mIntervalStartUs = nowUs;
+    }
+}
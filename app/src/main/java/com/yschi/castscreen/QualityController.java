@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+/**
+ * Trades resolution and frame rate for bitrate when the link is poor.
+ *
+ * Below a certain number of bits per pixel an encoder turns every frame
+ * into blocks, a smaller picture at the same bitrate looks better and
+ * encodes faster. The controller walks a ladder of levels derived from the
+ * selected size and frame rate: it steps down once the target bitrate of the
+ * {@link BitrateController} gets too thin for the current level, and back up
+ * once the bitrate would be comfortable one level higher. Changes are at
+ * least a hold time apart, since each one restarts the encoder.
+ */
+public class QualityController {
+    public interface Listener {
+        /**
+         * Called on the thread reporting bitrates when the level changes.
+         */
+        void onLevelChanged(Level level);
+    }
+
+    /**
+     * One step of the ladder.
+     */
+    public static class Level {
+        public final int width;
+        public final int height;
+        public final int frameRate;
+
+        public Level(int width, int height, int frameRate) {
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+        }
+
+        long pixelsPerSecond() {
+            return (long) width * height * frameRate;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + frameRate;
+        }
+    }
+
+    // bits per pixel below which the current level is too large for the bitrate
+    static final float MIN_BITS_PER_PIXEL = 0.05f;
+    // bits per pixel the next larger level needs before stepping back up
+    static final float COMFORTABLE_BITS_PER_PIXEL = 0.08f;
+    // fractions of the selected size, then the smallest size at a reduced frame rate
+    private static final int[][] SCALES = { {1, 1}, {3, 4}, {1, 2} };
+    private static final int REDUCED_FRAME_RATE_PERCENT = 60;
+    private static final int MIN_FRAME_RATE = 10;
+
+    private final Level[] mLevels;
+    private final long mHoldMs;
+    private final Listener mListener;
+    private int mIndex;
+    private long mLastChangeMs;
+
+    /**
+     * @param width     selected width, the top of the ladder
+     * @param height    selected height
+     * @param frameRate selected frame rate
+     * @param holdMs    shortest time between two level changes
+     * @param listener  told about level changes
+     */
+    public QualityController(int width, int height, int frameRate, long holdMs, Listener listener) {
+        mLevels = buildLadder(width, height, frameRate);
+        mHoldMs = holdMs;
+        mListener = listener;
+        mLastChangeMs = Long.MIN_VALUE / 2;
+    }
+
+    static Level[] buildLadder(int width, int height, int frameRate) {
+        Level[] levels = new Level[SCALES.length + 1];
+        // the selected size is what the encoder already runs at, only the scaled ones are aligned
+        levels[0] = new Level(width, height, frameRate);
+        for (int i = 1; i < SCALES.length; i++) {
+            levels[i] = new Level(align(width * SCALES[i][0] / SCALES[i][1]),
+                    align(height * SCALES[i][0] / SCALES[i][1]), frameRate);
+        }
+        Level smallest = levels[SCALES.length - 1];
+        levels[SCALES.length] = new Level(smallest.width, smallest.height,
+                Math.max(MIN_FRAME_RATE, frameRate * REDUCED_FRAME_RATE_PERCENT / 100));
+        return levels;
+    }
+
+    // hardware encoders want sizes in whole macroblocks, rounded down to stay below the level above
+    private static int align(int size) {
+        return Math.max(16, size / 16 * 16);
+    }
+
+    public Level getLevel() {
+        return mLevels[mIndex];
+    }
+
+    /**
+     * Reports a new target bitrate. Must always be called from the same thread.
+     *
+     * @param bitrate the target bitrate in bits per second
+     * @param nowMs   current time in milliseconds
+     */
+    public void onBitrateChanged(int bitrate, long nowMs) {
+        if (nowMs - mLastChangeMs < mHoldMs) {
+            return;
+        }
+        int index = mIndex;
+        if (index < mLevels.length - 1 && bitrate < MIN_BITS_PER_PIXEL * mLevels[index].pixelsPerSecond()) {
+            index++;
+        } else if (index > 0 && bitrate >= COMFORTABLE_BITS_PER_PIXEL * mLevels[index - 1].pixelsPerSecond()) {
+            index--;
+        }
+        if (index == mIndex) {
+            return;
+        }
+        mIndex = index;
+        mLastChangeMs = nowMs;
+        if (mListener != null) {
+            mListener.onLevelChanged(mLevels[index]);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receivers found by discovery, keyed by name.
+ *
+ * Written by the discovery thread and read by the UI thread. A receiver
+ * that has not answered for the time to live is dropped, so receivers that
+ * were switched off or left the network disappear from the list.
+ */
+public class ReceiverCache {
+    private static class Entry {
+        final String ip;
+        volatile long lastSeenMs;
+
+        Entry(String ip, long lastSeenMs) {
+            this.ip = ip;
+            this.lastSeenMs = lastSeenMs;
+        }
+    }
+
+    private final long mTtlMs;
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * @param ttlMs time a receiver stays listed after its last response
+     */
+    public ReceiverCache(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Records a response.
+     *
+     * @return true if the receiver is new or answered from another address
+     */
+    public boolean update(String name, String ip, long nowMs) {
+        Entry entry = mEntries.get(name);
+        if (entry != null && entry.ip.equals(ip)) {
+            entry.lastSeenMs = nowMs;
+            return false;
+        }
+        mEntries.put(name, new Entry(ip, nowMs));
+        return true;
+    }
+
+    /**
+     * Drops receivers that have not answered within the time to live.
+     *
+     * @return true if any receiver was dropped
+     */
+    public boolean evict(long nowMs) {
+        boolean evicted = false;
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (nowMs - it.next().getValue().lastSeenMs > mTtlMs) {
+                it.remove();
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the address of the receiver, or null if it is not listed
+     */
+    public String getIp(String name) {
+        Entry entry = mEntries.get(name);
+        return entry == null ? null : entry.ip;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the names of all listed receivers, sorted
+     */
+    public List<String> getNames() {
+        List<String> names = new ArrayList<String>(mEntries.keySet());
+        Collections.sort(names);
+        return names;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+/**
+ * Finds receivers by broadcasting the discovery message on its own thread.
+ *
+ * After each broadcast every response that comes in until the next one is
+ * read, so all receivers on the network show up within a round trip of the
+ * first broadcast. Answers go into a {@link ReceiverCache}, which drops
+ * receivers that stopped answering.
+ */
+public class ReceiverDiscovery implements Runnable, Closeable {
+    // room for the responses of a few dozen receivers arriving at once
+    private static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_RESPONSE_LENGTH = 1024;
+
+    public interface Listener {
+        /**
+         * Called on the discovery thread before the first broadcast, and again only
+         * while there is no address or after sending to it failed.
+         *
+         * @return the address to broadcast to, or null if there is no network yet
+         */
+        InetAddress getBroadcastAddress() throws IOException;
+
+        /**
+         * Called on the discovery thread for every response.
+         *
+         * @return the name of the receiver, or null if the response is not valid
+         */
+        String parseResponse(byte[] data, int length);
+
+        /**
+         * Called on the discovery thread whenever receivers appeared, moved or expired.
+         *
+         * @param names all listed receivers, sorted
+         */
+        void onReceiversChanged(List<String> names);
+    }
+
+    private final int mPort;
+    private final byte[] mMessage;
+    private final long mIntervalMs;
+    private final Listener mListener;
+    private final ReceiverCache mCache;
+    private DatagramSocket mSocket;
+    private Thread mThread;
+    private volatile boolean mClosed;
+
+    /**
+     * @param port       port receivers listen for the discovery message on
+     * @param message    discovery message
+     * @param intervalMs time between broadcasts
+     * @param ttlMs      time a receiver stays listed after its last response
+     * @param listener   parses responses and is told about changes
+     */
+    public ReceiverDiscovery(int port, String message, long intervalMs, long ttlMs, Listener listener) {
+        mPort = port;
+        mMessage = message.getBytes();
+        mIntervalMs = intervalMs;
+        mListener = listener;
+        mCache = new ReceiverCache(ttlMs);
+    }
+
+    public ReceiverCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Opens the socket and starts the discovery thread. Can be called again after {@link #close()}.
+     */
+    public void start() throws IOException {
+        mClosed = false;
+        mSocket = new DatagramSocket();
+        mSocket.setBroadcast(true);
+        mSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+        mThread = new Thread(this, "ReceiverDiscovery");
+        mThread.start();
+    }
+
+    /**
+     * Stops broadcasting. The cache keeps the receivers found so far.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        if (mSocket != null) {
+            // wakes up the pending receive
+            mSocket.close();
+        }
+        Thread thread = mThread;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mThread = null;
+    }
+
+    @Override
+    public void run() {
+        DatagramPacket request = new DatagramPacket(mMessage, mMessage.length);
+        byte[] buf = new byte[MAX_RESPONSE_LENGTH];
+        DatagramPacket response = new DatagramPacket(buf, buf.length);
+        InetAddress broadcastAddress = null;
+        try {
+            while (!mClosed) {
+                long roundEndMs = System.currentTimeMillis() + mIntervalMs;
+                if (broadcastAddress == null) {
+                    broadcastAddress = mListener.getBroadcastAddress();
+                }
+                if (broadcastAddress != null) {
+                    request.setAddress(broadcastAddress);
+                    request.setPort(mPort);
+                    try {
+                        mSocket.send(request);
+                    } catch (IOException e) {
+                        if (mClosed) {
+                            break;
+                        }
+                        // the network changed, look the address up again next round
+                        broadcastAddress = null;
+                    }
+                }
+                long nowMs;
+                while (!mClosed && (nowMs = System.currentTimeMillis()) < roundEndMs) {
+                    mSocket.setSoTimeout((int) (roundEndMs - nowMs));
+                    response.setLength(buf.length);
+                    try {
+                        mSocket.receive(response);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    if (mClosed) {
+                        break;
+                    }
+                    String name = mListener.parseResponse(response.getData(), response.getLength());
+                    if (name != null
+                            && mCache.update(name, response.getAddress().getHostAddress(), System.currentTimeMillis())) {
+                        mListener.onReceiversChanged(mCache.getNames());
+                    }
+                }
+                if (mCache.evict(System.currentTimeMillis())) {
+                    mListener.onReceiversChanged(mCache.getNames());
+                }
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                e.printStackTrace();
+            }
+        } finally {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for redialing a lost receiver.
+ *
+ * The first retry is quick so a short Wi-Fi blip costs a fraction of a
+ * second. Every failed attempt doubles the delay up to a cap, with up to a
+ * quarter of it randomized so several senders do not retry in lockstep.
+ * Once the receiver has been gone for the give-up time there is no retry.
+ */
+public class ReconnectBackoff {
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final long mGiveUpMs;
+    private final Random mRandom;
+    private long mDelayMs;
+    private long mStartMs;
+
+    /**
+     * @param initialDelayMs delay before the first retry
+     * @param maxDelayMs     longest delay between two retries
+     * @param giveUpMs       time after {@link #reset} without a connection after which to give up
+     * @param random         source of the jitter
+     */
+    public ReconnectBackoff(long initialDelayMs, long maxDelayMs, long giveUpMs, Random random) {
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mGiveUpMs = giveUpMs;
+        mRandom = random;
+        reset(0);
+    }
+
+    /**
+     * Starts over, called when the connection was lost.
+     *
+     * @param nowMs current time in milliseconds
+     */
+    public void reset(long nowMs) {
+        mStartMs = nowMs;
+        mDelayMs = mInitialDelayMs;
+    }
+
+    /**
+     * Delay before the next attempt.
+     *
+     * @param nowMs current time in milliseconds
+     * @return the delay, or -1 to give up
+     */
+    public long nextDelayMs(long nowMs) {
+        long delayMs = mDelayMs - (long) (mRandom.nextDouble() * mDelayMs / 4);
+        if (nowMs + delayMs - mStartMs > mGiveUpMs) {
+            return -1;
+        }
+        mDelayMs = Math.min(mDelayMs * 2, mMaxDelayMs);
+        return delayMs;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/**
+ * Sends encoded frames as RTP over UDP to one receiver.
+ *
+ * The socket is connected, so a receiver that went away surfaces as an
+ * IOException on a later send, just like a closed TCP stream does.
+ */
+public class RtpFrameWriter implements FrameWriter, RtpPacketizer.PacketSink, Closeable {
+    private final DatagramSocket mSocket;
+    private final DatagramPacket mDatagram;
+    private final RtpPacketizer mPacketizer;
+    private FecEncoder mFecEncoder;
+
+    public RtpFrameWriter(InetAddress address, int port, RtpPacketizer packetizer) throws IOException {
+        mSocket = new DatagramSocket();
+        mSocket.connect(address, port);
+        mDatagram = new DatagramPacket(new byte[0], 0, address, port);
+        mPacketizer = packetizer;
+    }
+
+    /**
+     * Protects the packets with XOR parity, see {@link FecEncoder}. Parity packets are
+     * {@link FecEncoder#OVERHEAD} bytes larger than the largest packet of the packetizer.
+     */
+    public void enableFec(int groupSize, int interleave, int payloadType) {
+        mFecEncoder = new FecEncoder(groupSize, interleave, mPacketizer.getMaxPacketSize(), payloadType, this);
+    }
+
+    @Override
+    public void writeFrame(EncodedFrame frame) throws IOException {
+        RtpPacketizer.PacketSink sink = mFecEncoder != null ? mFecEncoder : this;
+        mPacketizer.packetize(frame.data, 0, frame.size, frame.presentationTimeUs, frame.flags, sink);
+    }
+
+    @Override
+    public void onPacket(byte[] packet, int length) throws IOException {
+        mDatagram.setData(packet, 0, length);
+        mSocket.send(mDatagram);
+    }
+
+    @Override
+    public void close() {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Splits encoded frames into RTP packets (RFC 3550).
+ *
+ * Packets are built in one reused buffer and handed to a {@link PacketSink}
+ * one by one, so packetizing does not allocate. The RTP timestamp runs at
+ * 90 kHz and is derived from the presentation time of the frame.
+ */
+public abstract class RtpPacketizer {
+    public interface PacketSink {
+        /**
+         * Sends one packet. The buffer is reused for the next packet once this returns.
+         */
+        void onPacket(byte[] packet, int length) throws IOException;
+    }
+
+    public static final int HEADER_SIZE = 12;
+    public static final int CLOCK_RATE = 90000;
+
+    private static final int VERSION = 2;
+
+    protected final byte[] mPacket;
+    private final int mPayloadType;
+    private final int mSsrc;
+    private final int mTimestampOffset;
+    private int mSequenceNumber;
+
+    /**
+     * @param maxPacketSize largest RTP packet to produce, header included
+     * @param payloadType   dynamic payload type announced to the receiver
+     */
+    protected RtpPacketizer(int maxPacketSize, int payloadType) {
+        this(maxPacketSize, payloadType, new Random());
+    }
+
+    protected RtpPacketizer(int maxPacketSize, int payloadType, Random random) {
+        if (maxPacketSize <= HEADER_SIZE + 2) {
+            throw new IllegalArgumentException("Packet size too small: " + maxPacketSize);
+        }
+        mPacket = new byte[maxPacketSize];
+        mPayloadType = payloadType;
+        // random initial values as recommended by RFC 3550
+        mSsrc = random.nextInt();
+        mTimestampOffset = random.nextInt();
+        mSequenceNumber = random.nextInt() & 0xffff;
+    }
+
+    /**
+     * Packetizes one encoded frame.
+     *
+     * @param data               encoded frame
+     * @param offset             start of the frame in data
+     * @param length             length of the frame
+     * @param presentationTimeUs presentation timestamp of the frame
+     * @param flags              MediaCodec buffer flags of the frame
+     * @param sink               receives the packets in order
+     */
+    public abstract void packetize(byte[] data, int offset, int length, long presentationTimeUs, int flags,
+                                   PacketSink sink) throws IOException;
+
+    public int getMaxPacketSize() {
+        return mPacket.length;
+    }
+
+    /**
+     * Largest payload that fits in one packet.
+     */
+    protected int maxPayloadSize() {
+        return mPacket.length - HEADER_SIZE;
+    }
+
+    /**
+     * Writes the RTP header into the packet buffer and sends the packet.
+     *
+     * @param payloadLength bytes already written after the header
+     * @param marker        true for the last packet of a frame
+     */
+    protected void send(int payloadLength, boolean marker, long presentationTimeUs, PacketSink sink)
+            throws IOException {
+        int timestamp = (int) (presentationTimeUs * CLOCK_RATE / 1000000) + mTimestampOffset;
+        mPacket[0] = (byte) (VERSION << 6);
+        mPacket[1] = (byte) ((marker ? 0x80 : 0) | mPayloadType);
+        mPacket[2] = (byte) (mSequenceNumber >> 8);
+        mPacket[3] = (byte) mSequenceNumber;
+        layInt(mPacket, 4, timestamp);
+        layInt(mPacket, 8, mSsrc);
+        mSequenceNumber = (mSequenceNumber + 1) & 0xffff;
+        sink.onPacket(mPacket, HEADER_SIZE + payloadLength);
+    }
+
+    private static void layInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Sequence number of the next packet.
+     */
+    public int getSequenceNumber() {
+        return mSequenceNumber;
+    }
+
+    public int getSsrc() {
+        return mSsrc;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes frames to a socket stream, either as raw elementary stream or wrapped in IVF.
+ */
+public class StreamFrameWriter implements FrameWriter {
+    private final OutputStream mOutputStream;
+    private final IvfWriter mIvfWriter;
+
+    /**
+     * @param outputStream stream to write to
+     * @param ivfWriter    IVF writer on top of the same stream, or null to write frames as is
+     */
+    public StreamFrameWriter(OutputStream outputStream, IvfWriter ivfWriter) {
+        mOutputStream = outputStream;
+        mIvfWriter = ivfWriter;
+    }
+
+    @Override
+    public void writeFrame(EncodedFrame frame) throws IOException {
+        if (mIvfWriter != null) {
+            mIvfWriter.writeFrame(frame.data, 0, frame.size, frame.presentationTimeUs);
+        } else {
+            mOutputStream.write(frame.data, 0, frame.size);
+        }
+    }
+}
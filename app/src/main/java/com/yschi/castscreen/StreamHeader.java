@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.util.Locale;
+
+/**
+ * Builds the HTTP style preamble sent to a receiver before the video.
+ *
+ * The receivers only look at the X- headers, the request line is kept for
+ * compatibility with the original receivers.
+ */
+public class StreamHeader {
+    private static final String HTTP_MESSAGE_TEMPLATE = "POST /api/v1/h264 HTTP/1.1\r\n" +
+                                                        "Connection: close\r\n" +
+                                                        "X-WIDTH: %1$d\r\n" +
+                                                        "X-HEIGHT: %2$d\r\n" +
+                                                        "%3$s" +
+                                                        "\r\n";
+    private static final String RTP_HEADERS_TEMPLATE = "X-TRANSPORT: rtp\r\n" +
+                                                       "X-RTP-PORT: %1$d\r\n" +
+                                                       "X-RTP-PAYLOAD-TYPE: %2$d\r\n" +
+                                                       "X-RTP-ENCODING: %3$s\r\n";
+    private static final String FEC_HEADERS_TEMPLATE = "X-RTP-FEC-PAYLOAD-TYPE: %1$d\r\n";
+    private static final String LATENCY_PROBE_HEADERS_TEMPLATE = "X-LATENCY-PROBE-PORT: %1$d\r\n";
+    private static final String FRAMING_HEADERS_TEMPLATE = "X-FRAMING: %1$d\r\n";
+
+    private StreamHeader() {
+    }
+
+    /**
+     * @param width        video width
+     * @param height       video height
+     * @param extraHeaders further header lines, each ending in CRLF, or an empty string
+     * @return the complete preamble, ending with an empty line
+     */
+    public static String build(int width, int height, String extraHeaders) {
+        return String.format(Locale.US, HTTP_MESSAGE_TEMPLATE, width, height, extraHeaders);
+    }
+
+    /**
+     * Header lines announcing video over RTP.
+     *
+     * @param port           UDP port the receiver listens on
+     * @param payloadType    payload type of the media packets
+     * @param encodingName   RTP encoding name of the media packets, e.g. H264
+     * @param fecPayloadType payload type of the parity packets, or -1 without FEC
+     */
+    public static String rtpHeaders(int port, int payloadType, String encodingName, int fecPayloadType) {
+        String headers = String.format(Locale.US, RTP_HEADERS_TEMPLATE, port, payloadType, encodingName);
+        if (fecPayloadType >= 0) {
+            headers += String.format(Locale.US, FEC_HEADERS_TEMPLATE, fecPayloadType);
+        }
+        return headers;
+    }
+
+    /**
+     * Header line asking the receiver to echo {@link LatencyProbe} packets.
+     *
+     * @param port UDP port the receiver listens for probes on
+     */
+    public static String latencyProbeHeaders(int port) {
+        return String.format(Locale.US, LATENCY_PROBE_HEADERS_TEMPLATE, port);
+    }
+
+    /**
+     * Header line announcing that every frame is preceded by a {@link FramedWriter} header.
+     *
+     * @param version framing version agreed with the receiver
+     */
+    public static String framingHeaders(int version) {
+        return String.format(Locale.US, FRAMING_HEADERS_TEMPLATE, version);
+    }
+}
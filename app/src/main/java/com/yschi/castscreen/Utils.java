@@ -17,13 +17,14 @@
 package com.yschi.castscreen;
 
 import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
 import android.net.DhcpInfo;
 import android.net.wifi.WifiManager;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.Set;
 
 /**
  * Created by yschi on 2015/5/27.
@@ -44,22 +45,42 @@ public class Utils {
         return InetAddress.getByAddress(quads);
     }
 
-    static public boolean sendBroadcastMessage(Context context, DatagramSocket socket, int port, String message) {
-
-        try {
-            InetAddress broadcastAddr = getBroadcastAddress(context);
-            if (broadcastAddr == null) {
-                return false;
+    /**
+     * Sorts the video formats the device can encode at the given size into hardware and software ones.
+     *
+     * @param hardware gets the formats with a hardware encoder
+     * @param software gets the formats with only a software encoder
+     */
+    static public void getEncoderFormats(int width, int height, Set<String> hardware, Set<String> software) {
+        MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        for (MediaCodecInfo info : infos) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (!VideoFormats.isKnown(type)) {
+                    continue;
+                }
+                MediaCodecInfo.VideoCapabilities capabilities;
+                try {
+                    capabilities = info.getCapabilitiesForType(type).getVideoCapabilities();
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                if (capabilities == null || !capabilities.isSizeSupported(width, height)) {
+                    continue;
+                }
+                if (isSoftwareCodec(info.getName())) {
+                    software.add(type);
+                } else {
+                    hardware.add(type);
+                }
             }
-            socket.setBroadcast(true);
-            DatagramPacket packet = new DatagramPacket(message.getBytes(), message.length(),
-                    broadcastAddr, port);
-            socket.send(packet);
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return false;
+        software.removeAll(hardware);
     }
 
+    static private boolean isSoftwareCodec(String name) {
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.util.Collection;
+
+/**
+ * The video formats the sender can stream and how each one goes on the wire.
+ *
+ * The mime types are the same strings as the MediaFormat constants.
+ */
+public class VideoFormats {
+    public static final String AVC = "video/avc";
+    public static final String HEVC = "video/hevc";
+    public static final String VP8 = "video/x-vnd.on2.vp8";
+    public static final String VP9 = "video/x-vnd.on2.vp9";
+    // stands for the best format the device has an encoder for
+    public static final String AUTO = "auto";
+
+    // best compression first
+    private static final String[] PREFERENCE = {HEVC, VP9, AVC, VP8};
+    // software encoders of these are fast enough for the screen on any device
+    private static final String[] SOFTWARE_FALLBACK = {AVC, VP8};
+
+    private VideoFormats() {
+    }
+
+    /**
+     * Picks the format to encode with.
+     *
+     * @param requested format asked for, or {@link #AUTO}
+     * @param hardware  formats the device has a hardware encoder for at the cast size
+     * @param software  formats the device has only a software encoder for at the cast size
+     * @return the requested format if the device can encode it, otherwise the
+     *         best hardware format, then AVC or VP8 in software, then AVC
+     */
+    public static String choose(String requested, Collection<String> hardware, Collection<String> software) {
+        if (!AUTO.equals(requested) && (hardware.contains(requested) || software.contains(requested))) {
+            return requested;
+        }
+        for (String format : PREFERENCE) {
+            if (hardware.contains(format)) {
+                return format;
+            }
+        }
+        for (String format : SOFTWARE_FALLBACK) {
+            if (software.contains(format)) {
+                return format;
+            }
+        }
+        return AVC;
+    }
+
+    public static boolean isKnown(String format) {
+        for (String known : PREFERENCE) {
+            if (known.equals(format)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the format is an Annex B stream whose SPS and PPS (and VPS for HEVC) come as codec config.
+     */
+    public static boolean usesParameterSets(String format) {
+        return AVC.equals(format) || HEVC.equals(format);
+    }
+
+    /**
+     * Whether frames of the format go out in IVF.
+     */
+    public static boolean usesIvf(String format) {
+        return VP8.equals(format) || VP9.equals(format);
+    }
+
+    /**
+     * The RTP encoding name of the format, as in an SDP rtpmap line.
+     *
+     * @return the name, or null if the format has no RTP payload format the receivers know
+     */
+    public static String rtpEncodingName(String format) {
+        if (AVC.equals(format)) {
+            return "H264";
+        } else if (VP8.equals(format)) {
+            return "VP8";
+        }
+        return null;
+    }
+
+    /**
+     * The IVF fourcc of the format.
+     */
+    public static String ivfFourcc(String format) {
+        return VP9.equals(format) ? IvfWriter.FOURCC_VP9 : IvfWriter.FOURCC_VP8;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Accepts viewers in server mode on a single selector thread.
+ *
+ * Every connection starts non-blocking: the handshake line is read as it
+ * trickles in and the stream header is flushed whenever the socket can take
+ * more, so a slow or stuck client never holds a thread. Connections that do
+ * not finish the handshake in time are closed. Once the header is out, the
+ * channel is switched back to blocking mode and handed to the listener,
+ * which feeds it frames from the viewer's {@link FrameSender}. Frame writes
+ * stay on that thread: it owns the viewer's queue and drop policy, and a
+ * viewer that stops reading only ever blocks its own sender.
+ *
+ * The handshake line may carry options after the keyword, currently only
+ * "framing=N" asking for {@link FramedWriter} headers of up to version N.
+ */
+public class ViewerServer implements Runnable, Closeable {
+    public static final String HANDSHAKE = "mirror";
+    private static final String FRAMING_OPTION = "framing=";
+    // longest handshake line accepted, line break included
+    private static final int MAX_HANDSHAKE_LENGTH = 64;
+
+    public interface Listener {
+        /**
+         * Called on the server thread once a client asked to mirror.
+         *
+         * @param framing highest framing version the client asked for, 0 if none
+         * @return the stream header to send, or null to close the connection
+         */
+        byte[] onHandshake(SocketChannel channel, int framing);
+
+        /**
+         * Called on the server thread once the stream header was sent. The channel
+         * is in blocking mode and belongs to the listener from now on.
+         *
+         * @param framing the same value as passed to {@link #onHandshake}
+         */
+        void onViewerReady(SocketChannel channel, int framing);
+    }
+
+    /**
+     * State of one connection until its stream header is out.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        // on the System.nanoTime() clock, in milliseconds
+        final long deadlineMs;
+        final ByteBuffer line = ByteBuffer.allocate(MAX_HANDSHAKE_LENGTH);
+        ByteBuffer header;
+        int framing;
+
+        Connection(SocketChannel channel, long deadlineMs) {
+            this.channel = channel;
+            this.deadlineMs = deadlineMs;
+        }
+    }
+
+    private final InetSocketAddress mAddress;
+    private final long mHandshakeTimeoutMs;
+    private final Listener mListener;
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private Thread mThread;
+    private volatile boolean mClosed;
+    // connections whose header is out, handed over once their keys are deregistered
+    private final ArrayList<Connection> mReady = new ArrayList<Connection>();
+
+    /**
+     * @param address            address to listen on
+     * @param handshakeTimeoutMs time a client has from connecting until its stream header is out
+     * @param listener           told about handshakes and ready viewers
+     */
+    public ViewerServer(InetSocketAddress address, long handshakeTimeoutMs, Listener listener) {
+        mAddress = address;
+        mHandshakeTimeoutMs = handshakeTimeoutMs;
+        mListener = listener;
+    }
+
+    /**
+     * Binds the listening socket and starts the server thread. If that fails,
+     * nothing is left open.
+     */
+    public void start() throws IOException {
+        try {
+            mSelector = Selector.open();
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.socket().setReuseAddress(true);
+            mServerChannel.socket().bind(mAddress);
+            mServerChannel.configureBlocking(false);
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            // without the server thread nothing else would release them
+            closeQuietly(mServerChannel);
+            closeQuietly(mSelector);
+            throw e;
+        }
+        mThread = new Thread(this, "ViewerServer");
+        mThread.start();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int getLocalPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting and closes connections still in their handshake.
+     * Viewers already handed to the listener stay open.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+        Thread thread = mThread;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mThread = null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mClosed) {
+                long nowMs = System.nanoTime() / 1000000;
+                long nextDeadlineMs = closeExpired(nowMs);
+                mSelector.select(nextDeadlineMs == Long.MAX_VALUE ? 0 : Math.max(1, nextDeadlineMs - nowMs));
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(key, connection);
+                            } else if (key.isWritable()) {
+                                flush(key, connection);
+                            }
+                        } catch (IOException e) {
+                            close(key);
+                        }
+                    }
+                }
+                if (!mReady.isEmpty()) {
+                    handOver();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                close(key);
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, System.nanoTime() / 1000000 + mHandshakeTimeoutMs);
+        channel.register(mSelector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * Closes connections past their deadline.
+     *
+     * @return the earliest deadline left, or Long.MAX_VALUE if there is none
+     */
+    private long closeExpired(long nowMs) {
+        long nextDeadlineMs = Long.MAX_VALUE;
+        for (SelectionKey key : mSelector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection == null || !key.isValid()) {
+                continue;
+            }
+            if (connection.deadlineMs <= nowMs) {
+                close(key);
+            } else {
+                nextDeadlineMs = Math.min(nextDeadlineMs, connection.deadlineMs);
+            }
+        }
+        return nextDeadlineMs;
+    }
+
+    private void read(SelectionKey key, Connection connection) throws IOException {
+        ByteBuffer line = connection.line;
+        int start = line.position();
+        if (connection.channel.read(line) < 0) {
+            close(key);
+            return;
+        }
+        int end = -1;
+        for (int i = start; i < line.position(); i++) {
+            if (line.get(i) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (!line.hasRemaining()) {
+                close(key);
+            }
+            return;
+        }
+        if (!isHandshake(line.array(), end)) {
+            close(key);
+            return;
+        }
+        connection.framing = parseFraming(line.array(), end);
+        byte[] header = mListener.onHandshake(connection.channel, connection.framing);
+        if (header == null) {
+            close(key);
+            return;
+        }
+        connection.header = ByteBuffer.wrap(header);
+        key.interestOps(SelectionKey.OP_WRITE);
+        flush(key, connection);
+    }
+
+    /**
+     * Whether the first length bytes of the line, without a trailing CR, are the handshake,
+     * optionally followed by a space and options.
+     */
+    static boolean isHandshake(byte[] line, int length) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (length < HANDSHAKE.length() || (length > HANDSHAKE.length() && line[HANDSHAKE.length()] != ' ')) {
+            return false;
+        }
+        for (int i = 0; i < HANDSHAKE.length(); i++) {
+            if (Character.toLowerCase((char) line[i]) != HANDSHAKE.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The framing version asked for in the options of a handshake line.
+     *
+     * @return the version, or 0 if the line has no valid framing option
+     */
+    static int parseFraming(byte[] line, int length) {
+        String options = new String(line, 0, length, StandardCharsets.US_ASCII).trim().toLowerCase(Locale.US);
+        for (String option : options.split(" +")) {
+            if (option.startsWith(FRAMING_OPTION)) {
+                try {
+                    return Math.max(0, Integer.parseInt(option.substring(FRAMING_OPTION.length())));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private void flush(SelectionKey key, Connection connection) throws IOException {
+        connection.channel.write(connection.header);
+        if (connection.header.hasRemaining()) {
+            // the rest goes out once the socket signals room again
+            return;
+        }
+        key.cancel();
+        mReady.add(connection);
+    }
+
+    private void handOver() throws IOException {
+        // cancelled keys are only deregistered by the next select, blocking mode cannot be set before
+        mSelector.selectNow();
+        for (Connection connection : mReady) {
+            try {
+                connection.channel.configureBlocking(true);
+            } catch (IOException e) {
+                connection.channel.close();
+                continue;
+            }
+            mListener.onViewerReady(connection.channel, connection.framing);
+        }
+        mReady.clear();
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
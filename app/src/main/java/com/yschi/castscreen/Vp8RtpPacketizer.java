@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yschi.castscreen;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * RTP payload format for VP8 (RFC 7741).
+ *
+ * Every packet starts with the one byte payload descriptor. Frames are sent
+ * as a single partition, so only the first packet of a frame has the start
+ * bit set. The marker bit is set on the last packet of every frame.
+ */
+public class Vp8RtpPacketizer extends RtpPacketizer {
+    private static final int DESCRIPTOR_SIZE = 1;
+    // S: start of VP8 partition, partition index 0
+    private static final int DESCRIPTOR_START = 0x10;
+
+    public Vp8RtpPacketizer(int maxPacketSize, int payloadType) {
+        super(maxPacketSize, payloadType);
+    }
+
+    Vp8RtpPacketizer(int maxPacketSize, int payloadType, Random random) {
+        super(maxPacketSize, payloadType, random);
+    }
+
+    @Override
+    public void packetize(byte[] data, int offset, int length, long presentationTimeUs, int flags,
+                          PacketSink sink) throws IOException {
+        int end = offset + length;
+        int position = offset;
+        int fragmentSize = maxPayloadSize() - DESCRIPTOR_SIZE;
+        boolean first = true;
+        while (position < end) {
+            int size = Math.min(fragmentSize, end - position);
+            mPacket[HEADER_SIZE] = (byte) (first ? DESCRIPTOR_START : 0);
+            System.arraycopy(data, position, mPacket, HEADER_SIZE + DESCRIPTOR_SIZE, size);
+            position += size;
+            send(size + DESCRIPTOR_SIZE, position == end, presentationTimeUs, sink);
+            first = false;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays link throughput traces against {@link BitrateController}.
+ *
+ * The link is a FIFO that drains at the capacity given by the trace. The
+ * encoder produces 25 fps at the controller's current bitrate with a key
+ * frame every second, and each frame is reported to the controller once it
+ * has been fully written, just like the sender thread does.
+ */
+public class BitrateControllerTest {
+    private static final int FPS = 25;
+    private static final long FRAME_INTERVAL_US = 1000000 / FPS;
+    private static final int MIN_BITRATE = 512000;
+    private static final int MAX_BITRATE = 6144000;
+
+    /**
+     * Link capacity in bits per second, one entry per second of simulated time.
+     */
+    private static int[] trace(int... capacities) {
+        return capacities;
+    }
+
+    private static int[] repeat(int capacity, int seconds) {
+        int[] trace = new int[seconds];
+        java.util.Arrays.fill(trace, capacity);
+        return trace;
+    }
+
+    private static int[] concat(int[]... traces) {
+        int length = 0;
+        for (int[] trace : traces) {
+            length += trace.length;
+        }
+        int[] result = new int[length];
+        int offset = 0;
+        for (int[] trace : traces) {
+            System.arraycopy(trace, 0, result, offset, trace.length);
+            offset += trace.length;
+        }
+        return result;
+    }
+
+    private static class Result {
+        // per second of simulated time
+        int[] bitrate;
+        long[] maxQueueDelayUs;
+    }
+
+    private static class SentFrame {
+        final int bytes;
+        final long queuedUs;
+        final long startUs;
+        final long sentUs;
+
+        SentFrame(int bytes, long queuedUs, long startUs, long sentUs) {
+            this.bytes = bytes;
+            this.queuedUs = queuedUs;
+            this.startUs = startUs;
+            this.sentUs = sentUs;
+        }
+    }
+
+    private static Result simulate(int[] capacityTrace, int initialBitrate) {
+        BitrateController controller = new BitrateController(initialBitrate, MIN_BITRATE, MAX_BITRATE, null);
+        Result result = new Result();
+        result.bitrate = new int[capacityTrace.length];
+        result.maxQueueDelayUs = new long[capacityTrace.length];
+        ArrayDeque<SentFrame> inFlight = new ArrayDeque<>();
+        long linkFreeUs = 0;
+        long frameCount = (long) capacityTrace.length * FPS;
+        for (long i = 0; i < frameCount; i++) {
+            long nowUs = i * FRAME_INTERVAL_US;
+            // report frames the link finished before this frame is produced
+            while (!inFlight.isEmpty() && inFlight.peek().sentUs <= nowUs) {
+                SentFrame sent = inFlight.poll();
+                // the sender reports the time a frame waited before its own write started
+                long queueDelayUs = sent.startUs - sent.queuedUs;
+                int second = (int) (sent.sentUs / 1000000);
+                if (second < result.maxQueueDelayUs.length) {
+                    result.maxQueueDelayUs[second] = Math.max(result.maxQueueDelayUs[second], queueDelayUs);
+                }
+                controller.onFrameSent(sent.bytes, queueDelayUs, sent.sentUs, 0);
+            }
+            int second = (int) (nowUs / 1000000);
+            result.bitrate[second] = controller.getBitrate();
+            // a key frame is about four times the size of a P-frame of the same second
+            int averageBytes = controller.getBitrate() / 8 / FPS;
+            int bytes = i % FPS == 0 ? averageBytes * 4 : averageBytes * (FPS - 4) / (FPS - 1);
+            long startUs = Math.max(nowUs, linkFreeUs);
+            long transmitUs = (long) bytes * 8 * 1000000 / capacityTrace[Math.min(second, capacityTrace.length - 1)];
+            linkFreeUs = startUs + transmitUs;
+            inFlight.add(new SentFrame(bytes, nowUs, startUs, linkFreeUs));
+        }
+        return result;
+    }
+
+    private static long maxQueueDelayUs(Result result, int fromSecond, int toSecond) {
+        long max = 0;
+        for (int i = fromSecond; i < toSecond; i++) {
+            max = Math.max(max, result.maxQueueDelayUs[i]);
+        }
+        return max;
+    }
+
+    @Test
+    public void keepsMaximumBitrateOnCleanLink() {
+        Result result = simulate(repeat(20000000, 30), MAX_BITRATE);
+        for (int bitrate : result.bitrate) {
+            assertEquals(MAX_BITRATE, bitrate);
+        }
+    }
+
+    @Test
+    public void backsOffWhenLinkDegrades() {
+        Result result = simulate(concat(repeat(10000000, 10), repeat(2000000, 30)), MAX_BITRATE);
+        assertEquals(MAX_BITRATE, result.bitrate[9]);
+        // converged below the new capacity within 10 seconds of the drop
+        for (int i = 20; i < 40; i++) {
+            assertTrue("bitrate " + result.bitrate[i] + " at " + i + " s", result.bitrate[i] <= 2000000);
+        }
+        assertTrue("queue delay " + maxQueueDelayUs(result, 25, 40), maxQueueDelayUs(result, 25, 40) < 300000);
+    }
+
+    @Test
+    public void recoversWhenLinkImproves() {
+        Result result = simulate(concat(repeat(1500000, 20), repeat(10000000, 40)), MAX_BITRATE);
+        assertTrue(result.bitrate[19] <= 1500000);
+        assertEquals(MAX_BITRATE, result.bitrate[59]);
+    }
+
+    @Test
+    public void staysWithinBoundsOnCollapsedLink() {
+        Result result = simulate(concat(repeat(6000000, 5), repeat(300000, 20)), MAX_BITRATE);
+        for (int bitrate : result.bitrate) {
+            assertTrue(bitrate >= MIN_BITRATE && bitrate <= MAX_BITRATE);
+        }
+        assertEquals(MIN_BITRATE, result.bitrate[24]);
+    }
+
+    @Test
+    public void tracksFluctuatingLink() {
+        int[] capacity = concat(
+                trace(4000000, 4000000, 3000000, 2500000, 2500000, 3000000, 5000000, 5000000),
+                repeat(3000000, 12),
+                trace(2000000, 2000000, 1500000, 2000000, 3500000, 4000000, 4000000, 4000000),
+                repeat(3500000, 12));
+        Result result = simulate(capacity, 2048000);
+        // after settling, the backlog never reaches a second
+        assertTrue(maxQueueDelayUs(result, 10, capacity.length) < 1000000);
+        for (int i = 32; i < capacity.length; i++) {
+            assertTrue(result.bitrate[i] <= 3500000);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderProfileTest {
+    // AVC profiles as in MediaCodecInfo.CodecProfileLevel
+    private static final int BASELINE = 1;
+    private static final int MAIN = 2;
+    private static final int HIGH = 8;
+
+    @Test
+    public void keepsOnlySupportedOptions() {
+        EncoderProfile profile = new EncoderProfile()
+                .offer(EncoderProfile.KEY_BITRATE_MODE, 2, true)
+                .offer(EncoderProfile.KEY_LATENCY, 1, false)
+                .offer(EncoderProfile.KEY_PRIORITY, 0, true);
+        assertEquals(Arrays.asList(EncoderProfile.KEY_BITRATE_MODE, EncoderProfile.KEY_PRIORITY),
+                Arrays.asList(profile.getSettings().keySet().toArray()));
+        assertEquals(Integer.valueOf(2), profile.getSettings().get(EncoderProfile.KEY_BITRATE_MODE));
+        assertEquals(Arrays.asList(EncoderProfile.KEY_LATENCY), profile.getUnsupported());
+        assertTrue(profile.has(EncoderProfile.KEY_PRIORITY));
+        assertFalse(profile.has(EncoderProfile.KEY_LATENCY));
+    }
+
+    @Test
+    public void spreadsIntraRefreshOverFrames() {
+        assertEquals(25, EncoderProfile.intraRefreshPeriod(25, 1000));
+        assertEquals(30, EncoderProfile.intraRefreshPeriod(60, 500));
+        assertEquals(1, EncoderProfile.intraRefreshPeriod(1, 100));
+    }
+
+    @Test
+    public void picksPreferredProfileAtHighestLevel() {
+        int[] profiles = {BASELINE, MAIN, HIGH, MAIN, HIGH};
+        int[] levels = {0x800, 0x800, 0x200, 0x1000, 0x400};
+        assertEquals(4, EncoderProfile.pickProfile(profiles, levels, new int[]{HIGH, MAIN, BASELINE}));
+        assertEquals(3, EncoderProfile.pickProfile(profiles, levels, new int[]{MAIN}));
+        assertEquals(-1, EncoderProfile.pickProfile(new int[]{BASELINE}, new int[]{0x800}, new int[]{HIGH, MAIN}));
+    }
+}
@@ -0,0 +1,226 @@
+package com.yschi.castscreen;
+
+import java.io.IOException;
+
+/**
+ * Rebuilds lost RTP packets from the parity packets of a {@link FecEncoder}
+ * and hands media packets on in sequence order.
+ *
+ * After a gap, later packets are held until the missing one is rebuilt, its
+ * parity packet turns out not to be enough, or more than holdPackets packets
+ * are waiting. Only then is the gap passed on as a loss.
+ *
+ * The sender never decodes FEC itself, this is the Java counterpart of the
+ * receiver's decoder for the loss simulations.
+ */
+public class FecDecoder {
+    private static final int WINDOW = 1024;
+    private static final int MAX_PARITY_PACKETS = 64;
+
+    private final int mPayloadType;
+    private final int mHoldPackets;
+    private final RtpPacketizer.PacketSink mSink;
+    // media packets by sequence number, kept after delivery so they can help rebuilding others
+    private final byte[][] mPackets;
+    private final int[] mLengths;
+    private final int[] mSequenceNumbers;
+    private final boolean[] mPresent;
+    private final byte[][] mParity;
+    private final int[] mParityLengths;
+    private int mParityCount;
+    private int mNextParity;
+    private final byte[] mScratch;
+    private boolean mStarted;
+    private int mNextSequence;
+    private int mHighestSequence;
+    private long mRecoveredPackets;
+    private long mLostPackets;
+
+    /**
+     * @param payloadType   RTP payload type of the parity packets
+     * @param maxPacketSize largest packet on the wire, parity packets included
+     * @param holdPackets   packets to hold back after a gap before giving it up
+     * @param sink          receives the media packets in order
+     */
+    public FecDecoder(int payloadType, int maxPacketSize, int holdPackets, RtpPacketizer.PacketSink sink) {
+        mPayloadType = payloadType;
+        mHoldPackets = Math.min(holdPackets, WINDOW / 2);
+        mSink = sink;
+        mPackets = new byte[WINDOW][maxPacketSize];
+        mLengths = new int[WINDOW];
+        mSequenceNumbers = new int[WINDOW];
+        mPresent = new boolean[WINDOW];
+        mParity = new byte[MAX_PARITY_PACKETS][maxPacketSize];
+        mParityLengths = new int[MAX_PARITY_PACKETS];
+        mScratch = new byte[maxPacketSize];
+    }
+
+    private static int sequenceNumber(byte[] packet) {
+        return ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+    }
+
+    /**
+     * Signed distance from b to a in sequence number space.
+     */
+    private static int distance(int a, int b) {
+        return (short) (a - b);
+    }
+
+    private boolean has(int sequence) {
+        int slot = sequence & (WINDOW - 1);
+        return mPresent[slot] && mSequenceNumbers[slot] == sequence;
+    }
+
+    /**
+     * Takes one received packet, media or parity.
+     */
+    public void onPacket(byte[] packet, int length) throws IOException {
+        if (length < RtpPacketizer.HEADER_SIZE || length > mScratch.length) {
+            return;
+        }
+        if ((packet[1] & 0x7f) == mPayloadType) {
+            if (length < FecEncoder.OVERHEAD) {
+                return;
+            }
+            int index = mNextParity;
+            mNextParity = (mNextParity + 1) % MAX_PARITY_PACKETS;
+            mParityCount = Math.min(mParityCount + 1, MAX_PARITY_PACKETS);
+            System.arraycopy(packet, 0, mParity[index], 0, length);
+            mParityLengths[index] = length;
+            recover(index);
+        } else {
+            int sequence = sequenceNumber(packet);
+            if (!mStarted) {
+                mStarted = true;
+                mNextSequence = sequence;
+                mHighestSequence = sequence;
+            }
+            if (distance(sequence, mNextSequence) < 0 || has(sequence)) {
+                // too late or a duplicate
+                return;
+            }
+            store(sequence, packet, length);
+            if (distance(sequence, mHighestSequence) > 0) {
+                mHighestSequence = sequence;
+            }
+            // a late packet may complete a column whose parity arrived first
+            for (int i = 0; i < mParityCount; i++) {
+                recover(i);
+            }
+        }
+        deliver();
+    }
+
+    private void store(int sequence, byte[] packet, int length) {
+        int slot = sequence & (WINDOW - 1);
+        System.arraycopy(packet, 0, mPackets[slot], 0, length);
+        mLengths[slot] = length;
+        mSequenceNumbers[slot] = sequence;
+        mPresent[slot] = true;
+    }
+
+    /**
+     * Rebuilds the only missing packet of a parity packet's column, if there is exactly one.
+     *
+     * @return the number of protected packets still missing
+     */
+    private int recover(int parityIndex) {
+        byte[] parity = mParity[parityIndex];
+        int first = ((parity[12] & 0xff) << 8) | (parity[13] & 0xff);
+        int count = parity[14] & 0xff;
+        int stride = parity[15] & 0xff;
+        int missing = 0;
+        int missingSequence = -1;
+        for (int i = 0; i < count; i++) {
+            int sequence = (first + i * stride) & 0xffff;
+            if (!has(sequence)) {
+                missing++;
+                missingSequence = sequence;
+            }
+        }
+        if (missing != 1 || !mStarted || distance(missingSequence, mNextSequence) < 0) {
+            return missing;
+        }
+        int parityLength = mParityLengths[parityIndex] - FecEncoder.OVERHEAD;
+        int length = ((parity[16] & 0xff) << 8) | (parity[17] & 0xff);
+        System.arraycopy(parity, FecEncoder.OVERHEAD, mScratch, 0, parityLength);
+        for (int i = 0; i < count; i++) {
+            int sequence = (first + i * stride) & 0xffff;
+            if (sequence == missingSequence) {
+                continue;
+            }
+            int slot = sequence & (WINDOW - 1);
+            byte[] packet = mPackets[slot];
+            int packetLength = mLengths[slot];
+            length ^= packetLength;
+            for (int j = 0; j < packetLength; j++) {
+                mScratch[j] ^= packet[j];
+            }
+        }
+        if (length <= 0 || length > parityLength || sequenceNumber(mScratch) != missingSequence) {
+            return missing;
+        }
+        store(missingSequence, mScratch, length);
+        mRecoveredPackets++;
+        return 0;
+    }
+
+    /**
+     * @return true if a parity packet protecting the sequence number has been
+     *         received and cannot rebuild it
+     */
+    private boolean isUnrecoverable(int sequence) {
+        for (int i = 0; i < mParityCount; i++) {
+            byte[] parity = mParity[i];
+            int first = ((parity[12] & 0xff) << 8) | (parity[13] & 0xff);
+            int count = parity[14] & 0xff;
+            int stride = parity[15] & 0xff;
+            int offset = distance(sequence, first);
+            if (offset >= 0 && offset % stride == 0 && offset / stride < count) {
+                return recover(i) > 0;
+            }
+        }
+        return false;
+    }
+
+    private void deliver() throws IOException {
+        while (mStarted && distance(mHighestSequence, mNextSequence) >= 0) {
+            int slot = mNextSequence & (WINDOW - 1);
+            if (has(mNextSequence)) {
+                mSink.onPacket(mPackets[slot], mLengths[slot]);
+            } else if (distance(mHighestSequence, mNextSequence) > mHoldPackets
+                    || isUnrecoverable(mNextSequence)) {
+                mLostPackets++;
+            } else {
+                break;
+            }
+            mNextSequence = (mNextSequence + 1) & 0xffff;
+        }
+    }
+
+    /**
+     * Gives up all gaps and delivers everything held back, e.g. at the end of a stream.
+     */
+    public void flush() throws IOException {
+        while (mStarted && distance(mHighestSequence, mNextSequence) >= 0) {
+            int slot = mNextSequence & (WINDOW - 1);
+            if (has(mNextSequence)) {
+                mSink.onPacket(mPackets[slot], mLengths[slot]);
+            } else {
+                mLostPackets++;
+            }
+            mNextSequence = (mNextSequence + 1) & 0xffff;
+        }
+    }
+
+    public long getRecoveredPackets() {
+        return mRecoveredPackets;
+    }
+
+    /**
+     * Media packets passed on as lost.
+     */
+    public long getLostPackets() {
+        return mLostPackets;
+    }
+}
@@ -0,0 +1,180 @@
+package com.yschi.castscreen;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic loss simulation for the UDP video path with and without FEC.
+ *
+ * A 30 second, 4 Mbps, 25 fps stream with a key frame every second is
+ * packetized, protected, sent through a lossy channel and decoded. Every
+ * configuration runs against the same seeded loss process. A frame counts as
+ * displayable when it and every frame since the last key frame arrived
+ * complete. FecLossSimulationTest checks the outcome, FecLossReport in the
+ * benchmark module prints it as a table per channel.
+ */
+public class FecLossSimulation {
+    private static final int FPS = 25;
+    private static final int SECONDS = 30;
+    private static final int BITRATE = 4000000;
+    private static final int WIRE_PACKET_SIZE = 1472;
+    private static final int FEC_PAYLOAD_TYPE = 97;
+    private static final int HOLD_PACKETS = 64;
+    // {group size, interleave}, group size 0 is no FEC
+    public static final int[][] CONFIGS = {{0, 0}, {20, 1}, {10, 1}, {10, 2}, {5, 2}, {4, 4}};
+
+    public interface Channel {
+        /**
+         * @return true if the next packet on the wire is lost
+         */
+        boolean drop();
+    }
+
+    public interface ChannelFactory {
+        Channel create(long seed);
+    }
+
+    public static class Result {
+        public double overhead;
+        public double packetLoss;
+        public double residualLoss;
+        public double completeFrames;
+        public double displayableFrames;
+        public long recovered;
+        // media packets that never reached the decoder's sink
+        public long undelivered;
+        // media packets the decoder gave up on
+        public long lost;
+    }
+
+    private FecLossSimulation() {
+    }
+
+    public static Channel bernoulli(final double lossRate, long seed) {
+        final Random random = new Random(seed);
+        return new Channel() {
+            @Override
+            public boolean drop() {
+                return random.nextDouble() < lossRate;
+            }
+        };
+    }
+
+    /**
+     * Two state Markov channel with bursty losses, typical of Wi-Fi interference.
+     */
+    public static Channel gilbertElliott(final double goodLoss, final double badLoss,
+                                         final double goodToBad, final double badToGood, long seed) {
+        final Random random = new Random(seed);
+        return new Channel() {
+            boolean mBad;
+
+            @Override
+            public boolean drop() {
+                mBad = mBad ? random.nextDouble() >= badToGood : random.nextDouble() < goodToBad;
+                return random.nextDouble() < (mBad ? badLoss : goodLoss);
+            }
+        };
+    }
+
+    /**
+     * Runs every configuration in {@link #CONFIGS} against channels created with the same seed.
+     */
+    public static Result[] run(long seed, ChannelFactory factory) throws IOException {
+        Result[] results = new Result[CONFIGS.length];
+        for (int i = 0; i < CONFIGS.length; i++) {
+            results[i] = simulate(CONFIGS[i][0], CONFIGS[i][1], factory.create(seed));
+        }
+        return results;
+    }
+
+    public static String configName(int index) {
+        return CONFIGS[index][0] == 0 ? "none" : CONFIGS[index][0] + "x" + CONFIGS[index][1];
+    }
+
+    public static Result simulate(int groupSize, int interleave, Channel channel) throws IOException {
+        final int frameCount = FPS * SECONDS;
+        final Map<Integer, Integer> frameOfSequence = new HashMap<>();
+        final int[] packetsOfFrame = new int[frameCount];
+        final int[] receivedOfFrame = new int[frameCount];
+        final long[] wire = new long[2]; // packets sent, packets lost
+        final long[] media = new long[2]; // media packets sent, media packets delivered
+
+        final FecDecoder decoder = new FecDecoder(FEC_PAYLOAD_TYPE, WIRE_PACKET_SIZE, HOLD_PACKETS,
+                new RtpPacketizer.PacketSink() {
+                    @Override
+                    public void onPacket(byte[] packet, int length) {
+                        int sequence = ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+                        receivedOfFrame[frameOfSequence.get(sequence)]++;
+                        media[1]++;
+                    }
+                });
+        final Channel lossyChannel = channel;
+        RtpPacketizer.PacketSink network = new RtpPacketizer.PacketSink() {
+            @Override
+            public void onPacket(byte[] packet, int length) throws IOException {
+                wire[0]++;
+                if (lossyChannel.drop()) {
+                    wire[1]++;
+                    return;
+                }
+                decoder.onPacket(packet, length);
+            }
+        };
+        final FecEncoder encoder = groupSize > 0
+                ? new FecEncoder(groupSize, interleave, WIRE_PACKET_SIZE - FecEncoder.OVERHEAD, FEC_PAYLOAD_TYPE, network)
+                : null;
+        final RtpPacketizer.PacketSink protectedNetwork = encoder != null ? encoder : network;
+        final int[] currentFrame = new int[1];
+        RtpPacketizer.PacketSink packetSink = new RtpPacketizer.PacketSink() {
+            @Override
+            public void onPacket(byte[] packet, int length) throws IOException {
+                int sequence = ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+                frameOfSequence.put(sequence, currentFrame[0]);
+                packetsOfFrame[currentFrame[0]]++;
+                media[0]++;
+                protectedNetwork.onPacket(packet, length);
+            }
+        };
+        int maxPacketSize = WIRE_PACKET_SIZE - (encoder != null ? FecEncoder.OVERHEAD : 0);
+        H264RtpPacketizer packetizer = new H264RtpPacketizer(maxPacketSize, 96, new Random(7));
+        Random sizes = new Random(11);
+        int averageBytes = BITRATE / 8 / FPS;
+        for (int i = 0; i < frameCount; i++) {
+            boolean keyFrame = i % FPS == 0;
+            int size = keyFrame ? averageBytes * 4 : averageBytes / 2 + sizes.nextInt(averageBytes);
+            byte[] frame = new byte[size];
+            frame[3] = 1;
+            frame[4] = (byte) (keyFrame ? 0x65 : 0x41);
+            currentFrame[0] = i;
+            packetizer.packetize(frame, 0, size, i * 1000000L / FPS, keyFrame ? EncodedFrame.FLAG_KEY_FRAME : 0,
+                    packetSink);
+        }
+        decoder.flush();
+
+        int complete = 0;
+        int displayable = 0;
+        boolean chainIntact = false;
+        for (int i = 0; i < frameCount; i++) {
+            boolean frameComplete = receivedOfFrame[i] == packetsOfFrame[i];
+            if (i % FPS == 0) {
+                chainIntact = true;
+            }
+            chainIntact &= frameComplete;
+            complete += frameComplete ? 1 : 0;
+            displayable += chainIntact ? 1 : 0;
+        }
+        Result result = new Result();
+        result.overhead = (double) (wire[0] - media[0]) / media[0];
+        result.packetLoss = (double) wire[1] / wire[0];
+        result.residualLoss = (double) (media[0] - media[1]) / media[0];
+        result.completeFrames = (double) complete / frameCount;
+        result.displayableFrames = (double) displayable / frameCount;
+        result.recovered = decoder.getRecoveredPackets();
+        result.undelivered = media[0] - media[1];
+        result.lost = decoder.getLostPackets();
+        return result;
+    }
+}
@@ -0,0 +1,52 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the outcome of the {@link FecLossSimulation}, indexes follow
+ * {@link FecLossSimulation#CONFIGS}.
+ */
+public class FecLossSimulationTest {
+    private static FecLossSimulation.Result[] run(long seed, FecLossSimulation.ChannelFactory factory)
+            throws IOException {
+        FecLossSimulation.Result[] results = FecLossSimulation.run(seed, factory);
+        for (FecLossSimulation.Result result : results) {
+            // the decoder accounts for every media packet it did not deliver
+            assertEquals(result.undelivered, result.lost);
+        }
+        return results;
+    }
+
+    @Test
+    public void randomLoss() throws IOException {
+        FecLossSimulation.Result[] results = run(1, new FecLossSimulation.ChannelFactory() {
+            @Override
+            public FecLossSimulation.Channel create(long seed) {
+                return FecLossSimulation.bernoulli(0.02, seed);
+            }
+        });
+        // 10x1: one parity packet per 10 media packets rebuilds most isolated losses
+        assertTrue(results[2].residualLoss < results[0].residualLoss / 3);
+        assertTrue(results[2].displayableFrames > results[0].displayableFrames);
+        // more parity never makes it worse
+        assertTrue(results[4].residualLoss <= results[2].residualLoss);
+    }
+
+    @Test
+    public void burstLoss() throws IOException {
+        FecLossSimulation.Result[] results = run(2, new FecLossSimulation.ChannelFactory() {
+            @Override
+            public FecLossSimulation.Channel create(long seed) {
+                return FecLossSimulation.gilbertElliott(0.002, 0.5, 0.01, 0.3, seed);
+            }
+        });
+        // interleaving rebuilds bursts a plain group of the same overhead cannot
+        assertTrue(results[3].residualLoss < results[2].residualLoss);
+        assertTrue(results[5].displayableFrames > results[0].displayableFrames);
+    }
+}
@@ -0,0 +1,197 @@
+package com.yschi.castscreen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FragmentedMp4WriterTest {
+    // SPS and PPS of a Baseline 1280x720 H.264 stream
+    private static final byte[] SPS = {
+            0x67, 0x42, (byte) 0x80, 0x20, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8, 0x06, (byte) 0xd0, (byte) 0xa1, 0x35};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    private static final byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33, (byte) 0xff};
+    private static final byte[] SLICE = {0x41, (byte) 0x9a, 0x00, 0x12};
+
+    private File mFile;
+
+    private static class Box {
+        final String type;
+        final long offset;
+        final int size;
+
+        Box(String type, long offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("recording", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private static final byte[] SHORT_START_CODE = {0, 0, 1};
+
+    private static EncodedFrame frame(byte[] data, long presentationTimeUs, int flags) {
+        EncodedFrame frame = new EncodedFrame(16);
+        frame.set(ByteBuffer.wrap(data), presentationTimeUs, flags);
+        return frame;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return ((long) readInt(data, offset) << 32) | (readInt(data, offset + 4) & 0xffffffffL);
+    }
+
+    private static String type(byte[] data, int offset) {
+        return new String(data, offset, 4);
+    }
+
+    private static List<Box> topLevelBoxes(byte[] file) {
+        List<Box> boxes = new ArrayList<>();
+        int offset = 0;
+        while (offset < file.length) {
+            int size = readInt(file, offset);
+            boxes.add(new Box(type(file, offset + 4), offset, size));
+            offset += size;
+        }
+        assertEquals(file.length, offset);
+        return boxes;
+    }
+
+    private static int find(byte[] data, String type, int from) {
+        for (int i = from; i + 4 <= data.length; i++) {
+            if (type(data, i).equals(type)) {
+                return i - 4;
+            }
+        }
+        throw new AssertionError("No " + type + " box");
+    }
+
+    private byte[] record(EncodedFrame... frames) throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(new FileOutputStream(mFile).getChannel(), 1280, 720, 25);
+        for (EncodedFrame frame : frames) {
+            writer.writeFrame(frame);
+        }
+        writer.close();
+        byte[] file = new byte[(int) mFile.length()];
+        RandomAccessFile input = new RandomAccessFile(mFile, "r");
+        input.readFully(file);
+        input.close();
+        return file;
+    }
+
+    @Test
+    public void writesInitSegmentFragmentsAndIndex() throws IOException {
+        byte[] file = record(
+                frame(concat(START_CODE, SPS, SHORT_START_CODE, PPS), 0, EncodedFrame.FLAG_CODEC_CONFIG),
+                // nothing to decode it from yet
+                frame(concat(START_CODE, SLICE), 960000, 0),
+                frame(concat(SHORT_START_CODE, IDR), 1000000, EncodedFrame.FLAG_KEY_FRAME),
+                frame(concat(START_CODE, SLICE), 1040000, 0),
+                frame(concat(START_CODE, SLICE, START_CODE, SLICE), 1080000, 0),
+                frame(concat(START_CODE, IDR), 2000000, EncodedFrame.FLAG_KEY_FRAME));
+
+        List<Box> boxes = topLevelBoxes(file);
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) {
+            types.add(box.type);
+        }
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat", "moof", "mdat",
+                "mfra"), types);
+
+        int avcC = find(file, "avcC", 0);
+        byte[] expectedConfig = concat(new byte[] {1, 0x42, (byte) 0x80, 0x20, (byte) 0xff, (byte) 0xe1, 0, 13}, SPS,
+                new byte[] {1, 0, 4}, PPS);
+        assertArrayEquals(expectedConfig, Arrays.copyOfRange(file, avcC + 8, avcC + readInt(file, avcC)));
+        int tkhd = find(file, "tkhd", 0);
+        assertEquals(1280 << 16, readInt(file, tkhd + 84));
+        assertEquals(720 << 16, readInt(file, tkhd + 88));
+
+        // one sample per fragment, with lengths instead of start codes and times relative to the first key frame
+        long[] decodeTimes = {0, 3600, 7200, 90000};
+        byte[][] samples = {
+                concat(new byte[] {0, 0, 0, 6}, IDR),
+                concat(new byte[] {0, 0, 0, 4}, SLICE),
+                concat(new byte[] {0, 0, 0, 4}, SLICE, new byte[] {0, 0, 0, 4}, SLICE),
+                concat(new byte[] {0, 0, 0, 6}, IDR)};
+        int[] sampleFlags = {0x02000000, 0x01010000, 0x01010000, 0x02000000};
+        for (int i = 0; i < 4; i++) {
+            Box moof = boxes.get(2 + i * 2);
+            Box mdat = boxes.get(3 + i * 2);
+            int tfdt = find(file, "tfdt", (int) moof.offset);
+            assertEquals(decodeTimes[i], readLong(file, tfdt + 12));
+            int trun = find(file, "trun", (int) moof.offset);
+            assertEquals(1, readInt(file, trun + 12));
+            assertEquals(mdat.offset + 8 - moof.offset, readInt(file, trun + 16));
+            assertEquals(samples[i].length, readInt(file, trun + 24));
+            assertEquals(sampleFlags[i], readInt(file, trun + 28));
+            assertArrayEquals(samples[i], Arrays.copyOfRange(file, (int) mdat.offset + 8, (int) mdat.offset + mdat.size));
+        }
+
+        Box mfra = boxes.get(boxes.size() - 1);
+        int tfra = (int) mfra.offset + 8;
+        assertEquals("tfra", type(file, tfra + 4));
+        assertEquals(2, readInt(file, tfra + 20));
+        assertEquals(0, readLong(file, tfra + 24));
+        assertEquals(boxes.get(2).offset, readLong(file, tfra + 32));
+        assertEquals(90000, readLong(file, tfra + 43));
+        assertEquals(boxes.get(8).offset, readLong(file, tfra + 51));
+        // mfro at the very end gives the size of mfra, so players find the index from the end of the file
+        assertEquals("mfro", type(file, file.length - 12));
+        assertEquals(mfra.size, readInt(file, file.length - 4));
+    }
+
+    @Test
+    public void takesInBandParameterSets() throws IOException {
+        byte[] file = record(frame(concat(START_CODE, SPS, START_CODE, PPS, START_CODE, IDR), 0,
+                EncodedFrame.FLAG_KEY_FRAME));
+        int avcC = find(file, "avcC", 0);
+        assertEquals(0x42, file[avcC + 9]);
+        int mdat = find(file, "mdat", 0);
+        assertEquals(4 + SPS.length + 4 + PPS.length + 4 + IDR.length, readInt(file, mdat) - 8);
+    }
+
+    @Test
+    public void leavesEmptyFileWithoutKeyFrame() throws IOException {
+        byte[] file = record(frame(concat(START_CODE, SLICE), 0, 0));
+        assertEquals(0, file.length);
+    }
+}
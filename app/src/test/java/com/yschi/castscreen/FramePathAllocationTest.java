@@ -0,0 +1,217 @@
+package com.yschi.castscreen;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the per-frame path from a codec output buffer to the socket does not allocate.
+ */
+public class FramePathAllocationTest {
+    private static final int FRAME_COUNT = 2000;
+    private static final int MAX_FRAME_SIZE = 120 * 1024;
+
+    private com.sun.management.ThreadMXBean mThreadMXBean;
+    private ByteBuffer mCodecBuffer;
+    private CountingOutputStream mOutputStream;
+
+    private static class CountingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    private static class CountingChannel implements GatheringByteChannel {
+        long mCount;
+        int mWrites;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            mWrites--;
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            mCount += remaining;
+            mWrites++;
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mThreadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mThreadMXBean.setThreadAllocatedMemoryEnabled(true);
+        mCodecBuffer = ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+        mOutputStream = new CountingOutputStream();
+    }
+
+    private static int frameSize(int index) {
+        // a key frame every 25 frames, P-frames of varying size in between
+        return index % 25 == 0 ? MAX_FRAME_SIZE : 8 * 1024 + (index * 7919) % (32 * 1024);
+    }
+
+    private long allocatedBytes() {
+        return mThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void sendFrames(FrameQueue queue, FrameWriter writer) throws IOException {
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mCodecBuffer.clear();
+            mCodecBuffer.limit(frameSize(i));
+            // encoder side
+            EncodedFrame slot = queue.claim();
+            slot.set(mCodecBuffer, i * 40000L, 0);
+            queue.publish();
+            // sender side
+            EncodedFrame frame = queue.peek();
+            writer.writeFrame(frame);
+            queue.release();
+        }
+    }
+
+    private long measureOverhead() {
+        long start = allocatedBytes();
+        return allocatedBytes() - start;
+    }
+
+    private void assertNoSteadyStateAllocation(IvfWriter ivfWriter) throws IOException {
+        assertWriterDoesNotAllocate(new StreamFrameWriter(mOutputStream, ivfWriter));
+    }
+
+    private void assertWriterDoesNotAllocate(FrameWriter writer) throws IOException {
+        FrameQueue queue = new FrameQueue(4);
+        // warm up: the queue slots grow to the largest frame and the JIT settles
+        for (int i = 0; i < 5; i++) {
+            sendFrames(queue, writer);
+        }
+        long overhead = measureOverhead();
+        long start = allocatedBytes();
+        sendFrames(queue, writer);
+        long allocated = allocatedBytes() - start - overhead;
+        // a single object per frame would cost at least 16 bytes per frame, anything below one
+        // byte per frame is the JIT and runtime allocating in the background
+        assertTrue("Allocated " + allocated + " bytes for " + FRAME_COUNT + " frames", allocated < FRAME_COUNT);
+    }
+
+    @Test
+    public void rawStreamDoesNotAllocatePerFrame() throws IOException {
+        assertNoSteadyStateAllocation(null);
+    }
+
+    @Test
+    public void ivfStreamDoesNotAllocatePerFrame() throws IOException {
+        IvfWriter ivfWriter = new IvfWriter(mOutputStream, 1280, 720);
+        ivfWriter.writeHeader();
+        assertNoSteadyStateAllocation(ivfWriter);
+    }
+
+    @Test
+    public void gatheringIvfChannelDoesNotAllocatePerFrame() throws IOException {
+        CountingChannel channel = new CountingChannel();
+        IvfWriter ivfWriter = new IvfWriter(channel, 1280, 720);
+        ivfWriter.writeHeader();
+        assertWriterDoesNotAllocate(new ChannelFrameWriter(channel, ivfWriter));
+    }
+
+    @Test
+    public void framedChannelDoesNotAllocatePerFrame() throws IOException {
+        assertWriterDoesNotAllocate(new FramedWriter(new CountingChannel()));
+    }
+
+    @Test
+    public void ivfChannelWritesHeaderAndFrameAtOnce() throws IOException {
+        CountingChannel channel = new CountingChannel();
+        IvfWriter ivfWriter = new IvfWriter(channel, 1280, 720);
+        ivfWriter.writeHeader();
+        channel.mWrites = 0;
+        mCodecBuffer.clear();
+        mCodecBuffer.limit(1000);
+        ivfWriter.writeFrame(mCodecBuffer, 0);
+        assertEquals(1, channel.mWrites);
+        assertEquals(32 + 12 + 1000, channel.mCount);
+        assertEquals(0, mCodecBuffer.remaining());
+    }
+
+    @Test
+    public void ivfChannelAndStreamWriteTheSameBytes() throws IOException {
+        final ByteArrayOutputStream fromChannel = new ByteArrayOutputStream();
+        ByteArrayOutputStream fromStream = new ByteArrayOutputStream();
+        GatheringByteChannel channel = new CountingChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int remaining = src.remaining();
+                while (src.hasRemaining()) {
+                    fromChannel.write(src.get());
+                }
+                return remaining;
+            }
+        };
+        IvfWriter channelWriter = new IvfWriter(channel, 800, 480);
+        IvfWriter streamWriter = new IvfWriter(fromStream, 800, 480);
+        channelWriter.writeHeader();
+        streamWriter.writeHeader();
+        for (int i = 0; i < 3; i++) {
+            byte[] frame = new byte[100 + i];
+            frame[i] = (byte) i;
+            channelWriter.writeFrame(frame, 0, frame.length, i * 40000L);
+            streamWriter.writeFrame(ByteBuffer.wrap(frame), i * 40000L);
+        }
+        assertArrayEquals(fromStream.toByteArray(), fromChannel.toByteArray());
+    }
+
+    @Test
+    public void frameBufferGrowsToLargestFrame() {
+        EncodedFrame frame = new EncodedFrame(16);
+        mCodecBuffer.clear();
+        mCodecBuffer.limit(MAX_FRAME_SIZE);
+        frame.set(mCodecBuffer, 0, 0);
+        byte[] grown = frame.data;
+        assertEquals(MAX_FRAME_SIZE, frame.size);
+
+        mCodecBuffer.clear();
+        mCodecBuffer.limit(100);
+        frame.set(mCodecBuffer, 0, 0);
+        assertEquals(100, frame.size);
+        assertTrue(grown == frame.data);
+    }
+}
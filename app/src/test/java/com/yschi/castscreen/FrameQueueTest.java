@@ -0,0 +1,76 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameQueueTest {
+    private static ByteBuffer frameData(int size) {
+        return ByteBuffer.allocate(size);
+    }
+
+    @Test
+    public void claimFailsWhenFull() {
+        FrameQueue queue = new FrameQueue(2);
+        for (int i = 0; i < 2; i++) {
+            queue.tryClaim().set(frameData(10), i, 0);
+            queue.publish();
+        }
+        assertNull(queue.tryClaim());
+        assertEquals(2, queue.depth());
+        assertEquals(2, queue.getHighWaterMark());
+
+        assertEquals(0, queue.peek().presentationTimeUs);
+        queue.release();
+        assertEquals(1, queue.depth());
+        assertTrue(queue.tryClaim() != null);
+    }
+
+    @Test
+    public void closeWakesWaitingProducer() throws InterruptedException {
+        final FrameQueue queue = new FrameQueue(1);
+        queue.tryClaim().set(frameData(10), 0, 0);
+        queue.publish();
+        final EncodedFrame[] claimed = new EncodedFrame[] { new EncodedFrame(1) };
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                claimed[0] = queue.claim();
+            }
+        });
+        producer.start();
+        queue.close();
+        producer.join(1000);
+        assertNull(claimed[0]);
+    }
+
+    @Test
+    public void framesCrossThreadsInOrder() throws InterruptedException {
+        final int frameCount = 20000;
+        final FrameQueue queue = new FrameQueue(4);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < frameCount; i++) {
+                    EncodedFrame slot = queue.claim();
+                    slot.set(frameData(1 + i % 300), i, 0);
+                    queue.publish();
+                }
+            }
+        });
+        producer.start();
+        for (int i = 0; i < frameCount; i++) {
+            EncodedFrame frame = queue.take();
+            assertEquals(i, frame.presentationTimeUs);
+            assertEquals(1 + i % 300, frame.size);
+            queue.release();
+        }
+        producer.join();
+        assertEquals(0, queue.depth());
+        assertTrue(queue.getHighWaterMark() <= 4);
+    }
+}
@@ -0,0 +1,100 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FramedWriterTest {
+    private static class CollectingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        int mWrites;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            // a short write, the writer has to come back for the rest
+            int budget = 7;
+            for (int i = offset; i < offset + length; i++) {
+                while (srcs[i].hasRemaining() && budget > 0) {
+                    mBytes.write(srcs[i].get());
+                    written++;
+                    budget--;
+                }
+            }
+            mWrites++;
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static EncodedFrame frame(int size, long presentationTimeUs, int flags) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i + 1);
+        }
+        EncodedFrame frame = new EncodedFrame(16);
+        frame.set(ByteBuffer.wrap(data), presentationTimeUs, flags);
+        return frame;
+    }
+
+    @Test
+    public void writesHeaderBeforeEachFrame() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FramedWriter writer = new FramedWriter(out);
+        writer.writeFrame(frame(3, 0x0102030405L, EncodedFrame.FLAG_KEY_FRAME | 8));
+        writer.writeFrame(frame(2, 40000, 0));
+        assertArrayEquals(new byte[]{
+                0, 0, 0, 3, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4, 5, 1, 0, 0, 0, 1, 2, 3,
+                0, 0, 0, 2, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, (byte) 0x9c, 0x40, 0, 0, 0, 0, 1, 2
+        }, out.toByteArray());
+        assertEquals(2, writer.getSequence());
+    }
+
+    @Test
+    public void channelAndStreamWriteTheSameBytes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CollectingChannel channel = new CollectingChannel();
+        FramedWriter streamWriter = new FramedWriter(out);
+        FramedWriter channelWriter = new FramedWriter(channel);
+        for (int i = 0; i < 4; i++) {
+            EncodedFrame frame = frame(10 + i, i * 40000L, i == 0 ? EncodedFrame.FLAG_CODEC_CONFIG : 0);
+            streamWriter.writeFrame(frame);
+            channelWriter.writeFrame(frame);
+        }
+        assertArrayEquals(out.toByteArray(), channel.mBytes.toByteArray());
+        // 20 byte header plus 10 to 13 bytes of payload at 7 bytes per write is 5 writes per frame
+        assertEquals(4 * 5, channel.mWrites);
+    }
+
+    @Test
+    public void negotiatesHighestCommonVersion() {
+        assertEquals(0, FramedWriter.negotiate(0));
+        assertEquals(0, FramedWriter.negotiate(-1));
+        assertEquals(1, FramedWriter.negotiate(1));
+        assertEquals(FramedWriter.VERSION, FramedWriter.negotiate(FramedWriter.VERSION + 1));
+    }
+}
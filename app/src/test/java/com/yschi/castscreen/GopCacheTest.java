@@ -0,0 +1,69 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GopCacheTest {
+    private static ByteBuffer frame(int marker, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, (byte) marker);
+        }
+        return buffer;
+    }
+
+    @Test
+    public void replaysLatestGop() {
+        GopCache cache = new GopCache(30);
+        cache.add(frame(1, 20), 0, EncodedFrame.FLAG_CODEC_CONFIG);
+        cache.add(frame(2, 1000), 0, EncodedFrame.FLAG_KEY_FRAME);
+        cache.add(frame(3, 100), 40000, 0);
+        cache.add(frame(4, 1200), 80000, EncodedFrame.FLAG_KEY_FRAME);
+        ByteBuffer last = frame(5, 150);
+        cache.add(last, 120000, 0);
+        assertEquals(0, last.position());
+
+        EncodedFrame[] frames = cache.snapshot();
+        assertEquals(2, frames.length);
+        assertTrue(frames[0].isKeyFrame());
+        assertEquals(4, frames[0].data[0]);
+        assertEquals(1200, frames[0].size);
+        assertEquals(80000, frames[0].presentationTimeUs);
+        assertEquals(5, frames[1].data[149]);
+    }
+
+    @Test
+    public void ignoresFramesBeforeFirstKeyFrame() {
+        GopCache cache = new GopCache(30);
+        cache.add(frame(3, 100), 0, 0);
+        assertFalse(cache.hasKeyFrame());
+        assertEquals(0, cache.snapshot().length);
+    }
+
+    @Test
+    public void dropsGopLongerThanLimit() {
+        GopCache cache = new GopCache(3);
+        cache.add(frame(2, 100), 0, EncodedFrame.FLAG_KEY_FRAME);
+        cache.add(frame(3, 100), 1, 0);
+        cache.add(frame(3, 100), 2, 0);
+        assertTrue(cache.hasKeyFrame());
+        cache.add(frame(3, 100), 3, 0);
+        assertFalse(cache.hasKeyFrame());
+        cache.add(frame(2, 100), 4, EncodedFrame.FLAG_KEY_FRAME);
+        assertEquals(1, cache.snapshot().length);
+    }
+
+    @Test
+    public void snapshotIsIndependentOfLaterFrames() {
+        GopCache cache = new GopCache(30);
+        cache.add(frame(2, 100), 0, EncodedFrame.FLAG_KEY_FRAME);
+        EncodedFrame[] frames = cache.snapshot();
+        cache.add(frame(7, 100), 1, EncodedFrame.FLAG_KEY_FRAME);
+        assertEquals(2, frames[0].data[0]);
+    }
+}
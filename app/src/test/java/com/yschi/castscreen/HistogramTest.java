@@ -0,0 +1,69 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+    @Test
+    public void countsSmallValuesExactly() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 16; i++) {
+            histogram.record(i);
+        }
+        assertEquals(16, histogram.getCount());
+        assertEquals(7, histogram.getValueAtPercentile(50));
+        assertEquals(15, histogram.getValueAtPercentile(100));
+        assertEquals(15, histogram.getMax());
+        assertEquals(7, histogram.getMean());
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        long[] values = {16, 17, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = Histogram.bucketIndex(value);
+            assertTrue(value + " above its bucket", value <= Histogram.highestValueInBucket(index));
+            assertTrue(value + " below its bucket", index == 0 || value > Histogram.highestValueInBucket(index - 1));
+        }
+    }
+
+    @Test
+    public void percentilesStayWithinRelativeError() {
+        Random random = new Random(1);
+        Histogram histogram = new Histogram();
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            // latencies from a few milliseconds to a few seconds
+            values[i] = (long) (20000 * Math.exp(random.nextGaussian()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[] {1, 50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " vs " + exact,
+                    reported >= exact && reported <= exact + exact / 16);
+        }
+        assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void copiesAndResets() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(100);
+        Histogram copy = new Histogram();
+        histogram.copyTo(copy);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(2, copy.getCount());
+        assertEquals(0, copy.getValueAtPercentile(50));
+        assertEquals(100, copy.getMax());
+    }
+}
@@ -0,0 +1,90 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays frame size patterns of a 25 fps encoder with a key frame every second.
+ */
+public class IdleDetectorTest {
+    private static final long FRAME_US = 40000;
+    private static final int TINY = 60;
+    private static final int NORMAL = 20000;
+    private static final int KEY = 80000;
+
+    private final IdleDetector mDetector = new IdleDetector(512, 2000000, 5000000);
+    private long mNowUs;
+
+    private int frame(int size) {
+        boolean keyFrame = mNowUs % 1000000 == 0;
+        int action = mDetector.onFrame(keyFrame ? KEY : size, keyFrame ? EncodedFrame.FLAG_KEY_FRAME : 0, mNowUs);
+        mNowUs += FRAME_US;
+        return action;
+    }
+
+    private int sentFrames(int size, int seconds) {
+        int sent = 0;
+        for (int i = 0; i < seconds * 25; i++) {
+            if (frame(size) != IdleDetector.SKIP) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    @Test
+    public void sendsEverythingWhileContentChanges() {
+        assertEquals(250, sentFrames(NORMAL, 10));
+        assertFalse(mDetector.isIdle());
+    }
+
+    @Test
+    public void staticScreenOnlySendsKeepalives() {
+        sentFrames(NORMAL, 1);
+        // a little over two seconds to notice
+        sentFrames(TINY, 3);
+        assertTrue(mDetector.isIdle());
+        long skipped = mDetector.getSkippedFrames();
+        // then one key frame every five seconds
+        assertEquals(3, sentFrames(TINY, 20));
+        assertEquals(20 * 25 - 3, mDetector.getSkippedFrames() - skipped);
+    }
+
+    @Test
+    public void resumesOnFirstChangedFrame() {
+        sentFrames(TINY, 4);
+        assertTrue(mDetector.isIdle());
+        mNowUs += FRAME_US;
+        assertEquals(IdleDetector.SEND_AND_REQUEST_SYNC_FRAME, frame(NORMAL));
+        assertFalse(mDetector.isIdle());
+        assertEquals(IdleDetector.SEND, frame(NORMAL));
+    }
+
+    @Test
+    public void requestedKeyFramePassesWhileIdle() {
+        sentFrames(TINY, 3);
+        assertTrue(mDetector.isIdle());
+        mNowUs = 4000000;
+        assertEquals(IdleDetector.SKIP, frame(TINY));
+        mDetector.onSyncFrameRequested();
+        mNowUs = 5000000 - FRAME_US;
+        assertEquals(IdleDetector.SKIP, frame(TINY));
+        assertEquals(IdleDetector.SEND, frame(TINY));
+    }
+
+    @Test
+    public void blinkingCursorKeepsStreamAlive() {
+        // a small change every half second is not idle
+        int sent = 0;
+        for (int i = 0; i < 250; i++) {
+            if (frame(i % 12 == 0 ? 2000 : TINY) != IdleDetector.SKIP) {
+                sent++;
+            }
+        }
+        assertEquals(250, sent);
+        assertFalse(mDetector.isIdle());
+    }
+}
@@ -0,0 +1,43 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class IvfWriterTest {
+    @Test
+    public void patchesFrameCountOnClose() throws IOException {
+        File file = File.createTempFile("recording", ".ivf");
+        try {
+            IvfWriter writer = new IvfWriter(new FileOutputStream(file).getChannel(), 1280, 720);
+            writer.writeHeader();
+            for (int i = 0; i < 3; i++) {
+                writer.writeFrame(ByteBuffer.wrap(new byte[100]), i * 40000L);
+            }
+            writer.close();
+
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            assertEquals(32 + 3 * (12 + 100), input.length());
+            input.seek(24);
+            assertEquals(3, Integer.reverseBytes(input.readInt()));
+            input.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void writesFourccOfTheCodec() throws IOException {
+        assertEquals("VP80", new String(IvfWriter.makeIvfHeader(0, 640, 480, 1, 1000000), 8, 4, "US-ASCII"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new IvfWriter(output, 640, 480, IvfWriter.FOURCC_VP9).writeHeader();
+        assertEquals("VP90", new String(output.toByteArray(), 8, 4, "US-ASCII"));
+    }
+}
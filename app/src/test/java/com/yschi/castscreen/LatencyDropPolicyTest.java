@@ -0,0 +1,82 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyDropPolicyTest {
+    private static final long MAX_LATENCY_US = 200000;
+
+    private static ByteBuffer avcSlice(int nalHeader) {
+        return ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 0x09, (byte) 0xf0, 0, 0, 1, (byte) nalHeader, (byte) 0x88, 0x40 });
+    }
+
+    private static EncodedFrame queuedFrame(int flags, long queuedTimeUs) {
+        EncodedFrame frame = new EncodedFrame(16);
+        frame.set(ByteBuffer.allocate(8), queuedTimeUs, flags);
+        frame.queuedTimeUs = queuedTimeUs;
+        return frame;
+    }
+
+    @Test
+    public void detectsNonReferenceSlices() {
+        assertTrue(LatencyDropPolicy.isNonReferenceAvcFrame(avcSlice(0x01)));
+        assertFalse(LatencyDropPolicy.isNonReferenceAvcFrame(avcSlice(0x41)));
+        assertFalse(LatencyDropPolicy.isNonReferenceAvcFrame(avcSlice(0x65)));
+    }
+
+    @Test
+    public void keepsFramesWhileQueueHasRoom() {
+        LatencyDropPolicy policy = new LatencyDropPolicy(MAX_LATENCY_US, true);
+        assertEquals(FrameDropPolicy.KEEP, policy.onEnqueue(avcSlice(0x41), 0, 3, 8));
+        assertEquals(FrameDropPolicy.KEEP, policy.onEnqueue(avcSlice(0x01), 0, 3, 8));
+    }
+
+    @Test
+    public void dropsNonReferenceFramesFirst() {
+        LatencyDropPolicy policy = new LatencyDropPolicy(MAX_LATENCY_US, true);
+        assertEquals(FrameDropPolicy.DROP, policy.onEnqueue(avcSlice(0x01), 0, 4, 8));
+        assertEquals(FrameDropPolicy.KEEP, policy.onEnqueue(avcSlice(0x41), 0, 4, 8));
+    }
+
+    @Test
+    public void fullQueueSkipsToNextKeyFrame() {
+        LatencyDropPolicy policy = new LatencyDropPolicy(MAX_LATENCY_US, true);
+        assertEquals(FrameDropPolicy.DROP_AND_REQUEST_SYNC_FRAME, policy.onEnqueue(avcSlice(0x41), 0, 8, 8));
+        assertEquals(FrameDropPolicy.DROP, policy.onEnqueue(avcSlice(0x41), 0, 0, 8));
+        assertEquals(FrameDropPolicy.KEEP,
+                policy.onEnqueue(avcSlice(0x65), EncodedFrame.FLAG_CODEC_CONFIG, 0, 8));
+        assertEquals(FrameDropPolicy.KEEP,
+                policy.onEnqueue(avcSlice(0x65), EncodedFrame.FLAG_KEY_FRAME, 0, 8));
+        assertEquals(FrameDropPolicy.KEEP, policy.onEnqueue(avcSlice(0x41), 0, 1, 8));
+    }
+
+    @Test
+    public void resumedStreamStartsAtKeyFrame() {
+        LatencyDropPolicy policy = new LatencyDropPolicy(Long.MAX_VALUE, true);
+        policy.startAtKeyFrame();
+        assertEquals(FrameDropPolicy.KEEP,
+                policy.onEnqueue(avcSlice(0x67), EncodedFrame.FLAG_CODEC_CONFIG, 0, 8));
+        assertEquals(FrameDropPolicy.DROP, policy.onEnqueue(avcSlice(0x41), 0, 0, 8));
+        assertEquals(FrameDropPolicy.KEEP,
+                policy.onEnqueue(avcSlice(0x65), EncodedFrame.FLAG_KEY_FRAME, 0, 8));
+        assertEquals(FrameDropPolicy.KEEP, policy.onEnqueue(avcSlice(0x41), 0, 1, 8));
+    }
+
+    @Test
+    public void staleFramesSkipToNextKeyFrame() {
+        LatencyDropPolicy policy = new LatencyDropPolicy(MAX_LATENCY_US, false);
+        long now = 10000000;
+        assertEquals(FrameDropPolicy.KEEP, policy.onDequeue(queuedFrame(0, now - 1000), now));
+        assertEquals(FrameDropPolicy.DROP_AND_REQUEST_SYNC_FRAME,
+                policy.onDequeue(queuedFrame(0, now - MAX_LATENCY_US - 1), now));
+        assertEquals(FrameDropPolicy.DROP, policy.onDequeue(queuedFrame(0, now), now));
+        assertEquals(FrameDropPolicy.KEEP,
+                policy.onDequeue(queuedFrame(EncodedFrame.FLAG_KEY_FRAME, now - MAX_LATENCY_US - 1), now));
+        assertEquals(FrameDropPolicy.KEEP, policy.onDequeue(queuedFrame(0, now), now));
+    }
+}
@@ -0,0 +1,171 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyProbeTest {
+    // the receiver's clock started this long before the sender's
+    private static final long CLOCK_OFFSET_US = 123456789L;
+
+    private static ByteBuffer echo(int seq, long sendTimeUs, long arrivalTimeUs, long echoTimeUs) {
+        ByteBuffer echo = ByteBuffer.allocate(LatencyProbe.ECHO_SIZE);
+        LatencyProbe.writeProbe(echo, seq, sendTimeUs, 0);
+        echo.putInt(0, LatencyProbe.ECHO_MAGIC);
+        echo.limit(echo.capacity());
+        echo.position(LatencyProbe.PROBE_SIZE);
+        echo.putLong(arrivalTimeUs);
+        echo.putLong(echoTimeUs);
+        echo.flip();
+        return echo;
+    }
+
+    /**
+     * Feeds an echo of a probe sent at sendTimeUs that took forwardUs to arrive,
+     * was held holdUs by the receiver and took backwardUs to come back.
+     */
+    private static void echo(LatencyProbe probe, int seq, long sendTimeUs, long forwardUs, long holdUs,
+                             long backwardUs) {
+        long arrivalTimeUs = sendTimeUs + forwardUs + CLOCK_OFFSET_US;
+        assertTrue(probe.onEcho(echo(seq, sendTimeUs, arrivalTimeUs, arrivalTimeUs + holdUs),
+                sendTimeUs + forwardUs + holdUs + backwardUs));
+    }
+
+    @Test
+    public void estimatesDelaysAcrossUnrelatedClocks() {
+        LatencyProbe probe = new LatencyProbe(null, 0, null);
+        echo(probe, 0, 1000000, 5000, 300, 5000);
+        assertEquals(10000, probe.getRttUs());
+        assertEquals(10000, probe.getMinRttUs());
+        assertEquals(0, probe.getQueueingDelayUs());
+        assertEquals(5000, probe.getOneWayDelayUs());
+
+        // 20 ms of queueing on the way to the receiver
+        echo(probe, 1, 1100000, 25000, 300, 5000);
+        assertEquals(30000, probe.getRttUs());
+        assertEquals(10000, probe.getMinRttUs());
+        assertEquals(20000, probe.getQueueingDelayUs());
+        assertEquals(25000, probe.getOneWayDelayUs());
+        assertEquals(12500, probe.getSmoothedRttUs());
+        assertEquals(20000 / 16, probe.getJitterUs());
+        assertEquals(2, probe.getEchoCount());
+    }
+
+    @Test
+    public void ignoresClockRateDifference() {
+        LatencyProbe probe = new LatencyProbe(null, 0, null);
+        for (int i = 0; i < 600; i++) {
+            long sendTimeUs = i * 100000L;
+            // the receiver's clock runs 100 ppm fast, 6 ms ahead after a minute
+            long arrivalTimeUs = sendTimeUs + 5000 + CLOCK_OFFSET_US + sendTimeUs / 10000;
+            assertTrue(probe.onEcho(echo(i, sendTimeUs, arrivalTimeUs, arrivalTimeUs + 300),
+                    sendTimeUs + 10300));
+        }
+        assertEquals(0, probe.getQueueingDelayUs());
+        assertEquals(5000, probe.getOneWayDelayUs());
+    }
+
+    @Test
+    public void jitterFollowsTransitVariation() {
+        LatencyProbe probe = new LatencyProbe(null, 0, null);
+        for (int i = 0; i < 200; i++) {
+            // transit alternates between 5 and 9 ms
+            echo(probe, i, i * 100000L, i % 2 == 0 ? 5000 : 9000, 0, 5000);
+        }
+        assertTrue("jitter " + probe.getJitterUs(), Math.abs(probe.getJitterUs() - 4000) < 300);
+    }
+
+    @Test
+    public void unansweredProbesCountAsQueueing() throws IOException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        DatagramSocket sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        socket.connect(sink.getLocalSocketAddress());
+        LatencyProbe probe = new LatencyProbe(socket, 100000, null);
+        EncodedFrame frame = new EncodedFrame(16);
+        try {
+            probe.onFrameSent(frame, 0);
+            echo(probe, 0, 0, 5000, 0, 5000);
+            // only one probe per interval
+            probe.onFrameSent(frame, 50000);
+            probe.onFrameSent(frame, 100000);
+            assertEquals(0, probe.getQueueingDelayUs(105000));
+            // the probe sent at 100 ms is still out 500 ms later
+            assertEquals(490000, probe.getQueueingDelayUs(600000));
+            echo(probe, 1, 100000, 5000, 0, 5000);
+            assertEquals(0, probe.getQueueingDelayUs(600000));
+        } finally {
+            probe.close();
+            sink.close();
+        }
+    }
+
+    @Test
+    public void ignoresOtherPackets() {
+        LatencyProbe probe = new LatencyProbe(null, 0, null);
+        ByteBuffer packet = ByteBuffer.allocate(LatencyProbe.ECHO_SIZE);
+        LatencyProbe.writeProbe(packet, 0, 0, 0);
+        packet.limit(packet.capacity());
+        assertFalse(probe.onEcho(packet, 0));
+        assertEquals(0, probe.getEchoCount());
+    }
+
+    @Test
+    public void measuresLoopbackEchoes() throws Exception {
+        final DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        socket.connect(receiver.getLocalSocketAddress());
+        final int echoes = 5;
+        // echoes probes like the receivers do
+        Thread echoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[LatencyProbe.ECHO_SIZE];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                ByteBuffer echo = ByteBuffer.wrap(buffer);
+                try {
+                    for (int i = 0; i < echoes; i++) {
+                        packet.setLength(buffer.length);
+                        receiver.receive(packet);
+                        long arrivalTimeUs = System.nanoTime() / 1000 + CLOCK_OFFSET_US;
+                        echo.putInt(0, LatencyProbe.ECHO_MAGIC);
+                        echo.putLong(LatencyProbe.PROBE_SIZE, arrivalTimeUs);
+                        echo.putLong(LatencyProbe.PROBE_SIZE + 8, System.nanoTime() / 1000 + CLOCK_OFFSET_US);
+                        packet.setLength(LatencyProbe.ECHO_SIZE);
+                        receiver.send(packet);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        echoThread.start();
+        LatencyProbe probe = new LatencyProbe(socket, 0, null);
+        probe.start();
+        try {
+            EncodedFrame frame = new EncodedFrame(16);
+            for (int i = 0; i < echoes; i++) {
+                probe.onFrameSent(frame, System.nanoTime() / 1000);
+                Thread.sleep(20);
+            }
+            echoThread.join(2000);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (probe.getEchoCount() < echoes && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(echoes, probe.getEchoCount());
+            assertTrue(probe.getMinRttUs() < 100000);
+            assertTrue(probe.getOneWayDelayUs() < 100000);
+        } finally {
+            probe.close();
+            receiver.close();
+        }
+    }
+}
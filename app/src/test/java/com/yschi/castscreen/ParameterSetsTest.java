@@ -0,0 +1,178 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ParameterSetsTest {
+    // SPS and PPS of a Baseline 1280x720 H.264 stream, with a 4 and a 3 byte start code
+    private static final byte[] AVC_1280x720 = {
+            0x00, 0x00, 0x00, 0x01,
+            0x67, 0x42, (byte) 0x80, 0x20, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8, 0x06, (byte) 0xd0, (byte) 0xa1, 0x35,
+            0x00, 0x00, 0x01,
+            0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+
+    // SPS of a Baseline 800x480 H.264 stream
+    private static final byte[] AVC_800x480 = {
+            0x00, 0x00, 0x00, 0x01,
+            0x67, 0x42, (byte) 0x80, 0x20, (byte) 0xda, 0x03, 0x20, (byte) 0xf6, (byte) 0x80, 0x6d, 0x0a, 0x13, 0x50,
+            0x00, 0x00, 0x00, 0x01,
+            0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+
+    /**
+     * Writes RBSP bits and inserts emulation prevention bytes like an encoder does.
+     */
+    private static class NalWriter {
+        private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+        private int mCurrent;
+        private int mBitCount;
+        private int mZeroCount;
+
+        NalWriter(int... header) {
+            for (int b : header) {
+                mOutput.write(b);
+            }
+        }
+
+        NalWriter bits(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                mCurrent = (mCurrent << 1) | (int) ((value >> i) & 1);
+                if (++mBitCount == 8) {
+                    writeByte(mCurrent);
+                    mCurrent = 0;
+                    mBitCount = 0;
+                }
+            }
+            return this;
+        }
+
+        NalWriter ue(int value) {
+            int length = 32 - Integer.numberOfLeadingZeros(value + 1);
+            bits(0, length - 1);
+            return bits(value + 1, length);
+        }
+
+        private void writeByte(int b) {
+            if (mZeroCount == 2 && b <= 3) {
+                mOutput.write(3);
+                mZeroCount = 0;
+            }
+            mOutput.write(b);
+            mZeroCount = b == 0 ? mZeroCount + 1 : 0;
+        }
+
+        byte[] finish() {
+            bits(1, 1); // rbsp_stop_one_bit
+            if (mBitCount > 0) {
+                bits(0, 8 - mBitCount);
+            }
+            return mOutput.toByteArray();
+        }
+    }
+
+    private static byte[] annexB(byte[]... nalUnits) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] nal : nalUnits) {
+            output.write(0);
+            output.write(0);
+            output.write(0);
+            output.write(1);
+            output.write(nal, 0, nal.length);
+        }
+        return output.toByteArray();
+    }
+
+    @Test
+    public void parsesAvcSizes() {
+        ParameterSets parameterSets = ParameterSets.parse(false, ByteBuffer.wrap(AVC_1280x720));
+        assertEquals(1280, parameterSets.getWidth());
+        assertEquals(720, parameterSets.getHeight());
+        assertEquals(66, parameterSets.getProfile());
+        assertEquals(32, parameterSets.getLevel());
+
+        parameterSets = ParameterSets.parse(false, ByteBuffer.wrap(AVC_800x480));
+        assertEquals(800, parameterSets.getWidth());
+        assertEquals(480, parameterSets.getHeight());
+    }
+
+    @Test
+    public void serializesWithStartCodes() {
+        ParameterSets parameterSets = ParameterSets.parse(false, ByteBuffer.wrap(AVC_1280x720));
+        byte[] expected = new byte[AVC_1280x720.length + 1];
+        System.arraycopy(AVC_1280x720, 0, expected, 0, 17);
+        expected[17] = 0x00;
+        System.arraycopy(AVC_1280x720, 17, expected, 18, AVC_1280x720.length - 17);
+        assertArrayEquals(expected, parameterSets.toAnnexB());
+    }
+
+    @Test
+    public void combinesSeparateCsdBuffers() {
+        ByteBuffer sps = ByteBuffer.wrap(AVC_800x480, 0, 17).slice();
+        ByteBuffer pps = ByteBuffer.wrap(AVC_800x480, 17, AVC_800x480.length - 17).slice();
+        assertNull(ParameterSets.parse(false, sps.duplicate()));
+        ParameterSets parameterSets = ParameterSets.parse(false, sps, pps);
+        assertArrayEquals(AVC_800x480, parameterSets.toAnnexB());
+    }
+
+    @Test
+    public void parsesCroppedHighProfileAvc() {
+        // High profile 1920x1080: 120x68 macroblocks cropped by 8 lines at the bottom
+        byte[] sps = new NalWriter(0x67)
+                .bits(100, 8).bits(0, 8).bits(40, 8).ue(0)
+                .ue(1).ue(0).ue(0).bits(0, 1)
+                .bits(1, 1) // seq_scaling_matrix_present_flag
+                .bits(1, 1).ue(16) // first scaling list present, delta_scale -8 ends it
+                .bits(0, 7)
+                .ue(0).ue(0).ue(2).ue(1).bits(0, 1)
+                .ue(119).ue(67).bits(1, 1).bits(1, 1)
+                .bits(1, 1).ue(0).ue(0).ue(0).ue(4)
+                .bits(0, 1)
+                .finish();
+        byte[] pps = new NalWriter(0x68).ue(0).ue(0).finish();
+        ParameterSets parameterSets = ParameterSets.parse(false, ByteBuffer.wrap(annexB(sps, pps)));
+        assertEquals(100, parameterSets.getProfile());
+        assertEquals(1920, parameterSets.getWidth());
+        assertEquals(1080, parameterSets.getHeight());
+    }
+
+    // Main profile 1920x1080 coded as 1920x1088 with a conformance window
+    private static byte[] hevcSps() {
+        return new NalWriter(0x42, 0x01)
+                .bits(0, 4).bits(0, 3).bits(1, 1)
+                .bits(0, 3).bits(1, 5).bits(0x60000000L, 32).bits(0, 48).bits(93, 8)
+                .ue(0).ue(1)
+                .ue(1920).ue(1088)
+                .bits(1, 1).ue(0).ue(0).ue(0).ue(4)
+                .finish();
+    }
+
+    @Test
+    public void parsesHevcSps() {
+        byte[] vps = new NalWriter(0x40, 0x01).bits(0, 16).finish();
+        byte[] sps = hevcSps();
+        byte[] pps = new NalWriter(0x44, 0x01).ue(0).ue(0).finish();
+        ParameterSets parameterSets = ParameterSets.parse(true, ByteBuffer.wrap(annexB(vps, sps, pps)));
+        assertEquals(1, parameterSets.getProfile());
+        assertEquals(93, parameterSets.getLevel());
+        assertEquals(1920, parameterSets.getWidth());
+        assertEquals(1080, parameterSets.getHeight());
+        assertArrayEquals(annexB(vps, sps, pps), parameterSets.toAnnexB());
+    }
+
+    @Test
+    public void hevcNeedsVps() {
+        byte[] pps = new NalWriter(0x44, 0x01).ue(0).ue(0).finish();
+        assertNull(ParameterSets.parse(true, ByteBuffer.wrap(annexB(hevcSps(), pps))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedSps() {
+        byte[] sps = new NalWriter(0x67).bits(66, 8).bits(0, 8).finish();
+        ParameterSets.parse(false, ByteBuffer.wrap(annexB(sps)));
+    }
+}
@@ -0,0 +1,116 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineStatsTest {
+    private static EncodedFrame sentFrame(int size, long presentationTimeUs, long queuedTimeUs, long sentTimeUs) {
+        EncodedFrame frame = new EncodedFrame(16);
+        frame.size = size;
+        frame.presentationTimeUs = presentationTimeUs;
+        frame.queuedTimeUs = queuedTimeUs;
+        frame.sentTimeUs = sentTimeUs;
+        return frame;
+    }
+
+    @Test
+    public void summarizesOneInterval() {
+        PipelineStats stats = new PipelineStats(0);
+        // 25 frames of 30000 bytes in one second, 40 ms from capture to sent
+        for (int i = 0; i < 25; i++) {
+            long captureUs = i * 40000L;
+            stats.onFrameEncoded(30000, i == 0);
+            stats.onFrameSent(sentFrame(30000, captureUs, captureUs + 10000, captureUs + 30000), captureUs + 40000,
+                    i % 3);
+        }
+        stats.onFrameDropped();
+        PipelineStats.Snapshot snapshot = new PipelineStats.Snapshot();
+        stats.snapshot(snapshot, 1000000);
+
+        assertEquals(25, snapshot.framesEncoded);
+        assertEquals(1, snapshot.keyFrames);
+        assertEquals(25, snapshot.getFramesPerSecond());
+        assertEquals(25 * 30000 * 8, snapshot.getBitsPerSecond());
+        assertEquals(1, snapshot.framesDropped);
+        assertEquals(2, snapshot.maxQueueDepth);
+        assertEquals(40000, snapshot.latencyUs.getMax());
+        assertEquals(20000, snapshot.queueDelayUs.getMax());
+        assertEquals(10000, snapshot.sendDurationUs.getMax());
+        assertEquals(30000, snapshot.keyFrameBytes.getMax());
+        assertEquals(25, snapshot.frameBytes.getCount());
+
+        StringBuilder line = new StringBuilder();
+        snapshot.appendTo(line);
+        assertTrue(line.toString(), line.toString().startsWith("fps 25, kbps 6000,"));
+    }
+
+    @Test
+    public void startsNewIntervalOnSnapshot() {
+        PipelineStats stats = new PipelineStats(0);
+        stats.onFrameSent(sentFrame(1000, 0, 0, 0), 10000, 0);
+        PipelineStats.Snapshot snapshot = new PipelineStats.Snapshot();
+        stats.snapshot(snapshot, 1000000);
+        stats.snapshot(snapshot, 3000000);
+        assertEquals(2000000, snapshot.intervalUs);
+        assertEquals(0, snapshot.framesSent);
+        assertEquals(0, snapshot.latencyUs.getCount());
+    }
+
+    @Test
+    public void summarizesLatencyEchoes() {
+        PipelineStats stats = new PipelineStats(0);
+        PipelineStats.Snapshot snapshot = new PipelineStats.Snapshot();
+        stats.snapshot(snapshot, 1000000);
+        StringBuilder line = new StringBuilder();
+        snapshot.appendTo(line);
+        assertTrue(line.toString(), !line.toString().contains("rtt"));
+
+        for (int i = 0; i < 10; i++) {
+            stats.onLatencyEcho(10000, 5000 + i * 100, i * 200);
+        }
+        stats.snapshot(snapshot, 2000000);
+        assertEquals(10, snapshot.rttUs.getCount());
+        assertEquals(5900, snapshot.oneWayDelayUs.getMax());
+        assertEquals(1800, snapshot.maxJitterUs);
+        line.setLength(0);
+        snapshot.appendTo(line);
+        assertTrue(line.toString(), line.toString().contains(", rtt p50/p99 "));
+
+        stats.snapshot(snapshot, 3000000);
+        assertEquals(0, snapshot.rttUs.getCount());
+        assertEquals(0, snapshot.maxJitterUs);
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        PipelineStats stats = new PipelineStats(0);
+        PipelineStats.Snapshot snapshot = new PipelineStats.Snapshot();
+        EncodedFrame frame = sentFrame(30000, 0, 1000, 2000);
+        int frames = 20000;
+        for (int warmUp = 0; warmUp < 5; warmUp++) {
+            record(stats, snapshot, frame, frames);
+        }
+        long start = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        record(stats, snapshot, frame, frames);
+        long allocated = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+        assertTrue("Allocated " + allocated + " bytes for " + frames + " frames", allocated < frames);
+    }
+
+    private static void record(PipelineStats stats, PipelineStats.Snapshot snapshot, EncodedFrame frame, int frames) {
+        for (int i = 0; i < frames; i++) {
+            stats.onFrameEncoded(frame.size, i % 25 == 0);
+            stats.onFrameSent(frame, 3000 + i, i % 8);
+            if (i % 1000 == 0) {
+                stats.onFrameDropped();
+                stats.snapshot(snapshot, i);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QualityControllerTest {
+    private static final long HOLD_MS = 3000;
+
+    private final List<QualityController.Level> mChanges = new ArrayList<QualityController.Level>();
+    private final QualityController mController = new QualityController(1280, 720, 25, HOLD_MS,
+            new QualityController.Listener() {
+                @Override
+                public void onLevelChanged(QualityController.Level level) {
+                    mChanges.add(level);
+                }
+            });
+
+    @Test
+    public void buildsLadderInWholeMacroblocks() {
+        QualityController.Level[] levels = QualityController.buildLadder(1280, 720, 25);
+        assertEquals("1280x720@25", levels[0].toString());
+        assertEquals("960x528@25", levels[1].toString());
+        assertEquals("640x352@25", levels[2].toString());
+        assertEquals("640x352@15", levels[3].toString());
+        for (int i = 1; i < levels.length; i++) {
+            assertEquals(0, levels[i].width % 16);
+            assertEquals(0, levels[i].height % 16);
+        }
+    }
+
+    @Test
+    public void keepsSelectedSizeAtTopOfLadder() {
+        QualityController.Level[] levels = QualityController.buildLadder(1080, 2340, 30);
+        assertEquals("1080x2340@30", levels[0].toString());
+        assertEquals("800x1744@30", levels[1].toString());
+        assertEquals("528x1168@30", levels[2].toString());
+    }
+
+    @Test
+    public void keepsSelectedLevelWithEnoughBitrate() {
+        mController.onBitrateChanged(6144000, 0);
+        mController.onBitrateChanged(2000000, 10000);
+        assertTrue(mChanges.isEmpty());
+        assertEquals("1280x720@25", mController.getLevel().toString());
+    }
+
+    @Test
+    public void stepsDownOneLevelPerHoldTime() {
+        mController.onBitrateChanged(512000, 0);
+        mController.onBitrateChanged(512000, 1000);
+        assertEquals(1, mChanges.size());
+        assertEquals("960x528@25", mController.getLevel().toString());
+        mController.onBitrateChanged(512000, HOLD_MS);
+        mController.onBitrateChanged(200000, 2 * HOLD_MS);
+        assertEquals("640x352@15", mController.getLevel().toString());
+        // the bottom of the ladder
+        mController.onBitrateChanged(100000, 3 * HOLD_MS);
+        assertEquals(3, mChanges.size());
+    }
+
+    @Test
+    public void stepsBackUpWithHysteresis() {
+        mController.onBitrateChanged(512000, 0);
+        assertEquals("960x528@25", mController.getLevel().toString());
+        // enough for the current level, not yet comfortable for 720p
+        mController.onBitrateChanged(1500000, 10000);
+        assertEquals("960x528@25", mController.getLevel().toString());
+        mController.onBitrateChanged(2000000, 20000);
+        assertEquals("1280x720@25", mController.getLevel().toString());
+        assertEquals(2, mChanges.size());
+    }
+}
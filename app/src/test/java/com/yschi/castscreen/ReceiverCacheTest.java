@@ -0,0 +1,45 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReceiverCacheTest {
+    private final ReceiverCache mCache = new ReceiverCache(6500);
+
+    @Test
+    public void reportsOnlyNewOrMovedReceivers() {
+        assertTrue(mCache.update("living room", "192.168.1.20", 0));
+        assertFalse(mCache.update("living room", "192.168.1.20", 2000));
+        assertTrue(mCache.update("living room", "192.168.1.21", 4000));
+        assertEquals("192.168.1.21", mCache.getIp("living room"));
+        assertEquals(1, mCache.size());
+    }
+
+    @Test
+    public void evictsReceiversThatStoppedAnswering() {
+        mCache.update("office", "192.168.1.30", 0);
+        mCache.update("kitchen", "192.168.1.31", 0);
+        mCache.update("office", "192.168.1.30", 6000);
+        assertFalse(mCache.evict(6500));
+        assertTrue(mCache.evict(6501));
+        assertEquals(Arrays.asList("office"), mCache.getNames());
+        assertNull(mCache.getIp("kitchen"));
+        assertFalse(mCache.evict(12500));
+        assertTrue(mCache.evict(12501));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void listsNamesSorted() {
+        mCache.update("b", "10.0.0.2", 0);
+        mCache.update("c", "10.0.0.3", 0);
+        mCache.update("a", "10.0.0.1", 0);
+        assertEquals(Arrays.asList("a", "b", "c"), mCache.getNames());
+    }
+}
@@ -0,0 +1,112 @@
+package com.yschi.castscreen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs discovery against a fake network on the loopback interface, where one
+ * socket answers every broadcast on behalf of many receivers.
+ */
+public class ReceiverDiscoveryTest {
+    private static final String MESSAGE = "hello";
+    private static final int RECEIVER_COUNT = 40;
+
+    private DatagramSocket mNetwork;
+    private Thread mNetworkThread;
+    private ReceiverDiscovery mDiscovery;
+    private final CountDownLatch mAllFound = new CountDownLatch(1);
+    private volatile int mRequests;
+
+    @Before
+    public void setUp() throws IOException {
+        mNetwork = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        mNetworkThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[64];
+                DatagramPacket request = new DatagramPacket(buf, buf.length);
+                try {
+                    while (true) {
+                        request.setLength(buf.length);
+                        mNetwork.receive(request);
+                        if (!MESSAGE.equals(new String(buf, 0, request.getLength()))) {
+                            continue;
+                        }
+                        mRequests++;
+                        for (int i = 0; i < RECEIVER_COUNT; i++) {
+                            byte[] response = ("receiver " + i).getBytes();
+                            mNetwork.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        mNetworkThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (mDiscovery != null) {
+            mDiscovery.close();
+        }
+        mNetwork.close();
+        mNetworkThread.join();
+    }
+
+    private ReceiverDiscovery.Listener mListener = new ReceiverDiscovery.Listener() {
+        @Override
+        public InetAddress getBroadcastAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public String parseResponse(byte[] data, int length) {
+            return new String(data, 0, length);
+        }
+
+        @Override
+        public void onReceiversChanged(List<String> names) {
+            if (names.size() == RECEIVER_COUNT) {
+                mAllFound.countDown();
+            }
+        }
+    };
+
+    @Test
+    public void findsAllReceiversFromOneBroadcast() throws Exception {
+        mDiscovery = new ReceiverDiscovery(mNetwork.getLocalPort(), MESSAGE, 10000, 30000, mListener);
+        mDiscovery.start();
+        assertTrue(mAllFound.await(1, TimeUnit.SECONDS));
+        assertEquals(1, mRequests);
+        assertEquals("127.0.0.1", mDiscovery.getCache().getIp("receiver 7"));
+    }
+
+    @Test
+    public void keepsReceiversAcrossRestart() throws Exception {
+        mDiscovery = new ReceiverDiscovery(mNetwork.getLocalPort(), MESSAGE, 10000, 30000, mListener);
+        mDiscovery.start();
+        assertTrue(mAllFound.await(1, TimeUnit.SECONDS));
+        mDiscovery.close();
+        assertEquals(mDiscovery.getCache().getNames().toString(), RECEIVER_COUNT, mDiscovery.getCache().size());
+        mDiscovery.start();
+        long deadlineMs = System.currentTimeMillis() + 1000;
+        while (mRequests < 2 && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, mRequests);
+    }
+}
@@ -0,0 +1,58 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectBackoffTest {
+    @Test
+    public void doublesUpToTheCap() {
+        ReconnectBackoff backoff = new ReconnectBackoff(50, 2000, 60000, new Random(1));
+        long[] expected = {50, 100, 200, 400, 800, 1600, 2000, 2000};
+        long nowMs = 0;
+        for (long delayMs : expected) {
+            long actual = backoff.nextDelayMs(nowMs);
+            assertTrue(actual + " for " + delayMs, actual <= delayMs && actual > delayMs * 3 / 4);
+            nowMs += actual;
+        }
+    }
+
+    @Test
+    public void givesUpAfterTheDeadline() {
+        ReconnectBackoff backoff = new ReconnectBackoff(50, 2000, 10000, new Random(2));
+        long nowMs = 1000;
+        backoff.reset(nowMs);
+        int attempts = 0;
+        long delayMs;
+        while ((delayMs = backoff.nextDelayMs(nowMs)) >= 0) {
+            nowMs += delayMs;
+            attempts++;
+        }
+        assertTrue(nowMs - 1000 <= 10000);
+        assertTrue(attempts > 5);
+    }
+
+    @Test
+    public void startsOverOnReset() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 2000, 60000, new Random(3));
+        for (int i = 0; i < 6; i++) {
+            backoff.nextDelayMs(0);
+        }
+        backoff.reset(0);
+        assertTrue(backoff.nextDelayMs(0) <= 100);
+    }
+
+    @Test
+    public void firstRetriesAreWellUnderASecond() {
+        ReconnectBackoff backoff = new ReconnectBackoff(50, 2000, 60000, new Random(4));
+        long totalMs = 0;
+        for (int i = 0; i < 3; i++) {
+            totalMs += backoff.nextDelayMs(totalMs);
+        }
+        assertTrue(totalMs < 400);
+        assertEquals(-1, new ReconnectBackoff(50, 2000, 0, new Random(5)).nextDelayMs(0));
+    }
+}
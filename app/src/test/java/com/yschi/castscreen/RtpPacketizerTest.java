@@ -0,0 +1,181 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RtpPacketizerTest {
+    private static final int MAX_PACKET_SIZE = 200;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private static class Collector implements RtpPacketizer.PacketSink {
+        final List<byte[]> packets = new ArrayList<>();
+
+        @Override
+        public void onPacket(byte[] packet, int length) {
+            assertTrue(length <= MAX_PACKET_SIZE);
+            packets.add(Arrays.copyOf(packet, length));
+        }
+    }
+
+    private static byte[] nalUnit(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; i++) {
+            nal[i] = (byte) (i * 31 + 7);
+            if (nal[i] == 0) {
+                nal[i] = 1;
+            }
+        }
+        return nal;
+    }
+
+    private static byte[] annexB(byte[]... nalUnits) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] nal : nalUnits) {
+            output.write(START_CODE, 0, START_CODE.length);
+            output.write(nal, 0, nal.length);
+        }
+        return output.toByteArray();
+    }
+
+    private static boolean marker(byte[] packet) {
+        return (packet[1] & 0x80) != 0;
+    }
+
+    private static int sequenceNumber(byte[] packet) {
+        return ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+    }
+
+    private static long timestamp(byte[] packet) {
+        return ((packet[4] & 0xffL) << 24) | ((packet[5] & 0xff) << 16) | ((packet[6] & 0xff) << 8) | (packet[7] & 0xff);
+    }
+
+    private static int ssrc(byte[] packet) {
+        return ((packet[8] & 0xff) << 24) | ((packet[9] & 0xff) << 16) | ((packet[10] & 0xff) << 8) | (packet[11] & 0xff);
+    }
+
+    /**
+     * Minimal RFC 6184 depacketizer for single NAL unit and FU-A packets.
+     */
+    private static byte[] depacketizeH264(List<byte[]> packets) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] packet : packets) {
+            int type = packet[RtpPacketizer.HEADER_SIZE] & 0x1f;
+            if (type == 28) {
+                int fuHeader = packet[RtpPacketizer.HEADER_SIZE + 1] & 0xff;
+                if ((fuHeader & 0x80) != 0) {
+                    output.write(START_CODE, 0, START_CODE.length);
+                    output.write((packet[RtpPacketizer.HEADER_SIZE] & 0xe0) | (fuHeader & 0x1f));
+                }
+                output.write(packet, RtpPacketizer.HEADER_SIZE + 2, packet.length - RtpPacketizer.HEADER_SIZE - 2);
+            } else {
+                output.write(START_CODE, 0, START_CODE.length);
+                output.write(packet, RtpPacketizer.HEADER_SIZE, packet.length - RtpPacketizer.HEADER_SIZE);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    @Test
+    public void h264SmallNalUnitsGoInSinglePackets() throws Exception {
+        H264RtpPacketizer packetizer = new H264RtpPacketizer(MAX_PACKET_SIZE, 96, new Random(1));
+        Collector collector = new Collector();
+        byte[] frame = annexB(nalUnit(0x06, 20), nalUnit(0x41, 100));
+        packetizer.packetize(frame, 0, frame.length, 40000, 0, collector);
+        assertEquals(2, collector.packets.size());
+        assertFalse(marker(collector.packets.get(0)));
+        assertTrue(marker(collector.packets.get(1)));
+        assertEquals(96, collector.packets.get(0)[1] & 0x7f);
+        assertArrayEquals(frame, depacketizeH264(collector.packets));
+    }
+
+    @Test
+    public void h264LargeNalUnitIsFragmented() throws Exception {
+        H264RtpPacketizer packetizer = new H264RtpPacketizer(MAX_PACKET_SIZE, 96, new Random(2));
+        Collector collector = new Collector();
+        byte[] frame = annexB(nalUnit(0x65, 1000));
+        packetizer.packetize(frame, 0, frame.length, 0, EncodedFrame.FLAG_KEY_FRAME, collector);
+        assertTrue(collector.packets.size() > 1);
+        int firstSequence = sequenceNumber(collector.packets.get(0));
+        for (int i = 0; i < collector.packets.size(); i++) {
+            byte[] packet = collector.packets.get(i);
+            assertEquals(28, packet[RtpPacketizer.HEADER_SIZE] & 0x1f);
+            assertEquals((firstSequence + i) & 0xffff, sequenceNumber(packet));
+            assertEquals(i == collector.packets.size() - 1, marker(packet));
+        }
+        assertArrayEquals(frame, depacketizeH264(collector.packets));
+    }
+
+    @Test
+    public void h264CodecConfigDoesNotEndAccessUnit() throws Exception {
+        H264RtpPacketizer packetizer = new H264RtpPacketizer(MAX_PACKET_SIZE, 96, new Random(3));
+        Collector collector = new Collector();
+        byte[] config = annexB(nalUnit(0x67, 12), nalUnit(0x68, 4));
+        packetizer.packetize(config, 0, config.length, 0, EncodedFrame.FLAG_CODEC_CONFIG, collector);
+        for (byte[] packet : collector.packets) {
+            assertFalse(marker(packet));
+        }
+    }
+
+    @Test
+    public void timestampsRunAt90kHz() throws Exception {
+        H264RtpPacketizer packetizer = new H264RtpPacketizer(MAX_PACKET_SIZE, 96, new Random(4));
+        Collector collector = new Collector();
+        byte[] frame = annexB(nalUnit(0x41, 50));
+        packetizer.packetize(frame, 0, frame.length, 1000000, 0, collector);
+        packetizer.packetize(frame, 0, frame.length, 1040000, 0, collector);
+        long delta = (timestamp(collector.packets.get(1)) - timestamp(collector.packets.get(0))) & 0xffffffffL;
+        assertEquals(3600, delta);
+    }
+
+    @Test
+    public void vp8FramesCarryPayloadDescriptor() throws Exception {
+        Vp8RtpPacketizer packetizer = new Vp8RtpPacketizer(MAX_PACKET_SIZE, 96, new Random(5));
+        Collector collector = new Collector();
+        byte[] frame = nalUnit(0x10, 500);
+        packetizer.packetize(frame, 0, frame.length, 0, EncodedFrame.FLAG_KEY_FRAME, collector);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int i = 0; i < collector.packets.size(); i++) {
+            byte[] packet = collector.packets.get(i);
+            assertEquals(i == 0 ? 0x10 : 0x00, packet[RtpPacketizer.HEADER_SIZE]);
+            assertEquals(i == collector.packets.size() - 1, marker(packet));
+            output.write(packet, RtpPacketizer.HEADER_SIZE + 1, packet.length - RtpPacketizer.HEADER_SIZE - 1);
+        }
+        assertArrayEquals(frame, output.toByteArray());
+    }
+
+    @Test
+    public void fecParityHasItsOwnStream() throws Exception {
+        H264RtpPacketizer packetizer = new H264RtpPacketizer(MAX_PACKET_SIZE - FecEncoder.OVERHEAD, 96, new Random(6));
+        Collector collector = new Collector();
+        FecEncoder encoder = new FecEncoder(4, 1, MAX_PACKET_SIZE - FecEncoder.OVERHEAD, 97, collector);
+        byte[] frame = annexB(nalUnit(0x65, 500));
+        packetizer.packetize(frame, 0, frame.length, 1000000, EncodedFrame.FLAG_KEY_FRAME, encoder);
+        packetizer.packetize(frame, 0, frame.length, 1040000, 0, encoder);
+        byte[] media = collector.packets.get(0);
+        List<byte[]> parity = new ArrayList<>();
+        for (byte[] packet : collector.packets) {
+            if ((packet[1] & 0x7f) == 97) {
+                parity.add(packet);
+            } else {
+                assertEquals(ssrc(media), ssrc(packet));
+            }
+        }
+        assertEquals(2, parity.size());
+        assertTrue(ssrc(parity.get(0)) != ssrc(media));
+        assertEquals(ssrc(parity.get(0)), ssrc(parity.get(1)));
+        // parity sequence numbers run on their own
+        assertEquals((sequenceNumber(parity.get(0)) + 1) & 0xffff, sequenceNumber(parity.get(1)));
+        assertEquals(timestamp(media), timestamp(parity.get(0)));
+    }
+}
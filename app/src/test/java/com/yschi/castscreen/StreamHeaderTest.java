@@ -0,0 +1,35 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class StreamHeaderTest {
+    @Test
+    public void buildsTcpHeader() {
+        assertEquals("POST /api/v1/h264 HTTP/1.1\r\n"
+                + "Connection: close\r\n"
+                + "X-WIDTH: 1280\r\n"
+                + "X-HEIGHT: 720\r\n"
+                + "\r\n", StreamHeader.build(1280, 720, ""));
+    }
+
+    @Test
+    public void buildsRtpHeaders() {
+        assertEquals("X-TRANSPORT: rtp\r\nX-RTP-PORT: 53517\r\nX-RTP-PAYLOAD-TYPE: 96\r\nX-RTP-ENCODING: H264\r\n",
+                StreamHeader.rtpHeaders(53517, 96, "H264", -1));
+        assertEquals("X-TRANSPORT: rtp\r\nX-RTP-PORT: 53517\r\nX-RTP-PAYLOAD-TYPE: 96\r\nX-RTP-ENCODING: VP8\r\n"
+                        + "X-RTP-FEC-PAYLOAD-TYPE: 97\r\n",
+                StreamHeader.rtpHeaders(53517, 96, "VP8", 97));
+    }
+
+    @Test
+    public void buildsLatencyProbeHeader() {
+        assertEquals("X-LATENCY-PROBE-PORT: 53518\r\n", StreamHeader.latencyProbeHeaders(53518));
+    }
+
+    @Test
+    public void buildsFramingHeader() {
+        assertEquals("X-FRAMING: 1\r\n", StreamHeader.framingHeaders(FramedWriter.VERSION));
+    }
+}
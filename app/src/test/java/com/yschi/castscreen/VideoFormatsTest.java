@@ -0,0 +1,56 @@
+package com.yschi.castscreen;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VideoFormatsTest {
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Test
+    public void keepsRequestedFormatTheDeviceCanEncode() {
+        List<String> hardware = Arrays.asList(VideoFormats.AVC, VideoFormats.HEVC);
+        assertEquals(VideoFormats.AVC, VideoFormats.choose(VideoFormats.AVC, hardware, NONE));
+        assertEquals(VideoFormats.VP8, VideoFormats.choose(VideoFormats.VP8, hardware,
+                Collections.singletonList(VideoFormats.VP8)));
+    }
+
+    @Test
+    public void prefersBestHardwareFormat() {
+        assertEquals(VideoFormats.HEVC, VideoFormats.choose(VideoFormats.AUTO,
+                Arrays.asList(VideoFormats.VP8, VideoFormats.AVC, VideoFormats.VP9, VideoFormats.HEVC), NONE));
+        assertEquals(VideoFormats.VP9, VideoFormats.choose(VideoFormats.AUTO,
+                Arrays.asList(VideoFormats.AVC, VideoFormats.VP9), NONE));
+        // a requested format without any encoder falls back the same way
+        assertEquals(VideoFormats.AVC, VideoFormats.choose(VideoFormats.HEVC,
+                Arrays.asList(VideoFormats.VP8, VideoFormats.AVC), NONE));
+    }
+
+    @Test
+    public void fallsBackToSoftwareAvcOrVp8() {
+        // software HEVC and VP9 encoders cannot keep up with the screen
+        assertEquals(VideoFormats.VP8, VideoFormats.choose(VideoFormats.AUTO, NONE,
+                Arrays.asList(VideoFormats.HEVC, VideoFormats.VP9, VideoFormats.VP8)));
+        assertEquals(VideoFormats.AVC, VideoFormats.choose(VideoFormats.AUTO, NONE, NONE));
+    }
+
+    @Test
+    public void describesWireFormats() {
+        assertTrue(VideoFormats.usesParameterSets(VideoFormats.HEVC));
+        assertFalse(VideoFormats.usesParameterSets(VideoFormats.VP9));
+        assertTrue(VideoFormats.usesIvf(VideoFormats.VP9));
+        assertEquals(IvfWriter.FOURCC_VP9, VideoFormats.ivfFourcc(VideoFormats.VP9));
+        assertEquals(IvfWriter.FOURCC_VP8, VideoFormats.ivfFourcc(VideoFormats.VP8));
+        assertFalse(VideoFormats.isKnown(VideoFormats.AUTO));
+        assertEquals("H264", VideoFormats.rtpEncodingName(VideoFormats.AVC));
+        assertEquals("VP8", VideoFormats.rtpEncodingName(VideoFormats.VP8));
+        assertNull(VideoFormats.rtpEncodingName(VideoFormats.HEVC));
+    }
+}
@@ -0,0 +1,191 @@
+package com.yschi.castscreen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ViewerServerTest {
+    private static final long HANDSHAKE_TIMEOUT_MS = 300;
+
+    private final LinkedBlockingQueue<SocketChannel> mReady = new LinkedBlockingQueue<SocketChannel>();
+    private final LinkedBlockingQueue<Integer> mFraming = new LinkedBlockingQueue<Integer>();
+    private byte[] mHeader = "X-WIDTH: 1280\r\n\r\n".getBytes();
+    private ViewerServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ViewerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), HANDSHAKE_TIMEOUT_MS,
+                new ViewerServer.Listener() {
+                    @Override
+                    public byte[] onHandshake(SocketChannel channel, int framing) {
+                        mFraming.add(framing);
+                        return mHeader;
+                    }
+
+                    @Override
+                    public void onViewerReady(SocketChannel channel, int framing) {
+                        mReady.add(channel);
+                    }
+                });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        for (SocketChannel channel : mReady) {
+            channel.close();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+        socket.setSoTimeout(2000);
+        return socket;
+    }
+
+    private static byte[] readFully(InputStream input, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = input.read(data, offset, length - offset);
+            if (read < 0) {
+                throw new IOException("closed after " + offset + " bytes");
+            }
+            offset += read;
+        }
+        return data;
+    }
+
+    @Test
+    public void parsesHandshakeSentInPieces() throws Exception {
+        Socket socket = connect();
+        OutputStream output = socket.getOutputStream();
+        output.write("mir".getBytes());
+        output.flush();
+        Thread.sleep(50);
+        assertTrue(mReady.isEmpty());
+        output.write("ror\r\n".getBytes());
+        output.flush();
+        assertArrayEquals(mHeader, readFully(socket.getInputStream(), mHeader.length));
+        SocketChannel channel = mReady.poll(2, TimeUnit.SECONDS);
+        assertNotNull(channel);
+        assertTrue(channel.isBlocking());
+        socket.close();
+    }
+
+    @Test
+    public void flushesLargeHeaderAsTheClientReads() throws Exception {
+        mHeader = new byte[4 * 1024 * 1024];
+        for (int i = 0; i < mHeader.length; i++) {
+            mHeader[i] = (byte) i;
+        }
+        Socket socket = connect();
+        socket.getOutputStream().write("MIRROR\n".getBytes());
+        Thread.sleep(100);
+        // the header does not fit the socket buffers, so it is still being flushed
+        assertTrue(mReady.isEmpty());
+        assertArrayEquals(mHeader, readFully(socket.getInputStream(), mHeader.length));
+        assertNotNull(mReady.poll(2, TimeUnit.SECONDS));
+        socket.close();
+    }
+
+    @Test
+    public void closesStuckHandshake() throws Exception {
+        Socket socket = connect();
+        socket.getOutputStream().write("mirr".getBytes());
+        assertEquals(-1, socket.getInputStream().read());
+        assertTrue(mReady.isEmpty());
+        socket.close();
+    }
+
+    @Test
+    public void rejectsOtherRequests() throws Exception {
+        Socket socket = connect();
+        socket.getOutputStream().write("GET / HTTP/1.1\r\n".getBytes());
+        assertEquals(-1, socket.getInputStream().read());
+        assertNull(mReady.poll(100, TimeUnit.MILLISECONDS));
+        socket.close();
+    }
+
+    @Test
+    public void servesManyClientsFromOneThread() throws Exception {
+        int threads = Thread.activeCount();
+        Socket[] sockets = new Socket[20];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = connect();
+        }
+        for (Socket socket : sockets) {
+            socket.getOutputStream().write("mirror\n".getBytes());
+        }
+        for (Socket socket : sockets) {
+            assertArrayEquals(mHeader, readFully(socket.getInputStream(), mHeader.length));
+        }
+        assertEquals(threads, Thread.activeCount());
+        for (Socket socket : sockets) {
+            assertNotNull(mReady.poll(2, TimeUnit.SECONDS));
+            socket.close();
+        }
+    }
+
+    @Test
+    public void passesRequestedFraming() throws Exception {
+        Socket socket = connect();
+        socket.getOutputStream().write("mirror framing=1\r\n".getBytes());
+        assertArrayEquals(mHeader, readFully(socket.getInputStream(), mHeader.length));
+        assertEquals(Integer.valueOf(1), mFraming.poll(2, TimeUnit.SECONDS));
+        assertNotNull(mReady.poll(2, TimeUnit.SECONDS));
+        socket.close();
+    }
+
+    @Test
+    public void releasesChannelsWhenBindFails() throws Exception {
+        ViewerServer server = new ViewerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                mServer.getLocalPort()), HANDSHAKE_TIMEOUT_MS, null);
+        try {
+            server.start();
+            fail("bound a port already in use");
+        } catch (IOException e) {
+            // expected
+        }
+        // nothing was started, so this returns right away
+        server.close();
+    }
+
+    @Test
+    public void matchesHandshakeLine() {
+        assertTrue(ViewerServer.isHandshake("mirror".getBytes(), 6));
+        assertTrue(ViewerServer.isHandshake("Mirror\r".getBytes(), 7));
+        assertTrue(ViewerServer.isHandshake("mirror framing=1".getBytes(), 16));
+        assertFalse(ViewerServer.isHandshake("mirrors".getBytes(), 7));
+        assertFalse(ViewerServer.isHandshake("mirrors framing=1".getBytes(), 17));
+        assertFalse(ViewerServer.isHandshake("".getBytes(), 0));
+    }
+
+    @Test
+    public void parsesFramingOption() {
+        assertEquals(0, ViewerServer.parseFraming("mirror".getBytes(), 6));
+        assertEquals(1, ViewerServer.parseFraming("mirror framing=1\r".getBytes(), 17));
+        assertEquals(2, ViewerServer.parseFraming("MIRROR  other FRAMING=2".getBytes(), 23));
+        assertEquals(0, ViewerServer.parseFraming("mirror framing=x".getBytes(), 16));
+        assertEquals(0, ViewerServer.parseFraming("mirror framing=-3".getBytes(), 17));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen.benchmark;
+
+import com.yschi.castscreen.FecLossSimulation;
+
+import java.io.IOException;
+
+/**
+ * Prints the cost and the benefit of each FEC configuration of the
+ * {@link FecLossSimulation}, one table per channel.
+ */
+public class FecLossReport {
+    private FecLossReport() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        print("Random 2% loss", FecLossSimulation.run(1, new FecLossSimulation.ChannelFactory() {
+            @Override
+            public FecLossSimulation.Channel create(long seed) {
+                return FecLossSimulation.bernoulli(0.02, seed);
+            }
+        }));
+        print("Bursty loss (Gilbert-Elliott)", FecLossSimulation.run(2, new FecLossSimulation.ChannelFactory() {
+            @Override
+            public FecLossSimulation.Channel create(long seed) {
+                return FecLossSimulation.gilbertElliott(0.002, 0.5, 0.01, 0.3, seed);
+            }
+        }));
+    }
+
+    private static void print(String name, FecLossSimulation.Result[] results) {
+        System.out.println(name);
+        System.out.println(String.format("%-10s %9s %9s %9s %9s %9s %9s",
+                "config", "overhead", "wireloss", "residual", "complete", "display", "rebuilt"));
+        for (int i = 0; i < results.length; i++) {
+            FecLossSimulation.Result result = results[i];
+            System.out.println(String.format("%-10s %8.1f%% %8.2f%% %8.2f%% %8.1f%% %8.1f%% %9d",
+                    FecLossSimulation.configName(i), result.overhead * 100, result.packetLoss * 100,
+                    result.residualLoss * 100, result.completeFrames * 100, result.displayableFrames * 100,
+                    result.recovered));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen.benchmark;
+
+import com.yschi.castscreen.EncodedFrame;
+import com.yschi.castscreen.FrameQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame copy out of a codec output buffer into the send queue, as
+ * done on the encoder thread for every viewer, and taking the frame out on
+ * the sender side.
+ *
+ * Codec output buffers are direct buffers, so the source here is one too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class FrameCopyBenchmark {
+    @Param({"2000000", "6000000"})
+    public int bitrate;
+
+    private int[] mSizes;
+    private int mIndex;
+    private ByteBuffer mCodecBuffer;
+    private FrameQueue mQueue;
+
+    @Setup
+    public void setUp() throws IOException {
+        mSizes = FrameSizeTrace.create(bitrate);
+        mCodecBuffer = ByteBuffer.allocateDirect(FrameSizeTrace.max(mSizes));
+        mQueue = new FrameQueue(8);
+    }
+
+    @Benchmark
+    public EncodedFrame copyThroughQueue() {
+        int index = mIndex;
+        mIndex = (mIndex + 1) % mSizes.length;
+        mCodecBuffer.clear();
+        mCodecBuffer.limit(mSizes[index]);
+        EncodedFrame slot = mQueue.claim();
+        slot.set(mCodecBuffer, index * 40000L, index % 25 == 0 ? EncodedFrame.FLAG_KEY_FRAME : 0);
+        mQueue.publish();
+        EncodedFrame frame = mQueue.peek();
+        mQueue.release();
+        return frame;
+    }
+}
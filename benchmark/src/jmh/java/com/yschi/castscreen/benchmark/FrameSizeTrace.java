@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Encoded frame sizes to drive the benchmarks with.
+ *
+ * By default the sizes are synthetic: a key frame every second at four
+ * times the size of a P-frame, and log-normally distributed P-frames, which
+ * is roughly what the screen encoder produces at a fixed bitrate. A trace
+ * recorded from a real session, one frame size in bytes per line, can be
+ * used instead by running the benchmarks with -Dcastscreen.trace=path.
+ */
+public class FrameSizeTrace {
+    public static final String TRACE_PROPERTY = "castscreen.trace";
+
+    private static final int FPS = 25;
+    private static final int GOP = 25;
+    private static final int FRAMES = 30 * FPS;
+
+    private FrameSizeTrace() {
+    }
+
+    /**
+     * @param bitrate bitrate of the synthetic trace in bits per second
+     * @return frame sizes, the first frame is a key frame
+     */
+    public static int[] create(int bitrate) throws IOException {
+        String path = System.getProperty(TRACE_PROPERTY);
+        if (path != null) {
+            return load(path);
+        }
+        return synthetic(bitrate, new Random(0));
+    }
+
+    static int[] synthetic(int bitrate, Random random) {
+        int averageBytes = bitrate / 8 / FPS;
+        // one key frame worth four P-frames per GOP keeps the average at the bitrate
+        double pFrameBytes = (double) averageBytes * GOP / (GOP + 3);
+        int[] sizes = new int[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            if (i % GOP == 0) {
+                sizes[i] = (int) (4 * pFrameBytes);
+            } else {
+                // log-normal with a mean of pFrameBytes
+                double sigma = 0.5;
+                double size = pFrameBytes * Math.exp(sigma * random.nextGaussian() - sigma * sigma / 2);
+                sizes[i] = Math.max(64, (int) size);
+            }
+        }
+        return sizes;
+    }
+
+    static int[] load(String path) throws IOException {
+        int[] sizes = new int[1024];
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (count == sizes.length) {
+                    sizes = Arrays.copyOf(sizes, count * 2);
+                }
+                sizes[count++] = Integer.parseInt(line);
+            }
+        } finally {
+            reader.close();
+        }
+        if (count == 0) {
+            throw new IOException("Empty frame size trace: " + path);
+        }
+        return Arrays.copyOf(sizes, count);
+    }
+
+    public static int max(int[] sizes) {
+        int max = 0;
+        for (int size : sizes) {
+            max = Math.max(max, size);
+        }
+        return max;
+    }
+
+    /**
+     * Fills a buffer with H.264 like frames: a start code, a NAL header and
+     * random payload without emulated start codes.
+     */
+    public static byte[] h264Payload(int size, boolean keyFrame, Random random) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        for (int i = 0; i < size; i++) {
+            if (data[i] == 0) {
+                data[i] = 1;
+            }
+        }
+        data[0] = 0;
+        data[1] = 0;
+        data[2] = 0;
+        data[3] = 1;
+        data[4] = (byte) (keyFrame ? 0x65 : 0x41);
+        return data;
+    }
+}
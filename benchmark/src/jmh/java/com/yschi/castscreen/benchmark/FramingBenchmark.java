@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen.benchmark;
+
+import com.yschi.castscreen.ChannelFrameWriter;
+import com.yschi.castscreen.EncodedFrame;
+import com.yschi.castscreen.IvfWriter;
+import com.yschi.castscreen.StreamFrameWriter;
+import com.yschi.castscreen.StreamHeader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IVF and stream header framing without any I/O, writing to sinks that
+ * discard the bytes. Frame sizes follow a {@link FrameSizeTrace}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class FramingBenchmark {
+    @Param({"6000000"})
+    public int bitrate;
+
+    private int[] mSizes;
+    private int mIndex;
+    private EncodedFrame[] mFrames;
+    private StreamFrameWriter mStreamWriter;
+    private ChannelFrameWriter mChannelWriter;
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private static class NullChannel implements GatheringByteChannel {
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        mSizes = FrameSizeTrace.create(bitrate);
+        // a window of distinct frames like the send queue slots
+        mFrames = new EncodedFrame[8];
+        Random random = new Random(0);
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = new EncodedFrame(FrameSizeTrace.max(mSizes));
+            random.nextBytes(mFrames[i].data);
+        }
+        OutputStream outputStream = new NullOutputStream();
+        IvfWriter streamIvf = new IvfWriter(outputStream, 1280, 720);
+        streamIvf.writeHeader();
+        mStreamWriter = new StreamFrameWriter(outputStream, streamIvf);
+        NullChannel channel = new NullChannel();
+        IvfWriter channelIvf = new IvfWriter(channel, 1280, 720);
+        channelIvf.writeHeader();
+        mChannelWriter = new ChannelFrameWriter(channel, channelIvf);
+    }
+
+    private EncodedFrame nextFrame() {
+        EncodedFrame frame = mFrames[mIndex % mFrames.length];
+        frame.size = mSizes[mIndex];
+        frame.presentationTimeUs = mIndex * 40000L;
+        mIndex = (mIndex + 1) % mSizes.length;
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] makeIvfHeader() {
+        return IvfWriter.makeIvfHeader(0, 1280, 720, 1, 1000000);
+    }
+
+    @Benchmark
+    public void ivfStreamWriteFrame() throws IOException {
+        mStreamWriter.writeFrame(nextFrame());
+    }
+
+    @Benchmark
+    public void ivfChannelWriteFrame() throws IOException {
+        mChannelWriter.writeFrame(nextFrame());
+    }
+
+    @Benchmark
+    public String httpStreamHeader() {
+        return StreamHeader.build(1280, 720, "");
+    }
+
+    @Benchmark
+    public String httpStreamHeaderWithRtp() {
+        return StreamHeader.build(1280, 720, StreamHeader.rtpHeaders(53517, 96, "H264", 97));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen.benchmark;
+
+import com.yschi.castscreen.ChannelFrameWriter;
+import com.yschi.castscreen.EncodedFrame;
+import com.yschi.castscreen.FrameWriter;
+import com.yschi.castscreen.IvfWriter;
+import com.yschi.castscreen.StreamFrameWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing IVF frames to a loopback TCP connection through a socket
+ * stream (header and payload as two writes) with a socket channel (one
+ * gathering write per frame).
+ *
+ * Both sockets have TCP_NODELAY set like the viewer sockets in CastService,
+ * so the stream writer sends a separate segment for every 12 byte header.
+ * A background thread drains the receiving end.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class IvfWriterBenchmark {
+    @Param({"1024", "16384", "131072"})
+    public int frameSize;
+
+    private ServerSocket mServerSocket;
+    private Socket mStreamSocket;
+    private SocketChannel mChannel;
+    private Thread[] mDrainThreads;
+    private FrameWriter mStreamWriter;
+    private FrameWriter mChannelWriter;
+    private EncodedFrame mFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0, 2, InetAddress.getLoopbackAddress());
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                mServerSocket.getLocalPort());
+
+        mStreamSocket = new Socket();
+        mStreamSocket.setTcpNoDelay(true);
+        mStreamSocket.connect(address);
+        Socket streamPeer = mServerSocket.accept();
+
+        mChannel = SocketChannel.open(address);
+        mChannel.socket().setTcpNoDelay(true);
+        Socket channelPeer = mServerSocket.accept();
+
+        mDrainThreads = new Thread[] {drain(streamPeer), drain(channelPeer)};
+
+        IvfWriter streamIvf = new IvfWriter(mStreamSocket.getOutputStream(), 1280, 720);
+        streamIvf.writeHeader();
+        mStreamWriter = new StreamFrameWriter(mStreamSocket.getOutputStream(), streamIvf);
+        IvfWriter channelIvf = new IvfWriter(mChannel, 1280, 720);
+        channelIvf.writeHeader();
+        mChannelWriter = new ChannelFrameWriter(mChannel, channelIvf);
+
+        mFrame = new EncodedFrame(frameSize);
+        new Random(0).nextBytes(mFrame.data);
+        mFrame.size = frameSize;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        mStreamSocket.close();
+        mChannel.close();
+        mServerSocket.close();
+        for (Thread thread : mDrainThreads) {
+            thread.join();
+        }
+    }
+
+    private static Thread drain(final Socket socket) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[256 * 1024];
+                try {
+                    InputStream inputStream = socket.getInputStream();
+                    while (inputStream.read(buffer) >= 0) {
+                        // discard
+                    }
+                } catch (IOException e) {
+                    // connection closed by tearDown
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }, "drain");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Benchmark
+    public void streamTwoWrites() throws IOException {
+        mFrame.presentationTimeUs += 33333;
+        mStreamWriter.writeFrame(mFrame);
+    }
+
+    @Benchmark
+    public void channelGatheringWrite() throws IOException {
+        mFrame.presentationTimeUs += 33333;
+        mChannelWriter.writeFrame(mFrame);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.yschi.castscreen.benchmark;
+
+import com.yschi.castscreen.EncodedFrame;
+import com.yschi.castscreen.FecEncoder;
+import com.yschi.castscreen.H264RtpPacketizer;
+import com.yschi.castscreen.RtpPacketizer;
+import com.yschi.castscreen.Vp8RtpPacketizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RTP packetization of frames from a {@link FrameSizeTrace}, with and
+ * without XOR parity, into a sink that only consumes the packets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RtpPacketizerBenchmark {
+    // MTU of 1500 without IP and UDP headers
+    private static final int MAX_PACKET_SIZE = 1472;
+
+    @Param({"6000000"})
+    public int bitrate;
+
+    @Param({"0", "10"})
+    public int fecGroupSize;
+
+    private int[] mSizes;
+    private int mIndex;
+    private byte[][] mKeyFrames;
+    private byte[][] mFrames;
+    private RtpPacketizer mH264Packetizer;
+    private RtpPacketizer mVp8Packetizer;
+    private RtpPacketizer.PacketSink mSink;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) throws IOException {
+        mSizes = FrameSizeTrace.create(bitrate);
+        int maxSize = FrameSizeTrace.max(mSizes);
+        Random random = new Random(0);
+        mKeyFrames = new byte[][] {FrameSizeTrace.h264Payload(maxSize, true, random)};
+        mFrames = new byte[8][];
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = FrameSizeTrace.h264Payload(maxSize, false, random);
+        }
+        RtpPacketizer.PacketSink sink = new RtpPacketizer.PacketSink() {
+            @Override
+            public void onPacket(byte[] packet, int length) {
+                blackhole.consume(packet[length - 1]);
+            }
+        };
+        int packetSize = MAX_PACKET_SIZE;
+        if (fecGroupSize > 0) {
+            packetSize -= FecEncoder.OVERHEAD;
+            sink = new FecEncoder(fecGroupSize, 2, packetSize, 97, sink);
+        }
+        mSink = sink;
+        mH264Packetizer = new H264RtpPacketizer(packetSize, 96);
+        mVp8Packetizer = new Vp8RtpPacketizer(packetSize, 96);
+    }
+
+    @Benchmark
+    public void h264() throws IOException {
+        int index = mIndex;
+        mIndex = (mIndex + 1) % mSizes.length;
+        boolean keyFrame = index % 25 == 0;
+        byte[] frame = keyFrame ? mKeyFrames[0] : mFrames[index % mFrames.length];
+        mH264Packetizer.packetize(frame, 0, mSizes[index], index * 40000L,
+                keyFrame ? EncodedFrame.FLAG_KEY_FRAME : 0, mSink);
+    }
+
+    @Benchmark
+    public void vp8() throws IOException {
+        int index = mIndex;
+        mIndex = (mIndex + 1) % mSizes.length;
+        boolean keyFrame = index % 25 == 0;
+        byte[] frame = keyFrame ? mKeyFrames[0] : mFrames[index % mFrames.length];
+        mVp8Packetizer.packetize(frame, 0, mSizes[index], index * 40000L,
+                keyFrame ? EncodedFrame.FLAG_KEY_FRAME : 0, mSink);
+    }
+}
@@ -14,19 +14,24 @@
  * limitations under the License.
  */
 
+#define _GNU_SOURCE
+
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
 #include <unistd.h>
 #include <errno.h>
 #include <signal.h>
-#include <sys/select.h> 
+#include <sys/epoll.h>
+#include <sys/ioctl.h>
 #include <sys/socket.h>
 #include <sys/types.h>
 #include <sys/wait.h>
 #include <netinet/in.h>
 #include <arpa/inet.h>
 #include <fcntl.h>
+#include <stdint.h>
+#include <time.h>
 
 #define USE_FIFO 0
 
@@ -37,16 +42,169 @@
 #define DISCOVER_MSG "hello"
 #define LOCAL_SERVER_PORT 53516
 
-#define DISCOVER_MSG_TEMPLATE "{\"port\":%d,\"name\":\"CsReceiver @ %s\",\"id\":\"%s\",\"width\":1280,\"height\":960,\"mirror\":\"h264\",\"audio\":\"pcm\",\"subtitles\":\"text/vtt\",\"proxyHeaders\":true,\"hls\":false,\"upsell\":true}"
+#define DISCOVER_MSG_TEMPLATE "{\"port\":%d,\"name\":\"CsReceiver @ %s\",\"id\":\"%s\",\"width\":1280,\"height\":960,\"mirror\":\"h264\",\"audio\":\"pcm\",\"subtitles\":\"text/vtt\",\"proxyHeaders\":true,\"hls\":false,\"upsell\":true,\"framing\":1}"
 
 #define FIFO_PATH "/tmp/cast_fifo"
 
+/* Each sender gets its own session with its own decoder process */
+#define MAX_SESSIONS 8
+#define HEADER_BUF_SIZE 2048
+/* Stream bytes move from the socket into the decoder pipe with splice(), in chunks of up to this size */
+#define SPLICE_CHUNK (256 * 1024)
+#define DECODER_PIPE_SIZE (1024 * 1024)
+#define TCP_RECV_BUFFER_SIZE (1024 * 1024)
+#define POLL_INTERVAL_MS 3000
+#define IDLE_TIMEOUT_US (30 * 1000000ULL)
+#define MAX_EVENTS (4 * MAX_SESSIONS + 2)
+
+/* What an epoll event is about, the session slot is kept next to it */
+#define EV_DISCOVER 0
+#define EV_LISTEN 1
+#define EV_CLIENT 2
+#define EV_DECODER 3
+#define EV_RTP 4
+#define EV_PROBE 5
+
+#define RTP_HEADER_SIZE 12
+#define RTP_MAX_PACKET_SIZE 2048
+#define RTP_MAX_NAL_SIZE (2 * 1024 * 1024)
+#define RTP_RECV_BUFFER_SIZE (1024 * 1024)
+
+#define IVF_FILE_HEADER_SIZE 32
+#define IVF_FRAME_HEADER_SIZE 12
+#define RTP_CLOCK_RATE 90000
+
+/* Reassembles RFC 6184 H.264 RTP packets into an Annex B byte stream, or RFC 7741 VP8 packets into IVF */
+struct rtp_depacketizer {
+    int payload_type;
+    int vp8;
+    int started;
+    uint16_t next_seq;
+    unsigned int lost;
+    /* a fragmented NAL unit or a VP8 frame is being collected in fu_buf */
+    int fu_active;
+    size_t fu_len;
+    /* IVF file header written, frame timestamps count from the first frame */
+    int ivf_started;
+    uint32_t last_timestamp;
+    uint64_t pts;
+    uint8_t fu_buf[RTP_MAX_NAL_SIZE];
+};
+
+static const uint8_t start_code[4] = {0x00, 0x00, 0x00, 0x01};
+
+/* Stream bytes on their way to the decoder pipe, what the pipe has no room for waits in buf */
+struct decoder_queue {
+    int fd;
+    uint8_t *buf;
+    size_t len;
+    size_t cap;
+    unsigned int dropped;
+};
+
+#define FEC_WINDOW 1024
+#define FEC_MAX_PARITY 64
+#define FEC_OVERHEAD (RTP_HEADER_SIZE + 6)
+#define FEC_HOLD_PACKETS 64
+
+/* Rebuilds lost RTP packets from XOR parity packets and passes media packets on in order */
+struct fec_decoder {
+    int payload_type;
+    int started;
+    uint16_t next_seq;
+    uint16_t highest_seq;
+    unsigned int recovered;
+    unsigned int lost;
+    int parity_count;
+    int next_parity;
+    uint8_t packets[FEC_WINDOW][RTP_MAX_PACKET_SIZE];
+    int lengths[FEC_WINDOW];
+    uint16_t seqs[FEC_WINDOW];
+    uint8_t present[FEC_WINDOW];
+    uint8_t parity[FEC_MAX_PARITY][RTP_MAX_PACKET_SIZE];
+    int parity_lengths[FEC_MAX_PARITY];
+    uint8_t scratch[RTP_MAX_PACKET_SIZE];
+};
+
+/* Framed stream: every frame follows a header of length, sequence, pts, flags and 3 reserved bytes, big endian */
+#define FRAMING_VERSION 1
+#define FRAME_HEADER_SIZE 20
+#define FRAME_FLAG_KEY 1
+#define FRAME_FLAG_CONFIG 2
+/* Beyond this backlog in the decoder pipe, frames are dropped until the next key frame */
+#define DECODER_BACKLOG_LIMIT (DECODER_PIPE_SIZE / 2)
+/* RTP cannot hold its sender back, beyond this much queued for the decoder whole NAL units and frames are dropped */
+#define DECODER_QUEUE_LIMIT DECODER_PIPE_SIZE
+
+/* Latency probes from the sender: magic, seq, send time, pts; echoed with arrival and send times appended */
+#define PROBE_MAGIC 0x43535052
+#define ECHO_MAGIC 0x43534543
+#define PROBE_SIZE 24
+#define ECHO_SIZE (PROBE_SIZE + 16)
+
+struct session {
+    int active;
+    int sock;
+    /* header parsed and decoder running */
+    int streaming;
+    /* decoder pipe was full, the socket waits until it drains */
+    int decoder_blocked;
+    /* the decoder pipe is watched for room, something waits in out or the socket is blocked */
+    int decoder_watched;
+    int use_splice;
+    pid_t decoder_pid;
+    int decoder_in;
+    int decoder_out;
+    int fifo_fp;
+    /* where the stream goes, the decoder pipe or the fifo */
+    struct decoder_queue out;
+    /* index of the shared rtp port, packets from the sender's address belong to this session */
+    int rtp_udp;
+    struct in_addr peer_addr;
+    /* source port of the first rtp packet from the sender's address, 0 until then */
+    in_port_t rtp_source_port;
+    int use_fec;
+    struct rtp_depacketizer *rtp_depay;
+    struct fec_decoder *rtp_fec;
+    int probe_udp;
+    uint64_t last_data_us;
+    /* framed stream state, the header of the next frame is read while frame_remaining is 0 */
+    int framed;
+    int frame_header_len;
+    uint32_t frame_remaining;
+    int frame_skip;
+    int await_key_frame;
+    int seq_started;
+    uint32_t next_seq;
+    unsigned int frames_dropped;
+    uint8_t frame_header[FRAME_HEADER_SIZE];
+    int header_len;
+    char header[HEADER_BUF_SIZE];
+};
+
+/*
+ * Every sender names the same RTP and probe ports, so each port is bound once
+ * and shared by the sessions pointed at it. Probes are echoed to wherever they
+ * came from, RTP packets go to the session of the sender that sent them.
+ */
+#define MAX_UDP_PORTS (2 * MAX_SESSIONS)
+
+struct udp_port {
+    int port;
+    int tag;
+    int sock;
+    int users;
+};
+
+static struct udp_port udp_ports[MAX_UDP_PORTS];
+
 pid_t popen2(const char **command, int *infp, int *outfp)
 {
     int p_stdin[2], p_stdout[2];
     pid_t pid;
 
-    if (pipe(p_stdin) != 0 || pipe(p_stdout) != 0)
+    // close-on-exec, so a decoder does not hold on to the sockets and pipes of other sessions
+    if (pipe2(p_stdin, O_CLOEXEC) != 0 || pipe2(p_stdout, O_CLOEXEC) != 0)
         return -1;
 
     pid = fork();
@@ -84,7 +242,7 @@ int setup_udp_socket() {
     int pktinfo = 1;
     struct sockaddr_in broadcast_addr;
 
-    if ((udp_sock = socket(AF_INET, SOCK_DGRAM, 0)) < 0) {
+    if ((udp_sock = socket(AF_INET, SOCK_DGRAM | SOCK_CLOEXEC, 0)) < 0) {
         perror("Error when creating udp socket");
         return -1;
     }
@@ -111,28 +269,1157 @@ int setup_udp_socket() {
     return udp_sock;
 }
 
+int setup_rtp_socket(int port) {
+    int rtp_sock = -1;
+    int rcvbuf = RTP_RECV_BUFFER_SIZE;
+    struct sockaddr_in rtp_addr;
+
+    if ((rtp_sock = socket(AF_INET, SOCK_DGRAM | SOCK_CLOEXEC, 0)) < 0) {
+        perror("Error when creating rtp socket");
+        return -1;
+    }
+
+    // room for a few key frames, so a burst does not overflow the socket while the decoder is busy
+    if (setsockopt(rtp_sock, SOL_SOCKET, SO_RCVBUF, &rcvbuf, sizeof(rcvbuf)) < 0) {
+        perror("Error when setting receive buffer for rtp socket");
+    }
+
+    memset((char *)&rtp_addr, 0, sizeof(rtp_addr));
+    rtp_addr.sin_family = AF_INET;
+    rtp_addr.sin_addr.s_addr = htonl(INADDR_ANY);
+    rtp_addr.sin_port = htons(port);
+
+    if (bind(rtp_sock, (struct sockaddr *)&rtp_addr, sizeof(rtp_addr)) < 0) {
+        perror("Error when binding rtp socket");
+        close(rtp_sock);
+        return -1;
+    }
+    return rtp_sock;
+}
+
+int setup_probe_socket(int port) {
+    int probe_sock = -1;
+    struct sockaddr_in probe_addr;
+
+    if ((probe_sock = socket(AF_INET, SOCK_DGRAM | SOCK_CLOEXEC, 0)) < 0) {
+        perror("Error when creating probe socket");
+        return -1;
+    }
+
+    memset((char *)&probe_addr, 0, sizeof(probe_addr));
+    probe_addr.sin_family = AF_INET;
+    probe_addr.sin_addr.s_addr = htonl(INADDR_ANY);
+    probe_addr.sin_port = htons(port);
+
+    if (bind(probe_sock, (struct sockaddr *)&probe_addr, sizeof(probe_addr)) < 0) {
+        perror("Error when binding probe socket");
+        close(probe_sock);
+        return -1;
+    }
+    return probe_sock;
+}
+
+static uint64_t monotonic_us() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t) ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
+static void put_be32(uint8_t *p, uint32_t v) {
+    p[0] = v >> 24;
+    p[1] = v >> 16;
+    p[2] = v >> 8;
+    p[3] = v;
+}
+
+static void put_be64(uint8_t *p, uint64_t v) {
+    put_be32(p, v >> 32);
+    put_be32(p + 4, (uint32_t) v);
+}
+
+static void put_le16(uint8_t *p, uint16_t v) {
+    p[0] = v;
+    p[1] = v >> 8;
+}
+
+static void put_le32(uint8_t *p, uint32_t v) {
+    put_le16(p, v);
+    put_le16(p + 2, v >> 16);
+}
+
+static void put_le64(uint8_t *p, uint64_t v) {
+    put_le32(p, (uint32_t) v);
+    put_le32(p + 4, v >> 32);
+}
+
+static uint32_t get_be32(const uint8_t *p) {
+    return ((uint32_t) p[0] << 24) | ((uint32_t) p[1] << 16) | ((uint32_t) p[2] << 8) | p[3];
+}
+
+/* Sends a latency probe back to where it came from with the time it arrived and the time it left */
+int echo_probe(int probe_sock) {
+    uint8_t buf[ECHO_SIZE];
+    struct sockaddr_in from;
+    socklen_t from_len = sizeof(from);
+    uint64_t arrival_us;
+    int len = recvfrom(probe_sock, buf, PROBE_SIZE + 1, 0, (struct sockaddr *)&from, &from_len);
+
+    arrival_us = monotonic_us();
+    if (len != PROBE_SIZE || ((uint32_t) buf[0] << 24 | buf[1] << 16 | buf[2] << 8 | buf[3]) != PROBE_MAGIC) {
+        return len < 0 ? -1 : 0;
+    }
+    put_be32(buf, ECHO_MAGIC);
+    put_be64(buf + PROBE_SIZE, arrival_us);
+    put_be64(buf + PROBE_SIZE + 8, monotonic_us());
+    return sendto(probe_sock, buf, ECHO_SIZE, 0, (struct sockaddr *)&from, from_len) < 0 ? -1 : 0;
+}
+
+/* Writes what waits in the queue as far as the decoder takes it, returns -1 if the decoder is gone */
+int queue_flush(struct decoder_queue *out) {
+    size_t pos = 0;
+    while (pos < out->len) {
+        ssize_t written = write(out->fd, out->buf + pos, out->len - pos);
+        if (written < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            if (errno == EAGAIN) {
+                break;
+            }
+            return -1;
+        }
+        pos += written;
+    }
+    memmove(out->buf, out->buf + pos, out->len - pos);
+    out->len -= pos;
+    return 0;
+}
+
+/* Passes bytes on to the decoder without blocking, what does not fit is queued, returns -1 on failure */
+int queue_write(struct decoder_queue *out, const uint8_t *data, size_t len) {
+    // nothing may overtake what is already queued
+    while (out->len == 0 && len > 0) {
+        ssize_t written = write(out->fd, data, len);
+        if (written < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            if (errno == EAGAIN) {
+                break;
+            }
+            return -1;
+        }
+        data += written;
+        len -= written;
+    }
+    if (len == 0) {
+        return 0;
+    }
+    if (out->len + len > out->cap) {
+        size_t cap = out->cap > 0 ? out->cap : 64 * 1024;
+        uint8_t *buf;
+        while (cap < out->len + len) {
+            cap *= 2;
+        }
+        buf = realloc(out->buf, cap);
+        if (buf == NULL) {
+            errno = ENOMEM;
+            return -1;
+        }
+        out->buf = buf;
+        out->cap = cap;
+    }
+    memcpy(out->buf + out->len, data, len);
+    out->len += len;
+    return 0;
+}
+
+/* Whether a whole unit of len bytes is still taken, the first one after the queue drained always is */
+static int queue_room(struct decoder_queue *out, size_t len) {
+    if (out->len > 0 && out->len + len > DECODER_QUEUE_LIMIT) {
+        out->dropped++;
+        printf("Decoder is %zu bytes behind, dropped %zu bytes, total drops: %u\n", out->len, len, out->dropped);
+        return 0;
+    }
+    return 1;
+}
+
+int write_nal(struct decoder_queue *out, const uint8_t *nal, size_t len) {
+    if (!queue_room(out, sizeof(start_code) + len)) {
+        return 0;
+    }
+    if (queue_write(out, start_code, sizeof(start_code)) < 0) {
+        return -1;
+    }
+    return queue_write(out, nal, len);
+}
+
+void rtp_depacketizer_reset(struct rtp_depacketizer *depay, int payload_type, int vp8) {
+    depay->payload_type = payload_type;
+    depay->vp8 = vp8;
+    depay->started = 0;
+    depay->lost = 0;
+    depay->fu_active = 0;
+    depay->fu_len = 0;
+    depay->ivf_started = 0;
+    depay->pts = 0;
+}
+
+/* Writes the NAL units of one RFC 6184 payload to out, returns -1 if writing failed */
+static int depacketize_h264(struct rtp_depacketizer *depay, const uint8_t *packet, int len, struct decoder_queue *out) {
+    uint8_t nal_type = packet[0] & 0x1f;
+
+    if (nal_type >= 1 && nal_type <= 23) {
+        return write_nal(out, packet, len);
+    } else if (nal_type == 24) {
+        // STAP-A: 16 bit size before each NAL unit
+        int pos = 1;
+        while (pos + 2 <= len) {
+            int size = (packet[pos] << 8) | packet[pos + 1];
+            pos += 2;
+            if (size == 0 || pos + size > len) {
+                break;
+            }
+            if (write_nal(out, packet + pos, size) < 0) {
+                return -1;
+            }
+            pos += size;
+        }
+    } else if (nal_type == 28) {
+        // FU-A
+        uint8_t fu_header;
+        size_t size;
+        if (len < 2) {
+            return 0;
+        }
+        fu_header = packet[1];
+        size = len - 2;
+        if (fu_header & 0x80) {
+            depay->fu_buf[0] = (packet[0] & 0xe0) | (fu_header & 0x1f);
+            depay->fu_len = 1;
+            depay->fu_active = 1;
+        }
+        if (!depay->fu_active) {
+            return 0;
+        }
+        if (depay->fu_len + size > sizeof(depay->fu_buf)) {
+            printf("RTP fragmented NAL unit too large, dropped\n");
+            depay->fu_active = 0;
+            return 0;
+        }
+        memcpy(depay->fu_buf + depay->fu_len, packet + 2, size);
+        depay->fu_len += size;
+        if (fu_header & 0x40) {
+            depay->fu_active = 0;
+            return write_nal(out, depay->fu_buf, depay->fu_len);
+        }
+    }
+    return 0;
+}
+
+/* Writes the VP8 frame in fu_buf to out as IVF, the file header goes out with the first key frame */
+static int write_ivf_frame(struct rtp_depacketizer *depay, uint32_t timestamp, struct decoder_queue *out) {
+    uint8_t header[IVF_FILE_HEADER_SIZE];
+    const uint8_t *frame = depay->fu_buf;
+
+    if (!depay->ivf_started) {
+        // the decoder cannot start on an inter frame, and only key frames carry the picture size
+        if (depay->fu_len < 10 || (frame[0] & 0x01)) {
+            return 0;
+        }
+        memset(header, 0, sizeof(header));
+        memcpy(header, "DKIF", 4);
+        put_le16(header + 6, IVF_FILE_HEADER_SIZE);
+        memcpy(header + 8, "VP80", 4);
+        put_le16(header + 12, (frame[6] | frame[7] << 8) & 0x3fff);
+        put_le16(header + 14, (frame[8] | frame[9] << 8) & 0x3fff);
+        // timestamps stay in RTP clock ticks
+        put_le32(header + 16, RTP_CLOCK_RATE);
+        put_le32(header + 20, 1);
+        if (queue_write(out, header, IVF_FILE_HEADER_SIZE) < 0) {
+            return -1;
+        }
+        depay->ivf_started = 1;
+        depay->last_timestamp = timestamp;
+    }
+    depay->pts += (int32_t)(timestamp - depay->last_timestamp);
+    depay->last_timestamp = timestamp;
+    if (!queue_room(out, IVF_FRAME_HEADER_SIZE + depay->fu_len)) {
+        return 0;
+    }
+    put_le32(header, depay->fu_len);
+    put_le64(header + 4, depay->pts);
+    if (queue_write(out, header, IVF_FRAME_HEADER_SIZE) < 0) {
+        return -1;
+    }
+    return queue_write(out, depay->fu_buf, depay->fu_len);
+}
+
+/* Collects the partitions of one RFC 7741 payload, a whole frame is written to out, returns -1 if writing failed */
+static int depacketize_vp8(struct rtp_depacketizer *depay, const uint8_t *packet, int len, int marker,
+                           uint32_t timestamp, struct decoder_queue *out) {
+    int pos = 1;
+    size_t size;
+
+    if (packet[0] & 0x80) {
+        // extended control bits: PictureID, TL0PICIDX, TID/KEYIDX
+        uint8_t x;
+        if (len < 2) {
+            return 0;
+        }
+        x = packet[1];
+        pos = 2;
+        if ((x & 0x80) && pos < len) {
+            pos += (packet[pos] & 0x80) ? 2 : 1;
+        }
+        if (x & 0x40) {
+            pos++;
+        }
+        if (x & 0x30) {
+            pos++;
+        }
+    }
+    if (pos > len) {
+        return 0;
+    }
+    if ((packet[0] & 0x10) && (packet[0] & 0x07) == 0) {
+        // start of partition 0 begins a frame, an unfinished one before it is lost
+        depay->fu_active = 1;
+        depay->fu_len = 0;
+    }
+    if (!depay->fu_active) {
+        return 0;
+    }
+    size = len - pos;
+    if (depay->fu_len + size > sizeof(depay->fu_buf)) {
+        printf("RTP VP8 frame too large, dropped\n");
+        depay->fu_active = 0;
+        return 0;
+    }
+    memcpy(depay->fu_buf + depay->fu_len, packet + pos, size);
+    depay->fu_len += size;
+    if (!marker) {
+        return 0;
+    }
+    depay->fu_active = 0;
+    return write_ivf_frame(depay, timestamp, out);
+}
+
+/* Writes what one RTP packet completes to out, returns -1 if writing failed */
+int rtp_depacketize(struct rtp_depacketizer *depay, const uint8_t *packet, int len, struct decoder_queue *out) {
+    int offset = RTP_HEADER_SIZE;
+    int csrc_count;
+    uint16_t seq;
+
+    if (len < RTP_HEADER_SIZE || (packet[0] >> 6) != 2) {
+        return 0;
+    }
+    if (depay->payload_type >= 0 && (packet[1] & 0x7f) != depay->payload_type) {
+        return 0;
+    }
+    csrc_count = packet[0] & 0x0f;
+    offset += csrc_count * 4;
+    if (packet[0] & 0x10) {
+        // header extension
+        if (len < offset + 4) {
+            return 0;
+        }
+        offset += 4 + ((packet[offset + 2] << 8) | packet[offset + 3]) * 4;
+    }
+    if (packet[0] & 0x20) {
+        // padding
+        len -= packet[len - 1];
+    }
+    if (len <= offset) {
+        return 0;
+    }
+
+    seq = (packet[2] << 8) | packet[3];
+    if (depay->started && seq != depay->next_seq) {
+        depay->lost += (uint16_t)(seq - depay->next_seq);
+        printf("RTP packets lost: %u, total: %u\n", (uint16_t)(seq - depay->next_seq), depay->lost);
+        // the rest of a fragmented NAL unit or frame is useless without the missing part
+        depay->fu_active = 0;
+    }
+    depay->started = 1;
+    depay->next_seq = seq + 1;
+
+    if (depay->vp8) {
+        return depacketize_vp8(depay, packet + offset, len - offset, packet[1] & 0x80, get_be32(packet + 4), out);
+    }
+    return depacketize_h264(depay, packet + offset, len - offset, out);
+}
+
+void fec_decoder_reset(struct fec_decoder *fec, int payload_type) {
+    fec->payload_type = payload_type;
+    fec->started = 0;
+    fec->recovered = 0;
+    fec->lost = 0;
+    fec->parity_count = 0;
+    fec->next_parity = 0;
+    memset(fec->present, 0, sizeof(fec->present));
+}
+
+static int fec_has(struct fec_decoder *fec, uint16_t seq) {
+    int slot = seq & (FEC_WINDOW - 1);
+    return fec->present[slot] && fec->seqs[slot] == seq;
+}
+
+static void fec_store(struct fec_decoder *fec, uint16_t seq, const uint8_t *packet, int len) {
+    int slot = seq & (FEC_WINDOW - 1);
+    memcpy(fec->packets[slot], packet, len);
+    fec->lengths[slot] = len;
+    fec->seqs[slot] = seq;
+    fec->present[slot] = 1;
+}
+
+/* Rebuilds the only missing packet of a parity column, returns the number of packets still missing */
+static int fec_recover(struct fec_decoder *fec, int index) {
+    const uint8_t *parity = fec->parity[index];
+    uint16_t first = (parity[12] << 8) | parity[13];
+    int count = parity[14];
+    int stride = parity[15];
+    int parity_len = fec->parity_lengths[index] - FEC_OVERHEAD;
+    int len = (parity[16] << 8) | parity[17];
+    int missing = 0;
+    uint16_t missing_seq = 0;
+    int i, j;
+
+    for (i = 0; i < count; i++) {
+        uint16_t seq = first + i * stride;
+        if (!fec_has(fec, seq)) {
+            missing++;
+            missing_seq = seq;
+        }
+    }
+    if (missing != 1 || !fec->started || (int16_t)(missing_seq - fec->next_seq) < 0) {
+        return missing;
+    }
+    memcpy(fec->scratch, parity + FEC_OVERHEAD, parity_len);
+    for (i = 0; i < count; i++) {
+        uint16_t seq = first + i * stride;
+        int slot = seq & (FEC_WINDOW - 1);
+        if (seq == missing_seq) {
+            continue;
+        }
+        len ^= fec->lengths[slot];
+        for (j = 0; j < fec->lengths[slot]; j++) {
+            fec->scratch[j] ^= fec->packets[slot][j];
+        }
+    }
+    if (len <= 0 || len > parity_len || ((fec->scratch[2] << 8) | fec->scratch[3]) != missing_seq) {
+        return missing;
+    }
+    fec_store(fec, missing_seq, fec->scratch, len);
+    fec->recovered++;
+    return 0;
+}
+
+static int fec_unrecoverable(struct fec_decoder *fec, uint16_t seq) {
+    int i;
+    for (i = 0; i < fec->parity_count; i++) {
+        const uint8_t *parity = fec->parity[i];
+        uint16_t first = (parity[12] << 8) | parity[13];
+        int count = parity[14];
+        int stride = parity[15];
+        int offset = (int16_t)(seq - first);
+        if (stride > 0 && offset >= 0 && offset % stride == 0 && offset / stride < count) {
+            return fec_recover(fec, i) > 0;
+        }
+    }
+    return 0;
+}
+
+/* Takes one received packet, media or parity, and depacketizes whatever is ready in order */
+int fec_decode(struct fec_decoder *fec, const uint8_t *packet, int len, struct rtp_depacketizer *depay,
+               struct decoder_queue *out) {
+    uint16_t seq;
+    int i;
+
+    if (len < RTP_HEADER_SIZE || len > RTP_MAX_PACKET_SIZE) {
+        return 0;
+    }
+    if ((packet[1] & 0x7f) == fec->payload_type) {
+        int index = fec->next_parity;
+        if (len < FEC_OVERHEAD) {
+            return 0;
+        }
+        fec->next_parity = (fec->next_parity + 1) % FEC_MAX_PARITY;
+        if (fec->parity_count < FEC_MAX_PARITY) {
+            fec->parity_count++;
+        }
+        memcpy(fec->parity[index], packet, len);
+        fec->parity_lengths[index] = len;
+        fec_recover(fec, index);
+    } else {
+        seq = (packet[2] << 8) | packet[3];
+        if (!fec->started) {
+            fec->started = 1;
+            fec->next_seq = seq;
+            fec->highest_seq = seq;
+        }
+        if ((int16_t)(seq - fec->next_seq) < 0 || fec_has(fec, seq)) {
+            // too late or a duplicate
+            return 0;
+        }
+        fec_store(fec, seq, packet, len);
+        if ((int16_t)(seq - fec->highest_seq) > 0) {
+            fec->highest_seq = seq;
+        }
+        // a late packet may complete a column whose parity arrived first
+        for (i = 0; i < fec->parity_count; i++) {
+            fec_recover(fec, i);
+        }
+    }
+
+    while (fec->started && (int16_t)(fec->highest_seq - fec->next_seq) >= 0) {
+        int slot = fec->next_seq & (FEC_WINDOW - 1);
+        if (fec_has(fec, fec->next_seq)) {
+            if (rtp_depacketize(depay, fec->packets[slot], fec->lengths[slot], out) < 0) {
+                return -1;
+            }
+        } else if ((int16_t)(fec->highest_seq - fec->next_seq) > FEC_HOLD_PACKETS
+                   || fec_unrecoverable(fec, fec->next_seq)) {
+            fec->lost++;
+        } else {
+            break;
+        }
+        fec->next_seq++;
+    }
+    return 0;
+}
+
+/* Answers one discovery broadcast from every local address it reached, returns -1 if the socket failed */
+int answer_discovery(int udp_sock) {
+    size_t aux[128 / sizeof(size_t)];
+    char broadcast_msg_buf[128];
+    char resp_msg_buf[512];
+    struct sockaddr_in peer_addr;
+    struct iovec io;
+    struct msghdr msg;
+    struct cmsghdr *cmsg;
+    int len;
+
+    memset(broadcast_msg_buf, 0, sizeof(broadcast_msg_buf));
+    io.iov_base = broadcast_msg_buf;
+    io.iov_len = sizeof(broadcast_msg_buf) - 1;
+    memset(&msg, 0, sizeof(msg));
+    msg.msg_iov = &io;
+    msg.msg_iovlen = 1;
+    msg.msg_control = aux;
+    msg.msg_controllen = sizeof(aux);
+    msg.msg_flags = 0;
+    msg.msg_name = &peer_addr;
+    msg.msg_namelen = sizeof(peer_addr);
+    len = recvmsg(udp_sock, &msg, 0);
+    if (len < 0) {
+        printf("Error when receiving data from discover socket, errno: %s\n", strerror(errno));
+        return -1;
+    }
+    printf("Receive broadcast msg: %s from: %s:%d\n", broadcast_msg_buf, inet_ntoa(peer_addr.sin_addr), ntohs(peer_addr.sin_port));
+    if (!strncmp(broadcast_msg_buf, DISCOVER_MSG, 5)) {
+        printf("Receive discover msg: %s, from: %s\n", broadcast_msg_buf, inet_ntoa(peer_addr.sin_addr));
+        for (cmsg = CMSG_FIRSTHDR(&msg); cmsg != NULL; cmsg = CMSG_NXTHDR(&msg, cmsg)) {
+            if (cmsg->cmsg_level == IPPROTO_IP) {
+                struct in_pktinfo *i = (struct in_pktinfo*) CMSG_DATA(cmsg);
+                printf("Response discover msg with local ip: %s\n", inet_ntoa(i->ipi_spec_dst));
+                memset(resp_msg_buf, 0, sizeof(resp_msg_buf));
+                snprintf(resp_msg_buf, sizeof(resp_msg_buf), DISCOVER_MSG_TEMPLATE, DISCOVER_PORT, inet_ntoa(i->ipi_spec_dst), inet_ntoa(i->ipi_spec_dst));
+                if (sendto(udp_sock, resp_msg_buf, strlen(resp_msg_buf), 0, (struct sockaddr *)&peer_addr, sizeof(peer_addr)) < 0) {
+                    printf("Error when send discover response to peer\n");
+                }
+            }
+        }
+    }
+    return 0;
+}
+
+/* Starts the decoder of a session, it reads the stream from its stdin or from fifo_path */
+pid_t spawn_decoder(const char *gst_sink, int width, int height, const char *fifo_path, int *infp, int *outfp)
+{
+    if (!strncmp(gst_sink, "ffplay", 6)) {
+#if USE_FIFO
+        const char *command[] = {"ffplay", "-framerate", "50", "-infbuf", "-framedrop", "-analyzeduration", "1", fifo_path, NULL};
+#else
+        const char *command[] = {"ffplay", "-framerate", "50", "-infbuf", "-framedrop", "-analyzeduration", "1", "-", NULL};
+#endif
+        return popen2(command, infp, outfp);
+    } else {
+#if USE_FIFO
+        char location_buf[64] = {0};
+        snprintf(location_buf, sizeof(location_buf), "location=%s", fifo_path);
+#ifdef VPUDEC
+        char mime_buf[70] = {0};
+        snprintf(mime_buf, 70, "video\/x-h264,width=%d,height=%d,framerate=30\/1", width, height);
+        //snprintf(mime_buf, 70, "video\/x-h264,width=%d,height=%d,framerate=30\/1,stream-format=avc", width, height);
+        printf("Using cap: %s\n", mime_buf);
+        const char *command[] = {"gst-launch-0.10", "filesrc", location_buf, "do-timestamp=true", "!", mime_buf, "!", "vpudec", "framedrop=true", "frame-plus=1", "low-latency=true", "!", gst_sink, NULL};
+#else
+        const char *command[] = {"gst-launch-1.0", "filesrc", location_buf, "do-timestamp=true", "!", "h264parse", "!", "decodebin", "!", gst_sink, NULL};
+#endif
+#else
+#ifdef VPUDEC
+        char mime_buf[70] = {0};
+        snprintf(mime_buf, 70, "video\/x-h264,width=%d,height=%d,framerate=30\/1", width, height);
+        //snprintf(mime_buf, 70, "video\/x-h264,width=%d,height=%d,framerate=30\/1,stream-format=avc", width, height);
+        printf("Using cap: %s\n", mime_buf);
+        const char *command[] = {"gst-launch-0.10", "fdsrc", "do-timestamp=true", "!", mime_buf, "!", "vpudec", "framedrop=false", "frame-plus=1", "low-latency=true", "!", gst_sink, NULL};
+#else
+        const char *command[] = {"gst-launch-1.0", "fdsrc", "do-timestamp=true", "!", "h264parse", "!", "decodebin", "!", gst_sink, NULL};
+#endif
+#endif
+        return popen2(command, infp, outfp);
+    }
+}
+
+static int watch_fd(int epoll_fd, int op, int fd, uint32_t events, int tag, int slot) {
+    struct epoll_event ev;
+    memset(&ev, 0, sizeof(ev));
+    ev.events = events;
+    ev.data.u64 = ((uint64_t) tag << 32) | (uint32_t) slot;
+    return epoll_ctl(epoll_fd, op, fd, &ev);
+}
+
+static void close_fd(int epoll_fd, int *fd) {
+    if (*fd > 0) {
+        epoll_ctl(epoll_fd, EPOLL_CTL_DEL, *fd, NULL);
+        close(*fd);
+    }
+    *fd = -1;
+}
+
+/* Binds port for a session or shares the socket bound for another one, returns its index or -1 */
+static int acquire_udp_port(int epoll_fd, int port, int tag) {
+    int free_index = -1;
+    int sock;
+    int i;
+
+    for (i = 0; i < MAX_UDP_PORTS; i++) {
+        if (udp_ports[i].users > 0 && udp_ports[i].port == port) {
+            if (udp_ports[i].tag != tag) {
+                printf("Port %d is already used for something else\n", port);
+                return -1;
+            }
+            udp_ports[i].users++;
+            return i;
+        }
+        if (udp_ports[i].users == 0 && free_index < 0) {
+            free_index = i;
+        }
+    }
+    if (free_index < 0) {
+        return -1;
+    }
+    sock = tag == EV_RTP ? setup_rtp_socket(port) : setup_probe_socket(port);
+    if (sock < 0) {
+        return -1;
+    }
+    if (watch_fd(epoll_fd, EPOLL_CTL_ADD, sock, EPOLLIN, tag, free_index) < 0) {
+        close(sock);
+        return -1;
+    }
+    udp_ports[free_index].port = port;
+    udp_ports[free_index].tag = tag;
+    udp_ports[free_index].sock = sock;
+    udp_ports[free_index].users = 1;
+    return free_index;
+}
+
+static void release_udp_port(int epoll_fd, int *index) {
+    if (*index >= 0 && --udp_ports[*index].users == 0) {
+        close_fd(epoll_fd, &udp_ports[*index].sock);
+    }
+    *index = -1;
+}
+
+void close_session(int epoll_fd, struct session *session) {
+    close_fd(epoll_fd, &session->sock);
+    if (session->decoder_pid > 0) {
+        kill(session->decoder_pid, SIGKILL);
+        waitpid(session->decoder_pid, NULL, 0);
+        session->decoder_pid = -1;
+    }
+    close_fd(epoll_fd, &session->decoder_in);
+    close_fd(epoll_fd, &session->decoder_out);
+    close_fd(epoll_fd, &session->fifo_fp);
+    release_udp_port(epoll_fd, &session->rtp_udp);
+    release_udp_port(epoll_fd, &session->probe_udp);
+    free(session->rtp_depay);
+    free(session->rtp_fec);
+    session->rtp_depay = NULL;
+    session->rtp_fec = NULL;
+    free(session->out.buf);
+    memset(&session->out, 0, sizeof(session->out));
+    session->out.fd = -1;
+    session->active = 0;
+}
+
+/* Takes over a connected sender socket, the decoder starts once its stream header is in */
+int open_session(int epoll_fd, struct session *session, int slot, int sock) {
+    int rcvbuf = TCP_RECV_BUFFER_SIZE;
+    struct sockaddr_in peer;
+    socklen_t peer_len = sizeof(peer);
+
+    memset(session, 0, sizeof(*session));
+    session->active = 1;
+    session->sock = sock;
+    session->use_splice = 1;
+    session->decoder_pid = -1;
+    session->decoder_in = -1;
+    session->decoder_out = -1;
+    session->fifo_fp = -1;
+    session->out.fd = -1;
+    session->rtp_udp = -1;
+    session->probe_udp = -1;
+    session->last_data_us = monotonic_us();
+    if (getpeername(sock, (struct sockaddr *)&peer, &peer_len) == 0) {
+        session->peer_addr = peer.sin_addr;
+    }
+    // room for a burst of key frames while the decoder catches up
+    if (setsockopt(sock, SOL_SOCKET, SO_RCVBUF, &rcvbuf, sizeof(rcvbuf)) < 0) {
+        perror("Error when setting receive buffer for tcp socket");
+    }
+    if (fcntl(sock, F_SETFL, fcntl(sock, F_GETFL) | O_NONBLOCK) < 0
+            || watch_fd(epoll_fd, EPOLL_CTL_ADD, sock, EPOLLIN, EV_CLIENT, slot) < 0) {
+        perror("Error when watching tcp client socket");
+        close_session(epoll_fd, session);
+        return -1;
+    }
+    return 0;
+}
+
+/* Looks for room in the decoder pipe, for what is queued or the socket that waits */
+static void watch_decoder(int epoll_fd, struct session *session, int slot) {
+    if (!session->decoder_watched) {
+        session->decoder_watched = 1;
+        watch_fd(epoll_fd, EPOLL_CTL_ADD, session->out.fd, EPOLLOUT, EV_DECODER, slot);
+    }
+}
+
+/* Stops reading the sender socket until the decoder pipe has room again */
+static void pause_stream(int epoll_fd, struct session *session, int slot) {
+    session->decoder_blocked = 1;
+    watch_fd(epoll_fd, EPOLL_CTL_MOD, session->sock, 0, EV_CLIENT, slot);
+    watch_decoder(epoll_fd, session, slot);
+}
+
+/* Takes the header of the next frame and decides whether the frame goes to the decoder */
+static void start_frame(struct session *session) {
+    uint32_t length = get_be32(session->frame_header);
+    uint32_t seq = get_be32(session->frame_header + 4);
+    uint8_t flags = session->frame_header[16];
+    int backlog = 0;
+
+    session->frame_header_len = 0;
+    session->frame_remaining = length;
+    // the sender counts every frame it writes, a gap means the stream lost sync
+    if (session->seq_started && seq != session->next_seq) {
+        printf("Frame sequence gap: expected %u, got %u\n", session->next_seq, seq);
+    }
+    session->seq_started = 1;
+    session->next_seq = seq + 1;
+    if (flags & (FRAME_FLAG_KEY | FRAME_FLAG_CONFIG)) {
+        if (session->await_key_frame) {
+            printf("Key frame, decoding again after dropping %u frames\n", session->frames_dropped);
+        }
+        session->await_key_frame = 0;
+        session->frames_dropped = 0;
+        session->frame_skip = 0;
+        return;
+    }
+    // frames depend on the one before, once one is dropped all are until the next key frame
+    if (!session->await_key_frame && ioctl(session->out.fd, FIONREAD, &backlog) == 0
+            && backlog + session->out.len > DECODER_BACKLOG_LIMIT) {
+        printf("Decoder is %d bytes behind, drop frames until the next key frame\n", backlog);
+        session->await_key_frame = 1;
+    }
+    session->frame_skip = session->await_key_frame;
+    if (session->frame_skip) {
+        session->frames_dropped++;
+    }
+}
+
+/* Deframes stream bytes already read from the socket into the decoder */
+static int deframe_buffer(struct session *session, const uint8_t *data, int len) {
+    while (len > 0) {
+        int n;
+        if (session->frame_remaining == 0) {
+            n = FRAME_HEADER_SIZE - session->frame_header_len;
+            n = n < len ? n : len;
+            memcpy(session->frame_header + session->frame_header_len, data, n);
+            session->frame_header_len += n;
+            if (session->frame_header_len == FRAME_HEADER_SIZE) {
+                start_frame(session);
+            }
+        } else {
+            n = session->frame_remaining < (uint32_t) len ? (int) session->frame_remaining : len;
+            if (!session->frame_skip && queue_write(&session->out, data, n) < 0) {
+                return -1;
+            }
+            session->frame_remaining -= n;
+        }
+        data += n;
+        len -= n;
+    }
+    return 0;
+}
+
+/* Parses the stream header, starts the decoder and passes on what followed the header */
+int start_stream(int epoll_fd, struct session *session, int slot, const char *gst_sink, char *control_end) {
+    int width = 800;
+    int height = 480;
+    int use_rtp = 0;
+    int rtp_port = 0;
+    int rtp_payload_type = -1;
+    int rtp_vp8 = 0;
+    int fec_payload_type = -1;
+    int probe_port = 0;
+    char *bdata = control_end + 4;
+    int bdata_len = session->header_len - (bdata - session->header);
+    char fifo_path[32] = {0};
+    char *info;
+
+    *control_end = '\0';
+    printf("Receive control data(%d): %s\n", session->header_len, session->header);
+    info = strtok(session->header, "\r\n");
+    while (info) {
+        //printf("info: %s\n", info);
+        if (strstr(info, "X-WIDTH:")) {
+            width = atoi(strstr(info, " "));
+            printf("width: %d\n", width);
+        }
+        if (strstr(info, "X-HEIGHT:")) {
+            height = atoi(strstr(info, " "));
+            printf("height: %d\n", height);
+        }
+        if (strstr(info, "X-TRANSPORT:") && strstr(info, "rtp")) {
+            use_rtp = 1;
+        }
+        if (strstr(info, "X-LATENCY-PROBE-PORT:")) {
+            probe_port = atoi(strstr(info, " "));
+            printf("latency probe port: %d\n", probe_port);
+        }
+        if (strstr(info, "X-RTP-FEC-PAYLOAD-TYPE:")) {
+            fec_payload_type = atoi(strstr(info, " "));
+            printf("fec payload type: %d\n", fec_payload_type);
+        } else if (strstr(info, "X-RTP-PAYLOAD-TYPE:")) {
+            rtp_payload_type = atoi(strstr(info, " "));
+            printf("rtp payload type: %d\n", rtp_payload_type);
+        } else if (strstr(info, "X-RTP-ENCODING:")) {
+            rtp_vp8 = strstr(info, "VP8") != NULL;
+            printf("rtp encoding: %s\n", rtp_vp8 ? "VP8" : "H264");
+        } else if (strstr(info, "X-RTP-PORT:")) {
+            rtp_port = atoi(strstr(info, " "));
+            printf("rtp port: %d\n", rtp_port);
+        }
+        if (strstr(info, "X-FRAMING:")) {
+            session->framed = atoi(strstr(info, " ")) == FRAMING_VERSION;
+            printf("framing: %d\n", session->framed);
+        }
+        info = strtok(NULL, "\r\n");
+    }
+
+#if USE_FIFO
+    snprintf(fifo_path, sizeof(fifo_path), "%s_%d", FIFO_PATH, slot);
+    unlink(fifo_path);
+    if (mkfifo(fifo_path, 0666) < 0) {
+        perror("Error when creating fifo");
+        return -1;
+    }
+#endif
+    session->decoder_pid = spawn_decoder(gst_sink, width, height, fifo_path, &session->decoder_in, &session->decoder_out);
+    printf("gst pid: %d\n", session->decoder_pid);
+    printf("gst in fp: %d\n", session->decoder_in);
+    if (session->decoder_pid < 0) {
+        return -1;
+    }
+#if USE_FIFO
+    session->fifo_fp = open(fifo_path, O_WRONLY | O_CLOEXEC);
+    printf("fifo_fp: %d\n", session->fifo_fp);
+    session->out.fd = session->fifo_fp;
+#else
+    session->out.fd = session->decoder_in;
+#endif
+    // a large pipe lets splice() move a whole key frame at once
+    if (fcntl(session->out.fd, F_SETPIPE_SZ, DECODER_PIPE_SIZE) < 0) {
+        perror("Error when resizing decoder pipe");
+    }
+    // a stalled decoder must not stall the other sessions, what it has no room for is queued
+    if (fcntl(session->out.fd, F_SETFL, fcntl(session->out.fd, F_GETFL) | O_NONBLOCK) < 0) {
+        perror("Error when making decoder pipe non-blocking");
+        return -1;
+    }
+
+    if (use_rtp && rtp_port > 0) {
+        // the video arrives over udp, the tcp connection only tells when the sender leaves
+        session->rtp_depay = malloc(sizeof(struct rtp_depacketizer));
+        session->rtp_fec = malloc(sizeof(struct fec_decoder));
+        if (session->rtp_depay == NULL || session->rtp_fec == NULL) {
+            printf("Out of memory for rtp session\n");
+            return -1;
+        }
+        rtp_depacketizer_reset(session->rtp_depay, rtp_payload_type, rtp_vp8);
+        session->use_fec = fec_payload_type >= 0;
+        fec_decoder_reset(session->rtp_fec, fec_payload_type);
+        session->rtp_udp = acquire_udp_port(epoll_fd, rtp_port, EV_RTP);
+        if (session->rtp_udp < 0) {
+            printf("Could not receive rtp on port %d, close the session\n", rtp_port);
+            return -1;
+        }
+        printf("rtp sock: %d, sessions on it: %d\n", udp_ports[session->rtp_udp].sock, udp_ports[session->rtp_udp].users);
+    }
+    if (probe_port > 0) {
+        // the video works without latency probes, the sender just gets no echoes
+        session->probe_udp = acquire_udp_port(epoll_fd, probe_port, EV_PROBE);
+        if (session->probe_udp < 0) {
+            printf("Could not echo latency probes on port %d\n", probe_port);
+        } else {
+            printf("probe sock: %d, sessions on it: %d\n", udp_ports[session->probe_udp].sock,
+                   udp_ports[session->probe_udp].users);
+        }
+    }
+
+    session->streaming = 1;
+    if (bdata_len > 0) {
+        if ((session->framed ? deframe_buffer(session, (uint8_t *) bdata, bdata_len)
+                             : queue_write(&session->out, (uint8_t *) bdata, bdata_len)) < 0) {
+            return -1;
+        }
+        if (session->out.len > 0) {
+            pause_stream(epoll_fd, session, slot);
+        }
+        printf("Write non control data len: %d\n", bdata_len);
+    }
+    return 0;
+}
+
+/* Reads the stream header of a new session, returns -1 once the session has to go */
+int read_header(int epoll_fd, struct session *session, int slot, const char *gst_sink) {
+    char *control_end;
+    int len = recv(session->sock, session->header + session->header_len,
+                   sizeof(session->header) - 1 - session->header_len, 0);
+    if (len < 0) {
+        return errno == EAGAIN || errno == EINTR ? 0 : -1;
+    }
+    if (len == 0) {
+        return -1;
+    }
+    session->header_len += len;
+    session->header[session->header_len] = '\0';
+    control_end = strstr(session->header, "\r\n\r\n");
+    if (control_end == NULL) {
+        if (session->header_len >= (int) sizeof(session->header) - 1) {
+            printf("Stream header too long, close the session\n");
+            return -1;
+        }
+        return 0;
+    }
+    return start_stream(epoll_fd, session, slot, gst_sink, control_end);
+}
+
+/* Moves up to max stream bytes from the sender socket to the decoder, returns what recv() would */
+static ssize_t pass_bytes(int epoll_fd, struct session *session, int slot, size_t max) {
+    static uint8_t copy_buf[64 * 1024];
+    ssize_t len;
+
+    if (session->use_splice) {
+        // the socket is paused while anything is queued, so nothing splices past it
+        len = splice(session->sock, NULL, session->out.fd, NULL, max, SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+        if (len < 0 && (errno == EINVAL || errno == ENOSYS)) {
+            printf("splice() not supported, copying the stream instead\n");
+            session->use_splice = 0;
+        } else {
+            if (len < 0 && errno == EAGAIN) {
+                // either a spurious wakeup or a full decoder pipe, look again once the pipe has room
+                pause_stream(epoll_fd, session, slot);
+            }
+            return len;
+        }
+    }
+    len = recv(session->sock, copy_buf, max < sizeof(copy_buf) ? max : sizeof(copy_buf), 0);
+    if (len > 0 && queue_write(&session->out, copy_buf, len) < 0) {
+        return -1;
+    }
+    if (session->out.len > 0) {
+        pause_stream(epoll_fd, session, slot);
+    }
+    return len;
+}
+
+/* Moves the next frame header or part of a frame payload from the sender socket, returns what recv() would */
+static ssize_t forward_frame(int epoll_fd, struct session *session, int slot) {
+    static uint8_t discard_buf[64 * 1024];
+    ssize_t len;
+
+    if (session->frame_remaining == 0) {
+        len = recv(session->sock, session->frame_header + session->frame_header_len,
+                   FRAME_HEADER_SIZE - session->frame_header_len, 0);
+        if (len > 0) {
+            session->frame_header_len += len;
+            if (session->frame_header_len == FRAME_HEADER_SIZE) {
+                start_frame(session);
+            }
+        }
+        return len;
+    }
+    if (session->frame_skip) {
+        len = recv(session->sock, discard_buf,
+                   session->frame_remaining < sizeof(discard_buf) ? session->frame_remaining : sizeof(discard_buf), 0);
+    } else {
+        len = pass_bytes(epoll_fd, session, slot,
+                         session->frame_remaining < SPLICE_CHUNK ? session->frame_remaining : SPLICE_CHUNK);
+    }
+    if (len > 0) {
+        session->frame_remaining -= len;
+    }
+    return len;
+}
+
+/* Moves stream bytes from the sender socket to the decoder, returns -1 once the session has to go */
+int forward_stream(int epoll_fd, struct session *session, int slot) {
+    ssize_t len = session->framed ? forward_frame(epoll_fd, session, slot)
+                                  : pass_bytes(epoll_fd, session, slot, SPLICE_CHUNK);
+
+    if (len < 0 && (errno == EAGAIN || errno == EINTR)) {
+        return 0;
+    }
+    if (len < 0) {
+        printf("Pipe input error: %s\n", strerror(errno));
+        return -1;
+    }
+    if (len == 0) {
+        // sender closed the connection
+        return -1;
+    }
+    session->last_data_us = monotonic_us();
+    return 0;
+}
+
+/* The decoder pipe has room again: writes what is queued and, once all is out, reads the sender again */
+int resume_stream(int epoll_fd, struct session *session, int slot) {
+    if (queue_flush(&session->out) < 0) {
+        return -1;
+    }
+    if (session->out.len > 0) {
+        return 0;
+    }
+    session->decoder_watched = 0;
+    epoll_ctl(epoll_fd, EPOLL_CTL_DEL, session->out.fd, NULL);
+    if (session->decoder_blocked) {
+        session->decoder_blocked = 0;
+        watch_fd(epoll_fd, EPOLL_CTL_MOD, session->sock, EPOLLIN, EV_CLIENT, slot);
+    }
+    return 0;
+}
+
+/* The session of the sender an rtp packet came from, a sender's first packet claims its source port */
+static struct session *find_rtp_session(struct session *sessions, int index, const struct sockaddr_in *from) {
+    struct session *unclaimed = NULL;
+    int i;
+
+    for (i = 0; i < MAX_SESSIONS; i++) {
+        struct session *session = &sessions[i];
+        if (!session->active || !session->streaming || session->rtp_udp != index
+                || session->peer_addr.s_addr != from->sin_addr.s_addr) {
+            continue;
+        }
+        if (session->rtp_source_port == from->sin_port) {
+            return session;
+        }
+        if (session->rtp_source_port == 0 && unclaimed == NULL) {
+            unclaimed = session;
+        }
+    }
+    if (unclaimed != NULL) {
+        unclaimed->rtp_source_port = from->sin_port;
+    }
+    return unclaimed;
+}
+
+void receive_rtp(int epoll_fd, struct session *sessions, int index) {
+    uint8_t rtp_buf[RTP_MAX_PACKET_SIZE];
+    struct sockaddr_in from;
+    socklen_t from_len = sizeof(from);
+    struct session *session;
+    int ret = 0;
+    int len = recvfrom(udp_ports[index].sock, rtp_buf, sizeof(rtp_buf), 0, (struct sockaddr *)&from, &from_len);
+    if (len <= 0) {
+        return;
+    }
+    session = find_rtp_session(sessions, index, &from);
+    if (session == NULL) {
+        return;
+    }
+    session->last_data_us = monotonic_us();
+    if (session->use_fec) {
+        ret = fec_decode(session->rtp_fec, rtp_buf, len, session->rtp_depay, &session->out);
+    } else {
+        ret = rtp_depacketize(session->rtp_depay, rtp_buf, len, &session->out);
+    }
+    if (ret < 0) {
+        printf("Pipe input error: %s\n", strerror(errno));
+    } else if (session->out.len > 0) {
+        // the shared socket keeps being read, the queue is capped instead
+        watch_decoder(epoll_fd, session, session - sessions);
+    }
+}
+
+#ifdef CLIENT_MODE
+/*
+ * Connects to the sender and asks it to mirror, returns the socket or -1.
+ * Framing is asked for first; senders that predate it close the connection
+ * on that request without a header, so the plain request is sent again.
+ */
+int connect_to_sender(const struct sockaddr_in *peer_addr) {
+    static const char *requests[] = {"mirror framing=1\n", "mirror\n"};
+    char peek;
+    int i;
+
+    for (i = 0; i < 2; i++) {
+        int sock;
+        ssize_t len;
+        if ((sock = socket(AF_INET, SOCK_STREAM | SOCK_CLOEXEC, 0)) < 0) {
+            perror("Error when creating tcp socket");
+            return -1;
+        }
+        if (connect(sock, (const struct sockaddr *)peer_addr, sizeof(*peer_addr)) < 0) {
+            perror("Error when connecting to remote");
+            close(sock);
+            return -1;
+        }
+        if (send(sock, requests[i], strlen(requests[i]), 0) < 0) {
+            perror("Error when sending mirror command");
+            close(sock);
+            return -1;
+        }
+        // the header stays queued for read_header
+        while ((len = recv(sock, &peek, 1, MSG_PEEK)) < 0 && errno == EINTR);
+        if (len > 0) {
+            return sock;
+        }
+        close(sock);
+        printf("Sender closed after: %s", requests[i]);
+    }
+    return -1;
+}
+#endif
+
 int main(int argc, char* argv[])
 {
-    int fifo_fp = -1;
     int udp_sock = -1;
-    int tcp_sock = -1;
+    int epoll_fd = -1;
+    struct sockaddr_in peer_addr;
+#ifdef CLIENT_MODE
     int tcp_client_sock = -1;
-    int max_sock = -1;
-#ifndef CLIENT_MODE
+#else
+    int tcp_sock = -1;
     struct sockaddr_in my_addr;
+    socklen_t addr_len;
 #endif
-    struct sockaddr_in peer_addr;
-    unsigned int addr_len;
-    char resp_msg_buf[512];
-    char data_msg_buf[1024];
-    int len;
-    fd_set fd_r;
-    int gst_in_fp = -1;
-    int gst_out_fp = -1;
-    pid_t gst_pid = -1;
-    int just_connect = 0;
     char *gst_sink;
-    int no_data_count = 0;
+    static struct session sessions[MAX_SESSIONS];
+    struct epoll_event events[MAX_EVENTS];
+    int i;
 
     if (argc != 2 || strlen(argv[1]) <= 0) {
         perror("Missing sink setting");
@@ -142,38 +1429,33 @@ int main(int argc, char* argv[])
     gst_sink = argv[1];
     printf("Using sink: %s\n", gst_sink);
 
-#if USE_FIFO
-    unlink(FIFO_PATH);
-    if (mkfifo(FIFO_PATH, 0666) < 0) {
-        perror("Error when creating fifo");
-        return 0;
-    }
-#endif
+    // a decoder that quits must only end its own session
+    signal(SIGPIPE, SIG_IGN);
 
-#ifdef CLIENT_MODE
-    if ((tcp_client_sock = socket(AF_INET, SOCK_STREAM, 0)) < 0) {
-        perror("Error when creating tcp socket");
+    if ((epoll_fd = epoll_create1(EPOLL_CLOEXEC)) < 0) {
+        perror("Error when creating epoll");
         return 0;
     }
 
+#ifdef CLIENT_MODE
     memset((char *)&peer_addr, 0, sizeof(peer_addr));
     peer_addr.sin_family = AF_INET;
     peer_addr.sin_addr.s_addr = inet_addr("127.0.0.1");
     peer_addr.sin_port = htons(LOCAL_SERVER_PORT);
 
-    if (connect(tcp_client_sock, (const struct sockaddr *)&peer_addr, sizeof(peer_addr)) < 0) {
-        perror("Error when connecting to remote");
+    if ((tcp_client_sock = connect_to_sender(&peer_addr)) < 0) {
         return 0;
     }
-    if (send(tcp_client_sock, "mirror\n", 7, 0) < 0) {
-        perror("Error when sending mirror command");
+    if (open_session(epoll_fd, &sessions[0], 0, tcp_client_sock) < 0) {
         return 0;
     }
-    just_connect = 1;
 
 #else
     udp_sock = setup_udp_socket();
-    if ((tcp_sock = socket(AF_INET, SOCK_STREAM, 0)) < 0) {
+    if (udp_sock > 0) {
+        watch_fd(epoll_fd, EPOLL_CTL_ADD, udp_sock, EPOLLIN, EV_DISCOVER, 0);
+    }
+    if ((tcp_sock = socket(AF_INET, SOCK_STREAM | SOCK_CLOEXEC, 0)) < 0) {
         perror("Error when creating tcp socket");
         return 0;
     }
@@ -188,278 +1470,117 @@ int main(int argc, char* argv[])
         return 0;
     }
 
-    if (listen(tcp_sock, 3) < 0) {
+    if (listen(tcp_sock, MAX_SESSIONS) < 0) {
         perror("Error when listening tcp socket");
         return 0;
     }
+    watch_fd(epoll_fd, EPOLL_CTL_ADD, tcp_sock, EPOLLIN, EV_LISTEN, 0);
 #endif
 
     for (;;) {
-        int timeout = 0;
-        struct timeval tv;
-        // set connect timeout
-        tv.tv_sec = 3;
-        tv.tv_usec = 0;
-        FD_ZERO(&fd_r);
-        FD_SET(udp_sock, &fd_r);
-        FD_SET(tcp_sock, &fd_r);
-        if (tcp_sock > udp_sock) {
-            max_sock = tcp_sock;
-        } else {
-            max_sock = udp_sock;
-        }
-        if (tcp_client_sock > 0) {
-            FD_SET(tcp_client_sock, &fd_r);
-            if (tcp_client_sock > max_sock) {
-                max_sock = tcp_client_sock;
+        uint64_t now_us;
+        int pass;
+        int count = epoll_wait(epoll_fd, events, MAX_EVENTS, POLL_INTERVAL_MS);
+        if (count < 0) {
+            if (errno != EINTR) {
+                printf("error occur, %s\n", strerror(errno));
             }
+            continue;
         }
-        switch (select(max_sock + 1, &fd_r, NULL, NULL, &tv)) {
-            case -1:
-                printf("error occur, %s\n", strerror(errno));
-                break;
-            case 0:
-                timeout = 1;
-            default: {
-                if (FD_ISSET(udp_sock, &fd_r)) {
-                    size_t aux[128 / sizeof(size_t)];
-                    char broadcast_msg_buf[128];
-                    struct iovec io;
-                    struct msghdr msg;
-                    struct cmsghdr *cmsg;
-                    io.iov_base = broadcast_msg_buf;
-                    io.iov_len = sizeof(broadcast_msg_buf);
-                    memset(&msg, 0, sizeof(msg));
-                    msg.msg_iov = &io;
-                    msg.msg_iovlen = 1;
-                    msg.msg_control = aux;
-                    msg.msg_controllen = sizeof(aux);
-                    msg.msg_flags = 0;
-                    msg.msg_name = &peer_addr;
-                    msg.msg_namelen = sizeof(peer_addr);
-                    len = recvmsg(udp_sock, &msg, 0);
-                    if (len < 0) {
-                        printf("Error when receiving data from discover socket, errno: %s\n", strerror(errno));
-                        close(udp_sock);
-                        udp_sock = setup_udp_socket();
+        // latency probes are answered ahead of the stream sockets, which are readable most of the time while casting
+        for (pass = 0; pass < 2; pass++) {
+            for (i = 0; i < count; i++) {
+                int tag = events[i].data.u64 >> 32;
+                int slot = (uint32_t) events[i].data.u64;
+                // for EV_RTP and EV_PROBE the slot is a shared port, not a session
+                struct session *session = slot < MAX_SESSIONS ? &sessions[slot] : NULL;
+                if ((tag == EV_PROBE) != (pass == 0)) {
+                    continue;
+                }
+                switch (tag) {
+                    case EV_PROBE:
+                        if (udp_ports[slot].users > 0 && echo_probe(udp_ports[slot].sock) < 0) {
+                            printf("Error when echoing latency probe: %s\n", strerror(errno));
+                        }
                         break;
-                    }
-                    printf("Receive broadcast msg: %s from: %s:%d\n", broadcast_msg_buf, inet_ntoa(peer_addr.sin_addr), ntohs(peer_addr.sin_port));
-                    if (!strncmp(broadcast_msg_buf, DISCOVER_MSG, 5)) {
-                        printf("Receive discover msg: %s, from: %s\n", broadcast_msg_buf, inet_ntoa(peer_addr.sin_addr));
-                        for (cmsg = CMSG_FIRSTHDR(&msg); cmsg != NULL; cmsg = CMSG_NXTHDR(&msg, cmsg)) {
-                            if (cmsg->cmsg_level == IPPROTO_IP) {
-                                struct in_pktinfo *i = (struct in_pktinfo*) CMSG_DATA(cmsg);
-                                printf("Response discover msg with local ip: %s\n", inet_ntoa(i->ipi_spec_dst));
-                                memset(resp_msg_buf, 0, sizeof(resp_msg_buf));
-                                snprintf(resp_msg_buf, sizeof(resp_msg_buf), DISCOVER_MSG_TEMPLATE, DISCOVER_PORT, inet_ntoa(i->ipi_spec_dst), inet_ntoa(i->ipi_spec_dst));
-                                if (sendto(udp_sock, resp_msg_buf, strlen(resp_msg_buf), 0, (struct sockaddr *)&peer_addr, sizeof(peer_addr)) < 0) {
-                                    printf("Error when send discover response to peer\n");
-                                }
+                    case EV_DISCOVER:
+                        if (answer_discovery(udp_sock) < 0) {
+                            close_fd(epoll_fd, &udp_sock);
+                            udp_sock = setup_udp_socket();
+                            if (udp_sock > 0) {
+                                watch_fd(epoll_fd, EPOLL_CTL_ADD, udp_sock, EPOLLIN, EV_DISCOVER, 0);
                             }
                         }
-                    }
-                } else if (FD_ISSET(tcp_sock, &fd_r)) {
-                    if (tcp_client_sock < 0) {
+                        break;
+#ifndef CLIENT_MODE
+                    case EV_LISTEN: {
+                        int sock;
+                        int free_slot = -1;
                         addr_len = sizeof(peer_addr);
-                        tcp_client_sock = accept(tcp_sock, (struct sockaddr *)&peer_addr, &addr_len);
-                        if (tcp_client_sock < 0) {
+                        sock = accept4(tcp_sock, (struct sockaddr *)&peer_addr, &addr_len, SOCK_CLOEXEC);
+                        if (sock < 0) {
                             printf("Error when accepting client\n");
-                        } else {
-                            just_connect = 1;
-                            printf("Accept peer addr: %s:%d\n", inet_ntoa(peer_addr.sin_addr), ntohs(peer_addr.sin_port));
-                            if (!strncmp(gst_sink, "ffplay", 6)) {
-#if USE_FIFO
-                                const char *command[] = {"ffplay", "-framerate", "50", "-infbuf", "-framedrop", "-analyzeduration", "1", FIFO_PATH, NULL};
-#else
-                                const char *command[] = {"ffplay", "-framerate", "50", "-infbuf", "-framedrop", "-analyzeduration", "1", "-", NULL};
-#endif
-                                gst_pid = popen2(command, &gst_in_fp, &gst_out_fp);
-                            } else {
-#if USE_FIFO
-                                char location_buf[32] = {0};
-                                strcat(location_buf, "location=");
-                                strcat(location_buf, FIFO_PATH);
-#ifdef VPUDEC
-                                const char *command[] = {"gst-launch-0.10", "filesrc", location_buf, "do-timestamp=true", "!", "video\/x-h264,width=800,height=480,framerate=30\/1", "!", "vpudec", "framedrop=true", "frame-plus=1", "low-latency=true", "!", gst_sink, NULL};
-#else
-                                const char *command[] = {"gst-launch-1.0", "filesrc", location_buf, "do-timestamp=true", "!", "h264parse", "!", "decodebin", "!", gst_sink, NULL};
-#endif
-#else
-#ifdef VPUDEC
-                                const char *command[] = {"gst-launch-0.10", "fdsrc", "do-timestamp=true", "!", "video\/x-h264,width=800,height=480,framerate=30\/1", "!", "vpudec", "framedrop=true", "frame-plus=1", "low-latency=true", "!", gst_sink, NULL};
-#else
-                                const char *command[] = {"gst-launch-1.0", "fdsrc", "do-timestamp=true", "!", "h264parse", "!", "decodebin", "!", gst_sink, NULL};
-                                //const char *command[] = {"gst-launch-1.0", "fdsrc", "!", "video\/x-h264,width=800,height=480,framerate=0\/1,stream-format=avc", "!", "avdec_h264", "!", gst_sink, NULL};
-#endif
-#endif
-                                gst_pid = popen2(command, &gst_in_fp, &gst_out_fp);
+                            break;
+                        }
+                        for (slot = 0; slot < MAX_SESSIONS; slot++) {
+                            if (!sessions[slot].active) {
+                                free_slot = slot;
+                                break;
                             }
-                            printf("gst pid: %d\n", gst_pid);
-#if USE_FIFO
-                            fifo_fp = open(FIFO_PATH, O_WRONLY);
-                            printf("fifo_fp: %d\n", fifo_fp);
-#endif
                         }
-                    } else {
-                        printf("Could not accept client, another connection still exist\n");
-                    }
-                } else if (tcp_client_sock > 0 && FD_ISSET(tcp_client_sock, &fd_r)) {
-                    memset(data_msg_buf, 0, sizeof(data_msg_buf));
-                    len = read(tcp_client_sock, data_msg_buf, sizeof(data_msg_buf));
-                    //printf("Receive data len: %d\n", len);
-                    if (len > 0) {
-                        no_data_count = 0;
-                    } else {
-			no_data_count++;
-                    }
-                    if (len < 0 || no_data_count > 2) {
-                        printf("Failed to receive from tcp client socket, close the socket\n");
-                        close(tcp_client_sock);
-                        tcp_client_sock = -1;
-                        if (gst_pid > 0) {
-                            kill(gst_pid, SIGKILL);
-                            waitpid(gst_pid, NULL, 0);
-                            gst_pid = -1;
-                            gst_in_fp = -1;
-                            gst_out_fp = -1;
+                        if (free_slot < 0) {
+                            printf("Could not accept client, all %d sessions are in use\n", MAX_SESSIONS);
+                            close(sock);
+                            break;
                         }
-                        if (fifo_fp > 0) {
-                            close(fifo_fp);
-                            fifo_fp = -1;
+                        printf("Accept peer addr: %s:%d, session: %d\n", inet_ntoa(peer_addr.sin_addr), ntohs(peer_addr.sin_port), free_slot);
+                        open_session(epoll_fd, &sessions[free_slot], free_slot, sock);
+                        break;
+                    }
+#endif
+                    case EV_CLIENT:
+                        if (!session->active) {
+                            break;
                         }
+                        if ((session->streaming ? forward_stream(epoll_fd, session, slot)
+                                                : read_header(epoll_fd, session, slot, gst_sink)) < 0) {
+                            printf("Failed to receive from tcp client socket, close session %d\n", slot);
+                            close_session(epoll_fd, session);
 #ifdef CLIENT_MODE
-                        return 0;
-#endif
-                    } else {
-                        if (just_connect && strstr(data_msg_buf, "\r\n")) {
-                            int width = 800;
-                            int height = 480;
-                            printf("Receive control data(%u): %s\n", len, data_msg_buf);
-                            char *control_end = strstr(data_msg_buf, "\r\n\r\n");
-                            int bdata_len = 0;
-                            if (control_end + 4 - data_msg_buf > 0) {
-                                bdata_len = len - (control_end + 4 - data_msg_buf);
-                                control_end = control_end + 4;
-                            }
-                            char *info = strtok(data_msg_buf, "\r\n");
-                            while (info) {
-                                //printf("info: %s\n", info);
-                                if (strstr(info, "X-WIDTH:")) {
-                                    width = atoi(strstr(info, " "));
-                                    printf("width: %d\n", width);
-                                }
-                                if (strstr(info, "X-HEIGHT:")) {
-                                    height = atoi(strstr(info, " "));
-                                    printf("height: %d\n", height);
-                                }
-                                info = strtok(NULL, "\r\n");
-                            }
-
-                            if (!strncmp(gst_sink, "ffplay", 6)) {
-#if USE_FIFO
-                                const char *command[] = {"ffplay", "-framerate", "50", "-infbuf", "-framedrop", "-analyzeduration", "1", FIFO_PATH, NULL};
-#else
-                                const char *command[] = {"ffplay", "-framerate", "50", "-infbuf", "-framedrop", "-analyzeduration", "1", "-", NULL};
-#endif
-                                gst_pid = popen2(command, &gst_in_fp, &gst_out_fp);
-                            } else {
-#if USE_FIFO
-                                char location_buf[32] = {0};
-                                strcat(location_buf, "location=");
-                                strcat(location_buf, FIFO_PATH);
-#ifdef VPUDEC
-                                char mime_buf[70] = {0};
-                                snprintf(mime_buf, 70, "video\/x-h264,width=%d,height=%d,framerate=30\/1", width, height);
-                                //snprintf(mime_buf, 70, "video\/x-h264,width=%d,height=%d,framerate=30\/1,stream-format=avc", width, height);
-                                printf("Using cap: %s\n", mime_buf);
-                                const char *command[] = {"gst-launch-0.10", "filesrc", location_buf, "do-timestamp=true", "!", mime_buf, "!", "vpudec", "framedrop=true", "frame-plus=1", "low-latency=true", "!", gst_sink, NULL};
-#else
-                                const char *command[] = {"gst-launch-1.0", "filesrc", location_buf, "do-timestamp=true", "!", "h264parse", "!", "decodebin", "!", gst_sink, NULL};
-#endif
-#else
-#ifdef VPUDEC
-                                char mime_buf[70] = {0};
-                                snprintf(mime_buf, 70, "video\/x-h264,width=%d,height=%d,framerate=30\/1", width, height);
-                                //snprintf(mime_buf, 70, "video\/x-h264,width=%d,height=%d,framerate=30\/1,stream-format=avc", width, height);
-                                printf("Using cap: %s\n", mime_buf);
-                                const char *command[] = {"gst-launch-0.10", "fdsrc", "do-timestamp=true", "!", mime_buf, "!", "vpudec", "framedrop=false", "frame-plus=1", "low-latency=true", "!", gst_sink, NULL};
-#else
-                                const char *command[] = {"gst-launch-1.0", "fdsrc", "do-timestamp=true", "!", "h264parse", "!", "decodebin", "!", gst_sink, NULL};
-#endif
-#endif
-
-                                gst_pid = popen2(command, &gst_in_fp, &gst_out_fp);
-                            }
-                            printf("gst pid: %d\n", gst_pid);
-                            printf("gst in fp: %d\n", gst_in_fp);
-#if USE_FIFO
-                            fifo_fp = open(FIFO_PATH, O_WRONLY);
-                            printf("fifo_fp: %d\n", fifo_fp);
+                            return 0;
 #endif
-
-                            just_connect = 0;
-                            if (bdata_len > 0) {
-#if USE_FIFO
-                                if (fifo_fp > 0) {
-                                    len = write(fifo_fp, control_end, bdata_len);
-                                    printf("Write non control data len: %d\n", len);
-                                }
-#else
-                                if (gst_in_fp > 0) {
-                                    len = write(gst_in_fp, control_end, bdata_len);
-                                    printf("Write non control data len: %d\n", len);
-                                }
-#endif
-                            }
-                        } else {
-#if USE_FIFO
-                            if (fifo_fp > 0) {
-                                len = write(fifo_fp, data_msg_buf, len);
-                                //printf("Write to fifo len: %d\n", len);
-                                if (len < 0) {
-                                    printf("Pipe input error: %s\n", strerror(errno));
-                                }
-                            }
-#else
-                            if (gst_in_fp > 0) {
-                                len = write(gst_in_fp, data_msg_buf, len);
-                                //printf("Piped len: %d\n", len);
-                                if (len < 0) {
-                                    printf("Pipe input error: %s\n", strerror(errno));
-                                }
-                            }
+                        }
+                        break;
+                    case EV_DECODER:
+                        if (session->active && session->decoder_watched
+                                && resume_stream(epoll_fd, session, slot) < 0) {
+                            printf("Failed to write to the decoder, close session %d\n", slot);
+                            close_session(epoll_fd, session);
+#ifdef CLIENT_MODE
+                            return 0;
 #endif
                         }
-                    }
-                } else {
-                    if (timeout) {
-                        if (gst_pid > 0) {
-                            no_data_count++;
-                            // 3 * 10 = 30 seconds
-                            if (no_data_count > 10) {
-                                printf("No data for casting after 30 seconds, close the socket and receiver\n");
-                                if (tcp_client_sock > 0) {
-                                    close(tcp_client_sock);
-                                    tcp_client_sock = -1;
-                                }
-                                if (gst_pid > 0) {
-                                    kill(gst_pid, SIGKILL);
-                                    waitpid(gst_pid, NULL, 0);
-                                    gst_pid = -1;
-                                    gst_in_fp = -1;
-                                    gst_out_fp = -1;
-                                }
-                                if (fifo_fp > 0) {
-                                    close(fifo_fp);
-                                    fifo_fp = -1;
-                                }
-                            }
+                        break;
+                    case EV_RTP:
+                        if (udp_ports[slot].users > 0) {
+                            receive_rtp(epoll_fd, sessions, slot);
                         }
-                    }
+                        break;
                 }
             }
         }
+
+        now_us = monotonic_us();
+        for (i = 0; i < MAX_SESSIONS; i++) {
+            if (sessions[i].active && sessions[i].streaming && !sessions[i].decoder_blocked
+                    && now_us - sessions[i].last_data_us > IDLE_TIMEOUT_US) {
+                printf("No data for casting after 30 seconds, close session %d and its receiver\n", i);
+                close_session(epoll_fd, &sessions[i]);
+#ifdef CLIENT_MODE
+                return 0;
+#endif
+            }
+        }
     }
 
     return 0;
@@ -20,44 +20,125 @@
 
 from threading import Thread
 from subprocess import Popen, PIPE, STDOUT
-import select, socket
+import ctypes, ctypes.util, select, socket, struct, time
 import SocketServer
+from cs_stream import FRAMING_VERSION, HeaderParser, create_framer
 
 HOST = ''
 PORT = 53515
 IP = '192.168.0.11'
 
 bufferSize = 1024
-meta_data = '{"port":%d,"name":"PyReceiver @ %s","id":"%s","width":1280,"height":960,"mirror":"h264","audio":"pcm","subtitles":"text/vtt","proxyHeaders":true,"hls":false,"upsell":true}' % (PORT, IP, IP)
+# video is read in large chunks and written to the decoder a whole access unit at a time
+STREAM_READ_SIZE = 65536
+meta_data = '{"port":%d,"name":"PyReceiver @ %s","id":"%s","width":1280,"height":960,"mirror":"h264","audio":"pcm","subtitles":"text/vtt","proxyHeaders":true,"hls":false,"upsell":true,"framing":%d}' % (PORT, IP, IP, FRAMING_VERSION)
+
+PROBE_MAGIC = 0x43535052
+ECHO_MAGIC = 0x43534543
+PROBE_SIZE = 24
+
+class timespec(ctypes.Structure):
+    _fields_ = [('tv_sec', ctypes.c_long), ('tv_nsec', ctypes.c_long)]
+
+CLOCK_MONOTONIC = 1
+
+def load_clock_gettime():
+    try:
+        clock_gettime = ctypes.CDLL(ctypes.util.find_library('rt') or ctypes.util.find_library('c'), use_errno=True).clock_gettime
+    except (OSError, AttributeError):
+        return None
+    clock_gettime.argtypes = [ctypes.c_int, ctypes.POINTER(timespec)]
+    return clock_gettime
+
+clock_gettime = load_clock_gettime()
+
+def monotonic_us():
+    # probes compare differences only, the wall clock can step while a stream runs
+    if hasattr(time, 'monotonic'):
+        return int(time.monotonic() * 1000000)
+    if clock_gettime is not None:
+        t = timespec()
+        if clock_gettime(CLOCK_MONOTONIC, ctypes.pointer(t)) == 0:
+            return t.tv_sec * 1000000 + t.tv_nsec // 1000
+    return int(time.time() * 1000000)
+
+def echo_probes(s):
+    # latency probes come back with the time they arrived and the time they left, in microseconds
+    while True:
+        try:
+            probe, address = s.recvfrom(PROBE_SIZE + 1)
+        except socket.error:
+            break
+        if not probe:
+            # shut down by the handler
+            break
+        arrival = monotonic_us()
+        if len(probe) != PROBE_SIZE or struct.unpack('>I', probe[0:4])[0] != PROBE_MAGIC:
+            continue
+        echo = struct.pack('>I', ECHO_MAGIC) + probe[4:] + struct.pack('>qq', arrival, monotonic_us())
+        s.sendto(echo, address)
+
+def start_probe_echo(port):
+    if port <= 0:
+        return None
+    s = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+    s.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+    try:
+        s.bind(('', port))
+    except socket.error as e:
+        # the video plays on without latency probes
+        print 'Probe echo port %d unavailable: ' % port, e
+        s.close()
+        return None
+    t = Thread(target=echo_probes, args=(s,))
+    t.daemon = True
+    t.start()
+    return s
 
 SAVE_TO_FILE = False
 class MyTCPHandler(SocketServer.BaseRequestHandler):
     def handle(self):
-	if SAVE_TO_FILE:
+        if SAVE_TO_FILE:
             f = open('video.raw', 'wb')
         p = Popen(['ffplay', '-framerate', '30', '-'], stdin=PIPE, stdout=PIPE)
         #p = Popen(['gst-launch-1.0', 'fdsrc', '!', 'h264parse', '!', 'avdec_h264', '!', 'autovideosink'], stdin=PIPE, stdout=PIPE)
-        skiped_metadata = False
+        print "Client connected, addr: ", self.client_address[0]
+        header = HeaderParser()
+        framer = None
+        probe_sock = None
         while True:
-            data = self.request.recv(bufferSize)
+            data = self.request.recv(STREAM_READ_SIZE)
             if data == None or len(data) <= 0:
                 break
-            if not skiped_metadata:
-                print "Client connected, addr: ", self.client_address[0]
-                if data.find('\r\n\r\n') > 0:
-                    last_ctrl = data.find('\r\n\r\n') + 4
-                    print 'Recv control data: ', data[0:last_ctrl]
-                    if len(data) > last_ctrl:
-                        p.stdin.write(data[last_ctrl:])
-	                if SAVE_TO_FILE:
-                            f.write(data[last_ctrl:])
-                skiped_metadata = True
-            else:
-                p.stdin.write(data)
-	        if SAVE_TO_FILE:
-                    f.write(data)
+            if framer is None:
+                try:
+                    data = header.feed(data)
+                except ValueError as e:
+                    print 'Bad control data: ', e
+                    break
+                if data is None:
+                    # the rest of the header is still in flight
+                    continue
+                print 'Recv control data: ', header.text
+                print 'Video size: %dx%d' % (header.get_int('X-WIDTH'), header.get_int('X-HEIGHT'))
+                probe_sock = start_probe_echo(header.get_int('X-LATENCY-PROBE-PORT'))
+                framer = create_framer(header)
+            units = framer.feed(data)
+            if not select.select([self.request], [], [], 0)[0]:
+                units += framer.drain()
+            if units:
+                chunk = b''.join(units)
+                p.stdin.write(chunk)
+                if SAVE_TO_FILE:
+                    f.write(chunk)
         p.kill()
-	if SAVE_TO_FILE:
+        if probe_sock:
+            try:
+                probe_sock.shutdown(socket.SHUT_RDWR)
+            except socket.error:
+                pass
+            probe_sock.close()
+        if SAVE_TO_FILE:
             f.close()
 
 def resp_hello(ip, port):
@@ -19,47 +19,67 @@
 """
 
 from subprocess import Popen, PIPE, STDOUT
-import socket
+import select, socket
+from cs_stream import FRAMING_VERSION, HeaderParser, create_framer
 
 PORT = 53516
-bufferSize = 1024
+# video is read in large chunks and written to the decoder a whole access unit at a time
+STREAM_READ_SIZE = 65536
 
 SAVE_TO_FILE = False
-def connect_to_server():
-    sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
-    server_address = ('localhost', PORT)
-    print 'Connecting to %s port %s' % server_address
-    sock.connect(server_address)
-    try:
-        # Send data
-        message = 'mirror\n'
-        print 'Sending mirror cmd'
+def request_mirror():
+    # senders that predate framing close on the framing request without a header
+    for message in ['mirror framing=%d\n' % FRAMING_VERSION, 'mirror\n']:
+        sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+        server_address = ('localhost', PORT)
+        print 'Connecting to %s port %s' % server_address
+        sock.connect(server_address)
+        print 'Sending mirror cmd: ', message.strip()
         sock.sendall(message)
+        # the header stays queued for the stream loop
+        if sock.recv(1, socket.MSG_PEEK):
+            return sock
+        sock.close()
+    return None
 
-	if SAVE_TO_FILE:
+def connect_to_server():
+    sock = request_mirror()
+    if sock is None:
+        print 'Sender closed the connection'
+        return
+    try:
+        if SAVE_TO_FILE:
             f = open('video_client.raw', 'wb')
         p = Popen(['ffplay', '-framerate', '30', '-'], stdin=PIPE, stdout=PIPE)
         #p = Popen(['gst-launch-1.0', 'fdsrc', '!', 'h264parse', '!', 'avdec_h264', '!', 'autovideosink'], stdin=PIPE, stdout=PIPE)
-        skiped_metadata = False
+        header = HeaderParser()
+        framer = None
         while True:
-            data = sock.recv(bufferSize)
+            data = sock.recv(STREAM_READ_SIZE)
             if data == None or len(data) <= 0:
                 break
-            if not skiped_metadata:
-                if data.find('\r\n\r\n') > 0:
-                    last_ctrl = data.find('\r\n\r\n') + 4
-                    print 'Recv control data: ', data[0:last_ctrl]
-                    if len(data) > last_ctrl:
-                        p.stdin.write(data[last_ctrl:])
-	                if SAVE_TO_FILE:
-                            f.write(data[last_ctrl:])
-                skiped_metadata = True
-            else:
-                p.stdin.write(data)
-	        if SAVE_TO_FILE:
-                    f.write(data)
+            if framer is None:
+                try:
+                    data = header.feed(data)
+                except ValueError as e:
+                    print 'Bad control data: ', e
+                    break
+                if data is None:
+                    # the rest of the header is still in flight
+                    continue
+                print 'Recv control data: ', header.text
+                print 'Video size: %dx%d' % (header.get_int('X-WIDTH'), header.get_int('X-HEIGHT'))
+                framer = create_framer(header)
+            units = framer.feed(data)
+            if not select.select([sock], [], [], 0)[0]:
+                units += framer.drain()
+            if units:
+                chunk = b''.join(units)
+                p.stdin.write(chunk)
+                if SAVE_TO_FILE:
+                    f.write(chunk)
         p.kill()
-	if SAVE_TO_FILE:
+        if SAVE_TO_FILE:
             f.close()
 
     finally:
@@ -0,0 +1,244 @@
+#!/usr/bin/env python
+
+"""
+ /*
+ * Copyright (C) 2016 Jones Chi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+"""
+
+import struct
+
+# the handshake is a few hundred bytes, anything this long is not one
+MAX_HEADER_SIZE = 8192
+
+IVF_SIGNATURE = b'DKIF'
+IVF_FILE_HEADER_SIZE = 32
+IVF_FRAME_HEADER_SIZE = 12
+
+# framed stream: length, sequence, pts in microseconds, flags and 3 reserved bytes before every frame
+FRAMING_VERSION = 1
+FRAME_HEADER = struct.Struct('>IIqB3x')
+FRAME_FLAG_KEY = 1
+FRAME_FLAG_CONFIG = 2
+
+class HeaderParser(object):
+    """Collects the stream header in front of the video, however TCP splits it."""
+
+    def __init__(self):
+        self._buf = b''
+        self.start_line = None
+        self.headers = {}
+        self.text = None
+
+    def feed(self, data):
+        """Returns the bytes after the header once it is complete, None until then."""
+        # the blank line may straddle the previous read
+        search_from = max(0, len(self._buf) - 3)
+        self._buf += data
+        end = self._buf.find(b'\r\n\r\n', search_from)
+        if end < 0:
+            if len(self._buf) > MAX_HEADER_SIZE:
+                raise ValueError('stream header longer than %d bytes' % MAX_HEADER_SIZE)
+            return None
+        self.text = self._buf[:end + 4].decode('latin-1')
+        for line in self.text.split('\r\n'):
+            name, sep, value = line.partition(':')
+            if sep:
+                self.headers[name.strip().upper()] = value.strip()
+            elif line and self.start_line is None:
+                self.start_line = line
+        rest = self._buf[end + 4:]
+        self._buf = b''
+        return rest
+
+    def get_int(self, name, default=0):
+        try:
+            return int(self.headers.get(name.upper(), default))
+        except ValueError:
+            return default
+
+class AnnexBFramer(object):
+    """Splits an H.264 Annex B byte stream into access units."""
+
+    def __init__(self):
+        self._buf = b''
+        # where the next start code search resumes, relative to _buf
+        self._scan = 0
+        self._has_picture = False
+
+    def _starts_access_unit(self, nal_type, next_byte):
+        if not self._has_picture:
+            return False
+        # SEI, SPS, PPS and access unit delimiters come before the picture they belong to,
+        # a slice with first_mb_in_slice 0 starts a new picture
+        return 6 <= nal_type <= 9 or (1 <= nal_type <= 5 and next_byte & 0x80)
+
+    def feed(self, data):
+        """Returns the access units completed by data."""
+        buf = self._buf + data
+        units = []
+        unit_start = 0
+        pos = self._scan
+        while True:
+            sc = buf.find(b'\x00\x00\x01', pos)
+            if sc < 0:
+                # a start code may straddle the next read
+                pos = max(pos, len(buf) - 3)
+                break
+            if sc + 5 > len(buf):
+                pos = sc
+                break
+            header = bytearray(buf[sc + 3:sc + 5])
+            nal_type = header[0] & 0x1f
+            if self._starts_access_unit(nal_type, header[1]):
+                # a four byte start code belongs to the unit it starts
+                start = sc - 1 if sc > unit_start and buf[sc - 1:sc] == b'\x00' else sc
+                units.append(buf[unit_start:start])
+                unit_start = start
+                self._has_picture = False
+            if 1 <= nal_type <= 5:
+                self._has_picture = True
+            pos = sc + 3
+        self._buf = buf[unit_start:]
+        self._scan = pos - unit_start
+        return units
+
+    def drain(self):
+        """Returns the buffered part of the current access unit.
+
+        The end of an access unit only shows once the next one starts. When
+        nothing more is waiting on the socket the sender has most likely
+        written the whole frame, so it goes to the decoder right away instead
+        of one frame late. Parameter sets wait for their picture.
+        """
+        if not self._has_picture or not self._buf:
+            return []
+        # all of it, a start code cut in half by the read only merges two writes
+        unit = self._buf
+        self._buf = b''
+        self._scan = 0
+        return [unit]
+
+    def flush(self):
+        """Returns what is left at the end of the stream."""
+        rest = self._buf
+        self._buf = b''
+        self._scan = 0
+        self._has_picture = False
+        return [rest] if rest else []
+
+class IvfFramer(object):
+    """Splits an IVF stream into frames, the file header goes out with the first one."""
+
+    def __init__(self):
+        self._buf = b''
+        self._header_len = IVF_FILE_HEADER_SIZE
+
+    def feed(self, data):
+        buf = self._buf + data
+        units = []
+        start = 0
+        pos = 0
+        while True:
+            frame_pos = pos + self._header_len
+            if frame_pos + IVF_FRAME_HEADER_SIZE > len(buf):
+                break
+            size = struct.unpack('<I', buf[frame_pos:frame_pos + 4])[0]
+            end = frame_pos + IVF_FRAME_HEADER_SIZE + size
+            if end > len(buf):
+                break
+            units.append(buf[start:end])
+            start = pos = end
+            self._header_len = 0
+        self._buf = buf[start:]
+        return units
+
+    def drain(self):
+        # frames carry their size, complete ones never wait
+        return []
+
+    def flush(self):
+        rest = self._buf
+        self._buf = b''
+        return [rest] if rest else []
+
+class FrameDeframer(object):
+    """Splits a framed stream into frames by their headers, no start code scanning needed."""
+
+    def __init__(self):
+        self._buf = b''
+        self._next_seq = None
+        self.frames_lost = 0
+
+    def feed(self, data):
+        buf = self._buf + data
+        units = []
+        pos = 0
+        while pos + FRAME_HEADER.size <= len(buf):
+            size, seq, pts_us, flags = FRAME_HEADER.unpack_from(buf, pos)
+            end = pos + FRAME_HEADER.size + size
+            if end > len(buf):
+                break
+            # the sender counts every frame it writes, a gap means the stream lost sync
+            if self._next_seq is not None and seq != self._next_seq:
+                print('Frame sequence gap: expected %d, got %d' % (self._next_seq, seq))
+                self.frames_lost += (seq - self._next_seq) & 0xffffffff
+            self._next_seq = (seq + 1) & 0xffffffff
+            units.append(buf[pos + FRAME_HEADER.size:end])
+            pos = end
+        self._buf = buf[pos:]
+        return units
+
+    def drain(self):
+        # frames carry their size, complete ones never wait
+        return []
+
+    def flush(self):
+        # a frame cut short by the end of the stream is of no use to the decoder
+        self._buf = b''
+        return []
+
+def create_framer(header):
+    """Returns the framer for the stream announced by a parsed HeaderParser."""
+    if header.get_int('X-FRAMING') == FRAMING_VERSION:
+        return FrameDeframer()
+    return StreamFramer()
+
+class StreamFramer(object):
+    """Picks the framer for the stream from its first bytes."""
+
+    def __init__(self):
+        self._framer = None
+        self._buf = b''
+
+    def feed(self, data):
+        if self._framer is None:
+            self._buf += data
+            if len(self._buf) < len(IVF_SIGNATURE):
+                return []
+            self._framer = IvfFramer() if self._buf.startswith(IVF_SIGNATURE) else AnnexBFramer()
+            data = self._buf
+            self._buf = b''
+        return self._framer.feed(data)
+
+    def drain(self):
+        return self._framer.drain() if self._framer else []
+
+    def flush(self):
+        if self._framer is None:
+            rest = self._buf
+            self._buf = b''
+            return [rest] if rest else []
+        return self._framer.flush()